@@ -0,0 +1,370 @@
+package tburke.loyaltykeyring;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generator of realistic, reproducible card collections for scale testing.
+ * The same seed and settings always produce the same cards, names and
+ * groups.
+ * 
+ * @author tburke
+ */
+final class CardDataset {
+    /**
+     * Length of a Code 128 membership number.
+     */
+    private static final int CODE_128_LENGTH = 16;
+    /**
+     * Length of the random token in a QR payload.
+     */
+    private static final int QR_TOKEN_LENGTH = 200;
+    /**
+     * Digits given to the card index in numeric barcodes, so that no two
+     * cards share data; enough for ten million cards.
+     */
+    private static final int INDEX_DIGITS = 7;
+    /**
+     * Words that card and group names are made of.
+     */
+    private static final String[] WORDS = { "Market", "Coffee", "Books",
+            "Fuel", "Pharmacy", "Outlet", "Garden", "Pet", "Cinema", "Grocer",
+            "Hardware", "Bakery", "Sports", "Wine", "Library", "Club",
+            "Rewards", "Plus", "Express", "Central", };
+
+    /**
+     * The barcode formats to generate.
+     */
+    private final String[] formats;
+    /**
+     * Cumulative weights of {@link #formats}.
+     */
+    private final int[] formatWeights;
+    /**
+     * The number of cards.
+     */
+    private final int cardCount;
+    /**
+     * The number of groups.
+     */
+    private final int groupCount;
+    /**
+     * The mean number of cards in a group.
+     */
+    private final int fanOut;
+    /**
+     * The shortest card name.
+     */
+    private final int minNameLength;
+    /**
+     * The longest card name.
+     */
+    private final int maxNameLength;
+    /**
+     * Seed for the generator.
+     */
+    private final long seed;
+
+    /**
+     * Describe a dataset.
+     * 
+     * @param cards
+     *            the number of cards
+     * @param groups
+     *            the number of groups
+     * @param meanFanOut
+     *            the mean number of cards in a group; sizes are spread
+     *            evenly between 1 and twice this
+     * @param minName
+     *            the shortest card name
+     * @param maxName
+     *            the longest card name
+     * @param formatMix
+     *            the barcode formats and their relative weights, e.g.
+     *            "UPC_A:40,QR_CODE:10"
+     * @param randomSeed
+     *            seed for the generator
+     * @throws IllegalArgumentException
+     *             if the settings are inconsistent
+     */
+    CardDataset(final int cards, final int groups, final int meanFanOut,
+            final int minName, final int maxName, final String formatMix,
+            final long randomSeed) {
+        final int radix = 10;
+        if (cards < 1 || cards > Math.pow(radix, INDEX_DIGITS) || groups < 0
+                || meanFanOut < 1) {
+            throw new IllegalArgumentException("Need 1 to 10^" + INDEX_DIGITS
+                    + " cards and a positive fan-out");
+        }
+        if (minName < 1 || maxName < minName) {
+            throw new IllegalArgumentException("Bad name lengths " + minName
+                    + ".." + maxName);
+        }
+        cardCount = cards;
+        groupCount = groups;
+        fanOut = meanFanOut;
+        minNameLength = minName;
+        maxNameLength = maxName;
+        seed = randomSeed;
+
+        String[] parts = formatMix.split(",");
+        formats = new String[parts.length];
+        formatWeights = new int[parts.length];
+        int total = 0;
+        for (int i = 0; i < parts.length; ++i) {
+            String[] pair = parts[i].split(":");
+            formats[i] = pair[0].trim();
+            if (!"UPC_A".equals(formats[i]) && !"EAN_13".equals(formats[i])
+                    && !"CODE_128".equals(formats[i])
+                    && !"QR_CODE".equals(formats[i])) {
+                throw new IllegalArgumentException("Unsupported format "
+                        + formats[i]);
+            }
+            try {
+                total += pair.length > 1 ? Integer.parseInt(pair[1].trim()) : 1;
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Bad weight in " + parts[i]);
+            }
+            formatWeights[i] = total;
+        }
+    }
+
+    /**
+     * Getter for the number of cards.
+     * 
+     * @return the number of cards
+     */
+    int getCardCount() {
+        return cardCount;
+    }
+
+    /**
+     * Getter for the number of groups.
+     * 
+     * @return the number of groups
+     */
+    int getGroupCount() {
+        return groupCount;
+    }
+
+    /**
+     * Getter for the mean number of cards in a group.
+     * 
+     * @return the mean fan-out
+     */
+    int getFanOut() {
+        return fanOut;
+    }
+
+    /**
+     * Getter for the shortest card name.
+     * 
+     * @return the shortest card name
+     */
+    int getMinNameLength() {
+        return minNameLength;
+    }
+
+    /**
+     * Getter for the longest card name.
+     * 
+     * @return the longest card name
+     */
+    int getMaxNameLength() {
+        return maxNameLength;
+    }
+
+    /**
+     * Describe the format mix.
+     * 
+     * @return the formats and weights, as given to the constructor
+     */
+    String getFormatMix() {
+        StringBuilder result = new StringBuilder();
+        int previous = 0;
+        for (int i = 0; i < formats.length; ++i) {
+            if (i > 0) {
+                result.append(',');
+            }
+            result.append(formats[i]).append(':')
+                    .append(formatWeights[i] - previous);
+            previous = formatWeights[i];
+        }
+        return result.toString();
+    }
+
+    /**
+     * Getter for the seed.
+     * 
+     * @return the seed
+     */
+    long getSeed() {
+        return seed;
+    }
+
+    /**
+     * Name the groups.
+     * 
+     * @return the group names, in creation order
+     */
+    List<String> getGroupNames() {
+        List<String> result = new ArrayList<String>(groupCount);
+        for (int i = 0; i < groupCount; ++i) {
+            result.add(WORDS[i % WORDS.length] + " " + (i + 1));
+        }
+        return result;
+    }
+
+    /**
+     * Generate the cards, with their groups.
+     * 
+     * @return the cards
+     */
+    List<CardRecord> generate() {
+        Random random = new Random(seed);
+        List<LoyaltyCard> cards = new ArrayList<LoyaltyCard>(cardCount);
+        List<List<String>> groups = new ArrayList<List<String>>(cardCount);
+        for (int i = 0; i < cardCount; ++i) {
+            String format = pickFormat(random);
+            cards.add(new LoyaltyCard(name(random, i), format, data(random,
+                    format, i)));
+            groups.add(new ArrayList<String>());
+        }
+
+        List<Integer> indices = new ArrayList<Integer>(cardCount);
+        for (int i = 0; i < cardCount; ++i) {
+            indices.add(i);
+        }
+        for (String group : getGroupNames()) {
+            int size = Math.min(cardCount, 1 + random.nextInt(2 * fanOut));
+            // A partial shuffle picks distinct members.
+            for (int i = 0; i < size; ++i) {
+                Collections.swap(indices, i, i + random.nextInt(cardCount - i));
+                groups.get(indices.get(i)).add(group);
+            }
+        }
+
+        List<CardRecord> result = new ArrayList<CardRecord>(cardCount);
+        for (int i = 0; i < cardCount; ++i) {
+            result.add(new CardRecord(cards.get(i), groups.get(i)));
+        }
+        return result;
+    }
+
+    /**
+     * Pick a format according to the mix.
+     * 
+     * @param random
+     *            the source of randomness
+     * @return the format
+     */
+    private String pickFormat(final Random random) {
+        int pick = random.nextInt(formatWeights[formatWeights.length - 1]);
+        int i = 0;
+        while (pick >= formatWeights[i]) {
+            ++i;
+        }
+        return formats[i];
+    }
+
+    /**
+     * Generate a unique card name.
+     * 
+     * @param random
+     *            the source of randomness
+     * @param index
+     *            the card's index, which makes the name unique
+     * @return the name
+     */
+    private String name(final Random random, final int index) {
+        final int radix = 36;
+        String suffix = " " + Integer.toString(index, radix);
+        int length = minNameLength
+                + random.nextInt(maxNameLength - minNameLength + 1);
+        StringBuilder result = new StringBuilder(length + suffix.length());
+        while (result.length() + suffix.length() < length) {
+            if (result.length() > 0) {
+                result.append(' ');
+            }
+            result.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        result.setLength(Math.max(0, length - suffix.length()));
+        return result.append(suffix).toString().trim();
+    }
+
+    /**
+     * Generate unique barcode data typical of a format.
+     * 
+     * @param random
+     *            the source of randomness
+     * @param format
+     *            the format
+     * @param index
+     *            the card's index, which makes the data unique
+     * @return the data
+     */
+    private static String data(final Random random, final String format,
+            final int index) {
+        final int upcDigits = 11;
+        final int eanDigits = 12;
+        if ("UPC_A".equals(format)) {
+            return withCheckDigit(unique(random, index, upcDigits));
+        } else if ("EAN_13".equals(format)) {
+            return withCheckDigit(unique(random, index, eanDigits));
+        } else if ("CODE_128".equals(format)) {
+            return "M" + unique(random, index, CODE_128_LENGTH - 1);
+        }
+        StringBuilder token = new StringBuilder(QR_TOKEN_LENGTH);
+        final String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789";
+        for (int i = 0; i < QR_TOKEN_LENGTH; ++i) {
+            token.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        }
+        return "https://rewards.example.com/m/" + index + "/" + token;
+    }
+
+    /**
+     * Generate digits that are unique to a card: random digits, followed by
+     * its zero-padded index.
+     * 
+     * @param random
+     *            the source of randomness
+     * @param index
+     *            the card's index
+     * @param length
+     *            the number of digits
+     * @return the digits
+     */
+    private static String unique(final Random random, final int index,
+            final int length) {
+        final int radix = 10;
+        StringBuilder result = new StringBuilder(length);
+        while (result.length() + INDEX_DIGITS < length) {
+            result.append((char) ('0' + random.nextInt(radix)));
+        }
+        String suffix = Integer.toString(index);
+        for (int i = suffix.length(); i < INDEX_DIGITS; ++i) {
+            result.append('0');
+        }
+        return result.append(suffix).toString();
+    }
+
+    /**
+     * Append the EAN/UPC check digit.
+     * 
+     * @param digits
+     *            the digits, without check digit
+     * @return the digits, with check digit
+     */
+    private static String withCheckDigit(final String digits) {
+        final int oddWeight = 3;
+        final int radix = 10;
+        int sum = 0;
+        for (int i = digits.length() - 1, weight = oddWeight; i >= 0; --i) {
+            sum += (digits.charAt(i) - '0') * weight;
+            weight = oddWeight + 1 - weight;
+        }
+        return digits + (radix - sum % radix) % radix;
+    }
+}
@@ -0,0 +1,313 @@
+package tburke.loyaltykeyring;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of the card model and its ID codec. Each invocation works on the
+ * next card from a pool of synthetic cards, so that the JIT can't fold the
+ * inputs away. Run with <code>-prof gc</code> (the default in
+ * <code>bench/build.xml</code>) to see the allocation rate alongside ops/s.
+ * 
+ * @author tburke
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class LoyaltyCardBenchmark {
+    /**
+     * Number of cards in the pool; a power of two, so the index can be masked.
+     */
+    private static final int POOL_SIZE = 1024;
+    /**
+     * Seed for the data generator, so that every run sees the same cards.
+     */
+    private static final long SEED = 0x4C4B;
+    /**
+     * Length of a Code 128 membership number.
+     */
+    private static final int CODE_128_LENGTH = 20;
+    /**
+     * Length of the random token in a QR payload.
+     */
+    private static final int QR_TOKEN_LENGTH = 256;
+    /**
+     * Characters found in Code 128 membership numbers.
+     */
+    private static final String CODE_128_CHARS = "0123456789ABCDEFGHJKLMNPRSTUVWXYZ-";
+    /**
+     * Characters found in the token of a QR payload.
+     */
+    private static final String QR_CHARS = "ABCDEFGHIJKLMNOPQRSTUVWXYZ"
+            + "abcdefghijklmnopqrstuvwxyz0123456789-_";
+
+    /**
+     * The barcode format of every card in the pool.
+     */
+    @Param({ "UPC_A", "EAN_13", "CODE_128", "QR_CODE" })
+    private String format;
+
+    /**
+     * The cards under test.
+     */
+    private LoyaltyCard[] cards;
+    /**
+     * Equal (but not identical) copies of {@link #cards}.
+     */
+    private LoyaltyCard[] copies;
+    /**
+     * The barcode data of each card.
+     */
+    private String[] data;
+    /**
+     * The ID of each card.
+     */
+    private String[] ids;
+    /**
+     * Each card, serialized.
+     */
+    private byte[][] serialized;
+    /**
+     * Position in the pool.
+     */
+    private int next;
+
+    /**
+     * Build the pool of cards for the current format.
+     * 
+     * @throws IOException
+     *             if a card can't be serialized
+     */
+    @Setup
+    public void setUp() throws IOException {
+        Random random = new Random(SEED);
+        cards = new LoyaltyCard[POOL_SIZE];
+        copies = new LoyaltyCard[POOL_SIZE];
+        data = new String[POOL_SIZE];
+        ids = new String[POOL_SIZE];
+        serialized = new byte[POOL_SIZE][];
+        for (int i = 0; i < POOL_SIZE; ++i) {
+            String name = "Store " + i;
+            data[i] = generate(random);
+            cards[i] = new LoyaltyCard(name, format, data[i]);
+            copies[i] = new LoyaltyCard(new String(name), new String(format),
+                    new String(data[i]));
+            ids[i] = LoyaltyCard.createID(format, data[i]);
+            serialized[i] = serialize(cards[i]);
+        }
+    }
+
+    /**
+     * Generate barcode data typical of the current format.
+     * 
+     * @param random
+     *            the source of randomness
+     * @return the barcode data
+     */
+    private String generate(final Random random) {
+        if ("UPC_A".equals(format)) {
+            return withCheckDigit(digits(random, 11));
+        } else if ("EAN_13".equals(format)) {
+            return withCheckDigit(digits(random, 12));
+        } else if ("CODE_128".equals(format)) {
+            return chars(random, CODE_128_CHARS, CODE_128_LENGTH);
+        }
+        // Long QR payloads are usually URLs, complete with colons.
+        return "https://rewards.example.com/m/"
+                + chars(random, QR_CHARS, QR_TOKEN_LENGTH) + "?v=2&t=card:"
+                + random.nextInt(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Generate a string of random digits.
+     * 
+     * @param random
+     *            the source of randomness
+     * @param length
+     *            the number of digits
+     * @return the digits
+     */
+    private static String digits(final Random random, final int length) {
+        return chars(random, "0123456789", length);
+    }
+
+    /**
+     * Generate a random string.
+     * 
+     * @param random
+     *            the source of randomness
+     * @param alphabet
+     *            the characters to choose from
+     * @param length
+     *            the length of the string
+     * @return the string
+     */
+    private static String chars(final Random random, final String alphabet,
+            final int length) {
+        StringBuilder result = new StringBuilder(length);
+        for (int i = 0; i < length; ++i) {
+            result.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        }
+        return result.toString();
+    }
+
+    /**
+     * Append the EAN/UPC check digit.
+     * 
+     * @param digits
+     *            the digits, without check digit
+     * @return the digits, with check digit
+     */
+    private static String withCheckDigit(final String digits) {
+        final int oddWeight = 3;
+        final int radix = 10;
+        int sum = 0;
+        for (int i = digits.length() - 1, weight = oddWeight; i >= 0; --i) {
+            sum += (digits.charAt(i) - '0') * weight;
+            weight = oddWeight + 1 - weight;
+        }
+        return digits + (radix - sum % radix) % radix;
+    }
+
+    /**
+     * Serialize a card the way it is passed between activities.
+     * 
+     * @param card
+     *            the card
+     * @return the serialized form
+     * @throws IOException
+     *             if the card can't be serialized
+     */
+    private static byte[] serialize(final LoyaltyCard card) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(card);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Advance to the next card in the pool.
+     * 
+     * @return its index
+     */
+    private int next() {
+        next = (next + 1) & (POOL_SIZE - 1);
+        return next;
+    }
+
+    /**
+     * Build a card ID from its format and data.
+     * 
+     * @return the ID
+     */
+    @Benchmark
+    public String createID() {
+        return LoyaltyCard.createID(format, data[next()]);
+    }
+
+    /**
+     * Parse the format out of a card ID.
+     * 
+     * @return the format
+     */
+    @Benchmark
+    public String getFormatFromID() {
+        return LoyaltyCard.getFormatFromID(ids[next()]);
+    }
+
+    /**
+     * Parse the data out of a card ID.
+     * 
+     * @return the data
+     */
+    @Benchmark
+    public String getDataFromID() {
+        return LoyaltyCard.getDataFromID(ids[next()]);
+    }
+
+    /**
+     * Compare a card to an equal copy; every field must be compared.
+     * 
+     * @return true
+     */
+    @Benchmark
+    public boolean equalsCopy() {
+        int i = next();
+        return cards[i].equals(copies[i]);
+    }
+
+    /**
+     * Compare a card to a different card of the same format.
+     * 
+     * @return false
+     */
+    @Benchmark
+    public boolean equalsOther() {
+        int i = next();
+        return cards[i].equals(cards[(i + 1) & (POOL_SIZE - 1)]);
+    }
+
+    /**
+     * Hash a card. String hashes are cached, so this measures the combining
+     * step once the pool is warm.
+     * 
+     * @return the hash code
+     */
+    @Benchmark
+    public int hashCodeCard() {
+        return cards[next()].hashCode();
+    }
+
+    /**
+     * Serialize a card through {@code writeObject}.
+     * 
+     * @return the serialized form
+     * @throws IOException
+     *             if the card can't be serialized
+     */
+    @Benchmark
+    public byte[] writeObject() throws IOException {
+        return serialize(cards[next()]);
+    }
+
+    /**
+     * Deserialize a card through {@code readObject}.
+     * 
+     * @return the card
+     * @throws IOException
+     *             if the card can't be deserialized
+     * @throws ClassNotFoundException
+     *             if the serialized form names an unknown class
+     */
+    @Benchmark
+    public Object readObject() throws IOException, ClassNotFoundException {
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(
+                serialized[next()]));
+        try {
+            return in.readObject();
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,530 @@
+package tburke.loyaltykeyring;
+
+import android.content.Context;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TimeZone;
+
+/**
+ * Scale test for the persistence layer. Loads a generated dataset into a
+ * {@link CardStore} and measures the latency of the operations the main
+ * screen performs, writing percentiles to a JSON report.
+ * <p>
+ * The "sqlite" store is the real {@link DBHelper}, running against SQLite
+ * through JDBC (see the stand-ins under <code>bench/stubs</code>), so its
+ * SQL, indexes, triggers and open/close pattern are all exercised; the
+ * "memory" store is {@link MemoryCardStore}, for comparison.
+ * <p>
+ * Settings are given as <code>key=value</code> arguments; <code>store</code>
+ * and <code>cards</code> take comma-separated lists, and every combination is
+ * run. See {@link #DEFAULTS} for the keys.
+ * 
+ * @author tburke
+ */
+public final class ScaleTest {
+    /**
+     * Settings, and their defaults.
+     */
+    private static final String[][] DEFAULTS = { { "store", "sqlite" },
+            { "cards", "1000,10000" }, { "groups", "200" },
+            { "fanout", "50" }, { "minName", "4" }, { "maxName", "32" },
+            { "formats", "UPC_A:40,EAN_13:30,CODE_128:20,QR_CODE:10" },
+            { "seed", "1" }, { "warmup", "5" }, { "iterations", "50" },
+            { "dir", "bin/scale" }, { "report", "bin/scale-report.json" }, };
+    /**
+     * Fraction (as a divisor) of a group's members replaced when it's saved.
+     */
+    private static final int CHURN = 10;
+    /**
+     * The operations measured, in report order.
+     */
+    private static final String[] OPERATIONS = { "getAllCards",
+            "getCardsByTag", "getAllGroups", "saveGroup", "renameGroup",
+            "renameCard", "searchCards", "typeahead", "fuzzySearch",
+            "getCardsByGroups", "groupIndexCards", "groupCounts",
+            "recordUsage", "mostUsed", "predictCards", };
+    /**
+     * The percentiles reported.
+     */
+    private static final int[] PERCENTILES = { 50, 90, 99 };
+    /**
+     * Nanoseconds per millisecond.
+     */
+    private static final double NANOS_PER_MILLI = 1e6;
+    /**
+     * Percent, as a divisor.
+     */
+    private static final double PERCENT = 100.0;
+    /**
+     * The longest search typed, as a prefix of a card name.
+     */
+    private static final int MAX_SEARCH_LENGTH = 4;
+    /**
+     * The number of taps flushed at once.
+     */
+    private static final int USAGE_BATCH = 20;
+    /**
+     * The number of letters a typo may substitute.
+     */
+    private static final int ALPHABET = 26;
+
+    /**
+     * The store under test.
+     */
+    private final CardStore store;
+    /**
+     * The typeahead index over {@link #store}.
+     */
+    private final CardIndex cardIndex = new CardIndex();
+    /**
+     * The fuzzy index over {@link #store}, kept only in memory.
+     */
+    private final FuzzyIndex fuzzyIndex = new FuzzyIndex(null);
+    /**
+     * The group membership bitmaps over {@link #store}.
+     */
+    private final GroupIndex groupIndex = new GroupIndex();
+    /**
+     * The generated cards.
+     */
+    private final List<LoyaltyCard> cards = new ArrayList<LoyaltyCard>();
+    /**
+     * The current group names.
+     */
+    private final List<String> groups;
+    /**
+     * Source of randomness for choosing what to operate on.
+     */
+    private final Random random;
+    /**
+     * Counter making new names unique.
+     */
+    private int renames = 0;
+
+    /**
+     * Set up a test.
+     * 
+     * @param cardStore
+     *            the (empty) store under test
+     * @param dataset
+     *            the dataset to load
+     */
+    private ScaleTest(final CardStore cardStore, final CardDataset dataset) {
+        store = cardStore;
+        groups = dataset.getGroupNames();
+        random = new Random(dataset.getSeed());
+    }
+
+    /**
+     * Run the tests and write the report.
+     * 
+     * @param args
+     *            <code>key=value</code> settings
+     * @throws IOException
+     *             if the report can't be written
+     */
+    public static void main(final String[] args) throws IOException {
+        Map<String, String> settings = new LinkedHashMap<String, String>();
+        for (String[] setting : DEFAULTS) {
+            settings.put(setting[0], setting[1]);
+        }
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (equals < 0 || !settings.containsKey(arg.substring(0, equals))) {
+                throw new IllegalArgumentException("Unknown setting " + arg
+                        + "; expected one of " + settings.keySet());
+            }
+            settings.put(arg.substring(0, equals), arg.substring(equals + 1));
+        }
+
+        File dir = new File(settings.get("dir"));
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Couldn't create " + dir);
+        }
+        int warmup = Integer.parseInt(settings.get("warmup"));
+        int iterations = Integer.parseInt(settings.get("iterations"));
+
+        StringBuilder report = new StringBuilder();
+        report.append("{\"timestamp\": ").append(quote(timestamp()))
+                .append(", \"java\": ")
+                .append(quote(System.getProperty("java.version")))
+                .append(", \"os\": ")
+                .append(quote(System.getProperty("os.name") + " "
+                        + System.getProperty("os.arch")))
+                .append(", \"runs\": [");
+        boolean first = true;
+        for (String count : settings.get("cards").split(",")) {
+            CardDataset dataset = new CardDataset(
+                    Integer.parseInt(count.trim()),
+                    Integer.parseInt(settings.get("groups")),
+                    Integer.parseInt(settings.get("fanout")),
+                    Integer.parseInt(settings.get("minName")),
+                    Integer.parseInt(settings.get("maxName")),
+                    settings.get("formats"),
+                    Long.parseLong(settings.get("seed")));
+            for (String storeName : settings.get("store").split(",")) {
+                CardStore cardStore = openStore(storeName.trim(), dir);
+                ScaleTest test = new ScaleTest(cardStore, dataset);
+                if (!first) {
+                    report.append(',');
+                }
+                first = false;
+                report.append("\n  ");
+                test.run(storeName.trim(), dataset, warmup, iterations, report);
+            }
+        }
+        report.append("\n]}\n");
+
+        File reportFile = new File(settings.get("report"));
+        Writer out = new OutputStreamWriter(new FileOutputStream(reportFile),
+                "UTF-8");
+        try {
+            out.write(report.toString());
+        } finally {
+            out.close();
+        }
+        System.out.println("Report written to " + reportFile);
+    }
+
+    /**
+     * Open an empty store.
+     * 
+     * @param name
+     *            "sqlite" or "memory"
+     * @param dir
+     *            the directory for database files
+     * @return the store
+     * @throws IOException
+     *             if an old database can't be removed
+     */
+    private static CardStore openStore(final String name, final File dir)
+            throws IOException {
+        if ("memory".equals(name)) {
+            return new MemoryCardStore();
+        } else if ("sqlite".equals(name)) {
+            Context ctx = new Context(dir);
+            File db = ctx.getDatabasePath("LoyaltyKeyring");
+            for (String suffix : new String[] { "", "-journal" }) {
+                File file = new File(db.getPath() + suffix);
+                if (file.exists() && !file.delete()) {
+                    throw new IOException("Couldn't remove " + file);
+                }
+            }
+            return new DBHelper(ctx);
+        }
+        throw new IllegalArgumentException("Unknown store " + name);
+    }
+
+    /**
+     * Load the dataset, measure every operation, and append the results to
+     * the report.
+     * 
+     * @param storeName
+     *            the name of the store, for the report
+     * @param dataset
+     *            the dataset
+     * @param warmup
+     *            the number of unmeasured runs of each operation
+     * @param iterations
+     *            the number of measured runs of each operation
+     * @param report
+     *            the report so far
+     */
+    private void run(final String storeName, final CardDataset dataset,
+            final int warmup, final int iterations, final StringBuilder report) {
+        List<CardRecord> records = dataset.generate();
+        for (CardRecord record : records) {
+            cards.add(record.getCard());
+        }
+        CardImporter.Progress progress = new CardImporter.Progress();
+        long start = System.nanoTime();
+        for (int i = 0; i < records.size(); i += CardImporter.BATCH_SIZE) {
+            store.upsertCards(records.subList(i, Math.min(records.size(), i
+                    + CardImporter.BATCH_SIZE)), progress);
+        }
+        double loadMillis = (System.nanoTime() - start) / NANOS_PER_MILLI;
+        if (progress.getInserted() != records.size()) {
+            throw new IllegalStateException("Only " + progress.getInserted()
+                    + " of " + records.size() + " cards loaded: " + progress);
+        }
+
+        System.out.println(String.format(Locale.US,
+                "%s: %d cards, %d groups loaded in %.0fms", storeName,
+                records.size(), groups.size(), loadMillis));
+        report.append("{\"store\": ").append(quote(storeName))
+                .append(", \"dataset\": {\"cards\": ")
+                .append(dataset.getCardCount()).append(", \"groups\": ")
+                .append(dataset.getGroupCount()).append(", \"fanout\": ")
+                .append(dataset.getFanOut()).append(", \"minName\": ")
+                .append(dataset.getMinNameLength()).append(", \"maxName\": ")
+                .append(dataset.getMaxNameLength()).append(", \"formats\": ")
+                .append(quote(dataset.getFormatMix())).append(", \"seed\": ")
+                .append(dataset.getSeed()).append("}, \"loadMillis\": ")
+                .append(format(loadMillis)).append(", \"iterations\": ")
+                .append(iterations).append(", \"operations\": {");
+        for (int op = 0; op < OPERATIONS.length; ++op) {
+            for (int i = 0; i < warmup; ++i) {
+                measure(op);
+            }
+            long[] samples = new long[iterations];
+            for (int i = 0; i < iterations; ++i) {
+                samples[i] = measure(op);
+            }
+            Arrays.sort(samples);
+            if (op > 0) {
+                report.append(',');
+            }
+            report.append("\n    ").append(quote(OPERATIONS[op])).append(": ");
+            summarize(OPERATIONS[op], samples, report);
+        }
+        report.append("\n  }}");
+    }
+
+    /**
+     * Run one operation once.
+     * 
+     * @param op
+     *            the index of the operation in {@link #OPERATIONS}
+     * @return the time taken, in nanoseconds
+     */
+    private long measure(final int op) {
+        String group = groups.get(random.nextInt(groups.size()));
+        long start;
+        switch (op) {
+        case 0:
+            start = System.nanoTime();
+            store.getAllCards();
+            break;
+        case 1:
+            start = System.nanoTime();
+            store.getCardsByTag(group);
+            break;
+        case 2:
+            start = System.nanoTime();
+            store.getAllGroups();
+            break;
+        case 3:
+            // As when the group editor returns: replace the membership.
+            List<String> members = pickMembers(group);
+            start = System.nanoTime();
+            store.deleteTag(group);
+            for (String id : members) {
+                store.addTag(LoyaltyCard.getFormatFromID(id),
+                        LoyaltyCard.getDataFromID(id), group);
+            }
+            break;
+        case 4:
+            String newGroup = group + " (" + ++renames + ")";
+            start = System.nanoTime();
+            List<LoyaltyCard> inGroup = store.getCardsByTag(group);
+            store.deleteTag(group);
+            for (LoyaltyCard card : inGroup) {
+                store.addTag(card, newGroup);
+            }
+            groups.set(groups.indexOf(group), newGroup);
+            break;
+        case 5:
+            int index = random.nextInt(cards.size());
+            LoyaltyCard card = cards.get(index);
+            LoyaltyCard renamed = new LoyaltyCard(card.getName() + " ("
+                    + ++renames + ")", card.getFormat(), card.getData());
+            start = System.nanoTime();
+            store.deleteCard(card);
+            store.addCard(renamed);
+            cards.set(index, renamed);
+            break;
+        case 6:
+            // One keystroke: the start of a card's name, as typed so far.
+            String name = cards.get(random.nextInt(cards.size())).getName();
+            String typed = name.substring(0, Math.min(name.length(),
+                    1 + random.nextInt(MAX_SEARCH_LENGTH)));
+            start = System.nanoTime();
+            store.searchCards(typed, SearchQuery.TYPEAHEAD_LIMIT);
+            break;
+        case 7:
+            // The same keystroke, answered from memory; catching up with the
+            // earlier operations' changes happens in the background.
+            cardIndex.catchUp(store);
+            String prefix = cards.get(random.nextInt(cards.size())).getName();
+            prefix = prefix.substring(0, Math.min(prefix.length(),
+                    1 + random.nextInt(MAX_SEARCH_LENGTH)));
+            start = System.nanoTime();
+            cardIndex.typeahead(prefix, SearchQuery.TYPEAHEAD_LIMIT);
+            break;
+        case 8:
+            // A whole name, with one character mistyped.
+            fuzzyIndex.catchUp(store);
+            char[] typo = cards.get(random.nextInt(cards.size())).getName()
+                    .toCharArray();
+            typo[random.nextInt(typo.length)] = (char) ('a' + random
+                    .nextInt(ALPHABET));
+            start = System.nanoTime();
+            fuzzyIndex.search(new String(typo), SearchQuery.TYPEAHEAD_LIMIT);
+            break;
+        case 9:
+            GroupFilter filter = pickFilter(group);
+            start = System.nanoTime();
+            store.getCardsByGroups(filter);
+            break;
+        case 10:
+            // The same filter, answered from the bitmaps.
+            groupIndex.catchUp(store);
+            GroupFilter bitmapFilter = pickFilter(group);
+            start = System.nanoTime();
+            groupIndex.getCards(bitmapFilter);
+            break;
+        case 11:
+            groupIndex.catchUp(store);
+            start = System.nanoTime();
+            groupIndex.getCounts();
+            break;
+        case 12:
+            // A batch of taps, as flushed when the list is left.
+            UsageTracker usage = new UsageTracker();
+            for (int i = 0; i < USAGE_BATCH; ++i) {
+                usage.record(cards.get(random.nextInt(cards.size())),
+                        System.currentTimeMillis());
+            }
+            start = System.nanoTime();
+            usage.flush(store);
+            break;
+        case 13:
+            start = System.nanoTime();
+            store.getCardsByTag(null, CardOrder.MOST_USED);
+            break;
+        case 14:
+            // Which barcodes to draw ahead of time.
+            start = System.nanoTime();
+            CardPredictor.predict(store, System.currentTimeMillis());
+            break;
+        default:
+            throw new IllegalArgumentException("Unknown operation " + op);
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Choose a filter: two overlapping groups, less a third.
+     * 
+     * @param group
+     *            one of the groups required
+     * @return the filter
+     */
+    private GroupFilter pickFilter(final String group) {
+        Map<String, GroupFilter.Membership> filter = new HashMap<String, GroupFilter.Membership>();
+        filter.put(group, GroupFilter.Membership.REQUIRED);
+        filter.put(groups.get(random.nextInt(groups.size())),
+                GroupFilter.Membership.REQUIRED);
+        filter.put(groups.get(random.nextInt(groups.size())),
+                GroupFilter.Membership.EXCLUDED);
+        return new GroupFilter(filter);
+    }
+
+    /**
+     * Choose a group's new membership: its current members, with some
+     * replaced by other cards.
+     * 
+     * @param group
+     *            the group
+     * @return the IDs of the new members
+     */
+    private List<String> pickMembers(final String group) {
+        List<LoyaltyCard> current = store.getCardsByTag(group);
+        Set<String> result = new HashSet<String>();
+        int replace = Math.max(1, current.size() / CHURN);
+        for (int i = replace; i < current.size(); ++i) {
+            result.add(current.get(i).getID());
+        }
+        while (result.size() < Math.max(current.size(), replace)) {
+            result.add(cards.get(random.nextInt(cards.size())).getID());
+        }
+        return new ArrayList<String>(result);
+    }
+
+    /**
+     * Print and report the distribution of an operation's latency.
+     * 
+     * @param name
+     *            the operation
+     * @param sorted
+     *            the samples, in nanoseconds, in ascending order
+     * @param report
+     *            the report so far
+     */
+    private static void summarize(final String name, final long[] sorted,
+            final StringBuilder report) {
+        long total = 0;
+        for (long sample : sorted) {
+            total += sample;
+        }
+        double mean = total / NANOS_PER_MILLI / sorted.length;
+        StringBuilder line = new StringBuilder(String.format(Locale.US,
+                "  %-16s mean %9.3fms", name, mean));
+        report.append("{\"samples\": ").append(sorted.length)
+                .append(", \"meanMillis\": ").append(format(mean));
+        for (int percentile : PERCENTILES) {
+            // Nearest rank
+            int rank = (int) Math.ceil(percentile / PERCENT * sorted.length);
+            double value = sorted[Math.max(0, rank - 1)] / NANOS_PER_MILLI;
+            line.append(String.format(Locale.US, "  p%d %9.3fms", percentile,
+                    value));
+            report.append(", \"p").append(percentile).append("Millis\": ")
+                    .append(format(value));
+        }
+        double max = sorted[sorted.length - 1] / NANOS_PER_MILLI;
+        line.append(String.format(Locale.US, "  max %9.3fms", max));
+        report.append(", \"maxMillis\": ").append(format(max)).append('}');
+        System.out.println(line);
+    }
+
+    /**
+     * Format a number of milliseconds for the report.
+     * 
+     * @param millis
+     *            the number
+     * @return the number, to the microsecond
+     */
+    private static String format(final double millis) {
+        return String.format(Locale.US, "%.3f", millis);
+    }
+
+    /**
+     * Quote a string for the report. Settings never contain quotes or
+     * backslashes, but escape them anyway.
+     * 
+     * @param value
+     *            the string
+     * @return the JSON string
+     */
+    private static String quote(final String value) {
+        return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    /**
+     * Get the current time, in ISO 8601 form.
+     * 
+     * @return the time, in UTC
+     */
+    private static String timestamp() {
+        SimpleDateFormat iso = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'",
+                Locale.US);
+        iso.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return iso.format(new Date());
+    }
+}
@@ -0,0 +1,336 @@
+package tburke.loyaltykeyring;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Reference implementation of the sync server, for tests and for trying sync
+ * out on a development machine. It keeps its log in memory and listens only
+ * on the loopback interface. It runs on a desktop JVM, so it isn't part of
+ * the app:
+ * 
+ * <pre>
+ * ant -f bench/build.xml sync-server [-Dsync.port=port]
+ * </pre>
+ * 
+ * (An emulator reaches the host's loopback interface at 10.0.2.2.)
+ * 
+ * @author tburke
+ * 
+ * @see SyncProtocol
+ */
+final class SyncServer {
+    /**
+     * Tag to be used when logging.
+     */
+    private static final String LOG_TAG = SyncServer.class.getSimpleName();
+    /**
+     * Port used if none is given.
+     */
+    static final int DEFAULT_PORT = 8642;
+    /**
+     * Number of connections handled at once.
+     */
+    private static final int WORKERS = 4;
+    /**
+     * Largest request body accepted.
+     */
+    private static final int MAX_BODY = 1024 * 1024;
+    /**
+     * Largest request line or header accepted.
+     */
+    private static final int MAX_LINE = 8 * 1024;
+
+    /**
+     * A change, as recorded by the server.
+     */
+    private static final class Entry {
+        /**
+         * The device the change came from.
+         */
+        private final String deviceID;
+        /**
+         * The change.
+         */
+        private final Change change;
+
+        /**
+         * Create a new Entry.
+         * 
+         * @param device
+         *            the device the change came from
+         * @param entryChange
+         *            the change
+         */
+        Entry(final String device, final Change entryChange) {
+            deviceID = device;
+            change = entryChange;
+        }
+    }
+
+    /**
+     * Every change received; an entry's server sequence number is its index
+     * plus one.
+     */
+    private final List<Entry> log = new ArrayList<Entry>();
+    /**
+     * Device and batch IDs already recorded, so that retries aren't recorded
+     * twice.
+     */
+    private final Set<String> batches = new HashSet<String>();
+    /**
+     * The listening socket.
+     */
+    private final ServerSocket socket;
+    /**
+     * Handles connections.
+     */
+    private final ExecutorService workers = Executors
+            .newFixedThreadPool(WORKERS);
+
+    /**
+     * Create a server listening on the loopback interface. Call
+     * {@link #start()} to start accepting connections.
+     * 
+     * @param port
+     *            the port, or 0 for any free port
+     * @throws IOException
+     *             if the port can't be bound
+     */
+    SyncServer(final int port) throws IOException {
+        socket = new ServerSocket(port, 0, InetAddress.getByName(null));
+    }
+
+    /**
+     * Getter for the port.
+     * 
+     * @return the port on which the server is listening
+     */
+    int getPort() {
+        return socket.getLocalPort();
+    }
+
+    /**
+     * Start accepting connections, on a background thread.
+     */
+    void start() {
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!socket.isClosed()) {
+                    final Socket client;
+                    try {
+                        client = socket.accept();
+                    } catch (IOException e) {
+                        if (!socket.isClosed()) {
+                            Log.w(LOG_TAG, "Couldn't accept a connection", e);
+                        }
+                        continue;
+                    }
+                    workers.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            serve(client);
+                        }
+                    });
+                }
+            }
+        }, SyncServer.class.getSimpleName());
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Stop accepting connections.
+     * 
+     * @throws IOException
+     *             if the socket can't be closed
+     */
+    void stop() throws IOException {
+        socket.close();
+        workers.shutdown();
+    }
+
+    /**
+     * Record a client's changes, and find the changes it hasn't seen.
+     * 
+     * @param request
+     *            the client's request
+     * @return the response
+     */
+    synchronized SyncProtocol.Response handle(
+            final SyncProtocol.Request request) {
+        if (batches.add(request.getDeviceID() + "/" + request.getBatchID())) {
+            for (Change change : request.getChanges()) {
+                log.add(new Entry(request.getDeviceID(), change));
+            }
+        }
+
+        long since = request.getWatermark();
+        if (since > log.size() || since < 0) {
+            // The client knows more than this server does (it was
+            // restarted); start the client over.
+            since = 0;
+        }
+        List<Change> changes = new ArrayList<Change>();
+        int next = (int) since;
+        while (next < log.size() && changes.size() < SyncProtocol.BATCH_SIZE) {
+            Entry entry = log.get(next++);
+            if (!entry.deviceID.equals(request.getDeviceID())) {
+                changes.add(new Change(next, entry.change.getOp(),
+                        entry.change.getCardID(), entry.change.getName(),
+                        entry.change.getTag()));
+            }
+        }
+        return new SyncProtocol.Response(next, next < log.size(), changes);
+    }
+
+    /**
+     * Handle one HTTP connection.
+     * 
+     * @param client
+     *            the connection
+     */
+    private void serve(final Socket client) {
+        try {
+            InputStream in = new BufferedInputStream(client.getInputStream());
+            OutputStream out = client.getOutputStream();
+            String requestLine = readLine(in);
+            int contentLength = -1;
+            String header;
+            while ((header = readLine(in)).length() > 0) {
+                int colon = header.indexOf(':');
+                if (colon > 0
+                        && "content-length".equals(header.substring(0, colon)
+                                .trim().toLowerCase(Locale.US))) {
+                    contentLength = Integer.parseInt(header.substring(
+                            colon + 1).trim());
+                }
+            }
+            if (!requestLine.startsWith("POST " + SyncProtocol.PATH + " ")) {
+                respond(out, "404 Not Found", null);
+                return;
+            }
+            if (contentLength < 0 || contentLength > MAX_BODY) {
+                respond(out, "411 Length Required", null);
+                return;
+            }
+            byte[] body = new byte[contentLength];
+            new DataInputStream(in).readFully(body);
+            SyncProtocol.Response response;
+            try {
+                response = handle(SyncProtocol
+                        .decodeRequest(new ByteArrayInputStream(body)));
+            } catch (IOException e) {
+                respond(out, "400 Bad Request", null);
+                return;
+            }
+            respond(out, "200 OK", SyncProtocol.encode(response));
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Couldn't serve " + client, e);
+        } catch (NumberFormatException e) {
+            Log.w(LOG_TAG, "Bad Content-Length from " + client, e);
+        } finally {
+            try {
+                client.close();
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Couldn't close " + client, e);
+            }
+        }
+    }
+
+    /**
+     * Write an HTTP response and close the connection.
+     * 
+     * @param out
+     *            the connection
+     * @param status
+     *            the status code and reason
+     * @param body
+     *            the body, or null for none
+     * @throws IOException
+     *             if the response can't be written
+     */
+    private static void respond(final OutputStream out, final String status,
+            final byte[] body) throws IOException {
+        int length = body == null ? 0 : body.length;
+        StringBuilder head = new StringBuilder("HTTP/1.1 ").append(status)
+                .append("\r\n");
+        if (body != null) {
+            head.append("Content-Type: ").append(SyncProtocol.CONTENT_TYPE)
+                    .append("\r\n");
+        }
+        head.append("Content-Length: ").append(length).append("\r\n");
+        head.append("Connection: close\r\n\r\n");
+        out.write(head.toString().getBytes("ISO-8859-1"));
+        if (body != null) {
+            out.write(body);
+        }
+        out.flush();
+    }
+
+    /**
+     * Read a CRLF-terminated line of an HTTP request.
+     * 
+     * @param in
+     *            the connection
+     * @return the line, without its terminator
+     * @throws IOException
+     *             if the line can't be read or is too long
+     */
+    private static String readLine(final InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c == -1 || line.length() > MAX_LINE) {
+                throw new IOException("Malformed request");
+            }
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        return line.toString();
+    }
+
+    /**
+     * Run a server until killed.
+     * 
+     * @param args
+     *            optionally, the port
+     * @throws IOException
+     *             if the port can't be bound
+     */
+    public static void main(final String[] args) throws IOException {
+        int port = DEFAULT_PORT;
+        if (args.length > 0) {
+            port = Integer.parseInt(args[0]);
+        }
+        SyncServer server = new SyncServer(port);
+        server.start();
+        System.out.println("Listening on http://localhost:" + server.getPort()
+                + SyncProtocol.PATH);
+        while (true) {
+            try {
+                Thread.sleep(Long.MAX_VALUE);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package android.content;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Stand-in for the platform's column/value map.
+ * 
+ * @author tburke
+ */
+public final class ContentValues {
+    /**
+     * The values, in insertion order.
+     */
+    private final Map<String, Object> values = new LinkedHashMap<String, Object>();
+
+    /**
+     * Set a string value.
+     * 
+     * @param key
+     *            the column name
+     * @param value
+     *            the value
+     */
+    public void put(final String key, final String value) {
+        values.put(key, value);
+    }
+
+    /**
+     * Set an integer value.
+     * 
+     * @param key
+     *            the column name
+     * @param value
+     *            the value
+     */
+    public void put(final String key, final Integer value) {
+        values.put(key, value);
+    }
+
+    /**
+     * Set a long value.
+     * 
+     * @param key
+     *            the column name
+     * @param value
+     *            the value
+     */
+    public void put(final String key, final Long value) {
+        values.put(key, value);
+    }
+
+    /**
+     * Set a value to null.
+     * 
+     * @param key
+     *            the column name
+     */
+    public void putNull(final String key) {
+        values.put(key, null);
+    }
+
+    /**
+     * Get a value.
+     * 
+     * @param key
+     *            the column name
+     * @return the value, or null if unset
+     */
+    public Object get(final String key) {
+        return values.get(key);
+    }
+
+    /**
+     * Get the number of values.
+     * 
+     * @return the number of values
+     */
+    public int size() {
+        return values.size();
+    }
+
+    /**
+     * Remove every value.
+     */
+    public void clear() {
+        values.clear();
+    }
+
+    /**
+     * Get every column and value.
+     * 
+     * @return the columns and values, in the order first set
+     */
+    public Set<Map.Entry<String, Object>> valueSet() {
+        return values.entrySet();
+    }
+}
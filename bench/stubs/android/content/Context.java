@@ -0,0 +1,56 @@
+package android.content;
+
+import java.io.File;
+
+/**
+ * Stand-in for the platform context, providing only what
+ * {@link android.database.sqlite.SQLiteOpenHelper} and the indexes need:
+ * somewhere to keep databases and files.
+ * 
+ * @author tburke
+ */
+public class Context {
+    /**
+     * The directory holding databases.
+     */
+    private final File databaseDir;
+
+    /**
+     * Create a context.
+     * 
+     * @param dir
+     *            the directory in which to keep databases
+     */
+    public Context(final File dir) {
+        databaseDir = dir;
+    }
+
+    /**
+     * Find the file for a database.
+     * 
+     * @param name
+     *            the database name
+     * @return the database file
+     */
+    public File getDatabasePath(final String name) {
+        return new File(databaseDir, name);
+    }
+
+    /**
+     * Get the application's context.
+     * 
+     * @return this context
+     */
+    public Context getApplicationContext() {
+        return this;
+    }
+
+    /**
+     * Get the directory for the application's files.
+     * 
+     * @return the directory in which databases are kept
+     */
+    public File getFilesDir() {
+        return databaseDir;
+    }
+}
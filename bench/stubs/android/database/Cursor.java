@@ -0,0 +1,78 @@
+package android.database;
+
+import java.io.Closeable;
+
+/**
+ * Stand-in for the platform cursor, with just the methods the application
+ * uses.
+ * 
+ * @author tburke
+ */
+public interface Cursor extends Closeable {
+    /**
+     * Get the number of rows.
+     * 
+     * @return the number of rows
+     */
+    int getCount();
+
+    /**
+     * Move to the first row.
+     * 
+     * @return false if there are no rows
+     */
+    boolean moveToFirst();
+
+    /**
+     * Move to the next row.
+     * 
+     * @return false if there are no more rows
+     */
+    boolean moveToNext();
+
+    /**
+     * Get a column of the current row as a string.
+     * 
+     * @param column
+     *            the zero-based column index
+     * @return the value, or null
+     */
+    String getString(int column);
+
+    /**
+     * Get a column of the current row as a long.
+     * 
+     * @param column
+     *            the zero-based column index
+     * @return the value, or 0 if null
+     */
+    long getLong(int column);
+
+    /**
+     * Get a column of the current row as an int.
+     * 
+     * @param column
+     *            the zero-based column index
+     * @return the value, or 0 if null
+     */
+    int getInt(int column);
+
+    /**
+     * Check whether a column of the current row is null.
+     * 
+     * @param column
+     *            the zero-based column index
+     * @return true if the value is null
+     */
+    boolean isNull(int column);
+
+    /**
+     * Check whether the cursor has been closed.
+     * 
+     * @return true if closed
+     */
+    boolean isClosed();
+
+    @Override
+    void close();
+}
@@ -0,0 +1,43 @@
+package android.database;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * Stand-in for the platform's database helpers.
+ * 
+ * @author tburke
+ */
+public final class DatabaseUtils {
+    /**
+     * Utility class; not to be instantiated.
+     */
+    private DatabaseUtils() {
+    }
+
+    /**
+     * Run a query that returns a single number.
+     * 
+     * @param db
+     *            the database
+     * @param query
+     *            the SQL
+     * @param selectionArgs
+     *            values for the query's parameters, or null
+     * @return the first column of the first row
+     */
+    public static long longForQuery(final SQLiteDatabase db,
+            final String query, final String[] selectionArgs) {
+        SQLiteStatement stmt = db.compileStatement(query);
+        try {
+            if (selectionArgs != null) {
+                for (int i = 0; i < selectionArgs.length; ++i) {
+                    stmt.bindString(i + 1, selectionArgs[i]);
+                }
+            }
+            return stmt.simpleQueryForLong();
+        } finally {
+            stmt.close();
+        }
+    }
+}
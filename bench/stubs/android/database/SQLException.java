@@ -0,0 +1,35 @@
+package android.database;
+
+/**
+ * Stand-in for the platform's base database exception.
+ * 
+ * @author tburke
+ */
+public class SQLException extends RuntimeException {
+    /**
+     * Determines if a de-serialized file is compatible with this class.
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Create an exception.
+     * 
+     * @param message
+     *            what went wrong
+     */
+    public SQLException(final String message) {
+        super(message);
+    }
+
+    /**
+     * Create an exception with a cause.
+     * 
+     * @param message
+     *            what went wrong
+     * @param cause
+     *            the underlying exception
+     */
+    public SQLException(final String message, final Throwable cause) {
+        super(message, cause);
+    }
+}
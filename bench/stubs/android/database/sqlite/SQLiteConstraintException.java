@@ -0,0 +1,23 @@
+package android.database.sqlite;
+
+/**
+ * Stand-in for the platform exception thrown when a constraint was violated.
+ * 
+ * @author tburke
+ */
+public class SQLiteConstraintException extends SQLiteException {
+    /**
+     * Determines if a de-serialized file is compatible with this class.
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Create an exception.
+     * 
+     * @param message
+     *            what went wrong
+     */
+    public SQLiteConstraintException(final String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,121 @@
+package android.database.sqlite;
+
+import android.database.Cursor;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Stand-in for the platform cursor. Like the platform, which copies results
+ * into a window before the first row is read, every row is read up front.
+ * 
+ * @author tburke
+ */
+final class SQLiteCursor implements Cursor {
+    /**
+     * The rows.
+     */
+    private final List<Object[]> rows = new ArrayList<Object[]>();
+    /**
+     * The current row; -1 before the first.
+     */
+    private int position = -1;
+    /**
+     * Whether the cursor has been closed.
+     */
+    private boolean closed = false;
+
+    /**
+     * Read every row of a result set.
+     * 
+     * @param rs
+     *            the result set, which the caller closes
+     * @throws SQLException
+     *             if the results can't be read
+     */
+    SQLiteCursor(final ResultSet rs) throws SQLException {
+        int columns = rs.getMetaData().getColumnCount();
+        while (rs.next()) {
+            Object[] row = new Object[columns];
+            for (int i = 0; i < columns; ++i) {
+                row[i] = rs.getObject(i + 1);
+            }
+            rows.add(row);
+        }
+    }
+
+    /**
+     * Get a column of the current row.
+     * 
+     * @param column
+     *            the zero-based column index
+     * @return the value
+     */
+    private Object get(final int column) {
+        if (closed) {
+            throw new IllegalStateException("Cursor is closed");
+        }
+        return rows.get(position)[column];
+    }
+
+    @Override
+    public int getCount() {
+        return rows.size();
+    }
+
+    @Override
+    public boolean moveToFirst() {
+        position = 0;
+        return !rows.isEmpty();
+    }
+
+    @Override
+    public boolean moveToNext() {
+        if (position < rows.size()) {
+            ++position;
+        }
+        return position < rows.size();
+    }
+
+    @Override
+    public String getString(final int column) {
+        Object value = get(column);
+        if (value == null) {
+            return null;
+        }
+        return value.toString();
+    }
+
+    @Override
+    public long getLong(final int column) {
+        Object value = get(column);
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        } else if (value == null) {
+            return 0;
+        }
+        return Long.parseLong(value.toString());
+    }
+
+    @Override
+    public int getInt(final int column) {
+        return (int) getLong(column);
+    }
+
+    @Override
+    public boolean isNull(final int column) {
+        return get(column) == null;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+    }
+}
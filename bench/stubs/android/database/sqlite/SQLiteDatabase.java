@@ -0,0 +1,509 @@
+package android.database.sqlite;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * Stand-in for the platform database, backed by a JDBC connection to SQLite.
+ * It follows the platform's semantics where the application depends on them:
+ * {@link #insert(String, String, ContentValues)} returns -1 rather than
+ * throwing, transactions nest, and a closed database must be reopened through
+ * its {@link SQLiteOpenHelper}.
+ * 
+ * @author tburke
+ */
+public final class SQLiteDatabase {
+    /**
+     * Stand-in for the platform's cursor factory; only ever null here.
+     */
+    public interface CursorFactory {
+    }
+
+    /**
+     * SQLite's primary result code for a constraint violation.
+     */
+    private static final int SQLITE_CONSTRAINT = 19;
+    /**
+     * Mask selecting the primary result code from an extended one.
+     */
+    private static final int PRIMARY_CODE_MASK = 0xFF;
+
+    /**
+     * The connection; null once closed.
+     */
+    private Connection connection;
+    /**
+     * The open transactions, innermost last.
+     */
+    private final LinkedList<Transaction> transactions = new LinkedList<Transaction>();
+
+    /**
+     * The state of one (possibly nested) transaction.
+     */
+    private static final class Transaction {
+        /**
+         * Whether {@link SQLiteDatabase#setTransactionSuccessful()} was
+         * called.
+         */
+        private boolean markedSuccessful = false;
+        /**
+         * Whether a nested transaction ended without being marked
+         * successful.
+         */
+        private boolean childFailed = false;
+    }
+
+    /**
+     * Wrap an open connection.
+     * 
+     * @param conn
+     *            the connection, in auto-commit mode
+     */
+    SQLiteDatabase(final Connection conn) {
+        connection = conn;
+    }
+
+    /**
+     * Translate a JDBC exception into the platform's equivalent.
+     * 
+     * @param e
+     *            the JDBC exception
+     * @return the platform exception
+     */
+    static SQLiteException translate(final SQLException e) {
+        if ((e.getErrorCode() & PRIMARY_CODE_MASK) == SQLITE_CONSTRAINT) {
+            return new SQLiteConstraintException(e.getMessage());
+        }
+        return new SQLiteException(e.getMessage(), e);
+    }
+
+    /**
+     * Get the connection.
+     * 
+     * @return the connection
+     * @throws IllegalStateException
+     *             if the database has been closed
+     */
+    Connection getConnection() {
+        if (connection == null) {
+            throw new IllegalStateException("Database is closed");
+        }
+        return connection;
+    }
+
+    /**
+     * Check whether the database is open.
+     * 
+     * @return true if open
+     */
+    public boolean isOpen() {
+        return connection != null;
+    }
+
+    /**
+     * Check whether the database is read-only; never, here.
+     * 
+     * @return false
+     */
+    public boolean isReadOnly() {
+        return false;
+    }
+
+    /**
+     * Close the database, rolling back any open transaction.
+     */
+    public void close() {
+        if (connection == null) {
+            return;
+        }
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            throw translate(e);
+        } finally {
+            connection = null;
+            transactions.clear();
+        }
+    }
+
+    /**
+     * Begin a (possibly nested) transaction.
+     */
+    public void beginTransaction() {
+        if (transactions.isEmpty()) {
+            try {
+                getConnection().setAutoCommit(false);
+            } catch (SQLException e) {
+                throw translate(e);
+            }
+        }
+        transactions.add(new Transaction());
+    }
+
+    /**
+     * Mark the innermost transaction as successful.
+     */
+    public void setTransactionSuccessful() {
+        if (transactions.isEmpty()) {
+            throw new IllegalStateException("No transaction in progress");
+        }
+        transactions.getLast().markedSuccessful = true;
+    }
+
+    /**
+     * End the innermost transaction. If it wasn't marked successful, or any
+     * transaction nested within it failed, the outermost transaction is
+     * rolled back; otherwise it is committed.
+     */
+    public void endTransaction() {
+        if (transactions.isEmpty()) {
+            throw new IllegalStateException("No transaction in progress");
+        }
+        Transaction transaction = transactions.removeLast();
+        boolean successful = transaction.markedSuccessful
+                && !transaction.childFailed;
+        if (!transactions.isEmpty()) {
+            if (!successful) {
+                transactions.getLast().childFailed = true;
+            }
+            return;
+        }
+        try {
+            if (successful) {
+                connection.commit();
+            } else {
+                connection.rollback();
+            }
+            connection.setAutoCommit(true);
+        } catch (SQLException e) {
+            throw translate(e);
+        }
+    }
+
+    /**
+     * Check whether a transaction is in progress.
+     * 
+     * @return true if in a transaction
+     */
+    public boolean inTransaction() {
+        return !transactions.isEmpty();
+    }
+
+    /**
+     * Run a statement that returns nothing.
+     * 
+     * @param sql
+     *            the statement
+     */
+    public void execSQL(final String sql) {
+        execSQL(sql, new Object[0]);
+    }
+
+    /**
+     * Run a statement that returns nothing.
+     * 
+     * @param sql
+     *            the statement
+     * @param bindArgs
+     *            values for the statement's parameters
+     */
+    public void execSQL(final String sql, final Object[] bindArgs) {
+        SQLiteStatement stmt = compileStatement(sql);
+        try {
+            for (int i = 0; i < bindArgs.length; ++i) {
+                stmt.bind(i + 1, bindArgs[i]);
+            }
+            stmt.execute();
+        } finally {
+            stmt.close();
+        }
+    }
+
+    /**
+     * Compile a statement for repeated use.
+     * 
+     * @param sql
+     *            the statement
+     * @return the compiled statement
+     */
+    public SQLiteStatement compileStatement(final String sql) {
+        try {
+            return new SQLiteStatement(this, getConnection().prepareStatement(
+                    sql));
+        } catch (SQLException e) {
+            throw translate(e);
+        }
+    }
+
+    /**
+     * Run a query.
+     * 
+     * @param sql
+     *            the query
+     * @param selectionArgs
+     *            values for the query's parameters, or null
+     * @return the results
+     */
+    public Cursor rawQuery(final String sql, final String[] selectionArgs) {
+        try {
+            PreparedStatement stmt = getConnection().prepareStatement(sql);
+            try {
+                if (selectionArgs != null) {
+                    for (int i = 0; i < selectionArgs.length; ++i) {
+                        stmt.setString(i + 1, selectionArgs[i]);
+                    }
+                }
+                ResultSet rs = stmt.executeQuery();
+                try {
+                    return new SQLiteCursor(rs);
+                } finally {
+                    rs.close();
+                }
+            } finally {
+                stmt.close();
+            }
+        } catch (SQLException e) {
+            throw translate(e);
+        }
+    }
+
+    /**
+     * Run a query built from its parts.
+     * 
+     * @param table
+     *            the table (or join)
+     * @param columns
+     *            the columns to return
+     * @param selection
+     *            the WHERE clause, or null
+     * @param selectionArgs
+     *            values for the selection's parameters, or null
+     * @param groupBy
+     *            the GROUP BY clause, or null
+     * @param having
+     *            the HAVING clause, or null
+     * @param orderBy
+     *            the ORDER BY clause, or null
+     * @return the results
+     */
+    public Cursor query(final String table, final String[] columns,
+            final String selection, final String[] selectionArgs,
+            final String groupBy, final String having, final String orderBy) {
+        return query(false, table, columns, selection, selectionArgs, groupBy,
+                having, orderBy, null);
+    }
+
+    /**
+     * Run a query built from its parts.
+     * 
+     * @param table
+     *            the table (or join)
+     * @param columns
+     *            the columns to return
+     * @param selection
+     *            the WHERE clause, or null
+     * @param selectionArgs
+     *            values for the selection's parameters, or null
+     * @param groupBy
+     *            the GROUP BY clause, or null
+     * @param having
+     *            the HAVING clause, or null
+     * @param orderBy
+     *            the ORDER BY clause, or null
+     * @param limit
+     *            the LIMIT clause, or null
+     * @return the results
+     */
+    public Cursor query(final String table, final String[] columns,
+            final String selection, final String[] selectionArgs,
+            final String groupBy, final String having, final String orderBy,
+            final String limit) {
+        return query(false, table, columns, selection, selectionArgs, groupBy,
+                having, orderBy, limit);
+    }
+
+    /**
+     * Run a query built from its parts.
+     * 
+     * @param distinct
+     *            whether to return only distinct rows
+     * @param table
+     *            the table (or join)
+     * @param columns
+     *            the columns to return
+     * @param selection
+     *            the WHERE clause, or null
+     * @param selectionArgs
+     *            values for the selection's parameters, or null
+     * @param groupBy
+     *            the GROUP BY clause, or null
+     * @param having
+     *            the HAVING clause, or null
+     * @param orderBy
+     *            the ORDER BY clause, or null
+     * @param limit
+     *            the LIMIT clause, or null
+     * @return the results
+     */
+    public Cursor query(final boolean distinct, final String table,
+            final String[] columns, final String selection,
+            final String[] selectionArgs, final String groupBy,
+            final String having, final String orderBy, final String limit) {
+        StringBuilder sql = new StringBuilder("SELECT ");
+        if (distinct) {
+            sql.append("DISTINCT ");
+        }
+        if (columns == null) {
+            sql.append('*');
+        } else {
+            for (int i = 0; i < columns.length; ++i) {
+                if (i > 0) {
+                    sql.append(", ");
+                }
+                sql.append(columns[i]);
+            }
+        }
+        sql.append(" FROM ").append(table);
+        appendClause(sql, " WHERE ", selection);
+        appendClause(sql, " GROUP BY ", groupBy);
+        appendClause(sql, " HAVING ", having);
+        appendClause(sql, " ORDER BY ", orderBy);
+        appendClause(sql, " LIMIT ", limit);
+        return rawQuery(sql.toString(), selectionArgs);
+    }
+
+    /**
+     * Append a clause to a query, if it's present.
+     * 
+     * @param sql
+     *            the query so far
+     * @param keyword
+     *            the clause's keyword
+     * @param clause
+     *            the clause, or null
+     */
+    private static void appendClause(final StringBuilder sql,
+            final String keyword, final String clause) {
+        if (clause != null && clause.length() > 0) {
+            sql.append(keyword).append(clause);
+        }
+    }
+
+    /**
+     * Insert a row.
+     * 
+     * @param table
+     *            the table
+     * @param nullColumnHack
+     *            ignored; values are never empty here
+     * @param values
+     *            the row's values
+     * @return the new row ID, or -1 if the row couldn't be inserted
+     */
+    public long insert(final String table, final String nullColumnHack,
+            final ContentValues values) {
+        StringBuilder sql = new StringBuilder("INSERT INTO ").append(table)
+                .append(" (");
+        StringBuilder params = new StringBuilder();
+        Object[] args = new Object[values.size()];
+        int i = 0;
+        for (Map.Entry<String, Object> value : values.valueSet()) {
+            if (i > 0) {
+                sql.append(", ");
+                params.append(", ");
+            }
+            sql.append(value.getKey());
+            params.append('?');
+            args[i++] = value.getValue();
+        }
+        sql.append(") VALUES (").append(params).append(')');
+        SQLiteStatement stmt = compileStatement(sql.toString());
+        try {
+            for (i = 0; i < args.length; ++i) {
+                stmt.bind(i + 1, args[i]);
+            }
+            return stmt.executeInsert();
+        } catch (SQLiteException e) {
+            return -1;
+        } finally {
+            stmt.close();
+        }
+    }
+
+    /**
+     * Update rows.
+     * 
+     * @param table
+     *            the table
+     * @param values
+     *            the new values
+     * @param whereClause
+     *            the rows to update, or null for all
+     * @param whereArgs
+     *            values for the clause's parameters, or null
+     * @return the number of rows updated
+     */
+    public int update(final String table, final ContentValues values,
+            final String whereClause, final String[] whereArgs) {
+        StringBuilder sql = new StringBuilder("UPDATE ").append(table).append(
+                " SET ");
+        int i = 0;
+        for (Map.Entry<String, Object> value : values.valueSet()) {
+            if (i++ > 0) {
+                sql.append(", ");
+            }
+            sql.append(value.getKey()).append(" = ?");
+        }
+        appendClause(sql, " WHERE ", whereClause);
+        SQLiteStatement stmt = compileStatement(sql.toString());
+        try {
+            i = 1;
+            for (Map.Entry<String, Object> value : values.valueSet()) {
+                stmt.bind(i++, value.getValue());
+            }
+            if (whereArgs != null) {
+                for (String arg : whereArgs) {
+                    stmt.bind(i++, arg);
+                }
+            }
+            return stmt.executeUpdateDelete();
+        } finally {
+            stmt.close();
+        }
+    }
+
+    /**
+     * Delete rows.
+     * 
+     * @param table
+     *            the table
+     * @param whereClause
+     *            the rows to delete, or null for all
+     * @param whereArgs
+     *            values for the clause's parameters, or null
+     * @return the number of rows deleted
+     */
+    public int delete(final String table, final String whereClause,
+            final String[] whereArgs) {
+        StringBuilder sql = new StringBuilder("DELETE FROM ").append(table);
+        appendClause(sql, " WHERE ", whereClause);
+        SQLiteStatement stmt = compileStatement(sql.toString());
+        try {
+            if (whereArgs != null) {
+                for (int i = 0; i < whereArgs.length; ++i) {
+                    stmt.bind(i + 1, whereArgs[i]);
+                }
+            }
+            return stmt.executeUpdateDelete();
+        } finally {
+            stmt.close();
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package android.database.sqlite;
+
+/**
+ * Stand-in for the platform exception thrown when a query returned no rows.
+ * 
+ * @author tburke
+ */
+public class SQLiteDoneException extends SQLiteException {
+    /**
+     * Determines if a de-serialized file is compatible with this class.
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Create an exception.
+     * 
+     * @param message
+     *            what went wrong
+     */
+    public SQLiteDoneException(final String message) {
+        super(message);
+    }
+}
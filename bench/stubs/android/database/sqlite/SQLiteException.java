@@ -0,0 +1,37 @@
+package android.database.sqlite;
+
+import android.database.SQLException;
+
+/**
+ * Stand-in for the platform's SQLite exception.
+ * 
+ * @author tburke
+ */
+public class SQLiteException extends SQLException {
+    /**
+     * Determines if a de-serialized file is compatible with this class.
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Create an exception.
+     * 
+     * @param message
+     *            what went wrong
+     */
+    public SQLiteException(final String message) {
+        super(message);
+    }
+
+    /**
+     * Create an exception with a cause.
+     * 
+     * @param message
+     *            what went wrong
+     * @param cause
+     *            the underlying exception
+     */
+    public SQLiteException(final String message, final Throwable cause) {
+        super(message, cause);
+    }
+}
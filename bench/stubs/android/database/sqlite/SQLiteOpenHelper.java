@@ -0,0 +1,145 @@
+package android.database.sqlite;
+
+import android.content.Context;
+import android.database.DatabaseUtils;
+
+import java.sql.DriverManager;
+import java.sql.SQLException;
+
+/**
+ * Stand-in for the platform's open helper, opening databases through the
+ * SQLite JDBC driver. As on the platform, the database is created or
+ * upgraded on first open, and reopened whenever it's asked for after being
+ * closed.
+ * 
+ * @author tburke
+ */
+public abstract class SQLiteOpenHelper {
+    /**
+     * Where databases live.
+     */
+    private final Context context;
+    /**
+     * The database name.
+     */
+    private final String name;
+    /**
+     * The schema version the application expects.
+     */
+    private final int version;
+    /**
+     * The open database, if any.
+     */
+    private SQLiteDatabase database = null;
+
+    /**
+     * Create a helper; nothing is opened until the database is asked for.
+     * 
+     * @param ctx
+     *            where databases live
+     * @param dbName
+     *            the database name
+     * @param factory
+     *            ignored; must be null
+     * @param dbVersion
+     *            the schema version the application expects
+     */
+    public SQLiteOpenHelper(final Context ctx, final String dbName,
+            final SQLiteDatabase.CursorFactory factory, final int dbVersion) {
+        context = ctx;
+        name = dbName;
+        version = dbVersion;
+    }
+
+    /**
+     * Called when the database is created.
+     * 
+     * @param db
+     *            the new database
+     */
+    public abstract void onCreate(SQLiteDatabase db);
+
+    /**
+     * Called when the database's schema is older than the application's.
+     * 
+     * @param db
+     *            the database
+     * @param oldVersion
+     *            the database's schema version
+     * @param newVersion
+     *            the application's schema version
+     */
+    public abstract void onUpgrade(SQLiteDatabase db, int oldVersion,
+            int newVersion);
+
+    /**
+     * Called whenever the database is opened.
+     * 
+     * @param db
+     *            the database
+     */
+    public void onOpen(final SQLiteDatabase db) {
+    }
+
+    /**
+     * Get the database, opening it if need be.
+     * 
+     * @return the database
+     */
+    public synchronized SQLiteDatabase getWritableDatabase() {
+        if (database != null && database.isOpen()) {
+            return database;
+        }
+        SQLiteDatabase db;
+        try {
+            db = new SQLiteDatabase(DriverManager.getConnection("jdbc:sqlite:"
+                    + context.getDatabasePath(name).getPath()));
+        } catch (SQLException e) {
+            throw SQLiteDatabase.translate(e);
+        }
+        int current = (int) DatabaseUtils.longForQuery(db,
+                "PRAGMA user_version", null);
+        if (current != version) {
+            if (current > version) {
+                db.close();
+                throw new SQLiteException("Can't downgrade database from version "
+                        + current + " to " + version);
+            }
+            db.beginTransaction();
+            try {
+                if (current == 0) {
+                    onCreate(db);
+                } else {
+                    onUpgrade(db, current, version);
+                }
+                db.execSQL("PRAGMA user_version = " + version);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+        onOpen(db);
+        database = db;
+        return db;
+    }
+
+    /**
+     * Get the database, opening it if need be. As on the platform, this is
+     * the same database as {@link #getWritableDatabase()}.
+     * 
+     * @return the database
+     */
+    public synchronized SQLiteDatabase getReadableDatabase() {
+        return getWritableDatabase();
+    }
+
+    /**
+     * Close the database, if open.
+     */
+    public synchronized void close() {
+        if (database != null) {
+            database.close();
+            database = null;
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package android.database.sqlite;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Stand-in for the platform's compiled statement, backed by a JDBC prepared
+ * statement.
+ * 
+ * @author tburke
+ */
+public final class SQLiteStatement {
+    /**
+     * The database the statement belongs to.
+     */
+    private final SQLiteDatabase db;
+    /**
+     * The prepared statement.
+     */
+    private final PreparedStatement stmt;
+
+    /**
+     * Wrap a prepared statement.
+     * 
+     * @param database
+     *            the database the statement belongs to
+     * @param prepared
+     *            the prepared statement
+     */
+    SQLiteStatement(final SQLiteDatabase database,
+            final PreparedStatement prepared) {
+        db = database;
+        stmt = prepared;
+    }
+
+    /**
+     * Bind a value of any supported type.
+     * 
+     * @param index
+     *            the one-based parameter index
+     * @param value
+     *            a String, Number or null
+     */
+    void bind(final int index, final Object value) {
+        if (value == null) {
+            bindNull(index);
+        } else if (value instanceof Number) {
+            bindLong(index, ((Number) value).longValue());
+        } else {
+            bindString(index, value.toString());
+        }
+    }
+
+    /**
+     * Bind a string.
+     * 
+     * @param index
+     *            the one-based parameter index
+     * @param value
+     *            the value
+     */
+    public void bindString(final int index, final String value) {
+        if (value == null) {
+            throw new IllegalArgumentException("the bind value at index "
+                    + index + " is null");
+        }
+        try {
+            stmt.setString(index, value);
+        } catch (SQLException e) {
+            throw SQLiteDatabase.translate(e);
+        }
+    }
+
+    /**
+     * Bind a number.
+     * 
+     * @param index
+     *            the one-based parameter index
+     * @param value
+     *            the value
+     */
+    public void bindLong(final int index, final long value) {
+        try {
+            stmt.setLong(index, value);
+        } catch (SQLException e) {
+            throw SQLiteDatabase.translate(e);
+        }
+    }
+
+    /**
+     * Bind null.
+     * 
+     * @param index
+     *            the one-based parameter index
+     */
+    public void bindNull(final int index) {
+        try {
+            stmt.setNull(index, java.sql.Types.NULL);
+        } catch (SQLException e) {
+            throw SQLiteDatabase.translate(e);
+        }
+    }
+
+    /**
+     * Clear every bound value.
+     */
+    public void clearBindings() {
+        try {
+            stmt.clearParameters();
+        } catch (SQLException e) {
+            throw SQLiteDatabase.translate(e);
+        }
+    }
+
+    /**
+     * Run the statement, ignoring any results.
+     */
+    public void execute() {
+        try {
+            stmt.execute();
+        } catch (SQLException e) {
+            throw SQLiteDatabase.translate(e);
+        }
+    }
+
+    /**
+     * Run an INSERT.
+     * 
+     * @return the new row's ID
+     */
+    public long executeInsert() {
+        try {
+            stmt.executeUpdate();
+            Statement rowID = db.getConnection().createStatement();
+            try {
+                ResultSet rs = rowID.executeQuery("SELECT last_insert_rowid()");
+                rs.next();
+                return rs.getLong(1);
+            } finally {
+                rowID.close();
+            }
+        } catch (SQLException e) {
+            throw SQLiteDatabase.translate(e);
+        }
+    }
+
+    /**
+     * Run an UPDATE or DELETE.
+     * 
+     * @return the number of rows affected
+     */
+    public int executeUpdateDelete() {
+        try {
+            return stmt.executeUpdate();
+        } catch (SQLException e) {
+            throw SQLiteDatabase.translate(e);
+        }
+    }
+
+    /**
+     * Run a query returning a single string.
+     * 
+     * @return the first column of the first row
+     * @throws SQLiteDoneException
+     *             if there are no rows
+     */
+    public String simpleQueryForString() {
+        try {
+            ResultSet rs = stmt.executeQuery();
+            try {
+                if (!rs.next()) {
+                    throw new SQLiteDoneException("no rows");
+                }
+                return rs.getString(1);
+            } finally {
+                rs.close();
+            }
+        } catch (SQLException e) {
+            throw SQLiteDatabase.translate(e);
+        }
+    }
+
+    /**
+     * Run a query returning a single number.
+     * 
+     * @return the first column of the first row
+     * @throws SQLiteDoneException
+     *             if there are no rows
+     */
+    public long simpleQueryForLong() {
+        try {
+            ResultSet rs = stmt.executeQuery();
+            try {
+                if (!rs.next()) {
+                    throw new SQLiteDoneException("no rows");
+                }
+                return rs.getLong(1);
+            } finally {
+                rs.close();
+            }
+        } catch (SQLException e) {
+            throw SQLiteDatabase.translate(e);
+        }
+    }
+
+    /**
+     * Release the statement.
+     */
+    public void close() {
+        try {
+            stmt.close();
+        } catch (SQLException e) {
+            throw SQLiteDatabase.translate(e);
+        }
+    }
+}
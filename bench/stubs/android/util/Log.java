@@ -0,0 +1,237 @@
+package android.util;
+
+/**
+ * Stand-in for the platform logger, so that application classes can be
+ * compiled and run on a plain JVM. Messages go to standard error.
+ * <p>
+ * Unlike the platform, where {@link #INFO} and above are loggable by default,
+ * only warnings and above are loggable unless the system property
+ * <code>android.log.level</code> names a lower level (e.g. "DEBUG"); otherwise
+ * the chatter would swamp the measurements.
+ * 
+ * @author tburke
+ */
+public final class Log {
+    /**
+     * Priority for verbose messages.
+     */
+    public static final int VERBOSE = 2;
+    /**
+     * Priority for debug messages.
+     */
+    public static final int DEBUG = 3;
+    /**
+     * Priority for informational messages.
+     */
+    public static final int INFO = 4;
+    /**
+     * Priority for warnings.
+     */
+    public static final int WARN = 5;
+    /**
+     * Priority for errors.
+     */
+    public static final int ERROR = 6;
+    /**
+     * Priority for conditions that should never happen.
+     */
+    public static final int ASSERT = 7;
+
+    /**
+     * Names of the priorities, indexed by priority.
+     */
+    private static final String[] LEVELS = { "", "", "VERBOSE", "DEBUG",
+            "INFO", "WARN", "ERROR", "ASSERT" };
+    /**
+     * The lowest loggable priority.
+     */
+    private static final int THRESHOLD = threshold(System.getProperty(
+            "android.log.level", "WARN"));
+
+    /**
+     * Utility class; not to be instantiated.
+     */
+    private Log() {
+    }
+
+    /**
+     * Parse a priority name.
+     * 
+     * @param name
+     *            the name, e.g. "INFO"
+     * @return the priority
+     * @throws IllegalArgumentException
+     *             if the name isn't recognized
+     */
+    private static int threshold(final String name) {
+        for (int i = VERBOSE; i < LEVELS.length; ++i) {
+            if (LEVELS[i].equalsIgnoreCase(name)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Unknown log level " + name);
+    }
+
+    /**
+     * Check whether messages of a given priority would be logged.
+     * 
+     * @param tag
+     *            identifies the source of the message
+     * @param level
+     *            the priority
+     * @return true if the message would be logged
+     */
+    public static boolean isLoggable(final String tag, final int level) {
+        return level >= THRESHOLD;
+    }
+
+    /**
+     * Write a message, if its priority is loggable.
+     * 
+     * @param level
+     *            the priority
+     * @param tag
+     *            identifies the source of the message
+     * @param msg
+     *            the message
+     * @param tr
+     *            an exception to report, or null
+     * @return the number of characters written
+     */
+    private static int println(final int level, final String tag,
+            final String msg, final Throwable tr) {
+        if (level < THRESHOLD) {
+            return 0;
+        }
+        String line = LEVELS[level].charAt(0) + "/" + tag + ": " + msg;
+        System.err.println(line);
+        if (tr != null) {
+            tr.printStackTrace();
+        }
+        return line.length();
+    }
+
+    /**
+     * Send a verbose message.
+     * 
+     * @param tag
+     *            identifies the source of the message
+     * @param msg
+     *            the message
+     * @return the number of characters written
+     */
+    public static int v(final String tag, final String msg) {
+        return println(VERBOSE, tag, msg, null);
+    }
+
+    /**
+     * Send a debug message.
+     * 
+     * @param tag
+     *            identifies the source of the message
+     * @param msg
+     *            the message
+     * @return the number of characters written
+     */
+    public static int d(final String tag, final String msg) {
+        return println(DEBUG, tag, msg, null);
+    }
+
+    /**
+     * Send an informational message.
+     * 
+     * @param tag
+     *            identifies the source of the message
+     * @param msg
+     *            the message
+     * @return the number of characters written
+     */
+    public static int i(final String tag, final String msg) {
+        return println(INFO, tag, msg, null);
+    }
+
+    /**
+     * Send a warning.
+     * 
+     * @param tag
+     *            identifies the source of the message
+     * @param msg
+     *            the message
+     * @return the number of characters written
+     */
+    public static int w(final String tag, final String msg) {
+        return println(WARN, tag, msg, null);
+    }
+
+    /**
+     * Send a warning, with an exception.
+     * 
+     * @param tag
+     *            identifies the source of the message
+     * @param msg
+     *            the message
+     * @param tr
+     *            the exception
+     * @return the number of characters written
+     */
+    public static int w(final String tag, final String msg, final Throwable tr) {
+        return println(WARN, tag, msg, tr);
+    }
+
+    /**
+     * Send an error.
+     * 
+     * @param tag
+     *            identifies the source of the message
+     * @param msg
+     *            the message
+     * @return the number of characters written
+     */
+    public static int e(final String tag, final String msg) {
+        return println(ERROR, tag, msg, null);
+    }
+
+    /**
+     * Send an error, with an exception.
+     * 
+     * @param tag
+     *            identifies the source of the message
+     * @param msg
+     *            the message
+     * @param tr
+     *            the exception
+     * @return the number of characters written
+     */
+    public static int e(final String tag, final String msg, final Throwable tr) {
+        return println(ERROR, tag, msg, tr);
+    }
+
+    /**
+     * Report a condition that should never happen.
+     * 
+     * @param tag
+     *            identifies the source of the message
+     * @param msg
+     *            the message
+     * @return the number of characters written
+     */
+    public static int wtf(final String tag, final String msg) {
+        return println(ASSERT, tag, msg, null);
+    }
+
+    /**
+     * Report a condition that should never happen, with an exception.
+     * 
+     * @param tag
+     *            identifies the source of the message
+     * @param msg
+     *            the message
+     * @param tr
+     *            the exception
+     * @return the number of characters written
+     */
+    public static int wtf(final String tag, final String msg,
+            final Throwable tr) {
+        return println(ASSERT, tag, msg, tr);
+    }
+}
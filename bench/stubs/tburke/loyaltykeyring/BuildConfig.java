@@ -0,0 +1,20 @@
+package tburke.loyaltykeyring;
+
+/**
+ * Stand-in for the build configuration the Android tools generate. The JVM
+ * benchmarks measure release behaviour, so debug-only checks are off.
+ * 
+ * @author tburke
+ */
+public final class BuildConfig {
+    /**
+     * Whether this is a debug build.
+     */
+    public static final boolean DEBUG = false;
+
+    /**
+     * Not to be instantiated.
+     */
+    private BuildConfig() {
+    }
+}
@@ -19,8 +19,11 @@ package com.google.zxing.integration.android;
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.content.ActivityNotFoundException;
+import android.content.BroadcastReceiver;
+import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.net.Uri;
@@ -124,6 +127,13 @@ import tburke.loyaltykeyring.R;
  * itself.
  * </p>
  * 
+ * <p>
+ * The application chosen to handle each action is remembered for the life of
+ * the process, and forgotten whenever a package is added, removed or
+ * replaced, so the {@link PackageManager} is only queried when something may
+ * have changed.
+ * </p>
+ * 
  * <h2>Sharing text via barcode</h2>
  * 
  * <p>
@@ -221,6 +231,43 @@ public final class IntentIntegrator {
      */
     private static final int DEFAULT_EXTRAS_CAPACITY = 3;
 
+    /**
+     * Action used to start a scan.
+     */
+    private static final String ACTION_SCAN = BS_PACKAGE + ".SCAN";
+    /**
+     * Action used to display a barcode.
+     */
+    private static final String ACTION_ENCODE = BS_PACKAGE + ".ENCODE";
+    /**
+     * Placeholder cached in {@link #RESOLVED_PACKAGES} when no target
+     * application is installed.
+     */
+    private static final String NOT_INSTALLED = "";
+    /**
+     * Package chosen for each action and list of target applications, shared
+     * by all instances. Cleared by {@link PackageChangeReceiver}.
+     */
+    private static final Map<String, String> RESOLVED_PACKAGES = new HashMap<String, String>();
+    /**
+     * The receiver clearing {@link #RESOLVED_PACKAGES}, once registered.
+     */
+    private static PackageChangeReceiver packageChangeReceiver = null;
+
+    /**
+     * Forgets every resolved package whenever a package is added, removed or
+     * replaced.
+     */
+    private static final class PackageChangeReceiver extends
+            BroadcastReceiver {
+        @Override
+        public void onReceive(final Context context, final Intent intent) {
+            synchronized (RESOLVED_PACKAGES) {
+                RESOLVED_PACKAGES.clear();
+            }
+        }
+    }
+
     /**
      * The activity that invoked the {@link Intent} (and may expect a response).
      */
@@ -249,6 +296,16 @@ public final class IntentIntegrator {
      * Additional parameters to attach to the SCAN {@link Intent}.
      */
     private final Map<String, Object> moreExtras;
+    /**
+     * Template for SCAN {@link Intent}s, with {@link #moreExtras} already
+     * attached; null until first needed or after the extras change.
+     */
+    private Intent baseScanIntent = null;
+    /**
+     * Template for ENCODE {@link Intent}s, with {@link #moreExtras} already
+     * attached; null until first needed or after the extras change.
+     */
+    private Intent baseEncodeIntent = null;
 
     /**
      * Create an IntentIntegrator, and tie it to an Activity.
@@ -429,12 +486,13 @@ public final class IntentIntegrator {
      * @return a Map of key-value pairs
      */
     public Map<String, ?> getMoreExtras() {
-        return moreExtras;
+        return Collections.unmodifiableMap(moreExtras);
     }
 
     /**
      * Set and extra argument to be passed to the application handling the SCAN
-     * {@link Intent}.
+     * {@link Intent}. Per-request values, such as the formats passed to
+     * {@link #initiateScan(Collection)}, take precedence.
      * 
      * @param key
      *            the name of the extra argument
@@ -443,6 +501,8 @@ public final class IntentIntegrator {
      */
     public void addExtra(final String key, final Object value) {
         moreExtras.put(key, value);
+        baseScanIntent = null;
+        baseEncodeIntent = null;
     }
 
     /**
@@ -468,8 +528,11 @@ public final class IntentIntegrator {
      */
     public AlertDialog initiateScan(
             final Collection<String> desiredBarcodeFormats) {
-        Intent intentScan = new Intent(BS_PACKAGE + ".SCAN");
-        intentScan.addCategory(Intent.CATEGORY_DEFAULT);
+        String targetAppPackage = findTargetAppPackage(getBaseScanIntent());
+        if (targetAppPackage == null) {
+            return showDownloadDialog();
+        }
+        Intent intentScan = new Intent(getBaseScanIntent());
 
         // check which types of codes to scan for
         if (desiredBarcodeFormats != null) {
@@ -484,18 +547,52 @@ public final class IntentIntegrator {
             intentScan.putExtra("SCAN_FORMATS", joinedByComma.toString());
         }
 
-        String targetAppPackage = findTargetAppPackage(intentScan);
-        if (targetAppPackage == null) {
-            return showDownloadDialog();
-        }
         intentScan.setPackage(targetAppPackage);
-        intentScan.addFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP);
-        intentScan.addFlags(Intent.FLAG_ACTIVITY_CLEAR_WHEN_TASK_RESET);
-        attachMoreExtras(intentScan);
         startActivityForResult(intentScan, REQUEST_CODE);
         return null;
     }
 
+    /**
+     * Get the template for SCAN {@link Intent}s, building it if needed.
+     * 
+     * @return the template; callers must copy it before adding to it
+     */
+    private Intent getBaseScanIntent() {
+        if (baseScanIntent == null) {
+            baseScanIntent = buildBaseIntent(ACTION_SCAN);
+        }
+        return baseScanIntent;
+    }
+
+    /**
+     * Get the template for ENCODE {@link Intent}s, building it if needed.
+     * 
+     * @return the template; callers must copy it before adding to it
+     */
+    private Intent getBaseEncodeIntent() {
+        if (baseEncodeIntent == null) {
+            baseEncodeIntent = buildBaseIntent(ACTION_ENCODE);
+        }
+        return baseEncodeIntent;
+    }
+
+    /**
+     * Build a template {@link Intent} with everything that doesn't vary
+     * between requests.
+     * 
+     * @param action
+     *            the Intent action
+     * @return the template
+     */
+    private Intent buildBaseIntent(final String action) {
+        Intent intent = new Intent(action);
+        intent.addCategory(Intent.CATEGORY_DEFAULT);
+        intent.addFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP);
+        intent.addFlags(Intent.FLAG_ACTIVITY_CLEAR_WHEN_TASK_RESET);
+        attachMoreExtras(intent);
+        return intent;
+    }
+
     /**
      * Start an activity.<br>
      * This method is defined to allow different methods of activity starting
@@ -515,13 +612,27 @@ public final class IntentIntegrator {
     /**
      * Loop through the list of applications that can respond to the given
      * {@link Intent}, looking for one that's also in
-     * {@link #targetApplications}.
+     * {@link #targetApplications}. The answer is cached until a package is
+     * added, removed or replaced.
      * 
      * @param intent
      *            the Intent
      * @return a package name from {@link #targetApplications}, or null
      */
     private String findTargetAppPackage(final Intent intent) {
+        String key = intent.getAction() + "|" + targetApplications;
+        synchronized (RESOLVED_PACKAGES) {
+            String cached = RESOLVED_PACKAGES.get(key);
+            if (cached != null) {
+                if (NOT_INSTALLED.equals(cached)) {
+                    return null;
+                }
+                return cached;
+            }
+        }
+        registerPackageChangeReceiver(activity);
+
+        String result = null;
         PackageManager pm = activity.getPackageManager();
         List<ResolveInfo> availableApps = pm.queryIntentActivities(intent,
                 PackageManager.MATCH_DEFAULT_ONLY);
@@ -529,11 +640,41 @@ public final class IntentIntegrator {
             for (ResolveInfo availableApp : availableApps) {
                 String packageName = availableApp.activityInfo.packageName;
                 if (targetApplications.contains(packageName)) {
-                    return packageName;
+                    result = packageName;
+                    break;
                 }
             }
         }
-        return null;
+        synchronized (RESOLVED_PACKAGES) {
+            if (result == null) {
+                RESOLVED_PACKAGES.put(key, NOT_INSTALLED);
+            } else {
+                RESOLVED_PACKAGES.put(key, result);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Start listening for package changes, so that cached resolutions can be
+     * discarded. Only the first call has any effect.
+     * 
+     * @param ctx
+     *            any context from this application
+     */
+    private static synchronized void registerPackageChangeReceiver(
+            final Context ctx) {
+        if (packageChangeReceiver != null) {
+            return;
+        }
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addDataScheme("package");
+        packageChangeReceiver = new PackageChangeReceiver();
+        ctx.getApplicationContext().registerReceiver(packageChangeReceiver,
+                filter);
     }
 
     /**
@@ -631,33 +772,6 @@ public final class IntentIntegrator {
         return shareText(format, text, "TEXT_TYPE");
     }
 
-    /**
-     * List of valid start/end characters for CodaBar barcodes.
-     */
-    private static final char[] VALID_START_END_CHARS = { 'A', 'T', 'B', 'N',
-            'C', '*', 'D', 'E' };
-
-    /**
-     * Check whether an array contains the given character.
-     * 
-     * @param array
-     *            the array to check
-     * @param key
-     *            the character to look for
-     * @return true if <code>array</code> contains <code>key</code>; false
-     *         otherwise
-     */
-    private static boolean arrayContains(final char[] array, final char key) {
-        if (array != null) {
-            for (char c : array) {
-                if (c == key) {
-                    return true;
-                }
-            }
-        }
-        return false;
-    }
-
     /**
      * Shares the given text by encoding it as a barcode, such that another user
      * can scan the text off the screen of the device.
@@ -665,7 +779,9 @@ public final class IntentIntegrator {
      * @param format
      *            the barcode format to use
      * @param text
-     *            the text string to encode as a barcode
+     *            the text string to encode as a barcode; this is passed
+     *            through as-is, so it must already be valid for the format
+     *            (for example, CodaBar data must include start/end characters)
      * @param type
      *            type of data to encode. See
      *            {@code com.google.zxing.client.android.Contents.Type}
@@ -675,37 +791,16 @@ public final class IntentIntegrator {
      */
     public AlertDialog shareText(final CharSequence format,
             final CharSequence text, final CharSequence type) {
-        Intent intent = new Intent();
-        intent.addCategory(Intent.CATEGORY_DEFAULT);
-        intent.setAction(BS_PACKAGE + ".ENCODE");
-        String data = (String) text;
-        if ("CODABAR".equals(format)) {
-            // CodaBar decoder doesn't include the start/end
-            // characters (as of 4.3.2), so assume library
-            // (start with A, end with B).
-            if (!arrayContains(VALID_START_END_CHARS, data.charAt(0))) {
-                data = "A" + data;
-            }
-            // The *encoder* doesn't recognize A, B, C, or D
-            // as valid ending chars, so use alternate T, N,
-            // *, E characters (which it *does* recognize).
-            if (!arrayContains(VALID_START_END_CHARS,
-                    data.charAt(data.length() - 1))) {
-                data = data + "N";
-            }
+        String targetAppPackage = findTargetAppPackage(getBaseEncodeIntent());
+        if (targetAppPackage == null) {
+            return showDownloadDialog();
         }
+        Intent intent = new Intent(getBaseEncodeIntent());
         intent.putExtra("ENCODE_FORMAT", format);
         intent.putExtra("ENCODE_TYPE", type);
-        intent.putExtra("ENCODE_DATA", data);
+        intent.putExtra("ENCODE_DATA", text);
         intent.putExtra("ENCODE_SHOW_CONTENTS", false);
-        String targetAppPackage = findTargetAppPackage(intent);
-        if (targetAppPackage == null) {
-            return showDownloadDialog();
-        }
         intent.setPackage(targetAppPackage);
-        intent.addFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP);
-        intent.addFlags(Intent.FLAG_ACTIVITY_CLEAR_WHEN_TASK_RESET);
-        attachMoreExtras(intent);
         activity.startActivity(intent);
         return null;
     }
@@ -724,11 +819,11 @@ public final class IntentIntegrator {
 
     /**
      * Loop through additional arguments added via
-     * {@link #addExtra(String, Object)} and add them to the SCAN {@link Intent}
-     * .
+     * {@link #addExtra(String, Object)} and add them to a template
+     * {@link Intent}.
      * 
      * @param intent
-     *            the SCAN Intent
+     *            the template Intent
      */
     private void attachMoreExtras(final Intent intent) {
         for (Map.Entry<String, Object> entry : moreExtras.entrySet()) {
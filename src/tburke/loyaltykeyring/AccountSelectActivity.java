@@ -7,7 +7,6 @@ import android.util.Log;
 import android.util.SparseBooleanArray;
 import android.view.View;
 import android.widget.AdapterView;
-import android.widget.ArrayAdapter;
 import android.widget.Button;
 import android.widget.ListView;
 
@@ -35,11 +34,11 @@ public final class AccountSelectActivity extends Activity implements
     /**
      * Helper to get access to the database.
      */
-    private DBHelper db;
+    private CardStore db;
     /**
      * Adapter to populate the list of {@link LoyaltyCard}s.
      */
-    private ArrayAdapter<LoyaltyCard> adapter;
+    private CardTableAdapter adapter;
     /**
      * The group being edited.
      */
@@ -49,20 +48,20 @@ public final class AccountSelectActivity extends Activity implements
     protected void onCreate(final Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_select_accounts);
-        db = new DBHelper(this);
+        db = CardStores.open(this);
 
         final ListView cardList = (ListView) findViewById(R.id.card_select);
         cardList.setOnItemClickListener(this);
         cardList.setChoiceMode(ListView.CHOICE_MODE_MULTIPLE);
 
-        adapter = new ArrayAdapter<LoyaltyCard>(this,
+        adapter = new CardTableAdapter(this,
                 android.R.layout.simple_list_item_multiple_choice,
-                db.getAllCards());
+                new CardTable(db.getAllCards()));
         cardList.setAdapter(adapter);
 
         group = getIntent().getStringExtra(GROUP_NAME);
         for (LoyaltyCard card : db.getCardsByTag(group)) {
-            int pos = adapter.getPosition(card);
+            int pos = adapter.getTable().indexOf(card);
             Log.i(this.getClass().getSimpleName(),
                     "Checking card " + card.toString() + " at position " + pos);
             cardList.setItemChecked(pos, true);
@@ -88,7 +87,8 @@ public final class AccountSelectActivity extends Activity implements
                     if (checked.get(checked.keyAt(i))) {
                         Log.i("AccountSelectActivity:onClick", "  Item: "
                                 + checked.keyAt(i));
-                        accounts.add(adapter.getItem(checked.keyAt(i)).getID());
+                        accounts.add(adapter.getTable().getID(
+                                checked.keyAt(i)));
                     }
                 }
             }
@@ -0,0 +1,94 @@
+package tburke.loyaltykeyring;
+
+import android.app.Activity;
+import android.content.res.Resources;
+import android.graphics.Point;
+import android.os.Bundle;
+import android.util.DisplayMetrics;
+import android.util.Log;
+import android.widget.ImageView;
+import android.widget.TextView;
+
+/**
+ * Activity to display a {@link LoyaltyCard}'s barcode so that it can be
+ * scanned at the register. The barcode is drawn in-process by
+ * {@link BarcodeRenderer} (or taken from the {@link BarcodeCache}), sized for
+ * the current display, before the first frame is shown.
+ * 
+ * @author tburke
+ */
+public final class BarcodeActivity extends Activity {
+    /**
+     * Key to be used with Intent.putExtra to supply the (required)
+     * {@link LoyaltyCard} to display.
+     */
+    public static final String CARD = "CARD";
+    /**
+     * Tag to be used when logging.
+     */
+    private static final String LOG_TAG = BarcodeActivity.class
+            .getSimpleName();
+    /**
+     * Time from creation until the barcode is on screen.
+     */
+    private static final Metrics.Timer DISPLAY = Metrics
+            .timer("barcode.display");
+
+    /**
+     * When creation started, until the barcode has been displayed; see
+     * {@link Metrics#start()}.
+     */
+    private long displayStart = 0;
+
+    /**
+     * Get the size barcodes are drawn at: the display, less its margins.
+     * {@link MainActivity}'s PrefetchTask draws the cards {@link CardPredictor}
+     * picks at the same size, so that the cache has them.
+     * 
+     * @param res
+     *            the application's resources
+     * @return the width and height, in pixels
+     */
+    static Point barcodeSize(final Resources res) {
+        DisplayMetrics metrics = res.getDisplayMetrics();
+        int margin = 2 * res
+                .getDimensionPixelSize(R.dimen.activity_horizontal_margin);
+        return new Point(metrics.widthPixels - margin, metrics.heightPixels
+                - margin);
+    }
+
+    @Override
+    protected void onCreate(final Bundle savedInstanceState) {
+        displayStart = Metrics.start();
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_barcode);
+
+        LoyaltyCard card = (LoyaltyCard) getIntent().getSerializableExtra(CARD);
+        if (card == null) {
+            throw new IllegalArgumentException("Extra required:" + CARD);
+        }
+        setTitle(card.getName());
+        final TextView label = (TextView) findViewById(R.id.barcode_label);
+        label.setText(card.getPayload());
+
+        Point size = barcodeSize(getResources());
+        final ImageView image = (ImageView) findViewById(R.id.barcode_image);
+        try {
+            image.setImageBitmap(BarcodeCache.getInstance(this).get(card,
+                    size.x, size.y));
+        } catch (IllegalArgumentException e) {
+            Log.w(LOG_TAG, "Couldn't render " + card.getID(), e);
+            label.setText(getString(R.string.barcode_invalid, card.getPayload()));
+        }
+    }
+
+    @Override
+    public void onWindowFocusChanged(final boolean hasFocus) {
+        super.onWindowFocusChanged(hasFocus);
+        // Focus arrives once the first frame has been drawn.
+        if (hasFocus && displayStart != 0) {
+            DISPLAY.stop(displayStart);
+            displayStart = 0;
+        }
+    }
+}
@@ -0,0 +1,357 @@
+package tburke.loyaltykeyring;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Two-tier cache of rendered barcodes: an in-memory LRU bounded by a byte
+ * budget, backed by pre-rendered PNGs in the application's cache directory.
+ * <p>
+ * Entries are keyed by card ID (and so by format and data) and target size.
+ * Since a card's ID changes whenever its data does, a stale image can never be
+ * returned for a card; {@link #invalidate(String)} exists to reclaim space
+ * when a card is deleted.
+ * 
+ * @author tburke
+ */
+final class BarcodeCache {
+    /**
+     * Tag to be used when logging.
+     */
+    private static final String LOG_TAG = BarcodeCache.class.getSimpleName();
+    /**
+     * Bumped whenever rendering changes, so that images drawn by older
+     * versions are never reused.
+     */
+    private static final int RENDER_VERSION = 1;
+    /**
+     * Fraction of the heap (as a divisor) allowed for the memory tier.
+     */
+    private static final int MEMORY_FRACTION = 8;
+    /**
+     * Maximum size of the disk tier, in bytes.
+     */
+    private static final long DISK_BUDGET = 4L * 1024 * 1024;
+    /**
+     * Name of the directory (under the cache directory) for the disk tier.
+     */
+    private static final String DISK_DIR = "barcodes";
+    /**
+     * Suffix for files in the disk tier.
+     */
+    private static final String DISK_SUFFIX = ".png";
+    /**
+     * PNG is lossless, so this is only a hint for the compressor.
+     */
+    private static final int PNG_QUALITY = 100;
+
+    /**
+     * Count of images found in the memory tier.
+     */
+    private static final Metrics.Counter MEMORY_HITS = Metrics
+            .counter("barcode.cache.memoryHit");
+    /**
+     * Count of images found in the disk tier.
+     */
+    private static final Metrics.Counter DISK_HITS = Metrics
+            .counter("barcode.cache.diskHit");
+    /**
+     * Time taken to render images found in neither tier.
+     */
+    private static final Metrics.Timer RENDER = Metrics
+            .timer("barcode.render");
+
+    /**
+     * The shared instance.
+     */
+    private static BarcodeCache instance = null;
+
+    /**
+     * The memory tier, sized in bytes.
+     */
+    private final LruCache<String, Bitmap> memory;
+    /**
+     * The directory holding the disk tier.
+     */
+    private final File diskDir;
+    /**
+     * Background thread for disk writes and trimming.
+     */
+    private final ExecutorService diskWriter;
+
+    /**
+     * Create a new cache.
+     * 
+     * @param ctx
+     *            context used to find the cache directory
+     */
+    private BarcodeCache(final Context ctx) {
+        int budget = (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime()
+                .maxMemory() / MEMORY_FRACTION);
+        memory = new LruCache<String, Bitmap>(budget) {
+            @Override
+            protected int sizeOf(final String key, final Bitmap value) {
+                return value.getRowBytes() * value.getHeight();
+            }
+        };
+        diskDir = new File(ctx.getCacheDir(), DISK_DIR);
+        diskWriter = Executors.newSingleThreadExecutor();
+    }
+
+    /**
+     * Get the shared cache.
+     * 
+     * @param ctx
+     *            any context from this application
+     * @return the shared cache
+     */
+    public static synchronized BarcodeCache getInstance(final Context ctx) {
+        if (instance == null) {
+            instance = new BarcodeCache(ctx.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * Get a card's barcode, rendering it only if neither tier has it.
+     * 
+     * @param card
+     *            the card to draw
+     * @param maxWidth
+     *            the available width, in pixels
+     * @param maxHeight
+     *            the available height, in pixels
+     * @return the barcode image
+     * @throws IllegalArgumentException
+     *             if the barcode can't be rendered
+     * 
+     * @see BarcodeRenderer#render(LoyaltyCard, int, int)
+     */
+    public Bitmap get(final LoyaltyCard card, final int maxWidth,
+            final int maxHeight) {
+        String key = key(card.getID(), maxWidth, maxHeight);
+        Bitmap result = memory.get(key);
+        if (result != null) {
+            MEMORY_HITS.increment();
+            return result;
+        }
+
+        final File file = diskFile(card.getID(), maxWidth, maxHeight);
+        if (file.exists()) {
+            BitmapFactory.Options opts = new BitmapFactory.Options();
+            opts.inPreferredConfig = Bitmap.Config.RGB_565;
+            result = BitmapFactory.decodeFile(file.getPath(), opts);
+            if (result != null) {
+                DISK_HITS.increment();
+                memory.put(key, result);
+                // Touch the file so that trimming keeps recently used cards.
+                diskWriter.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        file.setLastModified(System.currentTimeMillis());
+                    }
+                });
+                return result;
+            }
+            Log.w(LOG_TAG, "Discarding unreadable " + file);
+            file.delete();
+        }
+
+        long start = Metrics.start();
+        final Bitmap rendered = BarcodeRenderer.render(card, maxWidth,
+                maxHeight);
+        RENDER.stop(start);
+        memory.put(key, rendered);
+        diskWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                write(file, rendered);
+                trimDisk();
+            }
+        });
+        return rendered;
+    }
+
+    /**
+     * Drop every cached image for a card, at every size.
+     * 
+     * @param cardID
+     *            the card's ID
+     * 
+     * @see LoyaltyCard#getID()
+     */
+    public void invalidate(final String cardID) {
+        String prefix = cardID + "|";
+        for (String key : memory.snapshot().keySet()) {
+            if (key.startsWith(prefix)) {
+                memory.remove(key);
+            }
+        }
+        final String filePrefix = hash(cardID) + "_";
+        diskWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                File[] files = diskDir.listFiles();
+                if (files == null) {
+                    return;
+                }
+                for (File file : files) {
+                    if (file.getName().startsWith(filePrefix)) {
+                        file.delete();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Build the memory-tier key.
+     * 
+     * @param cardID
+     *            the card's ID
+     * @param width
+     *            the target width
+     * @param height
+     *            the target height
+     * @return the key
+     */
+    private static String key(final String cardID, final int width,
+            final int height) {
+        return cardID + "|" + width + "x" + height;
+    }
+
+    /**
+     * Find the disk-tier file for an image. Card IDs may contain anything, so
+     * they are hashed.
+     * 
+     * @param cardID
+     *            the card's ID
+     * @param width
+     *            the target width
+     * @param height
+     *            the target height
+     * @return the file (which may not exist)
+     */
+    private File diskFile(final String cardID, final int width,
+            final int height) {
+        return new File(diskDir, hash(cardID) + "_" + width + "x" + height
+                + "_v" + RENDER_VERSION + DISK_SUFFIX);
+    }
+
+    /**
+     * Hash a card ID into something safe to use as a file name.
+     * 
+     * @param cardID
+     *            the card's ID
+     * @return the SHA-1 of the ID, in hexadecimal
+     */
+    private static String hash(final String cardID) {
+        final int nibble = 4;
+        final int nibbleMask = 0xF;
+        final char[] hexDigits = "0123456789abcdef".toCharArray();
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] bytes = digest.digest(cardID.getBytes("UTF-8"));
+            StringBuilder result = new StringBuilder(bytes.length * 2);
+            for (byte b : bytes) {
+                result.append(hexDigits[(b >> nibble) & nibbleMask]);
+                result.append(hexDigits[b & nibbleMask]);
+            }
+            return result.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not supported", e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 is not supported", e);
+        }
+    }
+
+    /**
+     * Save an image to the disk tier. Runs on {@link #diskWriter}.
+     * 
+     * @param file
+     *            the destination
+     * @param bitmap
+     *            the image to save
+     */
+    private void write(final File file, final Bitmap bitmap) {
+        if (!diskDir.isDirectory() && !diskDir.mkdirs()) {
+            Log.w(LOG_TAG, "Couldn't create " + diskDir);
+            return;
+        }
+        File temp = new File(diskDir, file.getName() + ".tmp");
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(temp);
+            bitmap.compress(Bitmap.CompressFormat.PNG, PNG_QUALITY, out);
+            out.close();
+            out = null;
+            if (!temp.renameTo(file)) {
+                Log.w(LOG_TAG, "Couldn't rename " + temp + " to " + file);
+                temp.delete();
+            }
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Couldn't write " + file, e);
+            temp.delete();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    Log.w(LOG_TAG, "Couldn't close " + temp, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Delete the least recently used files until the disk tier fits within
+     * {@link #DISK_BUDGET}. Runs on {@link #diskWriter}.
+     */
+    private void trimDisk() {
+        File[] files = diskDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        long total = 0;
+        for (File file : files) {
+            total += file.length();
+        }
+        if (total <= DISK_BUDGET) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(final File a, final File b) {
+                long diff = a.lastModified() - b.lastModified();
+                if (diff < 0) {
+                    return -1;
+                } else if (diff > 0) {
+                    return 1;
+                }
+                return 0;
+            }
+        });
+        for (int i = 0; i < files.length && total > DISK_BUDGET; ++i) {
+            total -= files[i].length();
+            if (Log.isLoggable(LOG_TAG, Log.VERBOSE)) {
+                Log.v(LOG_TAG, "Trimming " + files[i]);
+            }
+            files[i].delete();
+        }
+    }
+}
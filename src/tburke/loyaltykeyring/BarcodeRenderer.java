@@ -0,0 +1,139 @@
+package tburke.loyaltykeyring;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+
+import tburke.loyaltykeyring.barcode.BarcodeEncoder;
+import tburke.loyaltykeyring.barcode.BarcodeEncoders;
+import tburke.loyaltykeyring.barcode.BitMatrix;
+
+/**
+ * Draw barcodes for {@link LoyaltyCard}s into {@link Bitmap}s.
+ * <p>
+ * Each module is drawn as a whole number of pixels, so that edges stay sharp
+ * regardless of screen density; the resulting bitmap may therefore be a little
+ * smaller than requested.
+ * 
+ * @author tburke
+ */
+final class BarcodeRenderer {
+    /**
+     * Width-to-height ratio used for linear (one-dimensional) barcodes.
+     */
+    private static final int LINEAR_ASPECT_RATIO = 2;
+    /**
+     * Color used for dark modules.
+     */
+    private static final int DARK = Color.BLACK;
+    /**
+     * Color used for light modules and the quiet zone.
+     */
+    private static final int LIGHT = Color.WHITE;
+
+    /**
+     * Utility class; not to be instantiated.
+     */
+    private BarcodeRenderer() {
+    }
+
+    /**
+     * Check whether a card's barcode can be drawn in-process.
+     * 
+     * @param card
+     *            the card to check
+     * @return true if {@link #render(LoyaltyCard, int, int)} supports the
+     *         card's format
+     */
+    public static boolean canRender(final LoyaltyCard card) {
+        return BarcodeEncoders.isSupported(card.getFormat());
+    }
+
+    /**
+     * Encode and draw a card's barcode.
+     * 
+     * @param card
+     *            the card to draw
+     * @param maxWidth
+     *            the available width, in pixels
+     * @param maxHeight
+     *            the available height, in pixels
+     * @return the barcode image
+     * @throws IllegalArgumentException
+     *             if the card's format is not supported, or its payload can't
+     *             be encoded in that format
+     */
+    public static Bitmap render(final LoyaltyCard card, final int maxWidth,
+            final int maxHeight) {
+        BarcodeEncoder encoder = BarcodeEncoders.forFormat(card.getFormat());
+        if (encoder == null) {
+            throw new IllegalArgumentException("Unsupported barcode format: "
+                    + card.getFormat());
+        }
+        return render(encoder.encode(card.getPayload()), maxWidth, maxHeight);
+    }
+
+    /**
+     * Draw an encoded barcode.
+     * 
+     * @param matrix
+     *            the encoded barcode
+     * @param maxWidth
+     *            the available width, in pixels
+     * @param maxHeight
+     *            the available height, in pixels
+     * @return the barcode image
+     */
+    public static Bitmap render(final BitMatrix matrix, final int maxWidth,
+            final int maxHeight) {
+        int modulesWide = matrix.getWidth();
+        int modulesHigh = matrix.getHeight();
+        boolean linear = modulesHigh == 1;
+        int scale;
+        if (linear) {
+            scale = Math.max(1, maxWidth / modulesWide);
+        } else {
+            scale = Math.max(1,
+                    Math.min(maxWidth / modulesWide, maxHeight / modulesHigh));
+        }
+        int width = modulesWide * scale;
+        int height;
+        if (linear) {
+            height = Math.max(1, Math.min(maxHeight, width
+                    / LINEAR_ASPECT_RATIO));
+        } else {
+            height = modulesHigh * scale;
+        }
+
+        Bitmap result = Bitmap.createBitmap(width, height,
+                Bitmap.Config.RGB_565);
+        int[] pixels = new int[width];
+        boolean[] modules = new boolean[modulesWide];
+        for (int row = 0; row < modulesHigh; ++row) {
+            matrix.getRow(row, modules);
+            for (int x = 0; x < modulesWide; ++x) {
+                int color;
+                if (modules[x]) {
+                    color = DARK;
+                } else {
+                    color = LIGHT;
+                }
+                for (int i = 0; i < scale; ++i) {
+                    pixels[x * scale + i] = color;
+                }
+            }
+            int top;
+            int bottom;
+            if (linear) {
+                top = 0;
+                bottom = height;
+            } else {
+                top = row * scale;
+                bottom = top + scale;
+            }
+            for (int y = top; y < bottom; ++y) {
+                result.setPixels(pixels, 0, width, 0, y, width, 1);
+            }
+        }
+        return result;
+    }
+}
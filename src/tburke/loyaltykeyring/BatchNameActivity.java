@@ -0,0 +1,110 @@
+package tburke.loyaltykeyring;
+
+import android.app.Activity;
+import android.content.Intent;
+import android.os.Bundle;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.widget.Button;
+import android.widget.EditText;
+import android.widget.LinearLayout;
+import android.widget.TextView;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Android activity to name all of the {@link LoyaltyCard}s from a batch scan
+ * at once.
+ * 
+ * @author tburke
+ */
+public final class BatchNameActivity extends Activity implements
+        View.OnClickListener {
+    /**
+     * Key to be used with Intent.getSerializableExtra to get the cards (an
+     * ArrayList of {@link LoyaltyCard}s). On input, names are suggestions; on
+     * output, they are what the user chose, and cards the user blanked out
+     * are omitted.
+     */
+    public static final String CARDS = "CARDS";
+    /**
+     * Key for the names typed so far, in the saved instance state.
+     */
+    private static final String STATE_NAMES = "names";
+
+    /**
+     * The cards being named.
+     */
+    private List<LoyaltyCard> cards;
+    /**
+     * Name fields, one per card.
+     */
+    private final List<EditText> nameFields = new ArrayList<EditText>();
+
+    @SuppressWarnings("unchecked")
+    @Override
+    protected void onCreate(final Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_batch_name);
+
+        cards = (List<LoyaltyCard>) getIntent().getSerializableExtra(CARDS);
+        if (cards == null) {
+            throw new IllegalArgumentException("Extra required:" + CARDS);
+        }
+
+        String[] typed = null;
+        if (savedInstanceState != null) {
+            typed = savedInstanceState.getStringArray(STATE_NAMES);
+        }
+        if (typed != null && typed.length != cards.size()) {
+            typed = null;
+        }
+
+        LayoutInflater inflater = getLayoutInflater();
+        LinearLayout rows = (LinearLayout) findViewById(R.id.batch_rows);
+        for (int i = 0; i < cards.size(); ++i) {
+            LoyaltyCard card = cards.get(i);
+            View row = inflater.inflate(R.layout.batch_name_row, rows, false);
+            ((TextView) row.findViewById(R.id.batch_row_barcode))
+                    .setText(card.getFormat() + ": " + card.getData());
+            EditText name = (EditText) row.findViewById(R.id.batch_row_name);
+            // Every row's field has the same ID, so the framework would
+            // restore the last row's text into all of them; the names are
+            // saved here instead.
+            name.setSaveEnabled(false);
+            name.setText(typed == null ? card.getName() : typed[i]);
+            nameFields.add(name);
+            rows.addView(row);
+        }
+
+        ((Button) findViewById(R.id.save_batch)).setOnClickListener(this);
+    }
+
+    @Override
+    protected void onSaveInstanceState(final Bundle outState) {
+        super.onSaveInstanceState(outState);
+        String[] typed = new String[nameFields.size()];
+        for (int i = 0; i < typed.length; ++i) {
+            typed[i] = nameFields.get(i).getText().toString();
+        }
+        outState.putStringArray(STATE_NAMES, typed);
+    }
+
+    @Override
+    public void onClick(final View view) {
+        ArrayList<LoyaltyCard> named = new ArrayList<LoyaltyCard>();
+        for (int i = 0; i < cards.size(); ++i) {
+            String name = nameFields.get(i).getText().toString().trim();
+            if (!"".equals(name)) {
+                LoyaltyCard card = cards.get(i);
+                named.add(new LoyaltyCard(name, card.getFormat(), card
+                        .getData()));
+            }
+        }
+        Intent res = new Intent();
+        res.putExtra(CARDS, named);
+        setResult(RESULT_OK, res);
+        finish();
+    }
+}
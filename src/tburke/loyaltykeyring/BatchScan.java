@@ -0,0 +1,151 @@
+package tburke.loyaltykeyring;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Cards collected during a batch scan, waiting to be named and saved
+ * together. Duplicates (of each other, or of cards already in the keyring)
+ * are dropped as they are scanned, so nothing is written until the whole
+ * batch is known to be new.
+ * 
+ * @author tburke
+ */
+final class BatchScan implements Serializable {
+    /**
+     * Determines if a de-serialized file is compatible with this class.
+     */
+    private static final long serialVersionUID = 3894416284750238213L;
+    /**
+     * IDs of cards already in the keyring or queued. Not serialized, since it
+     * holds the whole keyring; see {@link #restore(List)}.
+     */
+    private transient Set<String> knownIDs;
+    /**
+     * Names of cards already in the keyring or queued. Not serialized, since
+     * it holds the whole keyring; see {@link #restore(List)}.
+     */
+    private transient Set<String> knownNames;
+    /**
+     * The cards scanned so far, with suggested names.
+     * 
+     * @serial
+     */
+    private final ArrayList<LoyaltyCard> queue = new ArrayList<LoyaltyCard>();
+    /**
+     * Pattern for suggested names; takes a single integer argument.
+     * 
+     * @serial
+     */
+    private final String namePattern;
+    /**
+     * Number of scans dropped as duplicates.
+     * 
+     * @serial
+     */
+    private int duplicates = 0;
+    /**
+     * Number used for the most recent suggested name.
+     * 
+     * @serial
+     */
+    private int lastSuggestion = 0;
+
+    /**
+     * Start a new batch.
+     * 
+     * @param existing
+     *            the cards already in the keyring
+     * @param suggestedNamePattern
+     *            pattern used to suggest names, for use with
+     *            {@link String#format(String, Object...)}; takes a single
+     *            integer argument, for example "Card %1$d"
+     */
+    BatchScan(final List<LoyaltyCard> existing,
+            final String suggestedNamePattern) {
+        namePattern = suggestedNamePattern;
+        restore(existing);
+    }
+
+    /**
+     * Rebuild the IDs and names known, which aren't serialized: must be
+     * called after the batch is de-serialized, before anything is added.
+     * 
+     * @param existing
+     *            the cards already in the keyring
+     */
+    void restore(final List<LoyaltyCard> existing) {
+        knownIDs = new HashSet<String>();
+        knownNames = new HashSet<String>();
+        for (LoyaltyCard card : existing) {
+            knownIDs.add(card.getID());
+            knownNames.add(card.getName());
+        }
+        for (LoyaltyCard card : queue) {
+            knownIDs.add(card.getID());
+            knownNames.add(card.getName());
+        }
+    }
+
+    /**
+     * Queue a scanned card, unless it is a duplicate.
+     * 
+     * @param format
+     *            the barcode format
+     * @param data
+     *            the barcode data
+     * @return true if the card was queued; false if it was a duplicate
+     */
+    public boolean add(final String format, final String data) {
+        if (!knownIDs.add(LoyaltyCard.createID(format, data))) {
+            ++duplicates;
+            return false;
+        }
+        queue.add(new LoyaltyCard(suggestName(), format, data));
+        return true;
+    }
+
+    /**
+     * Come up with a name that isn't already taken.
+     * 
+     * @return the suggested name
+     */
+    private String suggestName() {
+        String name;
+        do {
+            ++lastSuggestion;
+            name = String.format(namePattern, lastSuggestion);
+        } while (!knownNames.add(name));
+        return name;
+    }
+
+    /**
+     * Getter for the queued cards.
+     * 
+     * @return the cards scanned so far, in order, with suggested names
+     */
+    public ArrayList<LoyaltyCard> getCards() {
+        return new ArrayList<LoyaltyCard>(queue);
+    }
+
+    /**
+     * Getter for the number of cards queued.
+     * 
+     * @return the number of cards queued
+     */
+    public int size() {
+        return queue.size();
+    }
+
+    /**
+     * Getter for the number of duplicates dropped.
+     * 
+     * @return the number of scans dropped as duplicates
+     */
+    public int getDuplicates() {
+        return duplicates;
+    }
+}
@@ -0,0 +1,327 @@
+package tburke.loyaltykeyring;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Reads cards from the compact binary backup format, one record at a time.
+ * {@link #open(File)} checks the record count and checksum in a first pass,
+ * so that nothing is restored from a truncated or corrupt backup; a reader
+ * created over a stream can only check them once the end is reached, after
+ * every record has been returned.
+ * 
+ * @author tburke
+ * 
+ * @see BinaryCardWriter
+ */
+final class BinaryCardReader implements CardRecordReader {
+    /**
+     * Tag to be used when logging.
+     */
+    private static final String LOG_TAG = BinaryCardReader.class
+            .getSimpleName();
+    /**
+     * Size of the buffer used by the inflater (or for unmapped files).
+     */
+    private static final int INFLATE_BUFFER_SIZE = 16 * 1024;
+    /**
+     * Initial size of {@link #record}.
+     */
+    private static final int INITIAL_RECORD_SIZE = 256;
+
+    /**
+     * The raw input, after the header.
+     */
+    private final DataInputStream in;
+    /**
+     * The inflater, if decompressing; must be released when done.
+     */
+    private final Inflater inflater;
+    /**
+     * Checksum of everything read so far.
+     */
+    private final CRC32 checksum = new CRC32();
+    /**
+     * Reused to hold each record; grown as need be.
+     */
+    private byte[] record = new byte[INITIAL_RECORD_SIZE];
+    /**
+     * The length of the record in {@link #record}.
+     */
+    private int recordLength = 0;
+    /**
+     * Number of records read.
+     */
+    private int count = 0;
+    /**
+     * Whether the trailer has been read.
+     */
+    private boolean finished = false;
+
+    /**
+     * An InputStream over a (typically memory-mapped) ByteBuffer.
+     */
+    private static final class ByteBufferInputStream extends InputStream {
+        /**
+         * The bytes to be read.
+         */
+        private final ByteBuffer buffer;
+
+        /**
+         * Create a stream over the remaining bytes of a buffer.
+         * 
+         * @param source
+         *            the buffer
+         */
+        ByteBufferInputStream(final ByteBuffer source) {
+            buffer = source;
+        }
+
+        @Override
+        public int read() {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            return buffer.get() & 0xFF;
+        }
+
+        @Override
+        public int read(final byte[] bytes, final int offset, final int length) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+
+    /**
+     * Create a reader, and check the header.
+     * 
+     * @param input
+     *            the backup; should be buffered
+     * @throws IOException
+     *             if the input can't be read or isn't a backup this version
+     *             understands
+     */
+    BinaryCardReader(final InputStream input) throws IOException {
+        DataInputStream header = new DataInputStream(input);
+        byte[] magic = new byte[BinaryCardWriter.MAGIC.length];
+        header.readFully(magic);
+        if (!Arrays.equals(magic, BinaryCardWriter.MAGIC)) {
+            throw new IOException("Not a backup");
+        }
+        int version = header.readUnsignedByte();
+        if (version > BinaryCardWriter.VERSION) {
+            throw new IOException("Backup version " + version
+                    + " is newer than this app");
+        }
+        int flags = header.readUnsignedByte();
+        if ((flags & BinaryCardWriter.FLAG_DEFLATE) != 0) {
+            inflater = new Inflater();
+            in = new DataInputStream(new BufferedInputStream(
+                    new InflaterInputStream(input, inflater,
+                            INFLATE_BUFFER_SIZE), INFLATE_BUFFER_SIZE));
+        } else {
+            inflater = null;
+            in = header;
+        }
+    }
+
+    /**
+     * Open a backup file, memory-mapping it if possible so that it's read
+     * without copying it through a buffer.
+     * 
+     * @param file
+     *            the backup
+     * @return a reader for the backup
+     * @throws IOException
+     *             if the file can't be read or isn't a backup this version
+     *             understands
+     */
+    static BinaryCardReader open(final File file) throws IOException {
+        FileInputStream stream = new FileInputStream(file);
+        ByteBuffer mapped = null;
+        try {
+            FileChannel channel = stream.getChannel();
+            if (channel.size() <= Integer.MAX_VALUE) {
+                mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                        channel.size());
+            }
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Couldn't map " + file + "; reading instead", e);
+        }
+        if (mapped == null) {
+            try {
+                verify(new BufferedInputStream(new FileInputStream(file),
+                        INFLATE_BUFFER_SIZE));
+                return new BinaryCardReader(new BufferedInputStream(stream,
+                        INFLATE_BUFFER_SIZE));
+            } catch (IOException e) {
+                stream.close();
+                throw e;
+            }
+        }
+        // The mapping remains valid once the file is closed.
+        stream.close();
+        verify(new ByteBufferInputStream(mapped.duplicate()));
+        return new BinaryCardReader(new ByteBufferInputStream(mapped));
+    }
+
+    /**
+     * Check a whole backup's record count and checksum, without parsing the
+     * records.
+     * 
+     * @param input
+     *            the backup, which is closed when done
+     * @throws IOException
+     *             if the backup can't be read, or is truncated or corrupt
+     */
+    private static void verify(final InputStream input) throws IOException {
+        BinaryCardReader verifier;
+        try {
+            verifier = new BinaryCardReader(input);
+        } catch (IOException e) {
+            input.close();
+            throw e;
+        }
+        try {
+            while (verifier.next()) {
+                continue;
+            }
+        } finally {
+            verifier.close();
+        }
+    }
+
+    @Override
+    public CardRecord read() throws IOException {
+        if (!next()) {
+            return null;
+        }
+        return parse(recordLength);
+    }
+
+    /**
+     * Read the next record into {@link #record}, or the trailer.
+     * 
+     * @return true if a record was read; false at the end of the backup,
+     *         once the trailer has been verified
+     * @throws IOException
+     *             if the backup can't be read, or is truncated or corrupt
+     */
+    private boolean next() throws IOException {
+        if (finished) {
+            return false;
+        }
+        try {
+            int length = in.readInt();
+            if (length == 0) {
+                readTrailer();
+                return false;
+            }
+            if (length < 0 || length > BinaryCardWriter.MAX_RECORD_LENGTH) {
+                throw new IOException("Corrupt record length " + length);
+            }
+            if (record.length < length) {
+                record = new byte[Math.max(length, record.length * 2)];
+            }
+            in.readFully(record, 0, length);
+            updateChecksum(length);
+            checksum.update(record, 0, length);
+            recordLength = length;
+            ++count;
+            return true;
+        } catch (EOFException e) {
+            throw new IOException("Backup is truncated");
+        }
+    }
+
+    /**
+     * Add a record's length to the checksum, as written.
+     * 
+     * @param length
+     *            the record length
+     */
+    private void updateChecksum(final int length) {
+        final int lengthBytes = 4;
+        for (int i = lengthBytes - 1; i >= 0; --i) {
+            checksum.update(length >>> (Byte.SIZE * i));
+        }
+    }
+
+    /**
+     * Parse the record in {@link #record}.
+     * 
+     * @param length
+     *            the record length
+     * @return the parsed record
+     * @throws IOException
+     *             if the record is malformed
+     */
+    private CardRecord parse(final int length) throws IOException {
+        DataInputStream fields = new DataInputStream(new ByteArrayInputStream(
+                record, 0, length));
+        String name = fields.readUTF();
+        String format = fields.readUTF();
+        String data = fields.readUTF();
+        int groupCount = fields.readUnsignedShort();
+        List<String> groups = new ArrayList<String>(groupCount);
+        for (int i = 0; i < groupCount; ++i) {
+            groups.add(fields.readUTF());
+        }
+        return new CardRecord(new LoyaltyCard(name, format, data), groups);
+    }
+
+    /**
+     * Read and verify the trailer.
+     * 
+     * @throws IOException
+     *             if the count or checksum don't match
+     */
+    private void readTrailer() throws IOException {
+        finished = true;
+        int expectedCount = in.readInt();
+        int expectedChecksum = in.readInt();
+        if (expectedCount != count) {
+            throw new IOException("Expected " + expectedCount
+                    + " records but found " + count);
+        }
+        if (expectedChecksum != (int) checksum.getValue()) {
+            throw new IOException("Backup checksum mismatch");
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            in.close();
+        } finally {
+            if (inflater != null) {
+                inflater.end();
+            }
+        }
+    }
+}
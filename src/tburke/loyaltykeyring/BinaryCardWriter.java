@@ -0,0 +1,165 @@
+package tburke.loyaltykeyring;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes cards in the compact binary backup format.
+ * <p>
+ * A backup starts with a header: the four bytes {@link #MAGIC}, a version
+ * byte ({@link #VERSION}) and a flags byte. If {@link #FLAG_DEFLATE} is set,
+ * everything after the header is deflated. Then come the records, each an int
+ * length followed by that many bytes: the card's name, format and data, a
+ * short count of groups, and the groups, all strings in
+ * {@link java.io.DataOutput#writeUTF(String) modified UTF-8}. A zero length
+ * ends the records, and is followed by the int number of records and the int
+ * CRC-32 of every record (lengths included). All ints are big-endian.
+ * 
+ * @author tburke
+ * 
+ * @see BinaryCardReader
+ */
+final class BinaryCardWriter implements CardRecordWriter {
+    /**
+     * Identifies a backup file.
+     */
+    static final byte[] MAGIC = { 'L', 'K', 'B', 'K' };
+    /**
+     * The current version of the format.
+     */
+    static final int VERSION = 1;
+    /**
+     * Flag set if the body is deflated.
+     */
+    static final int FLAG_DEFLATE = 0x01;
+    /**
+     * Largest record that will be written (or read).
+     */
+    static final int MAX_RECORD_LENGTH = 64 * 1024;
+    /**
+     * Largest number of groups per card that will be written.
+     */
+    private static final int MAX_GROUPS = Short.MAX_VALUE;
+
+    /**
+     * The raw output, after the header.
+     */
+    private final DataOutputStream out;
+    /**
+     * The deflater, if compressing; must be released when done.
+     */
+    private final Deflater deflater;
+    /**
+     * Reused to assemble each record, so that its length is known.
+     */
+    private final RecordBuffer record = new RecordBuffer();
+    /**
+     * Writes fields into {@link #record}.
+     */
+    private final DataOutputStream recordOut = new DataOutputStream(record);
+    /**
+     * Checksum of everything written so far.
+     */
+    private final CRC32 checksum = new CRC32();
+    /**
+     * Number of records written.
+     */
+    private int count = 0;
+
+    /**
+     * Exposes the buffer of a ByteArrayOutputStream, to avoid copying it.
+     */
+    private static final class RecordBuffer extends ByteArrayOutputStream {
+        /**
+         * Getter for the internal buffer; only the first {@link #size()}
+         * bytes are valid.
+         * 
+         * @return the internal buffer
+         */
+        byte[] buffer() {
+            return buf;
+        }
+    }
+
+    /**
+     * Create a writer, and write the header.
+     * 
+     * @param output
+     *            where to write the backup; should be buffered
+     * @param compress
+     *            whether to deflate the body
+     * @throws IOException
+     *             if the output can't be written
+     */
+    BinaryCardWriter(final OutputStream output, final boolean compress)
+            throws IOException {
+        output.write(MAGIC);
+        output.write(VERSION);
+        if (compress) {
+            output.write(FLAG_DEFLATE);
+            deflater = new Deflater(Deflater.BEST_SPEED);
+            out = new DataOutputStream(new DeflaterOutputStream(output,
+                    deflater));
+        } else {
+            output.write(0);
+            deflater = null;
+            out = new DataOutputStream(output);
+        }
+    }
+
+    @Override
+    public void write(final CardRecord cardRecord) throws IOException {
+        LoyaltyCard card = cardRecord.getCard();
+        List<String> groups = cardRecord.getGroups();
+        if (groups.size() > MAX_GROUPS) {
+            throw new IOException("Too many groups for " + card.getName());
+        }
+        record.reset();
+        recordOut.writeInt(0); // Length; filled in below
+        recordOut.writeUTF(card.getName());
+        recordOut.writeUTF(card.getFormat());
+        recordOut.writeUTF(card.getData());
+        recordOut.writeShort(groups.size());
+        for (String group : groups) {
+            recordOut.writeUTF(group);
+        }
+        final int lengthBytes = 4;
+        int length = record.size() - lengthBytes;
+        if (length > MAX_RECORD_LENGTH) {
+            throw new IOException("Card " + card.getName() + " is too large");
+        }
+        byte[] bytes = record.buffer();
+        for (int i = 0; i < lengthBytes; ++i) {
+            bytes[i] = (byte) (length >>> (Byte.SIZE * (lengthBytes - 1 - i)));
+        }
+        checksum.update(bytes, 0, record.size());
+        out.write(bytes, 0, record.size());
+        ++count;
+    }
+
+    /**
+     * Write the trailer and close the output.
+     * 
+     * @throws IOException
+     *             if the output can't be written
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            out.writeInt(0);
+            out.writeInt(count);
+            out.writeInt((int) checksum.getValue());
+        } finally {
+            out.close();
+            if (deflater != null) {
+                deflater.end();
+            }
+        }
+    }
+}
@@ -0,0 +1,742 @@
+package tburke.loyaltykeyring;
+
+/**
+ * A compressed set of card ordinals (non-negative ints), after Roaring
+ * bitmaps. Ordinals are split by their high 16 bits into chunks of 65536.
+ * Each chunk is a sorted array of its low 16 bits while it's sparse, and a
+ * 65536-bit bitmap once it holds more than {@link #ARRAY_MAX}. Either way a
+ * chunk takes at most 8KB, and operations between bitmap chunks work on 64
+ * ordinals at a time.
+ * <p>
+ * Card ordinals are dense, so a keyring's groups usually have a single
+ * chunk. Not thread-safe.
+ * 
+ * @author tburke
+ */
+final class CardBitmap {
+    /**
+     * The most values a chunk holds as an array; at 2 bytes each, no more
+     * than the 8KB of a bitmap.
+     */
+    private static final int ARRAY_MAX = 4096;
+    /**
+     * Bits of an ordinal held within a chunk.
+     */
+    private static final int CHUNK_BITS = 16;
+    /**
+     * Mask for the bits of an ordinal held within a chunk.
+     */
+    private static final int LOW_MASK = 0xFFFF;
+    /**
+     * log2 of the bits in a word of a bitmap chunk.
+     */
+    private static final int WORD_SHIFT = 6;
+    /**
+     * The words in a bitmap chunk.
+     */
+    private static final int WORDS = (1 << CHUNK_BITS) >>> WORD_SHIFT;
+    /**
+     * The initial capacity for chunks, and for the values of array chunks.
+     */
+    private static final int INITIAL_CAPACITY = 4;
+
+    /**
+     * The high 16 bits of each chunk's ordinals, in ascending order.
+     */
+    private char[] keys = new char[INITIAL_CAPACITY];
+    /**
+     * The chunks, in the order of their keys; none is empty.
+     */
+    private Chunk[] chunks = new Chunk[INITIAL_CAPACITY];
+    /**
+     * The number of chunks.
+     */
+    private int size = 0;
+
+    /**
+     * The low 16 bits of the ordinals sharing some high 16 bits.
+     */
+    private static final class Chunk {
+        /**
+         * The values in ascending order, then unused space; null if the chunk
+         * is a bitmap.
+         */
+        private char[] array;
+        /**
+         * The values as a bitmap; null if the chunk is an array.
+         */
+        private long[] bits;
+        /**
+         * The number of values.
+         */
+        private int cardinality;
+
+        /**
+         * Create an array chunk.
+         * 
+         * @param values
+         *            the values in ascending order, then unused space
+         * @param count
+         *            the number of values
+         */
+        Chunk(final char[] values, final int count) {
+            array = values;
+            cardinality = count;
+        }
+
+        /**
+         * Create a chunk from a bitmap, as an array if it's sparse.
+         * 
+         * @param words
+         *            the bitmap
+         * @return the chunk, or null if the bitmap is empty
+         */
+        static Chunk ofBits(final long[] words) {
+            int count = 0;
+            for (long word : words) {
+                count += Long.bitCount(word);
+            }
+            if (count == 0) {
+                return null;
+            }
+            Chunk result = new Chunk(null, count);
+            result.bits = words;
+            if (count <= ARRAY_MAX) {
+                result.toArray();
+            }
+            return result;
+        }
+
+        /**
+         * Copy a chunk.
+         * 
+         * @return the copy
+         */
+        Chunk copy() {
+            Chunk result = new Chunk(null, cardinality);
+            if (array != null) {
+                result.array = new char[cardinality];
+                System.arraycopy(array, 0, result.array, 0, cardinality);
+            } else {
+                result.bits = bits.clone();
+            }
+            return result;
+        }
+
+        /**
+         * Check whether the chunk holds a value.
+         * 
+         * @param low
+         *            the value
+         * @return true if it does
+         */
+        boolean contains(final char low) {
+            if (array != null) {
+                return indexOf(array, cardinality, low) >= 0;
+            }
+            return (bits[low >>> WORD_SHIFT] & (1L << low)) != 0;
+        }
+
+        /**
+         * Add a value.
+         * 
+         * @param low
+         *            the value
+         * @return true if it was added, false if it was already there
+         */
+        boolean add(final char low) {
+            if (array == null) {
+                long mask = 1L << low;
+                if ((bits[low >>> WORD_SHIFT] & mask) != 0) {
+                    return false;
+                }
+                bits[low >>> WORD_SHIFT] |= mask;
+                ++cardinality;
+                return true;
+            }
+            int index = indexOf(array, cardinality, low);
+            if (index >= 0) {
+                return false;
+            }
+            if (cardinality == ARRAY_MAX) {
+                toBits();
+                return add(low);
+            }
+            index = -index - 1;
+            if (cardinality == array.length) {
+                char[] grown = new char[Math.min(ARRAY_MAX,
+                        cardinality * 2)];
+                System.arraycopy(array, 0, grown, 0, cardinality);
+                array = grown;
+            }
+            System.arraycopy(array, index, array, index + 1, cardinality
+                    - index);
+            array[index] = low;
+            ++cardinality;
+            return true;
+        }
+
+        /**
+         * Remove a value.
+         * 
+         * @param low
+         *            the value
+         * @return true if it was removed, false if it wasn't there
+         */
+        boolean remove(final char low) {
+            if (array == null) {
+                long mask = 1L << low;
+                if ((bits[low >>> WORD_SHIFT] & mask) == 0) {
+                    return false;
+                }
+                bits[low >>> WORD_SHIFT] &= ~mask;
+                if (--cardinality == ARRAY_MAX) {
+                    toArray();
+                }
+                return true;
+            }
+            int index = indexOf(array, cardinality, low);
+            if (index < 0) {
+                return false;
+            }
+            System.arraycopy(array, index + 1, array, index, cardinality
+                    - index - 1);
+            --cardinality;
+            return true;
+        }
+
+        /**
+         * Convert a bitmap chunk to an array.
+         */
+        private void toArray() {
+            array = new char[Math.max(cardinality, INITIAL_CAPACITY)];
+            int count = 0;
+            for (int i = 0; i < WORDS; ++i) {
+                long word = bits[i];
+                while (word != 0) {
+                    array[count++] = (char) ((i << WORD_SHIFT) + Long
+                            .numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+            bits = null;
+        }
+
+        /**
+         * Convert an array chunk to a bitmap.
+         */
+        private void toBits() {
+            bits = new long[WORDS];
+            for (int i = 0; i < cardinality; ++i) {
+                bits[array[i] >>> WORD_SHIFT] |= 1L << array[i];
+            }
+            array = null;
+        }
+
+        /**
+         * Get the chunk as a bitmap, without converting it.
+         * 
+         * @return a bitmap of the values, which may be the chunk's own
+         */
+        private long[] words() {
+            if (array == null) {
+                return bits;
+            }
+            long[] result = new long[WORDS];
+            for (int i = 0; i < cardinality; ++i) {
+                result[array[i] >>> WORD_SHIFT] |= 1L << array[i];
+            }
+            return result;
+        }
+
+        /**
+         * Intersect two chunks.
+         * 
+         * @param other
+         *            the other chunk
+         * @return the values in both, or null if there are none
+         */
+        Chunk and(final Chunk other) {
+            if (array == null && other.array == null) {
+                long[] words = new long[WORDS];
+                for (int i = 0; i < WORDS; ++i) {
+                    words[i] = bits[i] & other.bits[i];
+                }
+                return ofBits(words);
+            }
+            char[] values = new char[Math.min(cardinality, other.cardinality)];
+            int count;
+            if (array != null && other.array != null) {
+                count = merge(other, values);
+            } else {
+                Chunk sparse = this;
+                Chunk dense = other;
+                if (array == null) {
+                    sparse = other;
+                    dense = this;
+                }
+                count = 0;
+                for (int i = 0; i < sparse.cardinality; ++i) {
+                    if (dense.contains(sparse.array[i])) {
+                        values[count++] = sparse.array[i];
+                    }
+                }
+            }
+            if (count == 0) {
+                return null;
+            }
+            return new Chunk(values, count);
+        }
+
+        /**
+         * Count the values in both of two chunks, without building them.
+         * 
+         * @param other
+         *            the other chunk
+         * @return the number of values in both
+         */
+        int andCardinality(final Chunk other) {
+            int count = 0;
+            if (array == null && other.array == null) {
+                for (int i = 0; i < WORDS; ++i) {
+                    count += Long.bitCount(bits[i] & other.bits[i]);
+                }
+                return count;
+            }
+            if (array != null && other.array != null) {
+                return merge(other, null);
+            }
+            Chunk sparse = this;
+            Chunk dense = other;
+            if (array == null) {
+                sparse = other;
+                dense = this;
+            }
+            for (int i = 0; i < sparse.cardinality; ++i) {
+                if (dense.contains(sparse.array[i])) {
+                    ++count;
+                }
+            }
+            return count;
+        }
+
+        /**
+         * Intersect two array chunks by walking them together, which beats
+         * searching one for each of the other's values when they're of
+         * similar size.
+         * 
+         * @param other
+         *            the other array chunk
+         * @param out
+         *            where to write the values in both; null just to count
+         *            them
+         * @return the number of values in both
+         */
+        private int merge(final Chunk other, final char[] out) {
+            int count = 0;
+            int i = 0;
+            int j = 0;
+            while (i < cardinality && j < other.cardinality) {
+                if (array[i] < other.array[j]) {
+                    ++i;
+                } else if (array[i] > other.array[j]) {
+                    ++j;
+                } else {
+                    if (out != null) {
+                        out[count] = array[i];
+                    }
+                    ++count;
+                    ++i;
+                    ++j;
+                }
+            }
+            return count;
+        }
+
+        /**
+         * Unite two chunks.
+         * 
+         * @param other
+         *            the other chunk
+         * @return the values in either
+         */
+        Chunk or(final Chunk other) {
+            if (array != null && other.array != null
+                    && cardinality + other.cardinality <= ARRAY_MAX) {
+                char[] values = new char[cardinality + other.cardinality];
+                int count = 0;
+                int i = 0;
+                int j = 0;
+                while (i < cardinality || j < other.cardinality) {
+                    if (j == other.cardinality
+                            || (i < cardinality && array[i] < other.array[j])) {
+                        values[count++] = array[i++];
+                    } else if (i == cardinality
+                            || other.array[j] < array[i]) {
+                        values[count++] = other.array[j++];
+                    } else {
+                        values[count++] = array[i++];
+                        ++j;
+                    }
+                }
+                return new Chunk(values, count);
+            }
+            long[] words = words().clone();
+            long[] others = other.words();
+            for (int i = 0; i < WORDS; ++i) {
+                words[i] |= others[i];
+            }
+            return ofBits(words);
+        }
+
+        /**
+         * Subtract one chunk from another.
+         * 
+         * @param other
+         *            the chunk to subtract
+         * @return the values in this chunk but not the other, or null if
+         *         there are none
+         */
+        Chunk andNot(final Chunk other) {
+            if (array == null) {
+                long[] words = bits.clone();
+                long[] others = other.words();
+                for (int i = 0; i < WORDS; ++i) {
+                    words[i] &= ~others[i];
+                }
+                return ofBits(words);
+            }
+            char[] values = new char[cardinality];
+            int count = 0;
+            for (int i = 0; i < cardinality; ++i) {
+                if (!other.contains(array[i])) {
+                    values[count++] = array[i];
+                }
+            }
+            if (count == 0) {
+                return null;
+            }
+            return new Chunk(values, count);
+        }
+
+        /**
+         * Write out the chunk's ordinals.
+         * 
+         * @param high
+         *            the chunk's key
+         * @param out
+         *            where to write them
+         * @param offset
+         *            where in out to start
+         */
+        void toInts(final char high, final int[] out, final int offset) {
+            int base = high << CHUNK_BITS;
+            if (array != null) {
+                for (int i = 0; i < cardinality; ++i) {
+                    out[offset + i] = base | array[i];
+                }
+                return;
+            }
+            int count = offset;
+            for (int i = 0; i < WORDS; ++i) {
+                long word = bits[i];
+                while (word != 0) {
+                    out[count++] = base | ((i << WORD_SHIFT) + Long
+                            .numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+        }
+    }
+
+    /**
+     * Check whether the set holds an ordinal.
+     * 
+     * @param ordinal
+     *            the ordinal
+     * @return true if it does
+     */
+    boolean contains(final int ordinal) {
+        int index = indexOf(keys, size, high(ordinal));
+        return index >= 0 && chunks[index].contains(low(ordinal));
+    }
+
+    /**
+     * Add an ordinal.
+     * 
+     * @param ordinal
+     *            the ordinal, which mustn't be negative
+     * @return true if it was added, false if it was already there
+     */
+    boolean add(final int ordinal) {
+        if (ordinal < 0) {
+            throw new IllegalArgumentException("Negative ordinal " + ordinal);
+        }
+        int index = indexOf(keys, size, high(ordinal));
+        if (index < 0) {
+            index = -index - 1;
+            insertChunk(index, high(ordinal), new Chunk(
+                    new char[INITIAL_CAPACITY], 0));
+        }
+        return chunks[index].add(low(ordinal));
+    }
+
+    /**
+     * Remove an ordinal.
+     * 
+     * @param ordinal
+     *            the ordinal
+     * @return true if it was removed, false if it wasn't there
+     */
+    boolean remove(final int ordinal) {
+        int index = indexOf(keys, size, high(ordinal));
+        if (index < 0 || !chunks[index].remove(low(ordinal))) {
+            return false;
+        }
+        if (chunks[index].cardinality == 0) {
+            System.arraycopy(keys, index + 1, keys, index, size - index - 1);
+            System.arraycopy(chunks, index + 1, chunks, index, size - index
+                    - 1);
+            chunks[--size] = null;
+        }
+        return true;
+    }
+
+    /**
+     * Count the ordinals.
+     * 
+     * @return the number of ordinals in the set
+     */
+    int cardinality() {
+        int count = 0;
+        for (int i = 0; i < size; ++i) {
+            count += chunks[i].cardinality;
+        }
+        return count;
+    }
+
+    /**
+     * Check whether the set is empty.
+     * 
+     * @return true if it holds no ordinals
+     */
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Get the ordinals.
+     * 
+     * @return the ordinals, in ascending order
+     */
+    int[] toArray() {
+        int[] result = new int[cardinality()];
+        int offset = 0;
+        for (int i = 0; i < size; ++i) {
+            chunks[i].toInts(keys[i], result, offset);
+            offset += chunks[i].cardinality;
+        }
+        return result;
+    }
+
+    /**
+     * Intersect two sets.
+     * 
+     * @param a
+     *            a set
+     * @param b
+     *            another set
+     * @return a new set of the ordinals in both
+     */
+    static CardBitmap and(final CardBitmap a, final CardBitmap b) {
+        CardBitmap result = new CardBitmap();
+        int i = 0;
+        int j = 0;
+        while (i < a.size && j < b.size) {
+            if (a.keys[i] < b.keys[j]) {
+                ++i;
+            } else if (a.keys[i] > b.keys[j]) {
+                ++j;
+            } else {
+                result.append(a.keys[i], a.chunks[i].and(b.chunks[j]));
+                ++i;
+                ++j;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Count the ordinals two sets share, without building their
+     * intersection.
+     * 
+     * @param a
+     *            a set
+     * @param b
+     *            another set
+     * @return the number of ordinals in both
+     */
+    static int andCardinality(final CardBitmap a, final CardBitmap b) {
+        int count = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.size && j < b.size) {
+            if (a.keys[i] < b.keys[j]) {
+                ++i;
+            } else if (a.keys[i] > b.keys[j]) {
+                ++j;
+            } else {
+                count += a.chunks[i].andCardinality(b.chunks[j]);
+                ++i;
+                ++j;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Unite two sets.
+     * 
+     * @param a
+     *            a set
+     * @param b
+     *            another set
+     * @return a new set of the ordinals in either
+     */
+    static CardBitmap or(final CardBitmap a, final CardBitmap b) {
+        CardBitmap result = new CardBitmap();
+        int i = 0;
+        int j = 0;
+        while (i < a.size || j < b.size) {
+            if (j == b.size || (i < a.size && a.keys[i] < b.keys[j])) {
+                result.append(a.keys[i], a.chunks[i].copy());
+                ++i;
+            } else if (i == a.size || b.keys[j] < a.keys[i]) {
+                result.append(b.keys[j], b.chunks[j].copy());
+                ++j;
+            } else {
+                result.append(a.keys[i], a.chunks[i].or(b.chunks[j]));
+                ++i;
+                ++j;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Subtract one set from another.
+     * 
+     * @param a
+     *            the set to subtract from
+     * @param b
+     *            the set to subtract
+     * @return a new set of the ordinals in a but not b
+     */
+    static CardBitmap andNot(final CardBitmap a, final CardBitmap b) {
+        CardBitmap result = new CardBitmap();
+        int j = 0;
+        for (int i = 0; i < a.size; ++i) {
+            while (j < b.size && b.keys[j] < a.keys[i]) {
+                ++j;
+            }
+            if (j < b.size && b.keys[j] == a.keys[i]) {
+                result.append(a.keys[i], a.chunks[i].andNot(b.chunks[j]));
+            } else {
+                result.append(a.keys[i], a.chunks[i].copy());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Add a chunk after the others, if it isn't empty.
+     * 
+     * @param key
+     *            the chunk's key, greater than any so far
+     * @param chunk
+     *            the chunk, or null if it's empty
+     */
+    private void append(final char key, final Chunk chunk) {
+        if (chunk != null) {
+            insertChunk(size, key, chunk);
+        }
+    }
+
+    /**
+     * Insert a chunk.
+     * 
+     * @param index
+     *            where to insert it
+     * @param key
+     *            its key
+     * @param chunk
+     *            the chunk
+     */
+    private void insertChunk(final int index, final char key,
+            final Chunk chunk) {
+        if (size == keys.length) {
+            char[] grownKeys = new char[size * 2];
+            System.arraycopy(keys, 0, grownKeys, 0, size);
+            keys = grownKeys;
+            Chunk[] grownChunks = new Chunk[size * 2];
+            System.arraycopy(chunks, 0, grownChunks, 0, size);
+            chunks = grownChunks;
+        }
+        System.arraycopy(keys, index, keys, index + 1, size - index);
+        System.arraycopy(chunks, index, chunks, index + 1, size - index);
+        keys[index] = key;
+        chunks[index] = chunk;
+        ++size;
+    }
+
+    /**
+     * Get the key of an ordinal's chunk.
+     * 
+     * @param ordinal
+     *            the ordinal
+     * @return its high 16 bits
+     */
+    private static char high(final int ordinal) {
+        return (char) (ordinal >>> CHUNK_BITS);
+    }
+
+    /**
+     * Get an ordinal's value within its chunk.
+     * 
+     * @param ordinal
+     *            the ordinal
+     * @return its low 16 bits
+     */
+    private static char low(final int ordinal) {
+        return (char) (ordinal & LOW_MASK);
+    }
+
+    /**
+     * Search the start of a sorted array (Arrays.binarySearch over a range
+     * needs API 9).
+     * 
+     * @param array
+     *            the array
+     * @param length
+     *            the length of the sorted part
+     * @param key
+     *            the value to find
+     * @return its index, or (-(insertion point) - 1) if it isn't there
+     */
+    private static int indexOf(final char[] array, final int length,
+            final char key) {
+        int low = 0;
+        int high = length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (array[mid] < key) {
+                low = mid + 1;
+            } else if (array[mid] > key) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+}
@@ -0,0 +1,114 @@
+package tburke.loyaltykeyring;
+
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.util.Locale;
+
+/**
+ * Exports every card (and its groups) to a backup or a keyring export.
+ * <p>
+ * Cards are streamed from the database straight to the output, so memory use
+ * doesn't depend on the size of the keyring. Should be run off the UI thread.
+ * 
+ * @author tburke
+ * 
+ * @see CardImporter
+ */
+final class CardExporter {
+    /**
+     * Tag to be used when logging.
+     */
+    private static final String LOG_TAG = CardExporter.class.getSimpleName();
+    /**
+     * Extension of files written as CSV.
+     */
+    static final String CSV_EXTENSION = ".csv";
+    /**
+     * Extension of files written as JSON.
+     */
+    static final String JSON_EXTENSION = ".json";
+    /**
+     * Name of the file used for backups.
+     */
+    static final String BACKUP_FILE = "LoyaltyKeyring.lkb";
+    /**
+     * Size of the buffer used when writing.
+     */
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    /**
+     * Where the cards are read from.
+     */
+    private final CardStore db;
+
+    /**
+     * Create an exporter.
+     * 
+     * @param store
+     *            where the cards are to be read from
+     */
+    CardExporter(final CardStore store) {
+        db = store;
+    }
+
+    /**
+     * Create a writer for a file, choosing the format by extension: CSV or
+     * JSON for {@link #CSV_EXTENSION} or {@link #JSON_EXTENSION}, and a
+     * compressed binary backup for anything else.
+     * 
+     * @param file
+     *            the file to write
+     * @return a writer for the file
+     * @throws IOException
+     *             if the file can't be created
+     */
+    static CardRecordWriter create(final File file) throws IOException {
+        String name = file.getName().toLowerCase(Locale.US);
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file),
+                BUFFER_SIZE);
+        try {
+            if (name.endsWith(CSV_EXTENSION)) {
+                return new CsvCardWriter(new BufferedWriter(
+                        new OutputStreamWriter(out, "UTF-8")));
+            } else if (name.endsWith(JSON_EXTENSION)) {
+                return new JsonCardWriter(new BufferedWriter(
+                        new OutputStreamWriter(out, "UTF-8")));
+            }
+            return new BinaryCardWriter(out, true);
+        } catch (IOException e) {
+            out.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Export every card. The writer is closed when done.
+     * 
+     * @param writer
+     *            the export
+     * @return the number of cards written
+     * @throws IOException
+     *             if the export can't be written
+     */
+    int run(final CardRecordWriter writer) throws IOException {
+        long start = System.currentTimeMillis();
+        int count;
+        try {
+            count = db.exportCards(writer);
+        } finally {
+            writer.close();
+        }
+        if (Log.isLoggable(LOG_TAG, Log.INFO)) {
+            Log.i(LOG_TAG, "Exported " + count + " cards in "
+                    + (System.currentTimeMillis() - start) + "ms");
+        }
+        return count;
+    }
+}
@@ -0,0 +1,429 @@
+package tburke.loyaltykeyring;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Imports cards (and their groups) from a keyring export, such as one written
+ * by another keyring app or saved from a spreadsheet, or restores them from a
+ * backup.
+ * <p>
+ * The export is streamed: records are read one at a time and written in
+ * batches of {@link #BATCH_SIZE}, each in its own transaction, so memory use
+ * doesn't depend on the size of the export. Backups are checked in full
+ * before anything is written, so a corrupt one restores nothing. Should be
+ * run off the UI thread.
+ * 
+ * @author tburke
+ */
+final class CardImporter {
+    /**
+     * Tag to be used when logging.
+     */
+    private static final String LOG_TAG = CardImporter.class.getSimpleName();
+    /**
+     * Number of records written per transaction.
+     */
+    static final int BATCH_SIZE = 500;
+    /**
+     * Size of the buffer used when reading the export.
+     */
+    private static final int BUFFER_SIZE = 16 * 1024;
+    /**
+     * Written at the start of UTF-8 files by some spreadsheets; skipped.
+     */
+    private static final char BYTE_ORDER_MARK = '\uFEFF';
+    /**
+     * Number of milliseconds in a second.
+     */
+    private static final double MILLIS_PER_SECOND = 1000.0;
+
+    /**
+     * Notified as an import progresses.
+     */
+    interface Listener {
+        /**
+         * Called after each batch is written, on the importing thread.
+         * 
+         * @param progress
+         *            a snapshot of the import so far
+         */
+        void onProgress(Progress progress);
+    }
+
+    /**
+     * Counts of what an import has done so far.
+     */
+    static final class Progress {
+        /**
+         * Number of records read from the export.
+         */
+        private int read = 0;
+        /**
+         * Number of new cards added.
+         */
+        private int inserted = 0;
+        /**
+         * Number of existing cards renamed.
+         */
+        private int updated = 0;
+        /**
+         * Number of records for cards already present, unchanged.
+         */
+        private int duplicates = 0;
+        /**
+         * Number of records rejected as invalid or conflicting.
+         */
+        private int rejected = 0;
+        /**
+         * Time spent importing, in milliseconds.
+         */
+        private long elapsed = 0;
+
+        /**
+         * Create an empty Progress.
+         */
+        Progress() {
+        }
+
+        /**
+         * Create a snapshot of another Progress.
+         * 
+         * @param other
+         *            the Progress to copy
+         */
+        private Progress(final Progress other) {
+            read = other.read;
+            inserted = other.inserted;
+            updated = other.updated;
+            duplicates = other.duplicates;
+            rejected = other.rejected;
+            elapsed = other.elapsed;
+        }
+
+        /**
+         * Record that a new card was added.
+         */
+        void inserted() {
+            ++inserted;
+        }
+
+        /**
+         * Record that an existing card was renamed.
+         */
+        void updated() {
+            ++updated;
+        }
+
+        /**
+         * Record that a card was already present, unchanged.
+         */
+        void duplicate() {
+            ++duplicates;
+        }
+
+        /**
+         * Record that a record was rejected.
+         */
+        void rejected() {
+            ++rejected;
+        }
+
+        /**
+         * Getter for the number of records read.
+         * 
+         * @return the number of records read from the export
+         */
+        public int getRead() {
+            return read;
+        }
+
+        /**
+         * Getter for the number of cards added.
+         * 
+         * @return the number of new cards added
+         */
+        public int getInserted() {
+            return inserted;
+        }
+
+        /**
+         * Getter for the number of cards renamed.
+         * 
+         * @return the number of existing cards renamed
+         */
+        public int getUpdated() {
+            return updated;
+        }
+
+        /**
+         * Getter for the number of duplicates.
+         * 
+         * @return the number of records for cards already present, unchanged
+         */
+        public int getDuplicates() {
+            return duplicates;
+        }
+
+        /**
+         * Getter for the number of rejected records.
+         * 
+         * @return the number of records rejected as invalid or conflicting
+         */
+        public int getRejected() {
+            return rejected;
+        }
+
+        /**
+         * Getter for the time spent importing.
+         * 
+         * @return the time spent, in milliseconds
+         */
+        public long getElapsed() {
+            return elapsed;
+        }
+
+        /**
+         * Getter for the import's throughput.
+         * 
+         * @return records read per second
+         */
+        public double getRecordsPerSecond() {
+            if (elapsed == 0) {
+                return 0;
+            }
+            return read * MILLIS_PER_SECOND / elapsed;
+        }
+
+        @Override
+        public String toString() {
+            return read + " read, " + inserted + " added, " + updated
+                    + " renamed, " + duplicates + " unchanged, " + rejected
+                    + " rejected in " + elapsed + "ms ("
+                    + (int) getRecordsPerSecond() + "/s)";
+        }
+    }
+
+    /**
+     * Where the cards are written.
+     */
+    private final CardStore db;
+
+    /**
+     * Create an importer.
+     * 
+     * @param store
+     *            where the cards are to be written
+     */
+    CardImporter(final CardStore store) {
+        db = store;
+    }
+
+    /**
+     * Open an export (or backup) file for reading. Backups are
+     * memory-mapped; other files are read as by
+     * {@link #open(InputStream, File)}.
+     * 
+     * @param file
+     *            the export
+     * @return a reader for the export
+     * @throws IOException
+     *             if the export can't be read
+     */
+    static CardRecordReader open(final File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        boolean backup;
+        try {
+            backup = isBackup(in);
+        } finally {
+            in.close();
+        }
+        if (backup) {
+            return BinaryCardReader.open(file);
+        }
+        return openText(new FileInputStream(file));
+    }
+
+    /**
+     * Open an export (or backup) for reading, choosing a reader by sniffing
+     * the content: backups start with {@link BinaryCardWriter#MAGIC}, JSON
+     * exports with '[' or '{', and anything else is taken as CSV. Text
+     * exports must be UTF-8. Backups are copied to a temporary file first, so
+     * that they can be verified before they're read.
+     * 
+     * @param in
+     *            the export, which is closed when the reader is
+     * @param tempDir
+     *            where a backup is copied: the app's cache directory, since
+     *            java.io.tmpdir isn't the app's on older platforms
+     * @return a reader for the export
+     * @throws IOException
+     *             if the export can't be read
+     */
+    static CardRecordReader open(final InputStream in, final File tempDir)
+            throws IOException {
+        BufferedInputStream buffered = new BufferedInputStream(in, BUFFER_SIZE);
+        buffered.mark(BinaryCardWriter.MAGIC.length);
+        boolean backup = isBackup(buffered);
+        buffered.reset();
+        if (backup) {
+            File temp = spool(buffered, tempDir);
+            try {
+                return BinaryCardReader.open(temp);
+            } finally {
+                // Once opened, it's read from the mapping (or open stream).
+                temp.delete();
+            }
+        }
+        return openText(buffered);
+    }
+
+    /**
+     * Open a text (JSON or CSV) export for reading.
+     * 
+     * @param in
+     *            the export, which is closed when the reader is
+     * @return a reader for the export
+     * @throws IOException
+     *             if the export can't be read
+     */
+    private static CardRecordReader openText(final InputStream in)
+            throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                in, "UTF-8"), BUFFER_SIZE);
+        reader.mark(1);
+        if (reader.read() != BYTE_ORDER_MARK) {
+            reader.reset();
+        }
+        int c;
+        reader.mark(BUFFER_SIZE);
+        int skipped = 0;
+        do {
+            c = reader.read();
+            ++skipped;
+        } while (c != -1 && Character.isWhitespace(c)
+                && skipped < BUFFER_SIZE);
+        // Past the mark limit reset() fails; so much space can't be JSON's.
+        reader.reset();
+        if (c == '[' || c == '{') {
+            return new JsonCardReader(reader);
+        }
+        return new CsvCardReader(reader);
+    }
+
+    /**
+     * Copy a stream to a temporary file.
+     * 
+     * @param in
+     *            the stream, which is closed when done
+     * @param dir
+     *            the directory in which to create the file
+     * @return the file, which the caller deletes
+     * @throws IOException
+     *             if the stream can't be read or the file written
+     */
+    private static File spool(final InputStream in, final File dir)
+            throws IOException {
+        File temp = File.createTempFile("import", ".tmp", dir);
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(temp);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+            out.close();
+            out = null;
+            return temp;
+        } catch (IOException e) {
+            temp.delete();
+            throw e;
+        } finally {
+            in.close();
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    Log.w(LOG_TAG, "Couldn't close " + temp, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Check whether a stream starts with {@link BinaryCardWriter#MAGIC}.
+     * 
+     * @param in
+     *            the stream, which is left just past the bytes checked
+     * @return true if the stream holds a backup
+     * @throws IOException
+     *             if the stream can't be read
+     */
+    private static boolean isBackup(final InputStream in) throws IOException {
+        for (byte expected : BinaryCardWriter.MAGIC) {
+            if (in.read() != expected) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Import every record from an export. The reader is closed when done.
+     * 
+     * @param reader
+     *            the export
+     * @param listener
+     *            notified after each batch; may be null
+     * @return the final counts
+     * @throws IOException
+     *             if the export can't be read or is malformed; batches
+     *             already written are kept (but a backup opened by
+     *             {@link #open(File)} or {@link #open(InputStream, File)} has
+     *             already been verified)
+     */
+    Progress run(final CardRecordReader reader, final Listener listener)
+            throws IOException {
+        Progress progress = new Progress();
+        List<CardRecord> batch = new ArrayList<CardRecord>(BATCH_SIZE);
+        long start = System.currentTimeMillis();
+        try {
+            CardRecord record;
+            do {
+                record = reader.read();
+                if (record != null) {
+                    batch.add(record);
+                    ++progress.read;
+                }
+                if (batch.size() == BATCH_SIZE
+                        || (record == null && !batch.isEmpty())) {
+                    db.upsertCards(batch, progress);
+                    batch.clear();
+                    progress.elapsed = System.currentTimeMillis() - start;
+                    if (listener != null) {
+                        listener.onProgress(new Progress(progress));
+                    }
+                }
+            } while (record != null);
+        } finally {
+            reader.close();
+        }
+        progress.elapsed = System.currentTimeMillis() - start;
+        if (Log.isLoggable(LOG_TAG, Log.INFO)) {
+            Log.i(LOG_TAG, "Imported " + progress);
+        }
+        return progress;
+    }
+}
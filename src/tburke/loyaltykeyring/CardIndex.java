@@ -0,0 +1,264 @@
+package tburke.loyaltykeyring;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An in-memory copy of every card's name and groups, indexed for typeahead
+ * in {@link RadixTrie}s so that lookups never touch the database.
+ * <p>
+ * The index is kept up to date from the change journal, as a
+ * {@link JournalFollower}. Catching up is meant for a background thread;
+ * lookups may run meanwhile.
+ * <p>
+ * Names are matched after {@link #normalize(String) normalization}, from the
+ * start of any word. Typeahead results are ranked: cards whose name starts
+ * with what was typed, then cards with a later word starting with it, then
+ * the cards of groups whose name matches.
+ * 
+ * @author tburke
+ */
+final class CardIndex extends JournalFollower {
+    /**
+     * Whether {@link Normalizer} (API 9) is available to strip accents.
+     */
+    private static final boolean CAN_DECOMPOSE = canDecompose();
+    /**
+     * Orders strings naturally.
+     */
+    private static final Comparator<String> STRING_ORDER = new Comparator<String>() {
+        @Override
+        public int compare(final String a, final String b) {
+            return a.compareTo(b);
+        }
+    };
+    /**
+     * Latency of {@link #typeahead(String, int)}.
+     */
+    private static final Metrics.Timer TYPEAHEAD = Metrics
+            .timer("index.typeahead");
+    /**
+     * Latency of {@link #catchUp(CardStore)}.
+     */
+    private static final Metrics.Timer CATCH_UP = Metrics
+            .timer("index.catchUp");
+
+    /**
+     * Cards by their whole normalized name.
+     */
+    private final RadixTrie<LoyaltyCard> names = new RadixTrie<LoyaltyCard>(
+            LoyaltyCard.NAME_ORDER);
+    /**
+     * Cards by their normalized name from each word but the first.
+     */
+    private final RadixTrie<LoyaltyCard> words = new RadixTrie<LoyaltyCard>(
+            LoyaltyCard.NAME_ORDER);
+    /**
+     * Groups by their normalized name, from each word.
+     */
+    private final RadixTrie<String> groups = new RadixTrie<String>(
+            STRING_ORDER);
+    /**
+     * Every card, by ID.
+     */
+    private final Map<String, LoyaltyCard> cardsByID = new HashMap<String, LoyaltyCard>();
+    /**
+     * The IDs of the cards in each group, by group.
+     */
+    private final Map<String, Set<String>> cardIDsByGroup = new HashMap<String, Set<String>>();
+    /**
+     * Create an empty index; the first {@link #catchUp(CardStore)} builds it.
+     */
+    CardIndex() {
+        super(CATCH_UP);
+    }
+
+    @Override
+    void apply(final Change change) {
+        String id = change.getCardID();
+        switch (change.getOp()) {
+        case ADD:
+        case RENAME:
+            LoyaltyCard card = renamed(change, removeCard(id));
+            if (card != null) {
+                addCard(card);
+            }
+            break;
+        case DELETE:
+            removeCard(id);
+            break;
+        case TAG:
+            Set<String> ids = cardIDsByGroup.get(change.getTag());
+            if (ids == null) {
+                ids = new HashSet<String>();
+                cardIDsByGroup.put(change.getTag(), ids);
+                for (String key : keys(change.getTag())) {
+                    groups.put(key, change.getTag());
+                }
+            }
+            ids.add(id);
+            break;
+        case UNTAG:
+            Set<String> members = cardIDsByGroup.get(change.getTag());
+            if (members != null && members.remove(id) && members.isEmpty()) {
+                cardIDsByGroup.remove(change.getTag());
+                for (String key : keys(change.getTag())) {
+                    groups.remove(key, change.getTag());
+                }
+            }
+            break;
+        default:
+            throw new IllegalArgumentException("Unknown change " + change);
+        }
+    }
+
+    /**
+     * Index a card.
+     * 
+     * @param card
+     *            the card
+     */
+    private void addCard(final LoyaltyCard card) {
+        cardsByID.put(card.getID(), card);
+        List<String> keys = keys(card.getName());
+        for (int i = 0; i < keys.size(); ++i) {
+            (i == 0 ? names : words).put(keys.get(i), card);
+        }
+    }
+
+    /**
+     * Stop indexing a card. Its group memberships are left alone, as
+     * {@link CardStore#deleteCard(LoyaltyCard)} leaves them.
+     * 
+     * @param id
+     *            the card's ID
+     * @return the card, or null if it wasn't indexed
+     */
+    private LoyaltyCard removeCard(final String id) {
+        LoyaltyCard card = cardsByID.remove(id);
+        if (card != null) {
+            List<String> keys = keys(card.getName());
+            for (int i = 0; i < keys.size(); ++i) {
+                (i == 0 ? names : words).remove(keys.get(i), card);
+            }
+        }
+        return card;
+    }
+
+    /**
+     * Find cards as the user types.
+     * 
+     * @param query
+     *            what's been typed
+     * @param limit
+     *            the most cards to return
+     * @return the cards, best first; empty if nothing matches, or the index
+     *         isn't ready
+     */
+    synchronized List<LoyaltyCard> typeahead(final String query,
+            final int limit) {
+        long start = Metrics.start();
+        String prefix = normalize(query);
+        Set<LoyaltyCard> result = new LinkedHashSet<LoyaltyCard>();
+        if (prefix.length() > 0) {
+            names.collect(prefix, limit, result);
+            words.collect(prefix, limit, result);
+            if (result.size() < limit) {
+                Set<String> matched = new LinkedHashSet<String>();
+                groups.collect(prefix, limit, matched);
+                for (String group : matched) {
+                    List<LoyaltyCard> members = new ArrayList<LoyaltyCard>();
+                    for (String id : cardIDsByGroup.get(group)) {
+                        LoyaltyCard card = cardsByID.get(id);
+                        if (card != null) {
+                            members.add(card);
+                        }
+                    }
+                    Collections.sort(members, LoyaltyCard.NAME_ORDER);
+                    for (LoyaltyCard card : members) {
+                        if (result.size() >= limit) {
+                            break;
+                        }
+                        result.add(card);
+                    }
+                }
+            }
+        }
+        TYPEAHEAD.stop(start);
+        return new ArrayList<LoyaltyCard>(result);
+    }
+
+    /**
+     * Get the keys a name is indexed by: its normalized form, from the start
+     * of each word.
+     * 
+     * @param name
+     *            the name
+     * @return the keys, the whole name first
+     */
+    private static List<String> keys(final String name) {
+        String normalized = normalize(name);
+        List<String> result = new ArrayList<String>();
+        if (normalized.length() > 0) {
+            result.add(normalized);
+        }
+        for (int i = normalized.indexOf(' '); i >= 0; i = normalized
+                .indexOf(' ', i + 1)) {
+            result.add(normalized.substring(i + 1));
+        }
+        return result;
+    }
+
+    /**
+     * Normalize a name for matching: accents are stripped, letters
+     * lower-cased, and anything other than letters and digits becomes a
+     * single space between words.
+     * 
+     * @param text
+     *            the name, or what's been typed
+     * @return the normalized form, e.g. "cafe m 12" for "Café-M #12"
+     */
+    static String normalize(final String text) {
+        String decomposed = text;
+        if (CAN_DECOMPOSE) {
+            decomposed = Normalizer.normalize(text, Normalizer.Form.NFD);
+        }
+        StringBuilder result = new StringBuilder(decomposed.length());
+        boolean gap = false;
+        for (int i = 0; i < decomposed.length(); ++i) {
+            char c = decomposed.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                if (gap && result.length() > 0) {
+                    result.append(' ');
+                }
+                gap = false;
+                result.append(Character.toLowerCase(c));
+            } else if (Character.getType(c) != Character.NON_SPACING_MARK) {
+                gap = true;
+            }
+        }
+        return result.toString();
+    }
+
+    /**
+     * Check whether {@link Normalizer} is available.
+     * 
+     * @return true if accents can be stripped
+     */
+    private static boolean canDecompose() {
+        try {
+            Class.forName("java.text.Normalizer");
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,424 @@
+package tburke.loyaltykeyring;
+
+import android.util.Log;
+
+import tburke.loyaltykeyring.barcode.BarcodePayloads;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Merges a keyring snapshot (a backup or export, such as one from another
+ * device) into the local keyring.
+ * <p>
+ * Both keyrings are walked once, in card ID order, and joined as they go: the
+ * local one straight from the database, and the snapshot through a
+ * {@link SortedCardReader}, since exports from elsewhere are rarely sorted
+ * (those written by this app already are, which costs nothing extra to sort).
+ * The merge is a union, and
+ * conflicts are resolved deterministically:
+ * <ul>
+ * <li>A card in both keyrings keeps its local name, and gains any groups it
+ * has in the snapshot.</li>
+ * <li>A card only in the snapshot is added, with its groups. If its name is
+ * taken, " (2)", " (3)", etc. is appended until it isn't; cards are named in
+ * ID order.</li>
+ * <li>Nothing is removed.</li>
+ * </ul>
+ * {@link #diff(CardRecordReader)} works out what would change without changing
+ * anything; {@link #apply(Report)} then makes those changes in a single
+ * transaction. Should be run off the UI thread.
+ * 
+ * @author tburke
+ */
+final class CardMerger {
+    /**
+     * Tag to be used when logging.
+     */
+    private static final String LOG_TAG = CardMerger.class.getSimpleName();
+
+    /**
+     * What a merge would change.
+     */
+    static final class Report {
+        /**
+         * The cards to be written: new cards with all their groups, and
+         * existing cards with only the groups they're gaining.
+         */
+        private final List<CardRecord> changes = new ArrayList<CardRecord>();
+        /**
+         * Descriptions of the conflicts resolved.
+         */
+        private final List<String> conflicts = new ArrayList<String>();
+        /**
+         * Number of cards to be added.
+         */
+        private int added = 0;
+        /**
+         * Number of group memberships to be added.
+         */
+        private int tagged = 0;
+        /**
+         * Number of cards already present with all their groups.
+         */
+        private int unchanged = 0;
+        /**
+         * Number of snapshot cards skipped as invalid.
+         */
+        private int skipped = 0;
+
+        /**
+         * Getter for the cards to be written.
+         * 
+         * @return the (unmodifiable) list of changes: existing cards, then new
+         *         ones, each in ID order
+         */
+        public List<CardRecord> getChanges() {
+            return Collections.unmodifiableList(changes);
+        }
+
+        /**
+         * Getter for the conflicts resolved.
+         * 
+         * @return the (unmodifiable) list of descriptions
+         */
+        public List<String> getConflicts() {
+            return Collections.unmodifiableList(conflicts);
+        }
+
+        /**
+         * Getter for the number of cards to be added.
+         * 
+         * @return the number of cards to be added
+         */
+        public int getAdded() {
+            return added;
+        }
+
+        /**
+         * Getter for the number of group memberships to be added.
+         * 
+         * @return the number of memberships to be added, for new and
+         *         existing cards
+         */
+        public int getTagged() {
+            return tagged;
+        }
+
+        /**
+         * Getter for the number of unchanged cards.
+         * 
+         * @return the number of cards already present with all their groups
+         */
+        public int getUnchanged() {
+            return unchanged;
+        }
+
+        /**
+         * Getter for the number of invalid cards.
+         * 
+         * @return the number of snapshot cards skipped as invalid
+         */
+        public int getSkipped() {
+            return skipped;
+        }
+
+        /**
+         * Whether the merge would change anything.
+         * 
+         * @return true if the local keyring already has everything
+         */
+        public boolean isEmpty() {
+            return changes.isEmpty();
+        }
+
+        @Override
+        public String toString() {
+            return added + " added, " + tagged + " memberships added, "
+                    + unchanged + " unchanged, " + skipped + " skipped, "
+                    + conflicts.size() + " conflicts";
+        }
+    }
+
+    /**
+     * Reads a sorted snapshot one card at a time, with one card of lookahead,
+     * combining repeated cards.
+     */
+    private static final class Snapshot {
+        /**
+         * The snapshot.
+         */
+        private final CardRecordReader reader;
+        /**
+         * The card read ahead, if any.
+         */
+        private CardRecord lookahead = null;
+        /**
+         * Whether {@link #lookahead} holds the next card (or null at the end).
+         */
+        private boolean loaded = false;
+
+        /**
+         * Create a new Snapshot.
+         * 
+         * @param snapshot
+         *            the reader, in card ID order
+         */
+        Snapshot(final CardRecordReader snapshot) {
+            reader = snapshot;
+        }
+
+        /**
+         * Look at the next card without consuming it.
+         * 
+         * @return the next card, or null at the end of the snapshot
+         * @throws IOException
+         *             if the snapshot can't be read
+         */
+        CardRecord peek() throws IOException {
+            if (!loaded) {
+                lookahead = reader.read();
+                loaded = true;
+            }
+            return lookahead;
+        }
+
+        /**
+         * Consume the next card. If the card is repeated, the repeats are
+         * consumed too, and their groups added to the first's.
+         * 
+         * @return the next card, or null at the end of the snapshot
+         * @throws IOException
+         *             if the snapshot can't be read
+         */
+        CardRecord next() throws IOException {
+            CardRecord result = peek();
+            loaded = false;
+            if (result == null) {
+                return null;
+            }
+            List<String> groups = null;
+            while (peek() != null
+                    && lookahead.getCard().getID()
+                            .equals(result.getCard().getID())) {
+                if (groups == null) {
+                    groups = new ArrayList<String>(result.getGroups());
+                }
+                groups.addAll(lookahead.getGroups());
+                loaded = false;
+            }
+            if (groups != null) {
+                result = new CardRecord(result.getCard(), groups);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Where the local keyring is kept.
+     */
+    private final CardStore db;
+
+    /**
+     * Create a merger.
+     * 
+     * @param store
+     *            the local keyring
+     */
+    CardMerger(final CardStore store) {
+        db = store;
+    }
+
+    /**
+     * Compare card IDs in the order SQLite sorts them: by code point, which
+     * (unlike {@link String#compareTo(String)}) matches the order of their
+     * UTF-8 bytes.
+     * 
+     * @param a
+     *            an ID
+     * @param b
+     *            another ID
+     * @return negative, zero or positive as a sorts before, with or after b
+     */
+    static int compareIDs(final String a, final String b) {
+        int i = 0;
+        int j = 0;
+        while (i < a.length() && j < b.length()) {
+            int ca = a.codePointAt(i);
+            int cb = b.codePointAt(j);
+            if (ca != cb) {
+                return ca < cb ? -1 : 1;
+            }
+            i += Character.charCount(ca);
+            j += Character.charCount(cb);
+        }
+        if (i < a.length()) {
+            return 1;
+        } else if (j < b.length()) {
+            return -1;
+        }
+        return 0;
+    }
+
+    /**
+     * Work out what merging a snapshot would change, without changing
+     * anything. The reader is closed when done.
+     * 
+     * @param snapshot
+     *            the snapshot, in any order
+     * @param tempDir
+     *            where a large snapshot is sorted: the app's cache
+     *            directory
+     * @return the changes that merging would make
+     * @throws IOException
+     *             if the snapshot can't be read or sorted
+     */
+    Report diff(final CardRecordReader snapshot, final File tempDir)
+            throws IOException {
+        final Report report = new Report();
+        final Set<String> names = new HashSet<String>();
+        final List<CardRecord> additions = new ArrayList<CardRecord>();
+        long start = System.currentTimeMillis();
+        SortedCardReader sorted = null;
+        try {
+            sorted = new SortedCardReader(snapshot, tempDir);
+            final Snapshot remote = new Snapshot(sorted);
+            db.exportCards(new CardRecordWriter() {
+                @Override
+                public void write(final CardRecord local) throws IOException {
+                    names.add(local.getCard().getName());
+                    String id = local.getCard().getID();
+                    while (remote.peek() != null
+                            && compareIDs(remote.peek().getCard().getID(), id) < 0) {
+                        additions.add(remote.next());
+                    }
+                    if (remote.peek() != null
+                            && remote.peek().getCard().getID().equals(id)) {
+                        mergeExisting(local, remote.next(), report);
+                    }
+                }
+
+                @Override
+                public void close() {
+                    // Nothing to release
+                }
+            });
+            CardRecord record;
+            while ((record = remote.next()) != null) {
+                additions.add(record);
+            }
+        } finally {
+            snapshot.close();
+            if (sorted != null) {
+                sorted.close();
+            }
+        }
+        // Local names are all known now, so new cards can be named.
+        for (CardRecord addition : additions) {
+            mergeNew(addition, names, report);
+        }
+        if (Log.isLoggable(LOG_TAG, Log.INFO)) {
+            Log.i(LOG_TAG, "Merge would make " + report + "; took "
+                    + (System.currentTimeMillis() - start) + "ms");
+        }
+        return report;
+    }
+
+    /**
+     * Make the changes found by {@link #diff(CardRecordReader)}, in a single
+     * transaction.
+     * 
+     * @param report
+     *            the changes to make
+     * @return the outcome for each change
+     */
+    CardImporter.Progress apply(final Report report) {
+        CardImporter.Progress progress = new CardImporter.Progress();
+        if (!report.isEmpty()) {
+            db.upsertCards(report.changes, progress);
+        }
+        return progress;
+    }
+
+    /**
+     * Merge a card present in both keyrings.
+     * 
+     * @param local
+     *            the local card and its groups
+     * @param remote
+     *            the snapshot's card and its groups
+     * @param report
+     *            updated with the outcome
+     */
+    private static void mergeExisting(final CardRecord local,
+            final CardRecord remote, final Report report) {
+        String localName = local.getCard().getName();
+        if (!localName.equals(remote.getCard().getName())) {
+            report.conflicts.add("Kept the name \"" + localName
+                    + "\" rather than \"" + remote.getCard().getName() + "\"");
+        }
+        Set<String> groups = new HashSet<String>(local.getGroups());
+        List<String> newGroups = new ArrayList<String>();
+        for (String group : remote.getGroups()) {
+            if (groups.add(group)) {
+                newGroups.add(group);
+            }
+        }
+        if (newGroups.isEmpty()) {
+            ++report.unchanged;
+        } else {
+            report.changes.add(new CardRecord(local.getCard(), newGroups));
+            report.tagged += newGroups.size();
+        }
+    }
+
+    /**
+     * Merge a card present only in the snapshot.
+     * 
+     * @param remote
+     *            the snapshot's card and its groups
+     * @param names
+     *            the names taken so far; updated with this card's
+     * @param report
+     *            updated with the outcome
+     */
+    private static void mergeNew(final CardRecord remote,
+            final Set<String> names, final Report report) {
+        LoyaltyCard card = remote.getCard();
+        String name = card.getName();
+        if (name.length() == 0) {
+            report.conflicts.add("Skipped a card with no name");
+            ++report.skipped;
+            return;
+        }
+        try {
+            BarcodePayloads.normalize(card.getFormat(), card.getData());
+        } catch (IllegalArgumentException e) {
+            report.conflicts.add("Skipped \"" + name + "\": " + e.getMessage());
+            ++report.skipped;
+            return;
+        }
+        if (names.contains(name)) {
+            int suffix = 2;
+            while (names.contains(card.getName() + " (" + suffix + ")")) {
+                ++suffix;
+            }
+            name = card.getName() + " (" + suffix + ")";
+            report.conflicts.add("Added \"" + card.getName() + "\" as \""
+                    + name + "\"");
+            card = new LoyaltyCard(name, card.getFormat(), card.getData());
+        }
+        names.add(name);
+        List<String> groups = new ArrayList<String>(new LinkedHashSet<String>(
+                remote.getGroups()));
+        report.changes.add(new CardRecord(card, groups));
+        ++report.added;
+        report.tagged += groups.size();
+    }
+}
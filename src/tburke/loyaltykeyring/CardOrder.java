@@ -0,0 +1,23 @@
+package tburke.loyaltykeyring;
+
+/**
+ * The orders a list of cards can be shown in. Ties are broken by name.
+ * 
+ * @author tburke
+ * 
+ * @see CardStore#getCardsByTag(String, CardOrder)
+ */
+enum CardOrder {
+    /**
+     * By name.
+     */
+    NAME,
+    /**
+     * The most used first.
+     */
+    MOST_USED,
+    /**
+     * The most recently used first; cards never used come last.
+     */
+    RECENTLY_USED,
+}
@@ -0,0 +1,126 @@
+package tburke.loyaltykeyring;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * Guesses which cards are about to be opened, so that their barcodes can be
+ * drawn into the {@link BarcodeCache} ahead of time and opening one shows its
+ * barcode in the first frame.
+ * <p>
+ * A card's score is its use count, boosted when it was last used at about
+ * this time of day: the coffee shop's card in the morning, the
+ * supermarket's on the way home. Only the most used cards are considered.
+ * 
+ * @author tburke
+ * 
+ * @see CardStore#getUsage(int)
+ */
+final class CardPredictor {
+    /**
+     * The number of most used cards scored.
+     */
+    private static final int CANDIDATES = 20;
+    /**
+     * The number of cards picked. Each of their barcodes is a full-screen
+     * bitmap, so this is kept well inside the cache's memory budget.
+     */
+    static final int PREDICTED = 3;
+    /**
+     * How much a last use at exactly this time of day multiplies the use
+     * count by, over and above 1; it falls linearly to nothing at twelve
+     * hours away.
+     */
+    private static final double TIME_OF_DAY_WEIGHT = 2.0;
+    /**
+     * The length of a day, in milliseconds.
+     */
+    private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+
+    /**
+     * Not instantiable.
+     */
+    private CardPredictor() {
+    }
+
+    /**
+     * Pick the cards most likely to be opened next, from the store's most
+     * used.
+     * 
+     * @param store
+     *            the store to read usage from
+     * @param now
+     *            the current time, in milliseconds since the epoch
+     * @return at most {@link #PREDICTED} cards, likeliest first
+     */
+    static List<LoyaltyCard> predict(final CardStore store, final long now) {
+        return predict(store.getUsage(CANDIDATES), now, PREDICTED);
+    }
+
+    /**
+     * Pick the cards most likely to be opened next.
+     * 
+     * @param usage
+     *            the cards to choose from, with their usage
+     * @param now
+     *            the current time, in milliseconds since the epoch
+     * @param count
+     *            the greatest number of cards to pick
+     * @return the likeliest cards, likeliest first
+     */
+    private static List<LoyaltyCard> predict(
+            final Map<LoyaltyCard, CardUsage> usage, final long now,
+            final int count) {
+        final Map<LoyaltyCard, Double> scores = new HashMap<LoyaltyCard, Double>();
+        for (Map.Entry<LoyaltyCard, CardUsage> entry : usage.entrySet()) {
+            scores.put(entry.getKey(), score(entry.getValue(), now));
+        }
+        List<LoyaltyCard> cards = new ArrayList<LoyaltyCard>(usage.keySet());
+        // A stable sort, so that ties stay in the store's order.
+        Collections.sort(cards, new Comparator<LoyaltyCard>() {
+            @Override
+            public int compare(final LoyaltyCard a, final LoyaltyCard b) {
+                return Double.compare(scores.get(b), scores.get(a));
+            }
+        });
+        if (cards.size() > count) {
+            return new ArrayList<LoyaltyCard>(cards.subList(0, count));
+        }
+        return cards;
+    }
+
+    /**
+     * Score a card's usage: its use count, boosted by how close the time of
+     * day of its last use is to now.
+     * 
+     * @param usage
+     *            the card's usage
+     * @param now
+     *            the current time, in milliseconds since the epoch
+     * @return the score; higher is likelier
+     */
+    private static double score(final CardUsage usage, final long now) {
+        long apart = Math.abs(timeOfDay(usage.getLastUsed()) - timeOfDay(now));
+        // The clock wraps: 23:00 is an hour from midnight, not 23.
+        long distance = Math.min(apart, DAY_MILLIS - apart);
+        double closeness = 1.0 - (double) distance / (DAY_MILLIS / 2);
+        return usage.getCount() * (1.0 + TIME_OF_DAY_WEIGHT * closeness);
+    }
+
+    /**
+     * Get the local time of day.
+     * 
+     * @param time
+     *            a time, in milliseconds since the epoch
+     * @return milliseconds since local midnight
+     */
+    private static long timeOfDay(final long time) {
+        long local = time + TimeZone.getDefault().getOffset(time);
+        return ((local % DAY_MILLIS) + DAY_MILLIS) % DAY_MILLIS;
+    }
+}
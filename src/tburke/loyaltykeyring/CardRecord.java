@@ -0,0 +1,52 @@
+package tburke.loyaltykeyring;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A single card, together with the groups it belongs to, as read from (or
+ * written to) a keyring export.
+ * 
+ * @author tburke
+ */
+final class CardRecord {
+    /**
+     * The card itself.
+     */
+    private final LoyaltyCard card;
+    /**
+     * The groups the card belongs to.
+     */
+    private final List<String> groups;
+
+    /**
+     * Create a new, immutable CardRecord.
+     * 
+     * @param recordCard
+     *            the card
+     * @param recordGroups
+     *            the groups the card belongs to; may be empty
+     */
+    CardRecord(final LoyaltyCard recordCard, final List<String> recordGroups) {
+        card = recordCard;
+        groups = Collections.unmodifiableList(recordGroups);
+    }
+
+    /**
+     * Getter for the card.
+     * 
+     * @return the card
+     */
+    public LoyaltyCard getCard() {
+        return card;
+    }
+
+    /**
+     * Getter for the card's groups.
+     * 
+     * @return the (unmodifiable) list of groups the card belongs to
+     */
+    public List<String> getGroups() {
+        return groups;
+    }
+}
@@ -0,0 +1,21 @@
+package tburke.loyaltykeyring;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Reads {@link CardRecord}s one at a time from a keyring export, so that files
+ * of any size can be imported in constant memory.
+ * 
+ * @author tburke
+ */
+interface CardRecordReader extends Closeable {
+    /**
+     * Read the next record.
+     * 
+     * @return the next record, or null at the end of the input
+     * @throws IOException
+     *             if the input can't be read or is malformed
+     */
+    CardRecord read() throws IOException;
+}
@@ -0,0 +1,22 @@
+package tburke.loyaltykeyring;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Writes {@link CardRecord}s one at a time to a keyring export. Closing the
+ * writer finishes the export; until then it may be incomplete.
+ * 
+ * @author tburke
+ */
+interface CardRecordWriter extends Closeable {
+    /**
+     * Write the next record.
+     * 
+     * @param record
+     *            the record
+     * @throws IOException
+     *             if the output can't be written
+     */
+    void write(CardRecord record) throws IOException;
+}
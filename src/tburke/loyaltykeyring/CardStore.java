@@ -0,0 +1,296 @@
+package tburke.loyaltykeyring;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Somewhere to keep {@link LoyaltyCard}s, the groups they belong to, and a
+ * journal of changes to both.
+ * <p>
+ * Cards are identified by {@link LoyaltyCard#getID()}, and their names are
+ * unique. Barcode data is validated and normalized when a card is saved.
+ * Lists of cards are sorted by name unless a {@link CardOrder} is given, and
+ * lists of groups by group; names, groups and IDs are compared by code point.
+ * The store also counts how often, and when last, each card was used.
+ * 
+ * @author tburke
+ * 
+ * @see DBHelper
+ * @see MemoryCardStore
+ */
+interface CardStore {
+    /**
+     * Add a card.
+     * 
+     * @param newCard
+     *            the {@link LoyaltyCard} to be added
+     * @return true if the card was added; false otherwise
+     */
+    boolean addCard(LoyaltyCard newCard);
+
+    /**
+     * Add a card.
+     * 
+     * @param name
+     *            the card name
+     * @param format
+     *            the barcode format used by the card
+     * @param data
+     *            the data stored in the barcode
+     * @return true if the card was added; false otherwise (including if the
+     *         name is empty, the data isn't valid for the format, or the ID
+     *         or name is taken)
+     */
+    boolean addCard(String name, String format, String data);
+
+    /**
+     * Add several cards at once, optionally adding each to a group. Cards
+     * which are invalid (including those with no name), or whose ID or name
+     * is already taken, are skipped.
+     * 
+     * @param cards
+     *            the {@link LoyaltyCard}s to be added
+     * @param tag
+     *            the group to add the cards to, or null for none
+     * @return the number of cards added
+     */
+    int addCards(List<LoyaltyCard> cards, String tag);
+
+    /**
+     * Write a batch of imported cards, and their groups, at once. A card
+     * whose ID is new is added; one whose ID is already present is renamed if
+     * need be. Either way, the card is added to its groups (but not removed
+     * from any others). Cards which are invalid, or whose name is taken by a
+     * different card, are rejected.
+     * 
+     * @param records
+     *            the cards to be written
+     * @param progress
+     *            updated with the outcome for each card
+     */
+    void upsertCards(List<CardRecord> records, CardImporter.Progress progress);
+
+    /**
+     * Stream every card, with its groups, to an export, in ID order. The
+     * writer is not closed.
+     * 
+     * @param writer
+     *            the export
+     * @return the number of cards written
+     * @throws IOException
+     *             if the export can't be written
+     */
+    int exportCards(CardRecordWriter writer) throws IOException;
+
+    /**
+     * Remove a card. Its group memberships are left alone.
+     * 
+     * @param card
+     *            the card to remove
+     * @return true if the card was removed, false otherwise
+     */
+    boolean deleteCard(LoyaltyCard card);
+
+    /**
+     * Remove a card. Its group memberships are left alone.
+     * 
+     * @param format
+     *            the barcode format for the card being specified
+     * @param data
+     *            the data stored on the card being specified
+     * @return true if the card was removed, false otherwise
+     */
+    boolean deleteCard(String format, String data);
+
+    /**
+     * Add a card to a group; if that is the first card in the group, create
+     * the group.
+     * 
+     * @param card
+     *            the card being specified
+     * @param tag
+     *            the group being specified
+     * @return true if the card was added to the group; false otherwise
+     */
+    boolean addTag(LoyaltyCard card, String tag);
+
+    /**
+     * Add a card to a group; if that is the first card in the group, create
+     * the group.
+     * 
+     * @param format
+     *            the barcode format for the card being specified
+     * @param data
+     *            the data stored on the card being specified
+     * @param tag
+     *            the group being specified
+     * @return true if the card was added to the group; false otherwise
+     */
+    boolean addTag(String format, String data, String tag);
+
+    /**
+     * Remove a card from a group; if that was the last card in the group,
+     * remove the group.
+     * 
+     * @param format
+     *            the barcode format for the card being specified
+     * @param data
+     *            the data stored on the card being specified
+     * @param tag
+     *            the group being specified
+     * @return true if the card was removed from the group; false otherwise
+     */
+    boolean removeTag(String format, String data, String tag);
+
+    /**
+     * Delete a group. Cards in that group are unaffected.
+     * 
+     * @param tag
+     *            the group to delete
+     * @return true if the group was deleted; false otherwise
+     */
+    boolean deleteTag(String tag);
+
+    /**
+     * Get a card by its (user-supplied) name.
+     * 
+     * @param name
+     *            the name to look for
+     * @return the card, if found; otherwise null
+     */
+    LoyaltyCard getCard(String name);
+
+    /**
+     * Get every card.
+     * 
+     * @return a list of all cards, by name
+     */
+    List<LoyaltyCard> getAllCards();
+
+    /**
+     * Get every card in a group.
+     * 
+     * @param tag
+     *            the group by which to filter, or null or "" for every card
+     * @return a list of all cards in the group, by name
+     */
+    List<LoyaltyCard> getCardsByTag(String tag);
+
+    /**
+     * Get every card in a group, in a given order.
+     * 
+     * @param tag
+     *            the group by which to filter, or null or "" for every card
+     * @param order
+     *            the order of the cards
+     * @return a list of all cards in the group
+     */
+    List<LoyaltyCard> getCardsByTag(String tag, CardOrder order);
+
+    /**
+     * Get every card matching a combination of groups.
+     * 
+     * @param filter
+     *            the groups the cards must, may and mustn't be in
+     * @return a list of the matching cards, by name
+     */
+    List<LoyaltyCard> getCardsByGroups(GroupFilter filter);
+
+    /**
+     * Get every card matching a combination of groups, in a given order.
+     * 
+     * @param filter
+     *            the groups the cards must, may and mustn't be in
+     * @param order
+     *            the order of the cards
+     * @return a list of the matching cards
+     */
+    List<LoyaltyCard> getCardsByGroups(GroupFilter filter, CardOrder order);
+
+    /**
+     * Add uses of cards to their use counts and last-used times, all at once.
+     * Uses of cards that no longer exist are ignored. Usage isn't journaled:
+     * it belongs to this device.
+     * 
+     * @param usages
+     *            the uses to record, at most one per card
+     */
+    void recordUsage(Collection<CardUsage> usages);
+
+    /**
+     * Get the most used cards with their usage.
+     * 
+     * @param limit
+     *            the greatest number of cards to return
+     * @return the cards that have been used, most used first (ties by name),
+     *         each with its use count and last-used time
+     */
+    Map<LoyaltyCard, CardUsage> getUsage(int limit);
+
+    /**
+     * Get every group in use.
+     * 
+     * @return a list of all groups
+     */
+    List<String> getAllGroups();
+
+    /**
+     * Search every card's name, groups and barcode data, as the user types.
+     * 
+     * @param query
+     *            the search, as typed; see {@link SearchQuery}
+     * @param limit
+     *            the most cards to return
+     * @return the best matches, best first; empty if there's nothing to
+     *         search for
+     */
+    List<LoyaltyCard> searchCards(String query, int limit);
+
+    /**
+     * Get the sequence number of the latest change.
+     * 
+     * @return the latest sequence number, or 0 if nothing has changed
+     */
+    long getJournalSequence();
+
+    /**
+     * Get changes made since a given point, oldest first. Recent changes are
+     * all present; before those, only the latest change to each card and
+     * each group membership is guaranteed to be. Either way, applying the
+     * changes with {@link #applyChanges(List, long)} reproduces the current
+     * state.
+     * 
+     * @param sequence
+     *            the sequence number of the last change already seen, or 0
+     *            for every change
+     * @param limit
+     *            the largest number of changes to return
+     * @return the changes, oldest first; empty if there are none
+     */
+    List<Change> getChangesSince(long sequence, int limit);
+
+    /**
+     * Apply changes from another device, all at once. Applying a change twice
+     * has the same effect as applying it once; changes which can't be applied
+     * are skipped. A card whose name is taken is retried once the rest are
+     * applied, and cards swapping names are renamed together.
+     * Their journal entries here are {@link Change#isRemote() remote}.
+     * 
+     * @param changes
+     *            the changes, oldest first
+     * @param seen
+     *            the latest journal sequence number the caller has seen
+     * @return the journal sequence number after applying the changes if
+     *         <code>seen</code> was the latest beforehand; otherwise
+     *         <code>seen</code>
+     */
+    long applyChanges(List<Change> changes, long seen);
+
+    /**
+     * Compact the change journal, keeping only the latest change to each card
+     * and each group membership.
+     */
+    void compactJournal();
+}
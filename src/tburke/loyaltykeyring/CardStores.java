@@ -0,0 +1,48 @@
+package tburke.loyaltykeyring;
+
+import android.content.Context;
+
+/**
+ * Chooses the {@link CardStore} the app uses: normally a {@link DBHelper},
+ * but tests and benchmarks may substitute another, such as a
+ * {@link MemoryCardStore}. Either way, its operations are timed by a
+ * {@link TimedCardStore}.
+ * 
+ * @author tburke
+ */
+final class CardStores {
+    /**
+     * The store to use instead of the database, if any.
+     */
+    private static CardStore override = null;
+
+    /**
+     * Utility class; not to be instantiated.
+     */
+    private CardStores() {
+    }
+
+    /**
+     * Open the store.
+     * 
+     * @param ctx
+     *            context for the database; usually the calling activity
+     * @return the store
+     */
+    static synchronized CardStore open(final Context ctx) {
+        if (override != null) {
+            return new TimedCardStore(override);
+        }
+        return new TimedCardStore(new DBHelper(ctx));
+    }
+
+    /**
+     * Use another store instead of the database, or go back to the database.
+     * 
+     * @param store
+     *            the store to use, or null for the database
+     */
+    static synchronized void setOverride(final CardStore store) {
+        override = store;
+    }
+}
@@ -0,0 +1,473 @@
+package tburke.loyaltykeyring;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A list of cards stored by column rather than as {@link LoyaltyCard}s: names,
+ * data and payloads packed as UTF-8 into one byte array each, and formats as
+ * one byte each. A card costs a few dozen bytes rather than the several
+ * hundred of a LoyaltyCard and its Strings, and the garbage collector sees a
+ * handful of arrays however many cards there are.
+ * <p>
+ * Cards are read in place by position through the accessors; only
+ * {@link #getCard(int)} builds a LoyaltyCard, for the one card that's needed.
+ * Immutable.
+ * 
+ * @author tburke
+ * 
+ * @see CardTableAdapter
+ */
+final class CardTable {
+    /**
+     * The encoding of the packed columns.
+     */
+    private static final String ENCODING = "UTF-8";
+    /**
+     * The most distinct formats a table can hold, as each is stored in a byte.
+     */
+    private static final int MAX_FORMATS = 256;
+    /**
+     * Mask to read a byte as unsigned.
+     */
+    private static final int BYTE_MASK = 0xFF;
+
+    /**
+     * The distinct formats, in the order first seen.
+     */
+    private final String[] formatNames;
+    /**
+     * Each card's format, as an index into {@link #formatNames}.
+     */
+    private final byte[] formats;
+    /**
+     * Each card's name.
+     */
+    private final Column names;
+    /**
+     * Each card's barcode data.
+     */
+    private final Column data;
+    /**
+     * Each card's payload; empty where it's the same as the data, as it
+     * mostly is.
+     */
+    private final Column payloads;
+    /**
+     * The position of each card in order of format, then data; for finding a
+     * card by ID.
+     */
+    private final int[] byID;
+
+    /**
+     * A column of strings packed end to end as UTF-8.
+     */
+    private static final class Column {
+        /**
+         * The strings' bytes, then unused space while building.
+         */
+        private byte[] bytes;
+        /**
+         * Where each string starts in {@link #bytes}, then where the last
+         * ends.
+         */
+        private int[] offsets;
+        /**
+         * The number of strings.
+         */
+        private int size = 0;
+
+        /**
+         * Create an empty column.
+         * 
+         * @param capacity
+         *            the number of strings expected
+         */
+        Column(final int capacity) {
+            bytes = new byte[capacity * 2];
+            offsets = new int[capacity + 1];
+        }
+
+        /**
+         * Add a string.
+         * 
+         * @param value
+         *            the string
+         */
+        void add(final String value) {
+            byte[] encoded = encode(value);
+            int end = offsets[size];
+            if (end + encoded.length > bytes.length) {
+                byte[] grown = new byte[Math.max(bytes.length * 2, end
+                        + encoded.length)];
+                System.arraycopy(bytes, 0, grown, 0, end);
+                bytes = grown;
+            }
+            if (size + 1 == offsets.length) {
+                int[] grown = new int[offsets.length * 2];
+                System.arraycopy(offsets, 0, grown, 0, offsets.length);
+                offsets = grown;
+            }
+            System.arraycopy(encoded, 0, bytes, end, encoded.length);
+            offsets[++size] = end + encoded.length;
+        }
+
+        /**
+         * Drop the unused space, once every string has been added.
+         */
+        void trim() {
+            if (bytes.length != offsets[size]) {
+                byte[] trimmed = new byte[offsets[size]];
+                System.arraycopy(bytes, 0, trimmed, 0, trimmed.length);
+                bytes = trimmed;
+            }
+            if (offsets.length != size + 1) {
+                int[] trimmed = new int[size + 1];
+                System.arraycopy(offsets, 0, trimmed, 0, trimmed.length);
+                offsets = trimmed;
+            }
+        }
+
+        /**
+         * Get a string.
+         * 
+         * @param index
+         *            its index
+         * @return the string
+         */
+        String get(final int index) {
+            try {
+                return new String(bytes, offsets[index], length(index),
+                        ENCODING);
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(ENCODING + " is not supported",
+                        e);
+            }
+        }
+
+        /**
+         * Get the length of a string's encoding.
+         * 
+         * @param index
+         *            its index
+         * @return its length in bytes
+         */
+        int length(final int index) {
+            return offsets[index + 1] - offsets[index];
+        }
+
+        /**
+         * Compare a string with an encoded one, byte by byte, which is the
+         * order SQLite sorts them in.
+         * 
+         * @param index
+         *            the string's index
+         * @param other
+         *            the other string, encoded
+         * @return negative, zero or positive as the string sorts before, with
+         *         or after the other
+         */
+        int compare(final int index, final byte[] other) {
+            int start = offsets[index];
+            int length = length(index);
+            for (int i = 0; i < length && i < other.length; ++i) {
+                int a = bytes[start + i] & BYTE_MASK;
+                int b = other[i] & BYTE_MASK;
+                if (a != b) {
+                    return a - b;
+                }
+            }
+            return length - other.length;
+        }
+
+        /**
+         * Compare two strings, byte by byte.
+         * 
+         * @param a
+         *            one string's index
+         * @param b
+         *            the other's
+         * @return negative, zero or positive as a sorts before, with or after
+         *         b
+         */
+        int compare(final int a, final int b) {
+            int startA = offsets[a];
+            int startB = offsets[b];
+            int lengthA = length(a);
+            int lengthB = length(b);
+            for (int i = 0; i < lengthA && i < lengthB; ++i) {
+                int x = bytes[startA + i] & BYTE_MASK;
+                int y = bytes[startB + i] & BYTE_MASK;
+                if (x != y) {
+                    return x - y;
+                }
+            }
+            return lengthA - lengthB;
+        }
+    }
+
+    /**
+     * Create a table of cards.
+     * 
+     * @param cards
+     *            the cards, in the order they'll be read
+     * @throws IllegalArgumentException
+     *             if the cards use more than {@link #MAX_FORMATS} formats
+     */
+    CardTable(final List<LoyaltyCard> cards) {
+        int size = cards.size();
+        List<String> seen = new ArrayList<String>();
+        formats = new byte[size];
+        names = new Column(size);
+        data = new Column(size);
+        payloads = new Column(size);
+        for (int i = 0; i < size; ++i) {
+            LoyaltyCard card = cards.get(i);
+            int format = seen.indexOf(card.getFormat());
+            if (format < 0) {
+                if (seen.size() == MAX_FORMATS) {
+                    throw new IllegalArgumentException("More than "
+                            + MAX_FORMATS + " formats");
+                }
+                format = seen.size();
+                seen.add(card.getFormat());
+            }
+            formats[i] = (byte) format;
+            names.add(card.getName());
+            data.add(card.getData());
+            if (card.getPayload().equals(card.getData())) {
+                payloads.add("");
+            } else {
+                payloads.add(card.getPayload());
+            }
+        }
+        names.trim();
+        data.trim();
+        payloads.trim();
+        formatNames = seen.toArray(new String[seen.size()]);
+        byID = new int[size];
+        for (int i = 0; i < size; ++i) {
+            byID[i] = i;
+        }
+        sortByID(byID, new int[size], 0, size);
+    }
+
+    /**
+     * Count the cards.
+     * 
+     * @return the number of cards
+     */
+    int size() {
+        return formats.length;
+    }
+
+    /**
+     * Get a card's name.
+     * 
+     * @param position
+     *            the card's position
+     * @return its name
+     */
+    String getName(final int position) {
+        return names.get(position);
+    }
+
+    /**
+     * Get a card's barcode format.
+     * 
+     * @param position
+     *            the card's position
+     * @return its format
+     */
+    String getFormat(final int position) {
+        return formatNames[formats[position] & BYTE_MASK];
+    }
+
+    /**
+     * Get a card's barcode data.
+     * 
+     * @param position
+     *            the card's position
+     * @return its data
+     */
+    String getData(final int position) {
+        return data.get(position);
+    }
+
+    /**
+     * Get the data to hand to a card's barcode encoder.
+     * 
+     * @param position
+     *            the card's position
+     * @return its payload
+     * 
+     * @see LoyaltyCard#getPayload()
+     */
+    String getPayload(final int position) {
+        if (payloads.length(position) == 0) {
+            return getData(position);
+        }
+        return payloads.get(position);
+    }
+
+    /**
+     * Get a card's ID.
+     * 
+     * @param position
+     *            the card's position
+     * @return its ID
+     * 
+     * @see LoyaltyCard#getID()
+     */
+    String getID(final int position) {
+        return LoyaltyCard.createID(getFormat(position), getData(position));
+    }
+
+    /**
+     * Get a card as a {@link LoyaltyCard}.
+     * 
+     * @param position
+     *            the card's position
+     * @return the card
+     */
+    LoyaltyCard getCard(final int position) {
+        String payload = null;
+        if (payloads.length(position) > 0) {
+            payload = payloads.get(position);
+        }
+        return new LoyaltyCard(getName(position), getFormat(position),
+                getData(position), payload);
+    }
+
+    /**
+     * Check whether a list holds the same cards as this table, in the same
+     * order and with the same names and payloads.
+     * 
+     * @param cards
+     *            the cards to compare
+     * @return true if showing them would look no different
+     */
+    boolean matches(final List<LoyaltyCard> cards) {
+        if (cards.size() != size()) {
+            return false;
+        }
+        for (int i = 0; i < cards.size(); ++i) {
+            LoyaltyCard card = cards.get(i);
+            if (!card.getName().equals(getName(i))
+                    || !card.getFormat().equals(getFormat(i))
+                    || !card.getData().equals(getData(i))
+                    || !card.getPayload().equals(getPayload(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Find a card by its format and data.
+     * 
+     * @param card
+     *            the card
+     * @return its position, or -1 if it isn't in the table
+     */
+    int indexOf(final LoyaltyCard card) {
+        int format = -1;
+        for (int i = 0; i < formatNames.length; ++i) {
+            if (formatNames[i].equals(card.getFormat())) {
+                format = i;
+                break;
+            }
+        }
+        if (format < 0) {
+            return -1;
+        }
+        byte[] encoded = encode(card.getData());
+        int low = 0;
+        int high = byID.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int position = byID[mid];
+            int order = (formats[position] & BYTE_MASK) - format;
+            if (order == 0) {
+                order = data.compare(position, encoded);
+            }
+            if (order < 0) {
+                low = mid + 1;
+            } else if (order > 0) {
+                high = mid - 1;
+            } else {
+                return position;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Compare two cards by format, then data.
+     * 
+     * @param a
+     *            one card's position
+     * @param b
+     *            the other's
+     * @return negative, zero or positive as a sorts before, with or after b
+     */
+    private int compareIDs(final int a, final int b) {
+        int order = (formats[a] & BYTE_MASK) - (formats[b] & BYTE_MASK);
+        if (order == 0) {
+            order = data.compare(a, b);
+        }
+        return order;
+    }
+
+    /**
+     * Merge sort positions by ID, without boxing them.
+     * 
+     * @param positions
+     *            the positions to sort
+     * @param scratch
+     *            space the same size as positions
+     * @param from
+     *            the start of the range to sort
+     * @param to
+     *            the end of the range to sort (exclusive)
+     */
+    private void sortByID(final int[] positions, final int[] scratch,
+            final int from, final int to) {
+        if (to - from < 2) {
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        sortByID(positions, scratch, from, mid);
+        sortByID(positions, scratch, mid, to);
+        if (compareIDs(positions[mid - 1], positions[mid]) <= 0) {
+            return;
+        }
+        System.arraycopy(positions, from, scratch, from, to - from);
+        int i = from;
+        int j = mid;
+        for (int k = from; k < to; ++k) {
+            if (j == to
+                    || (i < mid && compareIDs(scratch[i], scratch[j]) <= 0)) {
+                positions[k] = scratch[i++];
+            } else {
+                positions[k] = scratch[j++];
+            }
+        }
+    }
+
+    /**
+     * Encode a string for a column.
+     * 
+     * @param value
+     *            the string
+     * @return its UTF-8 bytes
+     */
+    private static byte[] encode(final String value) {
+        try {
+            return value.getBytes(ENCODING);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(ENCODING + " is not supported", e);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package tburke.loyaltykeyring;
+
+import android.content.Context;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
+
+/**
+ * Adapter showing the names of the cards in a {@link CardTable}. Rows read
+ * the name straight from the table as they're bound, so that only the cards
+ * on screen have Strings at all; {@link #getItem(int)} builds the
+ * {@link LoyaltyCard} for the one card that's picked.
+ * 
+ * @author tburke
+ */
+final class CardTableAdapter extends BaseAdapter {
+    /**
+     * Inflates the rows.
+     */
+    private final LayoutInflater inflater;
+    /**
+     * The layout of a row: a TextView, as for an ArrayAdapter.
+     */
+    private final int resource;
+    /**
+     * The cards shown.
+     */
+    private final CardTable table;
+
+    /**
+     * Create an adapter.
+     * 
+     * @param context
+     *            the context to inflate rows in
+     * @param layout
+     *            the layout of a row, which must be a TextView
+     * @param cards
+     *            the cards, in the order to be shown
+     */
+    CardTableAdapter(final Context context, final int layout,
+            final CardTable cards) {
+        inflater = LayoutInflater.from(context);
+        resource = layout;
+        table = cards;
+    }
+
+    /**
+     * Get the cards shown.
+     * 
+     * @return the table of cards
+     */
+    CardTable getTable() {
+        return table;
+    }
+
+    @Override
+    public int getCount() {
+        return table.size();
+    }
+
+    @Override
+    public LoyaltyCard getItem(final int position) {
+        return table.getCard(position);
+    }
+
+    @Override
+    public long getItemId(final int position) {
+        return position;
+    }
+
+    @Override
+    public View getView(final int position, final View convertView,
+            final ViewGroup parent) {
+        TextView row = (TextView) convertView;
+        if (row == null) {
+            row = (TextView) inflater.inflate(resource, parent, false);
+        }
+        row.setText(table.getName(position));
+        return row;
+    }
+}
@@ -0,0 +1,90 @@
+package tburke.loyaltykeyring;
+
+/**
+ * Uses of a card not yet recorded by the store: how many, and when the last
+ * was.
+ * <p>
+ * Immutable.
+ * 
+ * @author tburke
+ * 
+ * @see CardStore#recordUsage(java.util.Collection)
+ */
+final class CardUsage {
+    /**
+     * The ID of the card used.
+     */
+    private final String cardID;
+    /**
+     * The number of uses.
+     */
+    private final int count;
+    /**
+     * When the card was last used, in milliseconds since the epoch.
+     */
+    private final long lastUsed;
+
+    /**
+     * Create a new, immutable CardUsage.
+     * 
+     * @param usedCardID
+     *            the ID of the card used
+     * @param useCount
+     *            the number of uses
+     * @param lastUseTime
+     *            when the card was last used, in milliseconds since the epoch
+     */
+    CardUsage(final String usedCardID, final int useCount,
+            final long lastUseTime) {
+        if (useCount <= 0) {
+            throw new IllegalArgumentException("Use count must be positive: "
+                    + useCount);
+        }
+        cardID = usedCardID;
+        count = useCount;
+        lastUsed = lastUseTime;
+    }
+
+    /**
+     * Add one more use.
+     * 
+     * @param time
+     *            when the card was used, in milliseconds since the epoch
+     * @return the usage including that use
+     */
+    CardUsage plusUse(final long time) {
+        return new CardUsage(cardID, count + 1, Math.max(lastUsed, time));
+    }
+
+    /**
+     * Getter for the ID of the card used.
+     * 
+     * @return the card's ID
+     */
+    String getCardID() {
+        return cardID;
+    }
+
+    /**
+     * Getter for the number of uses.
+     * 
+     * @return the number of uses
+     */
+    int getCount() {
+        return count;
+    }
+
+    /**
+     * Getter for when the card was last used.
+     * 
+     * @return the time of the last use, in milliseconds since the epoch
+     */
+    long getLastUsed() {
+        return lastUsed;
+    }
+
+    @Override
+    public String toString() {
+        return cardID + " x" + count + " @" + lastUsed;
+    }
+}
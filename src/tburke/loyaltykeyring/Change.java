@@ -0,0 +1,182 @@
+package tburke.loyaltykeyring;
+
+/**
+ * A single entry from the change journal: one mutation of the keyring.
+ * 
+ * @author tburke
+ * 
+ * @see CardStore#getChangesSince(long, int)
+ */
+final class Change {
+    /**
+     * The kinds of mutation recorded. The names are stored in the database,
+     * so must not change.
+     */
+    enum Op {
+        /**
+         * A card was added; the name is recorded.
+         */
+        ADD,
+        /**
+         * A card was renamed; the new name is recorded. Since compaction may
+         * remove the card's {@link #ADD}, this should be applied the same
+         * way: the card exists, with this name.
+         */
+        RENAME,
+        /**
+         * A card was deleted.
+         */
+        DELETE,
+        /**
+         * A card was added to a group; the group is recorded.
+         */
+        TAG,
+        /**
+         * A card was removed from a group; the group is recorded.
+         */
+        UNTAG
+    }
+
+    /**
+     * The journal sequence number; later changes have larger numbers.
+     */
+    private final long sequence;
+    /**
+     * The kind of mutation.
+     */
+    private final Op op;
+    /**
+     * The ID of the card affected.
+     */
+    private final String cardID;
+    /**
+     * The card's (new) name, for {@link Op#ADD} and {@link Op#RENAME}.
+     */
+    private final String name;
+    /**
+     * The group, for {@link Op#TAG} and {@link Op#UNTAG}.
+     */
+    private final String tag;
+    /**
+     * Whether the change was made on another device and applied here.
+     */
+    private final boolean remote;
+
+    /**
+     * Create a new, immutable Change made on this device.
+     * 
+     * @param changeSequence
+     *            the journal sequence number
+     * @param changeOp
+     *            the kind of mutation
+     * @param changeCardID
+     *            the ID of the card affected
+     * @param changeName
+     *            the card's (new) name, or null
+     * @param changeTag
+     *            the group, or null
+     */
+    Change(final long changeSequence, final Op changeOp,
+            final String changeCardID, final String changeName,
+            final String changeTag) {
+        this(changeSequence, changeOp, changeCardID, changeName, changeTag,
+                false);
+    }
+
+    /**
+     * Create a new, immutable Change.
+     * 
+     * @param changeSequence
+     *            the journal sequence number
+     * @param changeOp
+     *            the kind of mutation
+     * @param changeCardID
+     *            the ID of the card affected
+     * @param changeName
+     *            the card's (new) name, or null
+     * @param changeTag
+     *            the group, or null
+     * @param changeRemote
+     *            whether the change was made on another device and applied
+     *            here
+     */
+    Change(final long changeSequence, final Op changeOp,
+            final String changeCardID, final String changeName,
+            final String changeTag, final boolean changeRemote) {
+        sequence = changeSequence;
+        op = changeOp;
+        cardID = changeCardID;
+        name = changeName;
+        tag = changeTag;
+        remote = changeRemote;
+    }
+
+    /**
+     * Getter for the sequence number.
+     * 
+     * @return the journal sequence number
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Getter for the kind of mutation.
+     * 
+     * @return the kind of mutation
+     */
+    public Op getOp() {
+        return op;
+    }
+
+    /**
+     * Getter for the card affected.
+     * 
+     * @return the ID of the card affected
+     * 
+     * @see LoyaltyCard#getID()
+     */
+    public String getCardID() {
+        return cardID;
+    }
+
+    /**
+     * Getter for the card's name.
+     * 
+     * @return the card's (new) name for {@link Op#ADD} and {@link Op#RENAME};
+     *         otherwise null
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Getter for the group.
+     * 
+     * @return the group for {@link Op#TAG} and {@link Op#UNTAG}; otherwise
+     *         null
+     */
+    public String getTag() {
+        return tag;
+    }
+
+    /**
+     * Whether the change came from another device. Sync doesn't send these
+     * back; everything else that follows the journal treats them as any
+     * other change.
+     * 
+     * @return true if the change was made on another device and applied by
+     *         {@link CardStore#applyChanges(java.util.List, long)}
+     */
+    public boolean isRemote() {
+        return remote;
+    }
+
+    @Override
+    public String toString() {
+        return sequence + " " + op + " " + cardID
+                + (name == null ? "" : " name=" + name)
+                + (tag == null ? "" : " tag=" + tag)
+                + (remote ? " remote" : "");
+    }
+}
@@ -0,0 +1,277 @@
+package tburke.loyaltykeyring;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Reads cards from a CSV keyring export, one row at a time.
+ * <p>
+ * Fields follow RFC 4180: they may be quoted with '"', and a quote inside a
+ * quoted field is doubled. The first row may be a header naming the columns
+ * (Name, Format, Data and Groups, in any order and case); without one, columns
+ * are taken to be in that order. Groups are separated by
+ * {@link #GROUP_SEPARATOR}; within a group, {@link #GROUP_ESCAPE} makes the
+ * next character (a separator or another escape) part of the name.
+ * 
+ * @author tburke
+ */
+final class CsvCardReader implements CardRecordReader {
+    /**
+     * Separates groups within the Groups column.
+     */
+    static final char GROUP_SEPARATOR = ';';
+    /**
+     * Escapes a {@link #GROUP_SEPARATOR} or itself within a group's name.
+     */
+    static final char GROUP_ESCAPE = '\\';
+    /**
+     * Column names, in the default order.
+     */
+    static final String[] COLUMNS = { "name", "format", "data", "groups" };
+    /**
+     * Index of the name column in {@link #COLUMNS}.
+     */
+    private static final int NAME = 0;
+    /**
+     * Index of the format column in {@link #COLUMNS}.
+     */
+    private static final int FORMAT = 1;
+    /**
+     * Index of the data column in {@link #COLUMNS}.
+     */
+    private static final int DATA = 2;
+    /**
+     * Index of the groups column in {@link #COLUMNS}.
+     */
+    private static final int GROUPS = 3;
+    /**
+     * Refuse fields longer than this, rather than buffer a runaway quote.
+     */
+    private static final int MAX_FIELD_LENGTH = 4096;
+
+    /**
+     * The input.
+     */
+    private final BufferedReader in;
+    /**
+     * For each entry in {@link #COLUMNS}, the index of the field holding it,
+     * or -1 if absent.
+     */
+    private final int[] columnIndex = { NAME, FORMAT, DATA, GROUPS };
+    /**
+     * Reused to hold the fields of the current row.
+     */
+    private final List<String> fields = new ArrayList<String>();
+    /**
+     * Reused to accumulate the current field.
+     */
+    private final StringBuilder field = new StringBuilder();
+    /**
+     * Whether the first row (which may be a header) has been read.
+     */
+    private boolean started = false;
+    /**
+     * Whether the end of the input has been reached.
+     */
+    private boolean finished = false;
+    /**
+     * The current (1-based) line number, for error messages.
+     */
+    private int line = 1;
+
+    /**
+     * Create a reader over a CSV export.
+     * 
+     * @param input
+     *            the export
+     */
+    CsvCardReader(final BufferedReader input) {
+        in = input;
+    }
+
+    @Override
+    public CardRecord read() throws IOException {
+        while (readRow()) {
+            if (fields.size() == 1 && fields.get(0).trim().length() == 0) {
+                // Blank line
+                continue;
+            }
+            if (!started) {
+                started = true;
+                if (parseHeader()) {
+                    continue;
+                }
+            }
+            return toRecord();
+        }
+        return null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /**
+     * If the current row is a header, use it to find the columns.
+     * 
+     * @return true if the row was a header
+     * @throws IOException
+     *             if a required column is missing
+     */
+    private boolean parseHeader() throws IOException {
+        List<String> names = Arrays.asList(COLUMNS);
+        int[] found = new int[COLUMNS.length];
+        Arrays.fill(found, -1);
+        for (int i = 0; i < fields.size(); ++i) {
+            int column = names.indexOf(fields.get(i).trim()
+                    .toLowerCase(Locale.US));
+            if (column == -1) {
+                if (i == 0) {
+                    return false;
+                }
+                continue;
+            }
+            found[column] = i;
+        }
+        if (found[NAME] == -1 || found[FORMAT] == -1 || found[DATA] == -1) {
+            throw new IOException("Header must name the Name, Format and "
+                    + "Data columns");
+        }
+        System.arraycopy(found, 0, columnIndex, 0, found.length);
+        return true;
+    }
+
+    /**
+     * Turn the current row into a record. Missing fields are left empty, for
+     * the importer to reject.
+     * 
+     * @return the record
+     */
+    private CardRecord toRecord() {
+        String name = column(NAME).trim();
+        String format = column(FORMAT).trim();
+        // Not trimmed: spaces may be part of the barcode, and so of its ID.
+        String data = column(DATA);
+        List<String> groups = new ArrayList<String>();
+        String groupList = column(GROUPS);
+        StringBuilder group = new StringBuilder();
+        for (int i = 0; i <= groupList.length(); ++i) {
+            char c;
+            if (i == groupList.length()) {
+                c = GROUP_SEPARATOR;
+            } else {
+                c = groupList.charAt(i);
+                if (c == GROUP_ESCAPE && i + 1 < groupList.length()) {
+                    group.append(groupList.charAt(++i));
+                    continue;
+                }
+            }
+            if (c == GROUP_SEPARATOR) {
+                String trimmed = group.toString().trim();
+                if (trimmed.length() > 0) {
+                    groups.add(trimmed);
+                }
+                group.setLength(0);
+            } else {
+                group.append(c);
+            }
+        }
+        return new CardRecord(new LoyaltyCard(name, format, data), groups);
+    }
+
+    /**
+     * Get a column of the current row.
+     * 
+     * @param column
+     *            the index into {@link #COLUMNS}
+     * @return the field, or "" if absent
+     */
+    private String column(final int column) {
+        int index = columnIndex[column];
+        if (index == -1 || index >= fields.size()) {
+            return "";
+        }
+        return fields.get(index);
+    }
+
+    /**
+     * Read the next row into {@link #fields}.
+     * 
+     * @return false if the input was exhausted before any field was read
+     * @throws IOException
+     *             if the input can't be read or is malformed
+     */
+    private boolean readRow() throws IOException {
+        fields.clear();
+        if (finished) {
+            return false;
+        }
+        field.setLength(0);
+        boolean quoted = false;
+        boolean any = false;
+        while (true) {
+            int c = in.read();
+            if (c == -1) {
+                finished = true;
+                if (quoted) {
+                    throw new IOException("Unterminated quote at line " + line);
+                }
+                if (any || field.length() > 0) {
+                    fields.add(field.toString());
+                    return true;
+                }
+                return false;
+            }
+            any = true;
+            if (quoted) {
+                if (c == '"') {
+                    in.mark(1);
+                    if (in.read() == '"') {
+                        append('"');
+                    } else {
+                        in.reset();
+                        quoted = false;
+                    }
+                } else {
+                    if (c == '\n') {
+                        ++line;
+                    }
+                    append((char) c);
+                }
+            } else if (c == '"' && field.length() == 0) {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else if (c == '\r') {
+                continue;
+            } else if (c == '\n') {
+                ++line;
+                fields.add(field.toString());
+                return true;
+            } else {
+                append((char) c);
+            }
+        }
+    }
+
+    /**
+     * Add a character to the current field.
+     * 
+     * @param c
+     *            the character
+     * @throws IOException
+     *             if the field is unreasonably long
+     */
+    private void append(final char c) throws IOException {
+        if (field.length() >= MAX_FIELD_LENGTH) {
+            throw new IOException("Field too long at line " + line);
+        }
+        field.append(c);
+    }
+}
@@ -0,0 +1,94 @@
+package tburke.loyaltykeyring;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+
+/**
+ * Writes cards as CSV, in the form read by {@link CsvCardReader}: a header,
+ * then one row per card. Separators and escapes in group names are escaped.
+ * 
+ * @author tburke
+ */
+final class CsvCardWriter implements CardRecordWriter {
+    /**
+     * The output.
+     */
+    private final Writer out;
+
+    /**
+     * Create a writer, and write the header.
+     * 
+     * @param output
+     *            where to write the export; should be buffered
+     * @throws IOException
+     *             if the output can't be written
+     */
+    CsvCardWriter(final Writer output) throws IOException {
+        out = output;
+        out.write("Name,Format,Data,Groups\r\n");
+    }
+
+    @Override
+    public void write(final CardRecord record) throws IOException {
+        LoyaltyCard card = record.getCard();
+        writeField(card.getName());
+        out.write(',');
+        writeField(card.getFormat());
+        out.write(',');
+        writeField(card.getData());
+        out.write(',');
+        List<String> groups = record.getGroups();
+        StringBuilder groupList = new StringBuilder();
+        for (int i = 0; i < groups.size(); ++i) {
+            if (i > 0) {
+                groupList.append(CsvCardReader.GROUP_SEPARATOR);
+            }
+            String group = groups.get(i);
+            for (int j = 0; j < group.length(); ++j) {
+                char c = group.charAt(j);
+                if (c == CsvCardReader.GROUP_SEPARATOR
+                        || c == CsvCardReader.GROUP_ESCAPE) {
+                    groupList.append(CsvCardReader.GROUP_ESCAPE);
+                }
+                groupList.append(c);
+            }
+        }
+        writeField(groupList.toString());
+        out.write("\r\n");
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+
+    /**
+     * Write a single field, quoting it if need be.
+     * 
+     * @param field
+     *            the field
+     * @throws IOException
+     *             if the output can't be written
+     */
+    private void writeField(final String field) throws IOException {
+        boolean quote = false;
+        for (int i = 0; i < field.length() && !quote; ++i) {
+            char c = field.charAt(i);
+            quote = c == ',' || c == '"' || c == '\r' || c == '\n';
+        }
+        if (!quote) {
+            out.write(field);
+            return;
+        }
+        out.write('"');
+        for (int i = 0; i < field.length(); ++i) {
+            char c = field.charAt(i);
+            if (c == '"') {
+                out.write('"');
+            }
+            out.write(c);
+        }
+        out.write('"');
+    }
+}
@@ -3,19 +3,29 @@ package tburke.loyaltykeyring;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
 
+import tburke.loyaltykeyring.barcode.BarcodePayloads;
+
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Provide a method of saving information about {@link LoyaltyCard}s.
  * 
  * @author tburke
  */
-class DBHelper extends SQLiteOpenHelper {
+class DBHelper extends SQLiteOpenHelper implements CardStore {
     /**
      * Tag to be used when logging.
      */
@@ -27,7 +37,7 @@ class DBHelper extends SQLiteOpenHelper {
     /**
      * The database version.
      */
-    private static final int DB_VERSION = 2;
+    private static final int DB_VERSION = 8;
     /**
      * The table used to store card data.
      */
@@ -37,21 +47,182 @@ class DBHelper extends SQLiteOpenHelper {
      */
     private static final String TABLE_TAGS = "LoyaltyCardTags";
     /**
-     * SQL to create the table used to store card data.
+     * SQL to create the table used to store card data. Payload holds the
+     * normalized display form of the barcode data; see
+     * {@link BarcodePayloads#normalize(String, String)}. UseCount and
+     * LastUsed (in milliseconds since the epoch; 0 for never) record how the
+     * card has been used on this device.
      */
     private static final String DB_CREATE_CARDS = "CREATE TABLE " + TABLE_CARDS
-            + " (ID TEXT PRIMARY KEY, Name TEXT NOT NULL UNIQUE);";
+            + " (ID TEXT PRIMARY KEY, Name TEXT NOT NULL UNIQUE, Payload TEXT, UseCount INTEGER NOT NULL DEFAULT 0, LastUsed INTEGER NOT NULL DEFAULT 0);";
+    /**
+     * SQL to index cards in each {@link CardOrder} other than by name, so that
+     * the whole keyring can be read in that order without sorting.
+     */
+    private static final String[] DB_INDEX_USAGE = {
+            "CREATE INDEX " + TABLE_CARDS + "ByUseCount ON " + TABLE_CARDS
+                    + " (UseCount DESC, Name);",
+            "CREATE INDEX " + TABLE_CARDS + "ByLastUsed ON " + TABLE_CARDS
+                    + " (LastUsed DESC, Name);", };
+    /**
+     * SQL to add uses to a card's usage.
+     */
+    private static final String SQL_RECORD_USAGE = "UPDATE " + TABLE_CARDS
+            + " SET UseCount = UseCount + ?, LastUsed = MAX(LastUsed, ?)"
+            + " WHERE ID = ?";
     /**
      * SQL to create the table used to group cards.
      */
     private static final String DB_CREATE_TAGS = "CREATE TABLE "
             + TABLE_TAGS
             + " (CardID TEXT NOT NULL, Tag TEXT NOT NULL, FOREIGN KEY (CardID) REFERENCES LoyaltyCards (ID) ON DELETE CASCADE, UNIQUE (CardID, Tag));";
+    /**
+     * SQL to index groups by name, so that each group's members are a range
+     * of the index and need never be looked up in the table.
+     */
+    private static final String DB_INDEX_TAGS = "CREATE INDEX " + TABLE_TAGS
+            + "ByTag ON " + TABLE_TAGS + " (Tag, CardID);";
+    /**
+     * SQL for the members of a group, to be combined by
+     * {@link #getCardsByGroups(GroupFilter)}.
+     */
+    private static final String SQL_GROUP_MEMBERS = "SELECT CardID FROM "
+            + TABLE_TAGS + " WHERE Tag = ?";
+
+    /**
+     * The append-only journal of changes to the other tables.
+     */
+    private static final String TABLE_JOURNAL = "ChangeJournal";
+    /**
+     * Single-row table recording the journal's last compaction.
+     */
+    private static final String TABLE_JOURNAL_STATE = "ChangeJournalState";
+    /**
+     * SQL to create the change journal. AUTOINCREMENT ensures sequence
+     * numbers are never reused, even once compaction removes the latest
+     * entries' predecessors. Card changes have a null Tag; group changes a
+     * non-null one. Remote is 1 for changes applied from another device.
+     */
+    private static final String DB_CREATE_JOURNAL = "CREATE TABLE "
+            + TABLE_JOURNAL
+            + " (Seq INTEGER PRIMARY KEY AUTOINCREMENT, Op TEXT NOT NULL, CardID TEXT NOT NULL, Name TEXT, Tag TEXT, Remote INTEGER NOT NULL DEFAULT 0);";
+    /**
+     * SQL to index the change journal by what changed, for compaction.
+     */
+    private static final String DB_INDEX_JOURNAL = "CREATE INDEX "
+            + TABLE_JOURNAL + "Key ON " + TABLE_JOURNAL + " (CardID, Tag);";
+    /**
+     * SQL to create the table recording the journal's last compaction.
+     */
+    private static final String DB_CREATE_JOURNAL_STATE = "CREATE TABLE "
+            + TABLE_JOURNAL_STATE + " (CompactedAt INTEGER NOT NULL);";
+    /**
+     * SQL to create the triggers that fill the change journal, so that every
+     * mutation is recorded however it's made.
+     */
+    private static final String[] DB_CREATE_JOURNAL_TRIGGERS = {
+            "CREATE TRIGGER JournalCardAdd AFTER INSERT ON " + TABLE_CARDS
+                    + " BEGIN INSERT INTO " + TABLE_JOURNAL
+                    + " (Op, CardID, Name) VALUES ('" + Change.Op.ADD
+                    + "', NEW.ID, NEW.Name); END;",
+            "CREATE TRIGGER JournalCardRename AFTER UPDATE OF Name ON "
+                    + TABLE_CARDS + " WHEN NEW.Name <> OLD.Name"
+                    + " BEGIN INSERT INTO " + TABLE_JOURNAL
+                    + " (Op, CardID, Name) VALUES ('" + Change.Op.RENAME
+                    + "', NEW.ID, NEW.Name); END;",
+            "CREATE TRIGGER JournalCardDelete AFTER DELETE ON " + TABLE_CARDS
+                    + " BEGIN INSERT INTO " + TABLE_JOURNAL
+                    + " (Op, CardID) VALUES ('" + Change.Op.DELETE
+                    + "', OLD.ID); END;",
+            "CREATE TRIGGER JournalTagAdd AFTER INSERT ON " + TABLE_TAGS
+                    + " BEGIN INSERT INTO " + TABLE_JOURNAL
+                    + " (Op, CardID, Tag) VALUES ('" + Change.Op.TAG
+                    + "', NEW.CardID, NEW.Tag); END;",
+            "CREATE TRIGGER JournalTagRemove AFTER DELETE ON " + TABLE_TAGS
+                    + " BEGIN INSERT INTO " + TABLE_JOURNAL
+                    + " (Op, CardID, Tag) VALUES ('" + Change.Op.UNTAG
+                    + "', OLD.CardID, OLD.Tag); END;", };
+    /**
+     * Number of journal entries between compactions, and the number of the
+     * latest entries compaction leaves alone.
+     */
+    private static final long COMPACT_INTERVAL = 1000;
+
+    /**
+     * The full-text index of card names, groups and barcode data.
+     */
+    private static final String TABLE_SEARCH = "CardSearch";
+    /**
+     * SQL to create the full-text index. Each row's docid is the rowid of
+     * its card, which is stable since the database is never vacuumed. Data
+     * holds the display payload, or the whole ID if there isn't one. FTS3,
+     * rather than FTS4, is all that the oldest supported platforms have.
+     */
+    private static final String DB_CREATE_SEARCH = "CREATE VIRTUAL TABLE "
+            + TABLE_SEARCH + " USING fts3 (Name, Groups, Data);";
+    /**
+     * SQL to fill the full-text index from existing cards.
+     */
+    private static final String DB_FILL_SEARCH = "INSERT INTO "
+            + TABLE_SEARCH + " (docid, Name, Groups, Data)"
+            + " SELECT rowid, Name, (SELECT group_concat(Tag, ' ') FROM "
+            + TABLE_TAGS + " WHERE CardID = ID), coalesce(Payload, ID) FROM "
+            + TABLE_CARDS + ";";
+    /**
+     * SQL to search for cards, ranked as {@link SearchQuery} describes; to be
+     * followed by the limit. The parameters are the full-text query, the
+     * name prefix pattern and the full-text query restricted to names. The
+     * name query is run once for the whole result, not once per card.
+     */
+    private static final String SQL_SEARCH = "SELECT ID, Name, Payload FROM "
+            + TABLE_CARDS + " WHERE rowid IN (SELECT docid FROM "
+            + TABLE_SEARCH + " WHERE " + TABLE_SEARCH + " MATCH ?)"
+            + " ORDER BY CASE WHEN Name LIKE ? THEN "
+            + SearchQuery.RANK_NAME_PREFIX
+            + " WHEN rowid IN (SELECT docid FROM " + TABLE_SEARCH + " WHERE "
+            + TABLE_SEARCH + " MATCH ?) THEN "
+            + SearchQuery.RANK_NAME_WORDS + " ELSE " + SearchQuery.RANK_OTHER
+            + " END, Name LIMIT ";
+    /**
+     * SQL to create the triggers that keep the full-text index up to date.
+     */
+    private static final String[] DB_CREATE_SEARCH_TRIGGERS = {
+            "CREATE TRIGGER SearchCardAdd AFTER INSERT ON " + TABLE_CARDS
+                    + " BEGIN INSERT INTO " + TABLE_SEARCH
+                    + " (docid, Name, Groups, Data) VALUES (NEW.rowid,"
+                    + " NEW.Name, (SELECT group_concat(Tag, ' ') FROM "
+                    + TABLE_TAGS + " WHERE CardID = NEW.ID),"
+                    + " coalesce(NEW.Payload, NEW.ID)); END;",
+            "CREATE TRIGGER SearchCardUpdate AFTER UPDATE OF Name, Payload ON "
+                    + TABLE_CARDS + " BEGIN UPDATE " + TABLE_SEARCH
+                    + " SET Name = NEW.Name,"
+                    + " Data = coalesce(NEW.Payload, NEW.ID)"
+                    + " WHERE docid = NEW.rowid; END;",
+            "CREATE TRIGGER SearchCardDelete AFTER DELETE ON " + TABLE_CARDS
+                    + " BEGIN DELETE FROM " + TABLE_SEARCH
+                    + " WHERE docid = OLD.rowid; END;",
+            "CREATE TRIGGER SearchTagAdd AFTER INSERT ON " + TABLE_TAGS
+                    + " BEGIN UPDATE " + TABLE_SEARCH
+                    + " SET Groups = (SELECT group_concat(Tag, ' ') FROM "
+                    + TABLE_TAGS + " WHERE CardID = NEW.CardID)"
+                    + " WHERE docid = (SELECT rowid FROM " + TABLE_CARDS
+                    + " WHERE ID = NEW.CardID); END;",
+            "CREATE TRIGGER SearchTagRemove AFTER DELETE ON " + TABLE_TAGS
+                    + " BEGIN UPDATE " + TABLE_SEARCH
+                    + " SET Groups = (SELECT group_concat(Tag, ' ') FROM "
+                    + TABLE_TAGS + " WHERE CardID = OLD.CardID)"
+                    + " WHERE docid = (SELECT rowid FROM " + TABLE_CARDS
+                    + " WHERE ID = OLD.CardID); END;", };
 
     /**
      * The columns to be returned when searching for cards.
      */
-    private static final String[] CARD_COLS = { "ID", "Name" };
+    private static final String[] CARD_COLS = { "ID", "Name", "Payload" };
+    /**
+     * The columns to be returned when reading cards' usage.
+     */
+    private static final String[] USAGE_COLS = { "ID", "Name", "Payload",
+            "UseCount", "LastUsed" };
     /**
      * The columns to be returned when searching for groups.
      */
@@ -67,6 +238,28 @@ class DBHelper extends SQLiteOpenHelper {
         super(ctx, DB_NAME, null, DB_VERSION);
     }
 
+    /**
+     * Open the database for reading and writing; in debug builds,
+     * {@link LeakTracker} checks that it's closed again.
+     * 
+     * @return the database
+     */
+    @Override
+    public synchronized SQLiteDatabase getWritableDatabase() {
+        return LeakTracker.track(super.getWritableDatabase());
+    }
+
+    /**
+     * Open the database, for reading if nothing else; in debug builds,
+     * {@link LeakTracker} checks that it's closed again.
+     * 
+     * @return the database
+     */
+    @Override
+    public synchronized SQLiteDatabase getReadableDatabase() {
+        return LeakTracker.track(super.getReadableDatabase());
+    }
+
     @Override
     public void onCreate(final SQLiteDatabase db) {
         if (Log.isLoggable(LOG_TAG, Log.INFO)) {
@@ -77,6 +270,63 @@ class DBHelper extends SQLiteOpenHelper {
             Log.i(LOG_TAG, "Creating table '" + DB_CREATE_TAGS + "'");
         }
         db.execSQL(DB_CREATE_TAGS);
+        db.execSQL(DB_INDEX_TAGS);
+        for (String index : DB_INDEX_USAGE) {
+            db.execSQL(index);
+        }
+        createJournal(db);
+        createSearchIndex(db);
+    }
+
+    /**
+     * Create the full-text index, fill it, and create the triggers that keep
+     * it up to date.
+     * 
+     * @param db
+     *            the database being created or upgraded
+     */
+    private void createSearchIndex(final SQLiteDatabase db) {
+        if (Log.isLoggable(LOG_TAG, Log.INFO)) {
+            Log.i(LOG_TAG, "Creating table '" + DB_CREATE_SEARCH + "'");
+        }
+        db.execSQL(DB_CREATE_SEARCH);
+        db.execSQL(DB_FILL_SEARCH);
+        for (String trigger : DB_CREATE_SEARCH_TRIGGERS) {
+            db.execSQL(trigger);
+        }
+    }
+
+    /**
+     * Create the change journal and the triggers that fill it.
+     * 
+     * @param db
+     *            the database being created or upgraded
+     */
+    private void createJournal(final SQLiteDatabase db) {
+        if (Log.isLoggable(LOG_TAG, Log.INFO)) {
+            Log.i(LOG_TAG, "Creating table '" + DB_CREATE_JOURNAL + "'");
+        }
+        db.execSQL(DB_CREATE_JOURNAL);
+        db.execSQL(DB_INDEX_JOURNAL);
+        db.execSQL(DB_CREATE_JOURNAL_STATE);
+        db.execSQL("INSERT INTO " + TABLE_JOURNAL_STATE
+                + " (CompactedAt) VALUES (0);");
+        for (String trigger : DB_CREATE_JOURNAL_TRIGGERS) {
+            db.execSQL(trigger);
+        }
+    }
+
+    @Override
+    public void onOpen(final SQLiteDatabase db) {
+        super.onOpen(db);
+        if (!db.isReadOnly()) {
+            long latest = getJournalSequence(db);
+            long compactedAt = DatabaseUtils.longForQuery(db,
+                    "SELECT CompactedAt FROM " + TABLE_JOURNAL_STATE, null);
+            if (latest - compactedAt >= COMPACT_INTERVAL) {
+                compactJournal(db, latest);
+            }
+        }
     }
 
     /**
@@ -86,6 +336,7 @@ class DBHelper extends SQLiteOpenHelper {
      *            the {@link LoyaltyCard} to be added
      * @return true if the card was added; false otherwise
      */
+    @Override
     public boolean addCard(final LoyaltyCard newCard) {
         if (newCard == null) {
             return false;
@@ -95,7 +346,9 @@ class DBHelper extends SQLiteOpenHelper {
     }
 
     /**
-     * Add a card to the database.
+     * Add a card to the database. The barcode data is validated and
+     * normalized for display here, once, rather than every time the card is
+     * shown.
      * 
      * @param name
      *            the card name
@@ -103,15 +356,29 @@ class DBHelper extends SQLiteOpenHelper {
      *            the barcode format used by the card
      * @param data
      *            the data stored in the barcode
-     * @return true if the card was added; false otherwise
+     * @return true if the card was added; false otherwise (including if the
+     *         name is empty, or the data isn't valid for the format)
      */
+    @Override
     public boolean addCard(final String name, final String format,
             final String data) {
+        if (!isValidName(name)) {
+            Log.w(LOG_TAG, "Rejecting card with no name");
+            return false;
+        }
+        String payload;
+        try {
+            payload = BarcodePayloads.normalize(format, data);
+        } catch (IllegalArgumentException e) {
+            Log.w(LOG_TAG, "Rejecting card " + name + ": " + e.getMessage());
+            return false;
+        }
         SQLiteDatabase db = getWritableDatabase();
         ContentValues values = new ContentValues();
         String id = LoyaltyCard.createID(format, data);
         values.put("ID", id);
         values.put("Name", name);
+        values.put("Payload", payload);
         if (Log.isLoggable(LOG_TAG, Log.INFO)) {
             Log.i(LOG_TAG, "Creating card: " + id + " (" + name + ")");
         }
@@ -120,6 +387,221 @@ class DBHelper extends SQLiteOpenHelper {
         return created;
     }
 
+    /**
+     * Check a card name: every card must have one.
+     * 
+     * @param name
+     *            the card name, or null
+     * @return true if the name can be given to a card
+     */
+    private static boolean isValidName(final String name) {
+        return name != null && name.length() != 0;
+    }
+
+    /**
+     * Add several cards to the database in a single transaction, optionally
+     * adding each to a group. Cards which are invalid, or whose ID or name is
+     * already taken, are skipped.
+     * 
+     * @param cards
+     *            the {@link LoyaltyCard}s to be added
+     * @param tag
+     *            the group to add the cards to, or null for none
+     * @return the number of cards added
+     */
+    @Override
+    public int addCards(final List<LoyaltyCard> cards, final String tag) {
+        SQLiteDatabase db = getWritableDatabase();
+        int added = 0;
+        db.beginTransaction();
+        try {
+            ContentValues values = new ContentValues();
+            ContentValues tagValues = new ContentValues();
+            for (LoyaltyCard card : cards) {
+                if (!isValidName(card.getName())) {
+                    Log.w(LOG_TAG, "Rejecting card with no name");
+                    continue;
+                }
+                String payload;
+                try {
+                    payload = BarcodePayloads.normalize(card.getFormat(),
+                            card.getData());
+                } catch (IllegalArgumentException e) {
+                    Log.w(LOG_TAG, "Rejecting card " + card.getName() + ": "
+                            + e.getMessage());
+                    continue;
+                }
+                values.put("ID", card.getID());
+                values.put("Name", card.getName());
+                values.put("Payload", payload);
+                if (db.insert(TABLE_CARDS, null, values) == -1) {
+                    continue;
+                }
+                ++added;
+                if (tag != null && !"".equals(tag)) {
+                    tagValues.put("CardID", card.getID());
+                    tagValues.put("Tag", tag);
+                    db.insert(TABLE_TAGS, null, tagValues);
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        if (Log.isLoggable(LOG_TAG, Log.INFO)) {
+            Log.i(LOG_TAG, "Created " + added + " of " + cards.size()
+                    + " cards");
+        }
+        db.close();
+        return added;
+    }
+
+    /**
+     * Write a batch of imported cards, and their groups, in a single
+     * transaction. A card whose ID is new is added; one whose ID is already
+     * present is renamed if need be. Either way, the card is added to its
+     * groups (but not removed from any others). Cards which are invalid, or
+     * whose name is taken by a different card, are rejected.
+     * 
+     * @param records
+     *            the cards to be written
+     * @param progress
+     *            updated with the outcome for each card
+     * 
+     * @see CardImporter
+     */
+    @Override
+    public void upsertCards(final List<CardRecord> records,
+            final CardImporter.Progress progress) {
+        SQLiteDatabase db = getWritableDatabase();
+        SQLiteStatement findName = db.compileStatement("SELECT Name FROM "
+                + TABLE_CARDS + " WHERE ID = ?");
+        SQLiteStatement insert = db.compileStatement("INSERT INTO "
+                + TABLE_CARDS + " (ID, Name, Payload) VALUES (?, ?, ?)");
+        SQLiteStatement rename = db.compileStatement("UPDATE " + TABLE_CARDS
+                + " SET Name = ? WHERE ID = ?");
+        SQLiteStatement tag = db.compileStatement("INSERT OR IGNORE INTO "
+                + TABLE_TAGS + " (CardID, Tag) VALUES (?, ?)");
+        db.beginTransaction();
+        try {
+            for (CardRecord record : records) {
+                LoyaltyCard card = record.getCard();
+                String id = card.getID();
+                if (!isValidName(card.getName())) {
+                    progress.rejected();
+                    continue;
+                }
+                String payload;
+                try {
+                    payload = BarcodePayloads.normalize(card.getFormat(),
+                            card.getData());
+                } catch (IllegalArgumentException e) {
+                    if (Log.isLoggable(LOG_TAG, Log.DEBUG)) {
+                        Log.d(LOG_TAG, "Rejecting card " + card.getName()
+                                + ": " + e.getMessage());
+                    }
+                    progress.rejected();
+                    continue;
+                }
+
+                String existingName;
+                try {
+                    findName.bindString(1, id);
+                    existingName = findName.simpleQueryForString();
+                } catch (SQLiteDoneException e) {
+                    existingName = null;
+                }
+                try {
+                    if (existingName == null) {
+                        insert.bindString(1, id);
+                        insert.bindString(2, card.getName());
+                        insert.bindString(3, payload);
+                        insert.executeInsert();
+                        progress.inserted();
+                    } else if (!existingName.equals(card.getName())) {
+                        rename.bindString(1, card.getName());
+                        rename.bindString(2, id);
+                        rename.execute();
+                        progress.updated();
+                    } else {
+                        progress.duplicate();
+                    }
+                } catch (SQLiteConstraintException e) {
+                    // Name is taken by another card
+                    if (Log.isLoggable(LOG_TAG, Log.DEBUG)) {
+                        Log.d(LOG_TAG, "Rejecting card " + card.getName()
+                                + ": " + e.getMessage());
+                    }
+                    progress.rejected();
+                    continue;
+                }
+
+                for (String group : record.getGroups()) {
+                    tag.bindString(1, id);
+                    tag.bindString(2, group);
+                    tag.execute();
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            findName.close();
+            insert.close();
+            rename.close();
+            tag.close();
+        }
+        db.close();
+    }
+
+    /**
+     * Stream every card, with its groups, to an export. Cards are read
+     * straight from a cursor, in ID order, so only one card is held in memory
+     * at a time. The writer is not closed.
+     * 
+     * @param writer
+     *            the export
+     * @return the number of cards written
+     * @throws IOException
+     *             if the export can't be written
+     * 
+     * @see CardExporter
+     */
+    @Override
+    public int exportCards(final CardRecordWriter writer) throws IOException {
+        SQLiteDatabase db = getReadableDatabase();
+        Cursor c = LeakTracker.track(db.rawQuery("SELECT ID, Name, Tag FROM "
+                + TABLE_CARDS + " LEFT JOIN " + TABLE_TAGS + " ON ID = CardID"
+                + " ORDER BY ID, Tag", null));
+        int count = 0;
+        try {
+            String id = null;
+            String name = null;
+            List<String> groups = new ArrayList<String>();
+            while (true) {
+                boolean more = c.moveToNext();
+                if (id != null && (!more || !id.equals(c.getString(0)))) {
+                    writer.write(new CardRecord(new LoyaltyCard(name,
+                            LoyaltyCard.getFormatFromID(id), LoyaltyCard
+                                    .getDataFromID(id)), groups));
+                    ++count;
+                    groups = new ArrayList<String>();
+                }
+                if (!more) {
+                    break;
+                }
+                id = c.getString(0);
+                name = c.getString(1);
+                if (!c.isNull(2)) {
+                    groups.add(c.getString(2));
+                }
+            }
+        } finally {
+            c.close();
+            db.close();
+        }
+        return count;
+    }
+
     /**
      * Remove a card from the database.
      * 
@@ -128,6 +610,7 @@ class DBHelper extends SQLiteOpenHelper {
      * @return true if the card was removed, false otherwise (for example, the
      *         card wasn't present)
      */
+    @Override
     public boolean deleteCard(final LoyaltyCard card) {
         if (card == null) {
             return false;
@@ -145,6 +628,7 @@ class DBHelper extends SQLiteOpenHelper {
      * @return true if the card was removed, false otherwise (for example, the
      *         card wasn't present)
      */
+    @Override
     public boolean deleteCard(final String format, final String data) {
         SQLiteDatabase db = getWritableDatabase();
         String id = LoyaltyCard.createID(format, data);
@@ -167,6 +651,7 @@ class DBHelper extends SQLiteOpenHelper {
      *            the group being specified
      * @return true if the card was added to the group; false otherwise
      */
+    @Override
     public boolean addTag(final LoyaltyCard card, final String tag) {
         return addTag(card.getFormat(), card.getData(), tag);
     }
@@ -183,6 +668,7 @@ class DBHelper extends SQLiteOpenHelper {
      *            the group being specified
      * @return true if the card was added to the group; false otherwise
      */
+    @Override
     public boolean addTag(final String format, final String data,
             final String tag) {
         SQLiteDatabase db = getWritableDatabase();
@@ -206,6 +692,7 @@ class DBHelper extends SQLiteOpenHelper {
      *            the group being specified
      * @return true if the card was removed from the group; false otherwise
      */
+    @Override
     public boolean removeTag(final String format, final String data,
             final String tag) {
         SQLiteDatabase db = getWritableDatabase();
@@ -225,6 +712,7 @@ class DBHelper extends SQLiteOpenHelper {
      * @return true if the group was deleted; false otherwise (ie, group was not
      *         present)
      */
+    @Override
     public boolean deleteTag(final String tag) {
         SQLiteDatabase db = getWritableDatabase();
         String[] queryParams = new String[] { tag };
@@ -243,27 +731,30 @@ class DBHelper extends SQLiteOpenHelper {
      *            the name to look for
      * @return the card, if found; otherwise null
      */
+    @Override
     public LoyaltyCard getCard(final String name) {
         SQLiteDatabase db = getWritableDatabase();
         String[] queryParams = new String[] { name };
-        Cursor c = db.query(TABLE_CARDS, CARD_COLS, "Name = ?", queryParams,
-                null, null, null);
-        if (!c.moveToFirst()) {
+        Cursor c = LeakTracker.track(db.query(TABLE_CARDS, CARD_COLS,
+                "Name = ?", queryParams, null, null, null));
+        try {
+            if (!c.moveToFirst()) {
+                return null;
+            }
+            String format = LoyaltyCard.getFormatFromID(c.getString(0));
+            String data = LoyaltyCard.getDataFromID(c.getString(0));
+            if (data == null || format == null) {
+                Log.wtf(LOG_TAG + ":getCard",
+                        "Couldn't parse format/data from '" + c.getString(0)
+                                + "'");
+                return null;
+            }
+            return new LoyaltyCard(c.getString(1), format, data,
+                    c.getString(2));
+        } finally {
+            c.close();
             db.close();
-            return null;
         }
-        String format = LoyaltyCard.getFormatFromID(c.getString(0));
-        String data = LoyaltyCard.getDataFromID(c.getString(0));
-        LoyaltyCard result;
-        if (data == null || format == null) {
-            Log.wtf(LOG_TAG + ":getCard", "Couldn't parse format/data from '"
-                    + c.getString(0) + "'");
-            result = null;
-        } else {
-            result = new LoyaltyCard(c.getString(1), format, data);
-        }
-        db.close();
-        return result;
     }
 
     /**
@@ -271,13 +762,17 @@ class DBHelper extends SQLiteOpenHelper {
      * 
      * @return a list of all cards
      */
+    @Override
     public List<LoyaltyCard> getAllCards() {
         SQLiteDatabase db = getWritableDatabase();
-        Cursor c = db.query(TABLE_CARDS, CARD_COLS, "1", null, null, null,
-                "Name");
-        List<LoyaltyCard> result = cursorToList(c);
-        db.close();
-        return result;
+        Cursor c = LeakTracker.track(db.query(TABLE_CARDS, CARD_COLS, "1",
+                null, null, null, "Name"));
+        try {
+            return cursorToList(c);
+        } finally {
+            c.close();
+            db.close();
+        }
     }
 
     /**
@@ -287,24 +782,221 @@ class DBHelper extends SQLiteOpenHelper {
      *            the group by which to filter
      * @return a list of all cards in the group
      */
+    @Override
     public List<LoyaltyCard> getCardsByTag(final String tag) {
+        return getCardsByTag(tag, CardOrder.NAME);
+    }
+
+    /**
+     * Get all cards in the specified group, in the specified order.
+     * 
+     * @param tag
+     *            the group by which to filter, or null or "" for every card
+     * @param order
+     *            the order of the cards
+     * @return a list of all cards in the group
+     */
+    @Override
+    public List<LoyaltyCard> getCardsByTag(final String tag,
+            final CardOrder order) {
+        SQLiteDatabase db = getWritableDatabase();
+        Cursor c;
         if (tag == null || "".equals(tag)) {
-            return getAllCards();
+            c = LeakTracker.track(db.query(TABLE_CARDS, CARD_COLS, "1", null,
+                    null, null, orderBy(order)));
+        } else {
+            String[] queryParams = new String[] { tag };
+            c = LeakTracker.track(db.query(TABLE_CARDS + " INNER JOIN "
+                    + TABLE_TAGS + " ON ID = CardID", CARD_COLS, "Tag = ?",
+                    queryParams, null, null, orderBy(order)));
+        }
+        try {
+            return cursorToList(c);
+        } finally {
+            c.close();
+            db.close();
+        }
+    }
+
+    /**
+     * Get every card matching a combination of groups. The filter becomes
+     * set operations on the groups' members, each a range of the group
+     * index: INTERSECT for the required groups, UNION for the others.
+     * 
+     * @param filter
+     *            the groups the cards must, may and mustn't be in
+     * @return a list of the matching cards, by name
+     */
+    @Override
+    public List<LoyaltyCard> getCardsByGroups(final GroupFilter filter) {
+        return getCardsByGroups(filter, CardOrder.NAME);
+    }
+
+    /**
+     * Get every card matching a combination of groups, in the specified
+     * order.
+     * 
+     * @param filter
+     *            the groups the cards must, may and mustn't be in
+     * @param order
+     *            the order of the cards
+     * @return a list of the matching cards
+     * 
+     * @see #getCardsByGroups(GroupFilter)
+     */
+    @Override
+    public List<LoyaltyCard> getCardsByGroups(final GroupFilter filter,
+            final CardOrder order) {
+        StringBuilder where = new StringBuilder("1");
+        List<String> args = new ArrayList<String>();
+        Collection<String> required = filter
+                .getGroups(GroupFilter.Membership.REQUIRED);
+        if (!required.isEmpty()) {
+            where.append(" AND ID IN (")
+                    .append(groupMembers(required, " INTERSECT ", args))
+                    .append(')');
+        }
+        Collection<String> either = filter
+                .getGroups(GroupFilter.Membership.EITHER);
+        if (!either.isEmpty()) {
+            where.append(" AND ID IN (")
+                    .append(groupMembers(either, " UNION ", args)).append(')');
+        }
+        Collection<String> excluded = filter
+                .getGroups(GroupFilter.Membership.EXCLUDED);
+        if (!excluded.isEmpty()) {
+            where.append(" AND ID NOT IN (")
+                    .append(groupMembers(excluded, " UNION ", args))
+                    .append(')');
         }
         SQLiteDatabase db = getWritableDatabase();
-        String[] queryParams = new String[] { tag };
-        Cursor c = db.query(TABLE_CARDS + " INNER JOIN " + TABLE_TAGS
-                + " ON ID = CardID", CARD_COLS, "Tag = ?", queryParams, null,
-                null, "Name");
-        List<LoyaltyCard> result = cursorToList(c);
+        Cursor c = LeakTracker.track(db.query(TABLE_CARDS, CARD_COLS,
+                where.toString(), args.toArray(new String[args.size()]), null,
+                null, orderBy(order)));
+        try {
+            return cursorToList(c);
+        } finally {
+            c.close();
+            db.close();
+        }
+    }
+
+    /**
+     * Get the ORDER BY clause for an order of cards; each is an index.
+     * 
+     * @param order
+     *            the order
+     * @return the clause, without "ORDER BY"
+     */
+    private static String orderBy(final CardOrder order) {
+        switch (order) {
+        case NAME:
+            return "Name";
+        case MOST_USED:
+            return "UseCount DESC, Name";
+        case RECENTLY_USED:
+            return "LastUsed DESC, Name";
+        default:
+            throw new IllegalArgumentException("Unknown order " + order);
+        }
+    }
+
+    /**
+     * Add uses of cards to their use counts and last-used times, in a single
+     * transaction. Only these columns are written, so neither the journal
+     * nor the search index is touched.
+     * 
+     * @param usages
+     *            the uses to record, at most one per card
+     */
+    @Override
+    public void recordUsage(final Collection<CardUsage> usages) {
+        if (usages.isEmpty()) {
+            return;
+        }
+        SQLiteDatabase db = getWritableDatabase();
+        SQLiteStatement update = db.compileStatement(SQL_RECORD_USAGE);
+        db.beginTransaction();
+        try {
+            for (CardUsage usage : usages) {
+                update.bindLong(1, usage.getCount());
+                update.bindLong(2, usage.getLastUsed());
+                update.bindString(3, usage.getCardID());
+                update.execute();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            update.close();
+        }
         db.close();
+    }
+
+    /**
+     * Get the most used cards with their usage, from the use-count index.
+     * 
+     * @param limit
+     *            the greatest number of cards to return
+     * @return the cards that have been used, most used first (ties by name)
+     */
+    @Override
+    public Map<LoyaltyCard, CardUsage> getUsage(final int limit) {
+        SQLiteDatabase db = getReadableDatabase();
+        Cursor c = LeakTracker.track(db.query(TABLE_CARDS, USAGE_COLS,
+                "UseCount > 0", null, null, null, orderBy(CardOrder.MOST_USED),
+                Integer.toString(limit)));
+        Map<LoyaltyCard, CardUsage> result = new LinkedHashMap<LoyaltyCard, CardUsage>();
+        try {
+            while (c.moveToNext()) {
+                String id = c.getString(0);
+                String format = LoyaltyCard.getFormatFromID(id);
+                String data = LoyaltyCard.getDataFromID(id);
+                if (data == null || format == null) {
+                    Log.wtf(LOG_TAG + ":getUsage",
+                            "Couldn't parse format/data from '" + id + "'");
+                    continue;
+                }
+                result.put(new LoyaltyCard(c.getString(1), format, data, c
+                        .getString(2)),
+                        new CardUsage(id, c.getInt(3), c.getLong(4)));
+            }
+        } finally {
+            c.close();
+            db.close();
+        }
         return result;
     }
 
     /**
-     * Take a Cursor from {@link #getAllCards()} /
-     * {@link #getCardsByTag(String)} and turn it into a list of
-     * {@link LoyaltyCard}s.
+     * Build a query combining the members of several groups.
+     * 
+     * @param groups
+     *            the groups
+     * @param operator
+     *            how to combine them, e.g. " INTERSECT "
+     * @param args
+     *            the query's arguments so far, to which the groups are added
+     * @return the query
+     */
+    private static String groupMembers(final Collection<String> groups,
+            final String operator, final List<String> args) {
+        StringBuilder sql = new StringBuilder();
+        for (String group : groups) {
+            if (sql.length() > 0) {
+                sql.append(operator);
+            }
+            sql.append(SQL_GROUP_MEMBERS);
+            args.add(group);
+        }
+        return sql.toString();
+    }
+
+    /**
+     * Take a Cursor from {@link #getAllCards()},
+     * {@link #getCardsByTag(String)}, {@link #getCardsByGroups(GroupFilter)}
+     * or {@link #searchCards(String, int)}
+     * and turn it into a list of {@link LoyaltyCard}s. The caller closes
+     * the cursor.
      * 
      * @param c
      *            the database cursor
@@ -329,7 +1021,8 @@ class DBHelper extends SQLiteOpenHelper {
                         "Couldn't parse format/data from '" + c.getString(0)
                                 + "'");
             } else {
-                result.add(new LoyaltyCard(c.getString(1), format, data));
+                result.add(new LoyaltyCard(c.getString(1), format, data, c
+                        .getString(2)));
             }
         } while (c.moveToNext());
         return result;
@@ -340,35 +1033,408 @@ class DBHelper extends SQLiteOpenHelper {
      * 
      * @return a list of all tags in use
      */
+    @Override
     public List<String> getAllGroups() {
         SQLiteDatabase db = getWritableDatabase();
-        Cursor c = db.query(true, TABLE_TAGS, TAG_COLS, "1", null, null, null,
-                "Tag", null);
+        Cursor c = LeakTracker.track(db.query(true, TABLE_TAGS, TAG_COLS, "1",
+                null, null, null, "Tag", null));
         List<String> result = new ArrayList<String>();
-        if (!c.moveToFirst()) {
+        try {
+            while (c.moveToNext()) {
+                if (Log.isLoggable(LOG_TAG, Log.VERBOSE)) {
+                    Log.v(LOG_TAG + ":getAllGroups",
+                            "Found group: " + c.getString(0));
+                }
+                result.add(c.getString(0));
+            }
+        } finally {
+            c.close();
             db.close();
-            return result;
         }
-        do {
-            if (Log.isLoggable(LOG_TAG, Log.VERBOSE)) {
-                Log.v(LOG_TAG + ":getAllGroups",
-                        "Found group: " + c.getString(0));
+        return result;
+    }
+
+    /**
+     * Search every card's name, groups and barcode data.
+     * 
+     * @param query
+     *            the search, as typed
+     * @param limit
+     *            the most cards to return
+     * @return the best matches, best first; empty if there's nothing to
+     *         search for
+     * 
+     * @see SearchQuery
+     */
+    @Override
+    public List<LoyaltyCard> searchCards(final String query, final int limit) {
+        SearchQuery search = new SearchQuery(query);
+        if (search.isEmpty()) {
+            return new ArrayList<LoyaltyCard>();
+        }
+        SQLiteDatabase db = getReadableDatabase();
+        Cursor c = LeakTracker.track(db.rawQuery(SQL_SEARCH + limit,
+                new String[] { search.toMatchExpression(null),
+                        search.toNamePrefixPattern(),
+                        search.toMatchExpression("Name") }));
+        try {
+            return cursorToList(c);
+        } finally {
+            c.close();
+            db.close();
+        }
+    }
+
+    /**
+     * Get the sequence number of the latest change. Callers that have seen
+     * everything up to this point need only ask for changes since it.
+     * 
+     * @return the latest sequence number, or 0 if nothing has changed
+     */
+    @Override
+    public long getJournalSequence() {
+        SQLiteDatabase db = getReadableDatabase();
+        long result = getJournalSequence(db);
+        db.close();
+        return result;
+    }
+
+    /**
+     * Get the sequence number of the latest change. This comes from SQLite's
+     * record of the AUTOINCREMENT key, which survives compaction.
+     * 
+     * @param db
+     *            the open database
+     * @return the latest sequence number, or 0 if nothing has changed
+     */
+    private static long getJournalSequence(final SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery(db,
+                "SELECT COALESCE(MAX(seq), 0) FROM sqlite_sequence WHERE name = ?",
+                new String[] { TABLE_JOURNAL });
+    }
+
+    /**
+     * Get changes made since a given point, oldest first. The latest
+     * {@link #COMPACT_INTERVAL} changes are all present. Before those, only
+     * the latest change to each card and each group membership is guaranteed
+     * to be, since older ones may have been compacted away; applying the
+     * changes with {@link #applyChanges(List, long)} still reproduces the
+     * current state.
+     * 
+     * @param sequence
+     *            the sequence number of the last change already seen, or 0
+     *            for every change
+     * @param limit
+     *            the largest number of changes to return; fetch the rest by
+     *            calling again with the last sequence number returned
+     * @return the changes, oldest first; empty if there are none
+     */
+    @Override
+    public List<Change> getChangesSince(final long sequence, final int limit) {
+        SQLiteDatabase db = getReadableDatabase();
+        Cursor c = LeakTracker.track(db.query(TABLE_JOURNAL, new String[] {
+                "Seq", "Op", "CardID", "Name", "Tag", "Remote" }, "Seq > ?",
+                new String[] { Long.toString(sequence) }, null, null, "Seq",
+                Integer.toString(limit)));
+        List<Change> result = new ArrayList<Change>();
+        try {
+            while (c.moveToNext()) {
+                result.add(new Change(c.getLong(0), Change.Op.valueOf(c
+                        .getString(1)), c.getString(2), c.getString(3), c
+                        .getString(4), c.getInt(5) != 0));
             }
-            result.add(c.getString(0));
-        } while (c.moveToNext());
+        } finally {
+            c.close();
+            db.close();
+        }
+        return result;
+    }
+
+    /**
+     * Apply changes from another device, in a single transaction. Applying a
+     * change twice has the same effect as applying it once. Changes which
+     * can't be applied (invalid data, or a name taken by a different card)
+     * are skipped. A card whose name is taken is retried once the rest are
+     * applied, since a later change may free the name, and cards swapping
+     * names are renamed together.
+     * <p>
+     * Applying the changes adds them to this device's journal too, marked
+     * {@link Change#isRemote() remote} so that sync doesn't send them back.
+     * If the caller has already seen the whole journal, it can skip past them
+     * altogether: pass the latest sequence number seen, and the return value
+     * is the sequence number to continue from.
+     * 
+     * @param changes
+     *            the changes, oldest first
+     * @param seen
+     *            the latest journal sequence number the caller has seen
+     * @return the journal sequence number after applying the changes if
+     *         <code>seen</code> was the latest beforehand; otherwise
+     *         <code>seen</code>
+     * 
+     * @see SyncClient
+     */
+    @Override
+    public long applyChanges(final List<Change> changes, final long seen) {
+        SQLiteDatabase db = getWritableDatabase();
+        final SQLiteStatement findName = db.compileStatement("SELECT Name "
+                + "FROM " + TABLE_CARDS + " WHERE ID = ?");
+        final SQLiteStatement findHolder = db.compileStatement("SELECT ID "
+                + "FROM " + TABLE_CARDS + " WHERE Name = ?");
+        final SQLiteStatement insert = db.compileStatement("INSERT INTO "
+                + TABLE_CARDS + " (ID, Name, Payload) VALUES (?, ?, ?)");
+        final SQLiteStatement rename = db.compileStatement("UPDATE "
+                + TABLE_CARDS + " SET Name = ? WHERE ID = ?");
+        SQLiteStatement delete = db.compileStatement("DELETE FROM "
+                + TABLE_CARDS + " WHERE ID = ?");
+        SQLiteStatement tag = db.compileStatement("INSERT OR IGNORE INTO "
+                + TABLE_TAGS + " (CardID, Tag) VALUES (?, ?)");
+        SQLiteStatement untag = db.compileStatement("DELETE FROM "
+                + TABLE_TAGS + " WHERE CardID = ? AND Tag = ?");
+        PendingRenames.Names names = new PendingRenames.Names() {
+            @Override
+            public String holderOf(final String name) {
+                return queryForString(findHolder, name);
+            }
+
+            @Override
+            public boolean setName(final String id, final String name) {
+                String existingName = queryForString(findName, id);
+                try {
+                    if (existingName == null) {
+                        insert.bindString(1, id);
+                        insert.bindString(2, name);
+                        insert.bindString(3, BarcodePayloads.normalize(
+                                LoyaltyCard.getFormatFromID(id),
+                                LoyaltyCard.getDataFromID(id)));
+                        insert.executeInsert();
+                    } else if (!existingName.equals(name)) {
+                        rename.bindString(1, name);
+                        rename.bindString(2, id);
+                        rename.execute();
+                    }
+                } catch (SQLiteConstraintException e) {
+                    return false;
+                }
+                return true;
+            }
+        };
+        PendingRenames pending = new PendingRenames();
+        long result = seen;
+        db.beginTransaction();
+        try {
+            long before = getJournalSequence(db);
+            boolean current = before == seen;
+            for (Change change : changes) {
+                String id = change.getCardID();
+                try {
+                    switch (change.getOp()) {
+                    case ADD:
+                    case RENAME:
+                        if (!isValidName(change.getName())) {
+                            Log.w(LOG_TAG, "Skipping " + change
+                                    + ": no name");
+                        } else if (names.setName(id, change.getName())) {
+                            pending.forget(id);
+                        } else {
+                            pending.defer(change);
+                        }
+                        break;
+                    case DELETE:
+                        delete.bindString(1, id);
+                        delete.execute();
+                        pending.forget(id);
+                        break;
+                    case TAG:
+                        tag.bindString(1, id);
+                        tag.bindString(2, change.getTag());
+                        tag.execute();
+                        break;
+                    case UNTAG:
+                        untag.bindString(1, id);
+                        untag.bindString(2, change.getTag());
+                        untag.execute();
+                        break;
+                    default:
+                        Log.wtf(LOG_TAG, "Unknown change " + change);
+                    }
+                } catch (IllegalArgumentException e) {
+                    Log.w(LOG_TAG, "Skipping " + change + ": " + e.getMessage());
+                }
+            }
+            pending.retry(names);
+            // The transaction is exclusive, so every entry since is ours.
+            db.execSQL("UPDATE " + TABLE_JOURNAL
+                    + " SET Remote = 1 WHERE Seq > " + before + ";");
+            if (current) {
+                result = getJournalSequence(db);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            findName.close();
+            findHolder.close();
+            insert.close();
+            rename.close();
+            delete.close();
+            tag.close();
+            untag.close();
+        }
         db.close();
         return result;
     }
 
+    /**
+     * Run a query for a single string.
+     * 
+     * @param query
+     *            the query, taking one string
+     * @param arg
+     *            the string
+     * @return the result, or null if there are no rows
+     */
+    private static String queryForString(final SQLiteStatement query,
+            final String arg) {
+        query.bindString(1, arg);
+        try {
+            return query.simpleQueryForString();
+        } catch (SQLiteDoneException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Compact the change journal, keeping only the latest change to each card
+     * and each group membership, apart from the latest
+     * {@link #COMPACT_INTERVAL} changes, which are all kept. Done
+     * automatically every {@link #COMPACT_INTERVAL} changes.
+     */
+    @Override
+    public void compactJournal() {
+        SQLiteDatabase db = getWritableDatabase();
+        compactJournal(db, getJournalSequence(db));
+        db.close();
+    }
+
+    /**
+     * Compact the change journal.
+     * 
+     * @param db
+     *            the open database
+     * @param latest
+     *            the latest sequence number
+     * 
+     * @see #compactJournal()
+     */
+    private static void compactJournal(final SQLiteDatabase db,
+            final long latest) {
+        long start = System.currentTimeMillis();
+        db.beginTransaction();
+        try {
+            // Recent changes are kept in full, so that a delta from any
+            // point among them replays them in order.
+            db.execSQL("DELETE FROM " + TABLE_JOURNAL + " WHERE Seq <= "
+                    + (latest - COMPACT_INTERVAL) + " AND Seq < "
+                    + "(SELECT MAX(Later.Seq) FROM " + TABLE_JOURNAL
+                    + " AS Later WHERE Later.CardID = " + TABLE_JOURNAL
+                    + ".CardID AND Later.Tag IS " + TABLE_JOURNAL + ".Tag);");
+            ContentValues values = new ContentValues();
+            values.put("CompactedAt", latest);
+            db.update(TABLE_JOURNAL_STATE, values, null, null);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        if (Log.isLoggable(LOG_TAG, Log.INFO)) {
+            Log.i(LOG_TAG, "Compacted journal up to " + latest + " in "
+                    + (System.currentTimeMillis() - start) + "ms");
+        }
+    }
+
     @Override
     public void onUpgrade(final SQLiteDatabase db, final int oldVersion,
             final int newVersion) {
-        // TODO: Let's not just hose the data
-        // Drop older table if existed
-        db.execSQL("DROP TABLE IF EXISTS " + TABLE_CARDS
-                + ";DROP TABLE IF EXISTS " + TABLE_TAGS + ";");
+        final int payloadVersion = 3;
+        final int journalVersion = 4;
+        final int searchVersion = 5;
+        final int tagIndexVersion = 6;
+        final int usageVersion = 7;
+        final int remoteVersion = 8;
+        if (oldVersion < 2) {
+            // TODO: Let's not just hose the data
+            // Drop older table if existed
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_CARDS
+                    + ";DROP TABLE IF EXISTS " + TABLE_TAGS + ";");
+
+            // Create tables again
+            onCreate(db);
+            return;
+        }
+        if (oldVersion < payloadVersion) {
+            db.execSQL("ALTER TABLE " + TABLE_CARDS
+                    + " ADD COLUMN Payload TEXT;");
+            fillPayloads(db);
+        }
+        if (oldVersion < journalVersion) {
+            createJournal(db);
+            // Seed the journal so that "changes since 0" is everything.
+            db.execSQL("INSERT INTO " + TABLE_JOURNAL
+                    + " (Op, CardID, Name) SELECT '" + Change.Op.ADD
+                    + "', ID, Name FROM " + TABLE_CARDS + " ORDER BY ID;");
+            db.execSQL("INSERT INTO " + TABLE_JOURNAL
+                    + " (Op, CardID, Tag) SELECT '" + Change.Op.TAG
+                    + "', CardID, Tag FROM " + TABLE_TAGS
+                    + " ORDER BY CardID, Tag;");
+        }
+        if (oldVersion < searchVersion) {
+            createSearchIndex(db);
+        }
+        if (oldVersion < tagIndexVersion) {
+            db.execSQL(DB_INDEX_TAGS);
+        }
+        if (oldVersion < usageVersion) {
+            db.execSQL("ALTER TABLE " + TABLE_CARDS
+                    + " ADD COLUMN UseCount INTEGER NOT NULL DEFAULT 0;");
+            db.execSQL("ALTER TABLE " + TABLE_CARDS
+                    + " ADD COLUMN LastUsed INTEGER NOT NULL DEFAULT 0;");
+            for (String index : DB_INDEX_USAGE) {
+                db.execSQL(index);
+            }
+        }
+        if (oldVersion >= journalVersion && oldVersion < remoteVersion) {
+            db.execSQL("ALTER TABLE " + TABLE_JOURNAL
+                    + " ADD COLUMN Remote INTEGER NOT NULL DEFAULT 0;");
+        }
+    }
 
-        // Create tables again
-        onCreate(db);
+    /**
+     * Compute the display payload for every card saved before payloads were
+     * stored. Cards whose data can't be normalized are left with a null
+     * payload, and so display their raw data.
+     * 
+     * @param db
+     *            the database being upgraded
+     */
+    private void fillPayloads(final SQLiteDatabase db) {
+        Cursor c = LeakTracker.track(db.query(TABLE_CARDS,
+                new String[] { "ID" }, null, null, null, null, null));
+        try {
+            ContentValues values = new ContentValues();
+            while (c.moveToNext()) {
+                String id = c.getString(0);
+                try {
+                    values.put("Payload", BarcodePayloads.normalize(
+                            LoyaltyCard.getFormatFromID(id),
+                            LoyaltyCard.getDataFromID(id)));
+                } catch (IllegalArgumentException e) {
+                    Log.w(LOG_TAG, "Couldn't normalize " + id + ": "
+                            + e.getMessage());
+                    continue;
+                }
+                db.update(TABLE_CARDS, values, "ID = ?", new String[] { id });
+            }
+        } finally {
+            c.close();
+        }
     }
 }
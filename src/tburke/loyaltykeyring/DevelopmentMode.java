@@ -0,0 +1,98 @@
+package tburke.loyaltykeyring;
+
+import android.os.Build;
+import android.os.StrictMode;
+import android.util.Log;
+
+/**
+ * Checks that only run in debug builds: StrictMode, reporting disk access on
+ * the main thread and leaked database objects, and {@link LeakTracker}.
+ * <p>
+ * Normally violations are just logged. For instrumentation runs, strict mode
+ * makes leaks (database objects, and those {@link LeakTracker} finds) kill
+ * the process, so the run fails:
+ * 
+ * <pre>
+ * adb shell setprop log.tag.DevelopmentMode DEBUG
+ * </pre>
+ * <p>
+ * Disk access on the main thread is only ever logged: the app still reads
+ * there on purpose (the card lists, the first-screen snapshot, cached
+ * barcodes), so making it fatal would fail every run.
+ * 
+ * @author tburke
+ */
+final class DevelopmentMode {
+    /**
+     * Tag to be used when logging, and to enable strict mode.
+     */
+    private static final String LOG_TAG = DevelopmentMode.class
+            .getSimpleName();
+    /**
+     * The first platform version with StrictMode.
+     */
+    private static final int GINGERBREAD = 9;
+    /**
+     * Whether leaks are fatal.
+     */
+    private static final boolean STRICT = BuildConfig.DEBUG
+            && Log.isLoggable(LOG_TAG, Log.DEBUG);
+    /**
+     * Whether the policies have been set.
+     */
+    private static boolean enabled = false;
+
+    /**
+     * Utility class; not to be instantiated.
+     */
+    private DevelopmentMode() {
+    }
+
+    /**
+     * Set the StrictMode policies, in debug builds. Must be called on the
+     * main thread, which the thread policy then applies to.
+     */
+    static synchronized void enable() {
+        if (!BuildConfig.DEBUG || enabled) {
+            return;
+        }
+        enabled = true;
+        LeakTracker.setFatal(STRICT);
+        if (Build.VERSION.SDK_INT >= GINGERBREAD) {
+            Policies.apply(STRICT);
+        }
+        Log.i(LOG_TAG, "Development checks enabled"
+                + (STRICT ? "; violations are fatal" : ""));
+    }
+
+    /**
+     * Holder for the StrictMode calls, so that the class isn't loaded on
+     * platforms without it.
+     */
+    private static final class Policies {
+        /**
+         * Not to be instantiated.
+         */
+        private Policies() {
+        }
+
+        /**
+         * Set the thread and VM policies. Thread policy violations are
+         * always just logged.
+         * 
+         * @param fatal
+         *            true to kill the process on VM policy violations
+         */
+        static void apply(final boolean fatal) {
+            StrictMode.ThreadPolicy.Builder thread = new StrictMode.ThreadPolicy.Builder()
+                    .detectDiskReads().detectDiskWrites().penaltyLog();
+            StrictMode.VmPolicy.Builder vm = new StrictMode.VmPolicy.Builder()
+                    .detectLeakedSqlLiteObjects().penaltyLog();
+            if (fatal) {
+                vm.penaltyDeath();
+            }
+            StrictMode.setThreadPolicy(thread.build());
+            StrictMode.setVmPolicy(vm.build());
+        }
+    }
+}
@@ -0,0 +1,268 @@
+package tburke.loyaltykeyring;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What {@link MainActivity} last showed with no search or filter: the groups,
+ * the group selected and its cards, in the order shown. It's saved whenever
+ * the activity is left, so that a cold start can show it before the database
+ * has even been opened, and then bring it up to date in the background.
+ * <p>
+ * The file is the int {@link #MAGIC}, a version byte ({@link #VERSION}), the
+ * {@link CardOrder}'s name, a boolean and the selected group if there is one,
+ * an int count of groups and the groups, then an int count of cards and each
+ * card's name, format, data and payload ("" if it's the data). Strings are
+ * {@link java.io.DataOutput#writeUTF(String) modified UTF-8}. Only the first
+ * {@link #MAX_CARDS} cards are kept.
+ * <p>
+ * Immutable.
+ * 
+ * @author tburke
+ */
+final class FirstScreenSnapshot {
+    /**
+     * Tag to be used when logging.
+     */
+    private static final String LOG_TAG = FirstScreenSnapshot.class
+            .getSimpleName();
+    /**
+     * Name of the file, in the cache directory: losing it only costs one slow
+     * start.
+     */
+    private static final String FILE_NAME = "first-screen.snapshot";
+    /**
+     * Identifies a snapshot file: "LKFS".
+     */
+    private static final int MAGIC = 0x4C4B4653;
+    /**
+     * The current version of the format; files of any other are ignored.
+     */
+    private static final int VERSION = 1;
+    /**
+     * The most cards kept: many screens' worth, while keeping the file quick
+     * to read on the main thread. The rest arrive when it's reconciled.
+     */
+    static final int MAX_CARDS = 200;
+
+    /**
+     * The groups that existed, by group.
+     */
+    private final List<String> groups;
+    /**
+     * The group selected, or null for every card.
+     */
+    private final String group;
+    /**
+     * The order the cards were shown in.
+     */
+    private final CardOrder order;
+    /**
+     * The first cards shown, in order.
+     */
+    private final List<LoyaltyCard> cards;
+
+    /**
+     * Create a new, immutable snapshot.
+     * 
+     * @param allGroups
+     *            the groups, by group
+     * @param selectedGroup
+     *            the group selected, or null for every card
+     * @param cardOrder
+     *            the order the cards are shown in
+     * @param shownCards
+     *            the cards shown, in order; only the first
+     *            {@link #MAX_CARDS} are kept
+     */
+    FirstScreenSnapshot(final List<String> allGroups,
+            final String selectedGroup, final CardOrder cardOrder,
+            final List<LoyaltyCard> shownCards) {
+        groups = Collections.unmodifiableList(new ArrayList<String>(
+                allGroups));
+        group = selectedGroup;
+        order = cardOrder;
+        cards = Collections.unmodifiableList(new ArrayList<LoyaltyCard>(
+                shownCards.subList(0, Math.min(shownCards.size(), MAX_CARDS))));
+    }
+
+    /**
+     * Getter for the groups.
+     * 
+     * @return the groups that existed, by group
+     */
+    List<String> getGroups() {
+        return groups;
+    }
+
+    /**
+     * Getter for the group selected.
+     * 
+     * @return the group, or null for every card
+     */
+    String getGroup() {
+        return group;
+    }
+
+    /**
+     * Getter for the order of the cards.
+     * 
+     * @return the order they were shown in
+     */
+    CardOrder getOrder() {
+        return order;
+    }
+
+    /**
+     * Getter for the cards.
+     * 
+     * @return the first cards shown, in order
+     */
+    List<LoyaltyCard> getCards() {
+        return cards;
+    }
+
+    /**
+     * Get where an application's snapshot is kept.
+     * 
+     * @param context
+     *            the application's context
+     * @return the snapshot file, which may not exist
+     */
+    static File file(final Context context) {
+        return new File(context.getCacheDir(), FILE_NAME);
+    }
+
+    /**
+     * Read a snapshot.
+     * 
+     * @param file
+     *            the file to read
+     * @return the snapshot, or null if there isn't one or it can't be read
+     */
+    static FirstScreenSnapshot read(final File file) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(file)));
+            if (in.readInt() != MAGIC || in.readByte() != VERSION) {
+                Log.w(LOG_TAG, "Ignoring unknown snapshot " + file);
+                return null;
+            }
+            CardOrder cardOrder = CardOrder.valueOf(in.readUTF());
+            String selectedGroup = null;
+            if (in.readBoolean()) {
+                selectedGroup = in.readUTF();
+            }
+            int groupCount = in.readInt();
+            List<String> allGroups = new ArrayList<String>(groupCount);
+            for (int i = 0; i < groupCount; ++i) {
+                allGroups.add(in.readUTF());
+            }
+            int cardCount = in.readInt();
+            List<LoyaltyCard> shownCards = new ArrayList<LoyaltyCard>(
+                    cardCount);
+            for (int i = 0; i < cardCount; ++i) {
+                String name = in.readUTF();
+                String format = in.readUTF();
+                String data = in.readUTF();
+                String payload = in.readUTF();
+                if ("".equals(payload)) {
+                    payload = null;
+                }
+                shownCards.add(new LoyaltyCard(name, format, data, payload));
+            }
+            return new FirstScreenSnapshot(allGroups, selectedGroup,
+                    cardOrder, shownCards);
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Couldn't read " + file, e);
+            return null;
+        } catch (IllegalArgumentException e) {
+            // E.g. a CardOrder that's since been removed.
+            Log.w(LOG_TAG, "Couldn't parse " + file, e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    Log.w(LOG_TAG, "Couldn't close " + file, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Save the snapshot, replacing any other only once it's been written in
+     * full. Writes to storage, so shouldn't be called on the main thread.
+     * 
+     * @param file
+     *            the file to write
+     * @return true if it was written
+     */
+    boolean write(final File file) {
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(temp)));
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeUTF(order.name());
+            out.writeBoolean(group != null);
+            if (group != null) {
+                out.writeUTF(group);
+            }
+            out.writeInt(groups.size());
+            for (String g : groups) {
+                out.writeUTF(g);
+            }
+            out.writeInt(cards.size());
+            for (LoyaltyCard card : cards) {
+                out.writeUTF(card.getName());
+                out.writeUTF(card.getFormat());
+                out.writeUTF(card.getData());
+                if (card.getPayload().equals(card.getData())) {
+                    out.writeUTF("");
+                } else {
+                    out.writeUTF(card.getPayload());
+                }
+            }
+            out.close();
+            out = null;
+            if (!temp.renameTo(file)) {
+                Log.w(LOG_TAG, "Couldn't rename " + temp + " to " + file);
+                temp.delete();
+                return false;
+            }
+            return true;
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Couldn't write " + file, e);
+            temp.delete();
+            return false;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    Log.w(LOG_TAG, "Couldn't close " + temp, e);
+                }
+            }
+        }
+    }
+}
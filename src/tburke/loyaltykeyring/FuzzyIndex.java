@@ -0,0 +1,720 @@
+package tburke.loyaltykeyring;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * A search over card names that tolerates typos: "costco" finds "Cost-co
+ * Wholesale", and "safway" finds "Safeway".
+ * <p>
+ * Names are {@link CardIndex#normalize(String) normalized}, run together
+ * without spaces, padded, and split into overlapping trigrams. An inverted
+ * index maps each trigram to the sorted numbers of the cards whose names hold
+ * it, kept in plain <code>int</code> arrays. A card is a match if its name
+ * holds at least {@link #MIN_COVERAGE} of the query's trigrams, so a typo
+ * costs only the few trigrams around it; matches are ranked by the Dice
+ * coefficient of the two sets of trigrams, so that closer names come first.
+ * <p>
+ * Only cards appearing in the rarest of the query's posting lists can match
+ * (any card missing from all of them lacks too many trigrams), so those lists
+ * alone supply the candidates, of which at most {@link #MAX_CANDIDATES} are
+ * scored.
+ * <p>
+ * Like {@link CardIndex}, the index is kept up to date from the change
+ * journal. It's also saved to a file, so that after a restart only the file
+ * and the changes since need reading.
+ * 
+ * @author tburke
+ */
+final class FuzzyIndex extends JournalFollower {
+    /**
+     * Tag to be used when logging.
+     */
+    private static final String LOG_TAG = FuzzyIndex.class.getSimpleName();
+    /**
+     * Name of the file (in the files directory) holding the shared index.
+     */
+    private static final String FILE_NAME = "fuzzy-index";
+    /**
+     * Bumped whenever the file format, or the way names are split into
+     * trigrams, changes; older files are then ignored and the index rebuilt.
+     */
+    private static final int FILE_VERSION = 1;
+    /**
+     * The number of changes applied before the index is saved again; fewer
+     * are cheaper to replay from the journal than to save.
+     */
+    private static final int SAVE_INTERVAL = 100;
+    /**
+     * The fraction of the query's trigrams a name must hold to match.
+     */
+    private static final float MIN_COVERAGE = 0.5f;
+    /**
+     * The most candidates scored in one search.
+     */
+    private static final int MAX_CANDIDATES = 2000;
+    /**
+     * The initial capacity of the card table and of each posting list.
+     */
+    private static final int INITIAL_CAPACITY = 16;
+    /**
+     * Pads the ends of a name, so that its first and last characters make
+     * trigrams of their own; never part of a normalized name.
+     */
+    private static final char PAD = ' ';
+    /**
+     * Bits per character of an encoded trigram.
+     */
+    private static final int CHAR_BITS = 16;
+    /**
+     * Latency of {@link #search(String, int)}.
+     */
+    private static final Metrics.Timer SEARCH = Metrics.timer("fuzzy.search");
+    /**
+     * Latency of {@link #catchUp(CardStore)}, including loading and saving.
+     */
+    private static final Metrics.Timer CATCH_UP = Metrics
+            .timer("fuzzy.catchUp");
+
+    /**
+     * The shared instance.
+     */
+    private static FuzzyIndex instance = null;
+
+    /**
+     * The file the index is saved to; null if it's only kept in memory.
+     */
+    private final File file;
+    /**
+     * The cards, by number; null where a number is free.
+     */
+    private final List<LoyaltyCard> cards = new ArrayList<LoyaltyCard>();
+    /**
+     * The number of distinct trigrams in each card's name, by number.
+     */
+    private int[] trigramCounts = new int[INITIAL_CAPACITY];
+    /**
+     * Freed card numbers, to be reused.
+     */
+    private int[] freeNumbers = new int[INITIAL_CAPACITY];
+    /**
+     * The number of freed card numbers.
+     */
+    private int freeCount = 0;
+    /**
+     * Card numbers, by card ID.
+     */
+    private final Map<String, Integer> numbersByID = new HashMap<String, Integer>();
+    /**
+     * The posting lists, by {@link #encode(char, char, char) encoded}
+     * trigram.
+     */
+    private final Map<Long, Postings> postings = new HashMap<Long, Postings>();
+    /**
+     * The number of changes applied since the index was last saved.
+     */
+    private int unsaved = 0;
+    /**
+     * Whether the saved index has been loaded, or found missing.
+     */
+    private boolean loaded = false;
+
+    /**
+     * The sorted numbers of the cards whose names hold a trigram.
+     */
+    private static final class Postings {
+        /**
+         * The card numbers, in ascending order, then unused space.
+         */
+        private int[] numbers;
+        /**
+         * The number of card numbers.
+         */
+        private int size = 0;
+
+        /**
+         * Create an empty list.
+         * 
+         * @param capacity
+         *            the number of card numbers to make room for
+         */
+        Postings(final int capacity) {
+            numbers = new int[capacity];
+        }
+
+        /**
+         * Add a card number, keeping the list in order.
+         * 
+         * @param number
+         *            the card number
+         */
+        void add(final int number) {
+            if (size == numbers.length) {
+                numbers = grow(numbers, size * 2);
+            }
+            if (size == 0 || numbers[size - 1] < number) {
+                // New cards take the highest numbers, so most adds append.
+                numbers[size++] = number;
+                return;
+            }
+            int index = indexOf(number);
+            if (index >= 0) {
+                return;
+            }
+            index = -index - 1;
+            System.arraycopy(numbers, index, numbers, index + 1, size - index);
+            numbers[index] = number;
+            ++size;
+        }
+
+        /**
+         * Remove a card number.
+         * 
+         * @param number
+         *            the card number
+         */
+        void remove(final int number) {
+            int index = indexOf(number);
+            if (index >= 0) {
+                System.arraycopy(numbers, index + 1, numbers, index, size
+                        - index - 1);
+                --size;
+            }
+        }
+
+        /**
+         * Check whether the list holds a card number.
+         * 
+         * @param number
+         *            the card number
+         * @return true if it does
+         */
+        boolean contains(final int number) {
+            return indexOf(number) >= 0;
+        }
+
+        /**
+         * Find a card number (Arrays.binarySearch over a range needs API 9).
+         * 
+         * @param number
+         *            the card number
+         * @return its index, or (-(insertion point) - 1) if it isn't there
+         */
+        private int indexOf(final int number) {
+            int low = 0;
+            int high = size - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (numbers[mid] < number) {
+                    low = mid + 1;
+                } else if (numbers[mid] > number) {
+                    high = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -(low + 1);
+        }
+    }
+
+    /**
+     * A card found by a search, and how closely it matched.
+     */
+    private static final class Match {
+        /**
+         * The card.
+         */
+        private final LoyaltyCard card;
+        /**
+         * The Dice coefficient of the query's and the name's trigrams.
+         */
+        private final float score;
+
+        /**
+         * Create a match.
+         * 
+         * @param matched
+         *            the card
+         * @param similarity
+         *            the Dice coefficient
+         */
+        Match(final LoyaltyCard matched, final float similarity) {
+            card = matched;
+            score = similarity;
+        }
+    }
+
+    /**
+     * Orders matches worst first: by score, then by name, in reverse.
+     */
+    private static final Comparator<Match> WORST_FIRST = new Comparator<Match>() {
+        @Override
+        public int compare(final Match a, final Match b) {
+            if (a.score != b.score) {
+                return a.score < b.score ? -1 : 1;
+            }
+            return b.card.getName().compareTo(a.card.getName());
+        }
+    };
+
+    /**
+     * Orders posting lists by length.
+     */
+    private static final Comparator<Postings> SHORTEST_FIRST = new Comparator<Postings>() {
+        @Override
+        public int compare(final Postings a, final Postings b) {
+            return a.size < b.size ? -1 : (a.size == b.size ? 0 : 1);
+        }
+    };
+
+    /**
+     * Create an empty index.
+     * 
+     * @param indexFile
+     *            the file to save the index to, and load it from; null to
+     *            keep it only in memory
+     */
+    FuzzyIndex(final File indexFile) {
+        super(CATCH_UP);
+        file = indexFile;
+    }
+
+    /**
+     * Get the shared index, saved in the application's files directory. May
+     * touch the disk, so shouldn't be called on the main thread.
+     * 
+     * @param ctx
+     *            any context from this application
+     * @return the shared index
+     */
+    static synchronized FuzzyIndex getInstance(final Context ctx) {
+        if (instance == null) {
+            instance = new FuzzyIndex(new File(ctx.getApplicationContext()
+                    .getFilesDir(), FILE_NAME));
+        }
+        return instance;
+    }
+
+    /**
+     * Load the saved index before the first catch-up.
+     * 
+     * @param store
+     *            the store whose journal is about to be read
+     */
+    @Override
+    void beforeCatchUp(final CardStore store) {
+        if (!loaded) {
+            loaded = true;
+            load(store.getJournalSequence());
+        }
+    }
+
+    /**
+     * Save the index if enough has changed.
+     * 
+     * @param applied
+     *            the number of changes just applied
+     */
+    @Override
+    void afterCatchUp(final int applied) {
+        unsaved += applied;
+        if (unsaved >= SAVE_INTERVAL) {
+            save();
+        }
+    }
+
+    /**
+     * Apply a change from the journal. Only names matter here; changes to
+     * groups are ignored.
+     * 
+     * @param change
+     *            the change
+     */
+    @Override
+    void apply(final Change change) {
+        String id = change.getCardID();
+        switch (change.getOp()) {
+        case ADD:
+        case RENAME:
+            LoyaltyCard card = renamed(change, removeCard(id));
+            if (card != null) {
+                addCard(card);
+            }
+            break;
+        case DELETE:
+            removeCard(id);
+            break;
+        case TAG:
+        case UNTAG:
+            break;
+        default:
+            throw new IllegalArgumentException("Unknown change " + change);
+        }
+    }
+
+    /**
+     * Index a card under a free number.
+     * 
+     * @param card
+     *            the card
+     */
+    private void addCard(final LoyaltyCard card) {
+        int number;
+        if (freeCount > 0) {
+            number = freeNumbers[--freeCount];
+            cards.set(number, card);
+        } else {
+            number = cards.size();
+            cards.add(card);
+            if (number == trigramCounts.length) {
+                trigramCounts = grow(trigramCounts, number * 2);
+            }
+        }
+        long[] trigrams = trigrams(CardIndex.normalize(card.getName()));
+        trigramCounts[number] = trigrams.length;
+        numbersByID.put(card.getID(), number);
+        for (long trigram : trigrams) {
+            Postings list = postings.get(trigram);
+            if (list == null) {
+                list = new Postings(INITIAL_CAPACITY);
+                postings.put(trigram, list);
+            }
+            list.add(number);
+        }
+    }
+
+    /**
+     * Stop indexing a card, freeing its number.
+     * 
+     * @param id
+     *            the card's ID
+     * @return the card, or null if it wasn't indexed
+     */
+    private LoyaltyCard removeCard(final String id) {
+        Integer number = numbersByID.remove(id);
+        if (number == null) {
+            return null;
+        }
+        LoyaltyCard card = cards.get(number);
+        for (long trigram : trigrams(CardIndex.normalize(card.getName()))) {
+            Postings list = postings.get(trigram);
+            if (list != null) {
+                list.remove(number);
+                if (list.size == 0) {
+                    postings.remove(trigram);
+                }
+            }
+        }
+        cards.set(number, null);
+        if (freeCount == freeNumbers.length) {
+            freeNumbers = grow(freeNumbers, freeCount * 2);
+        }
+        freeNumbers[freeCount++] = number;
+        return card;
+    }
+
+    /**
+     * Find the cards whose names most resemble a query.
+     * 
+     * @param query
+     *            what's been typed
+     * @param limit
+     *            the most cards to return
+     * @return the cards, closest first; empty if nothing is close enough, or
+     *         the index isn't ready
+     */
+    synchronized List<LoyaltyCard> search(final String query, final int limit) {
+        long start = Metrics.start();
+        long[] trigrams = trigrams(CardIndex.normalize(query));
+        if (trigrams.length == 0 || limit <= 0) {
+            SEARCH.stop(start);
+            return Collections.emptyList();
+        }
+        Postings[] lists = new Postings[trigrams.length];
+        int found = 0;
+        for (long trigram : trigrams) {
+            Postings list = postings.get(trigram);
+            if (list != null) {
+                lists[found++] = list;
+            }
+        }
+        int needed = (int) Math.ceil(MIN_COVERAGE * trigrams.length);
+        // A match lacks at most (trigrams - needed) of the query's trigrams,
+        // so it's in at least one of any (trigrams - needed + 1) lists.
+        int seeds = trigrams.length - needed + 1 - (trigrams.length - found);
+        if (seeds <= 0) {
+            SEARCH.stop(start);
+            return Collections.emptyList();
+        }
+        Arrays.sort(lists, 0, found, SHORTEST_FIRST);
+
+        // Candidates, with how many of the seed lists hold each.
+        int total = 0;
+        for (int i = 0; i < seeds; ++i) {
+            total += lists[i].size;
+        }
+        int[] candidates = new int[Math.min(total, MAX_CANDIDATES)];
+        int count = 0;
+        for (int i = 0; i < seeds && count < candidates.length; ++i) {
+            int take = Math.min(lists[i].size, candidates.length - count);
+            System.arraycopy(lists[i].numbers, 0, candidates, count, take);
+            count += take;
+        }
+        Arrays.sort(candidates, 0, count);
+
+        PriorityQueue<Match> best = new PriorityQueue<Match>(limit + 1,
+                WORST_FIRST);
+        for (int i = 0; i < count;) {
+            int number = candidates[i];
+            int shared = 0;
+            while (i < count && candidates[i] == number) {
+                ++shared;
+                ++i;
+            }
+            for (int j = seeds; j < found; ++j) {
+                if (lists[j].contains(number)) {
+                    ++shared;
+                }
+            }
+            if (shared >= needed) {
+                float score = 2f * shared
+                        / (trigrams.length + trigramCounts[number]);
+                best.add(new Match(cards.get(number), score));
+                if (best.size() > limit) {
+                    best.poll();
+                }
+            }
+        }
+        List<LoyaltyCard> result = new ArrayList<LoyaltyCard>(best.size());
+        while (!best.isEmpty()) {
+            result.add(best.poll().card);
+        }
+        Collections.reverse(result);
+        SEARCH.stop(start);
+        return result;
+    }
+
+    /**
+     * Split a normalized name into its distinct trigrams: the name is run
+     * together without spaces, padded with two {@link #PAD}s before and one
+     * after, and every run of three characters taken.
+     * 
+     * @param normalized
+     *            the normalized name
+     * @return the {@link #encode(char, char, char) encoded} trigrams, in
+     *         ascending order; empty if the name is
+     */
+    static long[] trigrams(final String normalized) {
+        StringBuilder padded = new StringBuilder(normalized.length() + 3);
+        padded.append(PAD).append(PAD);
+        for (int i = 0; i < normalized.length(); ++i) {
+            char c = normalized.charAt(i);
+            if (c != ' ') {
+                padded.append(c);
+            }
+        }
+        if (padded.length() == 2) {
+            return new long[0];
+        }
+        padded.append(PAD);
+        long[] result = new long[padded.length() - 2];
+        for (int i = 0; i < result.length; ++i) {
+            result[i] = encode(padded.charAt(i), padded.charAt(i + 1),
+                    padded.charAt(i + 2));
+        }
+        Arrays.sort(result);
+        int distinct = 0;
+        for (int i = 0; i < result.length; ++i) {
+            if (i == 0 || result[i] != result[i - 1]) {
+                result[distinct++] = result[i];
+            }
+        }
+        if (distinct == result.length) {
+            return result;
+        }
+        long[] trimmed = new long[distinct];
+        System.arraycopy(result, 0, trimmed, 0, distinct);
+        return trimmed;
+    }
+
+    /**
+     * Copy an array into a larger one (Arrays.copyOf needs API 9).
+     * 
+     * @param array
+     *            the array
+     * @param length
+     *            the new length
+     * @return the new array
+     */
+    private static int[] grow(final int[] array, final int length) {
+        int[] result = new int[length];
+        System.arraycopy(array, 0, result, 0, array.length);
+        return result;
+    }
+
+    /**
+     * Pack a trigram into a long.
+     * 
+     * @param a
+     *            the first character
+     * @param b
+     *            the second character
+     * @param c
+     *            the third character
+     * @return the trigram
+     */
+    private static long encode(final char a, final char b, final char c) {
+        return ((long) a << (2 * CHAR_BITS)) | ((long) b << CHAR_BITS) | c;
+    }
+
+    /**
+     * Load the saved index, unless it's missing, unreadable, out of date or
+     * ahead of the journal (e.g. after the data was cleared), in which case
+     * the index is rebuilt from scratch.
+     * 
+     * @param latest
+     *            the store's current journal sequence number
+     */
+    private void load(final long latest) {
+        if (file == null) {
+            return;
+        }
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(file)));
+        } catch (FileNotFoundException e) {
+            return;
+        }
+        try {
+            if (in.readInt() != FILE_VERSION) {
+                Log.i(LOG_TAG, "Rebuilding index saved by another version");
+                return;
+            }
+            long saved = in.readLong();
+            if (saved > latest) {
+                Log.i(LOG_TAG, "Rebuilding index ahead of the journal ("
+                        + saved + " > " + latest + ")");
+                return;
+            }
+            int size = in.readInt();
+            List<LoyaltyCard> savedCards = new ArrayList<LoyaltyCard>(size);
+            int[] savedCounts = new int[Math.max(size, INITIAL_CAPACITY)];
+            int[] savedFree = new int[savedCounts.length];
+            int savedFreeCount = 0;
+            Map<String, Integer> savedNumbers = new HashMap<String, Integer>();
+            for (int number = 0; number < size; ++number) {
+                if (!in.readBoolean()) {
+                    savedCards.add(null);
+                    savedFree[savedFreeCount++] = number;
+                    continue;
+                }
+                String name = in.readUTF();
+                String id = in.readUTF();
+                String payload = in.readUTF();
+                savedCards.add(new LoyaltyCard(name, LoyaltyCard
+                        .getFormatFromID(id), LoyaltyCard.getDataFromID(id),
+                        payload));
+                savedCounts[number] = in.readInt();
+                savedNumbers.put(id, number);
+            }
+            Map<Long, Postings> savedPostings = new HashMap<Long, Postings>();
+            for (int lists = in.readInt(); lists > 0; --lists) {
+                long trigram = in.readLong();
+                int length = in.readInt();
+                Postings list = new Postings(Math.max(length,
+                        INITIAL_CAPACITY));
+                for (int i = 0; i < length; ++i) {
+                    list.numbers[i] = in.readInt();
+                }
+                list.size = length;
+                savedPostings.put(trigram, list);
+            }
+            synchronized (this) {
+                cards.addAll(savedCards);
+                trigramCounts = savedCounts;
+                freeNumbers = savedFree;
+                freeCount = savedFreeCount;
+                numbersByID.putAll(savedNumbers);
+                postings.putAll(savedPostings);
+                setSequence(saved);
+            }
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Rebuilding unreadable index", e);
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Couldn't close " + file, e);
+            }
+        }
+    }
+
+    /**
+     * Save the index, replacing the file only once it's complete. Called
+     * while catching up, so nothing changes meanwhile.
+     */
+    private void save() {
+        if (file == null) {
+            return;
+        }
+        File temp = new File(file.getPath() + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(temp)));
+            try {
+                out.writeInt(FILE_VERSION);
+                out.writeLong(getSequence());
+                out.writeInt(cards.size());
+                for (int number = 0; number < cards.size(); ++number) {
+                    LoyaltyCard card = cards.get(number);
+                    out.writeBoolean(card != null);
+                    if (card != null) {
+                        out.writeUTF(card.getName());
+                        out.writeUTF(card.getID());
+                        out.writeUTF(card.getPayload());
+                        out.writeInt(trigramCounts[number]);
+                    }
+                }
+                out.writeInt(postings.size());
+                for (Map.Entry<Long, Postings> entry : postings.entrySet()) {
+                    Postings list = entry.getValue();
+                    out.writeLong(entry.getKey());
+                    out.writeInt(list.size);
+                    for (int i = 0; i < list.size; ++i) {
+                        out.writeInt(list.numbers[i]);
+                    }
+                }
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(file)) {
+                throw new IOException("Couldn't replace " + file);
+            }
+            unsaved = 0;
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Couldn't save index", e);
+            if (!temp.delete() && temp.exists()) {
+                Log.w(LOG_TAG, "Couldn't delete " + temp);
+            }
+        }
+    }
+}
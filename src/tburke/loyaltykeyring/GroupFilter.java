@@ -0,0 +1,189 @@
+package tburke.loyaltykeyring;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * A combination of groups to filter cards by: a card matches if it's in
+ * every {@link Membership#REQUIRED} group (AND), in at least one
+ * {@link Membership#EITHER} group if there are any (OR), and in none of the
+ * {@link Membership#EXCLUDED} groups (NOT). An empty filter matches every
+ * card.
+ * <p>
+ * Immutable.
+ * 
+ * @author tburke
+ * 
+ * @see CardStore#getCardsByGroups(GroupFilter)
+ */
+final class GroupFilter implements Serializable {
+    /**
+     * Serialization version.
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * How a group takes part in a filter.
+     */
+    enum Membership {
+        /**
+         * Matching cards must be in the group.
+         */
+        REQUIRED,
+        /**
+         * Matching cards must be in this group or another such.
+         */
+        EITHER,
+        /**
+         * Matching cards must not be in the group.
+         */
+        EXCLUDED,
+    }
+
+    /**
+     * Each group taking part, and how; in group order.
+     * 
+     * @serial
+     */
+    private final TreeMap<String, Membership> groups;
+
+    /**
+     * Create a filter.
+     * 
+     * @param memberships
+     *            each group taking part, and how
+     */
+    GroupFilter(final Map<String, Membership> memberships) {
+        groups = new TreeMap<String, Membership>(memberships);
+        if (groups.containsValue(null)) {
+            throw new IllegalArgumentException("No membership for a group in "
+                    + memberships);
+        }
+    }
+
+    /**
+     * Create a filter for the cards in one group and matching another filter.
+     * If the group is one of the other filter's {@link Membership#EITHER}
+     * groups, being in it satisfies them, so they're dropped.
+     * 
+     * @param group
+     *            the group the cards must be in
+     * @param others
+     *            the rest of the filter
+     * @return the combined filter
+     */
+    static GroupFilter inGroup(final String group, final GroupFilter others) {
+        Map<String, Membership> memberships = new TreeMap<String, Membership>(
+                others.groups);
+        if (memberships.get(group) == Membership.EITHER) {
+            memberships.values().removeAll(
+                    Collections.singleton(Membership.EITHER));
+        }
+        memberships.put(group, Membership.REQUIRED);
+        return new GroupFilter(memberships);
+    }
+
+    /**
+     * Check whether the filter matches every card.
+     * 
+     * @return true if no group takes part
+     */
+    boolean isEmpty() {
+        return groups.isEmpty();
+    }
+
+    /**
+     * Get how a group takes part.
+     * 
+     * @param group
+     *            the group
+     * @return its membership, or null if it doesn't take part
+     */
+    Membership getMembership(final String group) {
+        return groups.get(group);
+    }
+
+    /**
+     * Get the groups that take part in a given way.
+     * 
+     * @param membership
+     *            the way
+     * @return the groups, in order
+     */
+    SortedSet<String> getGroups(final Membership membership) {
+        SortedSet<String> result = new TreeSet<String>();
+        for (Map.Entry<String, Membership> entry : groups.entrySet()) {
+            if (entry.getValue() == membership) {
+                result.add(entry.getKey());
+            }
+        }
+        return Collections.unmodifiableSortedSet(result);
+    }
+
+    /**
+     * Check whether a card matches.
+     * 
+     * @param cardGroups
+     *            the groups the card is in
+     * @return true if the card's groups satisfy the filter
+     */
+    boolean matches(final Set<String> cardGroups) {
+        boolean either = false;
+        boolean eitherFound = false;
+        for (Map.Entry<String, Membership> entry : groups.entrySet()) {
+            boolean member = cardGroups.contains(entry.getKey());
+            switch (entry.getValue()) {
+            case REQUIRED:
+                if (!member) {
+                    return false;
+                }
+                break;
+            case EITHER:
+                either = true;
+                eitherFound |= member;
+                break;
+            case EXCLUDED:
+                if (member) {
+                    return false;
+                }
+                break;
+            default:
+                throw new IllegalStateException("Unknown membership "
+                        + entry.getValue());
+            }
+        }
+        return !either || eitherFound;
+    }
+
+    /**
+     * Check whether cards in a group are excluded.
+     * 
+     * @param group
+     *            the group
+     * @return true if no card in the group can match
+     */
+    boolean excludes(final String group) {
+        return groups.get(group) == Membership.EXCLUDED;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        return o instanceof GroupFilter
+                && groups.equals(((GroupFilter) o).groups);
+    }
+
+    @Override
+    public int hashCode() {
+        return groups.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "GroupFilter" + groups;
+    }
+}
@@ -0,0 +1,225 @@
+package tburke.loyaltykeyring;
+
+import android.app.Activity;
+import android.app.AlertDialog;
+import android.app.Dialog;
+import android.content.DialogInterface;
+import android.os.Bundle;
+import android.support.v4.app.DialogFragment;
+import android.view.View;
+import android.widget.AdapterView;
+import android.widget.ArrayAdapter;
+import android.widget.ListView;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Dialog to choose a combination of groups to filter cards by. Tapping a
+ * group cycles through the ways it can take part: cards must be in it, in it
+ * or another such, or not in it; or it doesn't take part.
+ * 
+ * @author tburke
+ * 
+ * @see GroupFilter
+ */
+public class GroupFilterDialogFragment extends DialogFragment {
+    /**
+     * Key for the groups to choose from, as a String[] (REQUIRED).
+     */
+    public static final String GROUPS = "GROUPS";
+    /**
+     * Key for the current {@link GroupFilter} (OPTIONAL).
+     */
+    public static final String FILTER = "FILTER";
+    /**
+     * Key for the number of cards in each group, as an int[] matching
+     * {@link #GROUPS} (OPTIONAL).
+     */
+    public static final String COUNTS = "COUNTS";
+
+    /**
+     * Event listener to be used with GroupFilterDialogFragment.
+     */
+    public interface Listener {
+        /**
+         * Event to be called when the dialog closes.
+         * 
+         * @param filter
+         *            the filter chosen, which is empty if the user cleared it;
+         *            or null if the user canceled
+         */
+        void onFilter(GroupFilter filter);
+    }
+
+    /**
+     * The event listener to receive the user's choice.
+     */
+    private Listener resultListener = null;
+    /**
+     * The groups to choose from.
+     */
+    private String[] groups;
+    /**
+     * The number of cards in each group; null if they aren't known.
+     */
+    private int[] counts;
+    /**
+     * How each group takes part, as chosen so far.
+     */
+    private final Map<String, GroupFilter.Membership> memberships = new HashMap<String, GroupFilter.Membership>();
+    /**
+     * The user's choice.
+     */
+    private GroupFilter result = null;
+
+    @Override
+    public void onAttach(final Activity activity) {
+        super.onAttach(activity);
+
+        groups = getArguments().getStringArray(GROUPS);
+        if (groups == null) {
+            throw new IllegalArgumentException("Argument required:" + GROUPS);
+        }
+        counts = getArguments().getIntArray(COUNTS);
+        if (counts != null && counts.length != groups.length) {
+            throw new IllegalArgumentException(counts.length + " " + COUNTS
+                    + " for " + groups.length + " " + GROUPS);
+        }
+
+        if (resultListener == null) {
+            try {
+                resultListener = (Listener) activity;
+            } catch (ClassCastException e) {
+                throw new ClassCastException(activity.toString()
+                        + " must implement GroupFilterDialogFragment.Listener");
+            }
+        }
+    }
+
+    @Override
+    public Dialog onCreateDialog(final Bundle savedInstanceState) {
+        GroupFilter current;
+        if (savedInstanceState != null) {
+            current = (GroupFilter) savedInstanceState.getSerializable(FILTER);
+        } else {
+            current = (GroupFilter) getArguments().getSerializable(FILTER);
+        }
+        memberships.clear();
+        if (current != null) {
+            for (String group : groups) {
+                if (current.getMembership(group) != null) {
+                    memberships.put(group, current.getMembership(group));
+                }
+            }
+        }
+
+        final List<String> labels = new ArrayList<String>(groups.length);
+        for (int i = 0; i < groups.length; ++i) {
+            labels.add(label(i));
+        }
+        final ArrayAdapter<String> adapter = new ArrayAdapter<String>(
+                getActivity(), android.R.layout.simple_list_item_1, labels);
+        ListView list = new ListView(getActivity());
+        list.setAdapter(adapter);
+        list.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+            @Override
+            public void onItemClick(final AdapterView<?> parent,
+                    final View view, final int position, final long id) {
+                String group = groups[position];
+                GroupFilter.Membership next = next(memberships.get(group));
+                if (next == null) {
+                    memberships.remove(group);
+                } else {
+                    memberships.put(group, next);
+                }
+                labels.set(position, label(position));
+                adapter.notifyDataSetChanged();
+            }
+        });
+
+        return new AlertDialog.Builder(getActivity())
+                .setTitle(R.string.filter_groups_title)
+                .setView(list)
+                .setPositiveButton(android.R.string.ok,
+                        new DialogInterface.OnClickListener() {
+                            @Override
+                            public void onClick(final DialogInterface dialog,
+                                    final int which) {
+                                result = new GroupFilter(memberships);
+                            }
+                        })
+                .setNeutralButton(R.string.filter_clear,
+                        new DialogInterface.OnClickListener() {
+                            @Override
+                            public void onClick(final DialogInterface dialog,
+                                    final int which) {
+                                memberships.clear();
+                                result = new GroupFilter(memberships);
+                            }
+                        }).setNegativeButton(android.R.string.cancel, null)
+                .create();
+    }
+
+    /**
+     * Get the next way for a group to take part, when it's tapped.
+     * 
+     * @param membership
+     *            how the group takes part now; null if it doesn't
+     * @return how it should take part; null if it shouldn't
+     */
+    private static GroupFilter.Membership next(
+            final GroupFilter.Membership membership) {
+        GroupFilter.Membership[] values = GroupFilter.Membership.values();
+        if (membership == null) {
+            return values[0];
+        }
+        if (membership.ordinal() + 1 == values.length) {
+            return null;
+        }
+        return values[membership.ordinal() + 1];
+    }
+
+    /**
+     * Describe a group, how many cards it has, and how it takes part.
+     * 
+     * @param position
+     *            the group's position in {@link #groups}
+     * @return the label for the group's row
+     */
+    private String label(final int position) {
+        String group = groups[position];
+        GroupFilter.Membership membership = memberships.get(group);
+        if (counts != null) {
+            group = getString(R.string.filter_group_count, group,
+                    counts[position]);
+        }
+        if (membership == null) {
+            return group;
+        }
+        switch (membership) {
+        case REQUIRED:
+            return getString(R.string.filter_required, group);
+        case EITHER:
+            return getString(R.string.filter_either, group);
+        case EXCLUDED:
+            return getString(R.string.filter_excluded, group);
+        default:
+            throw new IllegalStateException("Unknown membership " + membership);
+        }
+    }
+
+    @Override
+    public void onSaveInstanceState(final Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putSerializable(FILTER, new GroupFilter(memberships));
+    }
+
+    @Override
+    public void onStop() {
+        super.onStop();
+        resultListener.onFilter(result);
+    }
+}
@@ -0,0 +1,218 @@
+package tburke.loyaltykeyring;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * An in-memory index of group membership as {@link CardBitmap}s, so that
+ * group counts, filters and a card's groups are answered with bit operations
+ * rather than queries.
+ * <p>
+ * Each card is given a dense ordinal when the index first sees it; each group
+ * is the bitmap of its cards' ordinals. Like {@link CardIndex}, the index is a
+ * {@link JournalFollower}, kept up to date from the change journal, which
+ * records every
+ * {@link CardStore#addTag(LoyaltyCard, String)},
+ * {@link CardStore#removeTag(LoyaltyCard, String)} and
+ * {@link CardStore#deleteTag(String)}. Catching up is meant for a background
+ * thread; lookups may run meanwhile.
+ * 
+ * @author tburke
+ */
+final class GroupIndex extends JournalFollower {
+    /**
+     * Latency of {@link #getCards(GroupFilter)}.
+     */
+    private static final Metrics.Timer GET_CARDS = Metrics
+            .timer("groups.getCards");
+    /**
+     * Latency of {@link #getCounts()}.
+     */
+    private static final Metrics.Timer GET_COUNTS = Metrics
+            .timer("groups.getCounts");
+    /**
+     * Latency of {@link #catchUp(CardStore)}.
+     */
+    private static final Metrics.Timer CATCH_UP = Metrics
+            .timer("groups.catchUp");
+
+    /**
+     * The ordinal of each card the index has seen, by ID. Ordinals aren't
+     * reused, so a deleted card keeps its groups should it come back.
+     */
+    private final Map<String, Integer> ordinalsByID = new HashMap<String, Integer>();
+    /**
+     * Each card by its ordinal; null for deleted cards.
+     */
+    private final List<LoyaltyCard> cards = new ArrayList<LoyaltyCard>();
+    /**
+     * The ordinals of the cards that exist.
+     */
+    private final CardBitmap present = new CardBitmap();
+    /**
+     * The ordinals of each group's cards, by group; deleted cards included,
+     * as the store keeps their memberships.
+     */
+    private final Map<String, CardBitmap> members = new HashMap<String, CardBitmap>();
+    /**
+     * Create an empty index; the first {@link #catchUp(CardStore)} builds it.
+     */
+    GroupIndex() {
+        super(CATCH_UP);
+    }
+
+    @Override
+    void apply(final Change change) {
+        String id = change.getCardID();
+        switch (change.getOp()) {
+        case ADD:
+        case RENAME:
+            Integer known = ordinalsByID.get(id);
+            LoyaltyCard card = renamed(change, known == null ? null : cards
+                    .get(known));
+            if (card != null) {
+                int ordinal = ordinal(id);
+                cards.set(ordinal, card);
+                present.add(ordinal);
+            }
+            break;
+        case DELETE:
+            Integer deleted = ordinalsByID.get(id);
+            if (deleted != null) {
+                cards.set(deleted, null);
+                present.remove(deleted);
+            }
+            break;
+        case TAG:
+            CardBitmap group = members.get(change.getTag());
+            if (group == null) {
+                group = new CardBitmap();
+                members.put(change.getTag(), group);
+            }
+            group.add(ordinal(id));
+            break;
+        case UNTAG:
+            CardBitmap untagged = members.get(change.getTag());
+            Integer ordinal = ordinalsByID.get(id);
+            if (untagged != null && ordinal != null && untagged.remove(ordinal)
+                    && untagged.isEmpty()) {
+                members.remove(change.getTag());
+            }
+            break;
+        default:
+            throw new IllegalArgumentException("Unknown change " + change);
+        }
+    }
+
+    /**
+     * Get a card's ordinal, giving it one if it has none yet.
+     * 
+     * @param id
+     *            the card's ID
+     * @return its ordinal
+     */
+    private int ordinal(final String id) {
+        Integer ordinal = ordinalsByID.get(id);
+        if (ordinal == null) {
+            ordinal = cards.size();
+            ordinalsByID.put(id, ordinal);
+            cards.add(null);
+        }
+        return ordinal;
+    }
+
+    /**
+     * Count each group's cards.
+     * 
+     * @return the number of existing cards in each group, by group, in group
+     *         order; groups whose cards are all deleted count 0
+     */
+    synchronized SortedMap<String, Integer> getCounts() {
+        long start = Metrics.start();
+        SortedMap<String, Integer> result = new TreeMap<String, Integer>();
+        for (Map.Entry<String, CardBitmap> entry : members.entrySet()) {
+            result.put(entry.getKey(),
+                    CardBitmap.andCardinality(entry.getValue(), present));
+        }
+        GET_COUNTS.stop(start);
+        return result;
+    }
+
+    /**
+     * Get the cards matching a filter, as
+     * {@link CardStore#getCardsByGroups(GroupFilter)} would.
+     * 
+     * @param filter
+     *            the filter
+     * @return the matching cards, ordered by name
+     */
+    synchronized List<LoyaltyCard> getCards(final GroupFilter filter) {
+        long start = Metrics.start();
+        CardBitmap matched = present;
+        for (String group : filter.getGroups(GroupFilter.Membership.REQUIRED)) {
+            matched = CardBitmap.and(matched, bitmap(group));
+        }
+        SortedSet<String> either = filter
+                .getGroups(GroupFilter.Membership.EITHER);
+        if (!either.isEmpty()) {
+            CardBitmap any = new CardBitmap();
+            for (String group : either) {
+                any = CardBitmap.or(any, bitmap(group));
+            }
+            matched = CardBitmap.and(matched, any);
+        }
+        for (String group : filter.getGroups(GroupFilter.Membership.EXCLUDED)) {
+            matched = CardBitmap.andNot(matched, bitmap(group));
+        }
+        int[] ordinals = matched.toArray();
+        List<LoyaltyCard> result = new ArrayList<LoyaltyCard>(ordinals.length);
+        for (int ordinal : ordinals) {
+            result.add(cards.get(ordinal));
+        }
+        Collections.sort(result, LoyaltyCard.NAME_ORDER);
+        GET_CARDS.stop(start);
+        return result;
+    }
+
+    /**
+     * Get the groups a card is in.
+     * 
+     * @param card
+     *            the card
+     * @return its groups, in order
+     */
+    synchronized SortedSet<String> getGroups(final LoyaltyCard card) {
+        SortedSet<String> result = new TreeSet<String>();
+        Integer ordinal = ordinalsByID.get(card.getID());
+        if (ordinal != null) {
+            for (Map.Entry<String, CardBitmap> entry : members.entrySet()) {
+                if (entry.getValue().contains(ordinal)) {
+                    result.add(entry.getKey());
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get a group's bitmap.
+     * 
+     * @param group
+     *            the group
+     * @return the ordinals of its cards; empty if it has none
+     */
+    private CardBitmap bitmap(final String group) {
+        CardBitmap result = members.get(group);
+        if (result == null) {
+            return new CardBitmap();
+        }
+        return result;
+    }
+}
@@ -0,0 +1,176 @@
+package tburke.loyaltykeyring;
+
+import tburke.loyaltykeyring.barcode.BarcodePayloads;
+
+import java.util.List;
+
+/**
+ * An in-memory index kept up to date from the change journal. Each
+ * {@link #catchUp(CardStore)} applies the changes made since the last,
+ * however they were made, so the first builds the whole index and the rest
+ * cost only what changed.
+ * <p>
+ * Only one thread catches up at a time. Each batch of changes is applied
+ * holding the follower's own lock, so lookups that synchronize on it may run
+ * meanwhile and never see half a batch.
+ * 
+ * @author tburke
+ */
+abstract class JournalFollower {
+    /**
+     * The number of changes read from the journal at a time.
+     */
+    private static final int BATCH_SIZE = 500;
+
+    /**
+     * Latency of {@link #catchUp(CardStore)}.
+     */
+    private final Metrics.Timer catchUpTimer;
+    /**
+     * The sequence number of the last change applied.
+     */
+    private long sequence = 0;
+    /**
+     * Whether the index has caught up at least once.
+     */
+    private boolean ready = false;
+    /**
+     * Held while catching up, so that only one thread does at a time.
+     */
+    private final Object catchUpLock = new Object();
+
+    /**
+     * Create a follower that has seen nothing yet.
+     * 
+     * @param timer
+     *            records the latency of each catch-up
+     */
+    JournalFollower(final Metrics.Timer timer) {
+        catchUpTimer = timer;
+    }
+
+    /**
+     * Check whether the index has been built.
+     * 
+     * @return true once the first {@link #catchUp(CardStore)} has finished
+     */
+    final synchronized boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * Apply every change made since the last catch-up. Reads the journal, so
+     * shouldn't be called on the main thread.
+     * 
+     * @param store
+     *            the store whose journal to read
+     * @return the number of changes applied
+     */
+    final int catchUp(final CardStore store) {
+        long start = Metrics.start();
+        int applied = 0;
+        synchronized (catchUpLock) {
+            beforeCatchUp(store);
+            while (true) {
+                long from = getSequence();
+                List<Change> changes = store.getChangesSince(from, BATCH_SIZE);
+                if (changes.isEmpty()) {
+                    break;
+                }
+                synchronized (this) {
+                    for (Change change : changes) {
+                        apply(change);
+                    }
+                    sequence = changes.get(changes.size() - 1).getSequence();
+                }
+                applied += changes.size();
+            }
+            synchronized (this) {
+                ready = true;
+            }
+            afterCatchUp(applied);
+        }
+        catchUpTimer.stop(start);
+        return applied;
+    }
+
+    /**
+     * Called at the start of each catch-up, before the journal is read; only
+     * one thread is catching up. Does nothing unless overridden.
+     * 
+     * @param store
+     *            the store whose journal is about to be read
+     */
+    void beforeCatchUp(final CardStore store) {
+    }
+
+    /**
+     * Called at the end of each catch-up, once the journal has been read;
+     * only one thread is catching up. Does nothing unless overridden.
+     * 
+     * @param applied
+     *            the number of changes just applied
+     */
+    void afterCatchUp(final int applied) {
+    }
+
+    /**
+     * Apply a change from the journal. Called holding the follower's lock.
+     * 
+     * @param change
+     *            the change
+     */
+    abstract void apply(Change change);
+
+    /**
+     * Getter for the position in the journal.
+     * 
+     * @return the sequence number of the last change applied
+     */
+    final synchronized long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Skip to a position in the journal, e.g. after loading a saved copy of
+     * the index.
+     * 
+     * @param latest
+     *            the sequence number of the last change already applied
+     */
+    final synchronized void setSequence(final long latest) {
+        sequence = latest;
+    }
+
+    /**
+     * Get the card an {@link Change.Op#ADD} or {@link Change.Op#RENAME}
+     * leaves: the card with the change's name, and its payload as the store
+     * normalized it when the card was saved.
+     * 
+     * @param change
+     *            the change
+     * @param existing
+     *            the card as indexed before the change, or null if it wasn't
+     * @return the card, or null if the change's card ID is malformed
+     */
+    static LoyaltyCard renamed(final Change change,
+            final LoyaltyCard existing) {
+        String id = change.getCardID();
+        String format = LoyaltyCard.getFormatFromID(id);
+        String data = LoyaltyCard.getDataFromID(id);
+        if (format == null || data == null) {
+            return null;
+        }
+        String payload;
+        if (existing != null) {
+            payload = existing.getPayload();
+        } else {
+            try {
+                payload = BarcodePayloads.normalize(format, data);
+            } catch (IllegalArgumentException e) {
+                payload = null;
+            }
+        }
+        return new LoyaltyCard(change.getName(), format, data, payload);
+    }
+}
@@ -0,0 +1,365 @@
+package tburke.loyaltykeyring;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads cards from a JSON keyring export, one object at a time.
+ * <p>
+ * The export is an array of objects, each with string members "name",
+ * "format" and "data", and optionally an array of strings "groups". Other
+ * members are ignored. The array may also be the "cards" member of a top-level
+ * object. Only the current card is ever held in memory;
+ * {@link android.util.JsonReader} would do the same, but isn't available
+ * before Honeycomb.
+ * 
+ * @author tburke
+ */
+final class JsonCardReader implements CardRecordReader {
+    /**
+     * Refuse strings longer than this, rather than buffer a runaway quote.
+     */
+    private static final int MAX_STRING_LENGTH = 4096;
+    /**
+     * Radix of \\u escapes.
+     */
+    private static final int HEX = 16;
+    /**
+     * Number of digits in a \\u escape.
+     */
+    private static final int UNICODE_ESCAPE_LENGTH = 4;
+
+    /**
+     * The input.
+     */
+    private final BufferedReader in;
+    /**
+     * Reused to accumulate strings.
+     */
+    private final StringBuilder buffer = new StringBuilder();
+    /**
+     * Whether the opening '[' has been consumed.
+     */
+    private boolean started = false;
+    /**
+     * Whether the closing ']' has been consumed.
+     */
+    private boolean finished = false;
+
+    /**
+     * Create a reader over a JSON export.
+     * 
+     * @param input
+     *            the export
+     */
+    JsonCardReader(final BufferedReader input) {
+        in = input;
+    }
+
+    @Override
+    public CardRecord read() throws IOException {
+        if (finished) {
+            return null;
+        }
+        if (!started) {
+            started = true;
+            int c = peek();
+            if (c == '{') {
+                findCardsMember();
+            }
+            expect('[');
+            if (peek() == ']') {
+                in.read();
+                finished = true;
+                return null;
+            }
+        } else {
+            int c = next();
+            if (c == ']') {
+                finished = true;
+                return null;
+            } else if (c != ',') {
+                throw syntaxError(c, "',' or ']'");
+            }
+        }
+        return readCard();
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /**
+     * Skip through a top-level object to its "cards" member.
+     * 
+     * @throws IOException
+     *             if there is no such member
+     */
+    private void findCardsMember() throws IOException {
+        expect('{');
+        while (true) {
+            String key = readString();
+            expect(':');
+            if ("cards".equals(key)) {
+                return;
+            }
+            skipValue();
+            int c = next();
+            if (c == '}') {
+                throw new IOException("No \"cards\" array");
+            } else if (c != ',') {
+                throw syntaxError(c, "',' or '}'");
+            }
+        }
+    }
+
+    /**
+     * Read a single card object. Missing members are left empty, for the
+     * importer to reject.
+     * 
+     * @return the card
+     * @throws IOException
+     *             if the object is malformed
+     */
+    private CardRecord readCard() throws IOException {
+        String name = "";
+        String format = "";
+        String data = "";
+        List<String> groups = new ArrayList<String>();
+        expect('{');
+        if (peek() == '}') {
+            in.read();
+        } else {
+            while (true) {
+                String key = readString();
+                expect(':');
+                if ("name".equals(key)) {
+                    name = readString();
+                } else if ("format".equals(key)) {
+                    format = readString();
+                } else if ("data".equals(key)) {
+                    data = readString();
+                } else if ("groups".equals(key)) {
+                    readStringArray(groups);
+                } else {
+                    skipValue();
+                }
+                int c = next();
+                if (c == '}') {
+                    break;
+                } else if (c != ',') {
+                    throw syntaxError(c, "',' or '}'");
+                }
+            }
+        }
+        return new CardRecord(new LoyaltyCard(name.trim(), format.trim(),
+                data),
+                groups);
+    }
+
+    /**
+     * Read an array of strings.
+     * 
+     * @param result
+     *            the list to which to add the (trimmed, non-empty) strings
+     * @throws IOException
+     *             if the next value isn't an array of strings
+     */
+    private void readStringArray(final List<String> result)
+            throws IOException {
+        expect('[');
+        if (peek() == ']') {
+            in.read();
+            return;
+        }
+        while (true) {
+            String value = readString().trim();
+            if (value.length() > 0) {
+                result.add(value);
+            }
+            int c = next();
+            if (c == ']') {
+                return;
+            } else if (c != ',') {
+                throw syntaxError(c, "',' or ']'");
+            }
+        }
+    }
+
+    /**
+     * Read a string.
+     * 
+     * @return the string, with escapes resolved
+     * @throws IOException
+     *             if the next value isn't a string
+     */
+    private String readString() throws IOException {
+        expect('"');
+        buffer.setLength(0);
+        while (true) {
+            int c = in.read();
+            if (c == -1) {
+                throw new IOException("Unterminated string");
+            } else if (c == '"') {
+                return buffer.toString();
+            } else if (c == '\\') {
+                c = escape();
+            }
+            if (buffer.length() >= MAX_STRING_LENGTH) {
+                throw new IOException("String too long");
+            }
+            buffer.append((char) c);
+        }
+    }
+
+    /**
+     * Resolve an escape sequence; the backslash has been consumed.
+     * 
+     * @return the escaped character
+     * @throws IOException
+     *             if the escape is malformed
+     */
+    private int escape() throws IOException {
+        int c = in.read();
+        switch (c) {
+        case '"':
+        case '\\':
+        case '/':
+            return c;
+        case 'b':
+            return '\b';
+        case 'f':
+            return '\f';
+        case 'n':
+            return '\n';
+        case 'r':
+            return '\r';
+        case 't':
+            return '\t';
+        case 'u':
+            int value = 0;
+            for (int i = 0; i < UNICODE_ESCAPE_LENGTH; ++i) {
+                int digit = Character.digit(in.read(), HEX);
+                if (digit == -1) {
+                    throw new IOException("Malformed \\u escape");
+                }
+                value = value * HEX + digit;
+            }
+            return value;
+        default:
+            throw new IOException("Unknown escape \\" + (char) c);
+        }
+    }
+
+    /**
+     * Skip over a value of any type, without retaining it.
+     * 
+     * @throws IOException
+     *             if the value is malformed
+     */
+    private void skipValue() throws IOException {
+        int c = peek();
+        if (c == '"') {
+            readString();
+        } else if (c == '{' || c == '[') {
+            int depth = 0;
+            do {
+                c = peek();
+                if (c == '"') {
+                    readString();
+                    continue;
+                }
+                in.read();
+                if (c == '{' || c == '[') {
+                    ++depth;
+                } else if (c == '}' || c == ']') {
+                    --depth;
+                } else if (c == -1) {
+                    throw new IOException("Unexpected end of input");
+                }
+            } while (depth > 0);
+        } else {
+            // Number, true, false or null
+            while (c != ',' && c != '}' && c != ']') {
+                if (c == -1) {
+                    throw new IOException("Unexpected end of input");
+                }
+                in.read();
+                c = peek();
+            }
+        }
+    }
+
+    /**
+     * Consume whitespace and the expected character.
+     * 
+     * @param expected
+     *            the character
+     * @throws IOException
+     *             if anything else is found
+     */
+    private void expect(final char expected) throws IOException {
+        int c = next();
+        if (c != expected) {
+            throw syntaxError(c, "'" + expected + "'");
+        }
+    }
+
+    /**
+     * Consume whitespace and the following character.
+     * 
+     * @return the character, or -1 at the end of the input
+     * @throws IOException
+     *             if the input can't be read
+     */
+    private int next() throws IOException {
+        int c;
+        do {
+            c = in.read();
+        } while (c != -1 && Character.isWhitespace(c));
+        return c;
+    }
+
+    /**
+     * Consume whitespace, and look at the following character without
+     * consuming it.
+     * 
+     * @return the character, or -1 at the end of the input
+     * @throws IOException
+     *             if the input can't be read
+     */
+    private int peek() throws IOException {
+        int c;
+        while (true) {
+            in.mark(1);
+            c = in.read();
+            if (c == -1 || !Character.isWhitespace(c)) {
+                break;
+            }
+        }
+        in.reset();
+        return c;
+    }
+
+    /**
+     * Build the exception for an unexpected character.
+     * 
+     * @param found
+     *            the character found, or -1 at the end of the input
+     * @param expected
+     *            description of what was expected
+     * @return the exception
+     */
+    private static IOException syntaxError(final int found,
+            final String expected) {
+        if (found == -1) {
+            return new IOException("Expected " + expected
+                    + " but found end of input");
+        }
+        return new IOException("Expected " + expected + " but found '"
+                + (char) found + "'");
+    }
+}
@@ -0,0 +1,102 @@
+package tburke.loyaltykeyring;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes cards as JSON, in the form read by {@link JsonCardReader}: an array
+ * with one object per card.
+ * 
+ * @author tburke
+ */
+final class JsonCardWriter implements CardRecordWriter {
+    /**
+     * Characters below this must be escaped.
+     */
+    private static final char FIRST_PRINTABLE = ' ';
+    /**
+     * Width of the hexadecimal part of a \\u escape.
+     */
+    private static final int UNICODE_ESCAPE_LENGTH = 4;
+
+    /**
+     * The output.
+     */
+    private final Writer out;
+    /**
+     * Whether any record has been written yet.
+     */
+    private boolean first = true;
+
+    /**
+     * Create a writer, and open the array.
+     * 
+     * @param output
+     *            where to write the export; should be buffered
+     * @throws IOException
+     *             if the output can't be written
+     */
+    JsonCardWriter(final Writer output) throws IOException {
+        out = output;
+        out.write('[');
+    }
+
+    @Override
+    public void write(final CardRecord record) throws IOException {
+        LoyaltyCard card = record.getCard();
+        out.write(first ? "\n" : ",\n");
+        first = false;
+        out.write("{\"name\":");
+        writeString(card.getName());
+        out.write(",\"format\":");
+        writeString(card.getFormat());
+        out.write(",\"data\":");
+        writeString(card.getData());
+        out.write(",\"groups\":[");
+        for (int i = 0; i < record.getGroups().size(); ++i) {
+            if (i > 0) {
+                out.write(',');
+            }
+            writeString(record.getGroups().get(i));
+        }
+        out.write("]}");
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            out.write("\n]\n");
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Write a quoted, escaped string.
+     * 
+     * @param value
+     *            the string
+     * @throws IOException
+     *             if the output can't be written
+     */
+    private void writeString(final String value) throws IOException {
+        out.write('"');
+        for (int i = 0; i < value.length(); ++i) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.write('\\');
+                out.write(c);
+            } else if (c < FIRST_PRINTABLE) {
+                String hex = Integer.toHexString(c);
+                out.write("\\u");
+                for (int j = hex.length(); j < UNICODE_ESCAPE_LENGTH; ++j) {
+                    out.write('0');
+                }
+                out.write(hex);
+            } else {
+                out.write(c);
+            }
+        }
+        out.write('"');
+    }
+}
@@ -0,0 +1,252 @@
+package tburke.loyaltykeyring;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Watches the cursors and connections {@link DBHelper} hands out, in debug
+ * builds, and reports any still open after {@link #GRACE_MILLIS} along with
+ * where it was allocated. A leaked cursor window holds native memory until
+ * the cursor is finalized.
+ * <p>
+ * Leaks are logged, and listed by <code>dumpsys</code>; in strict
+ * development mode they also kill the process, failing whatever test caused
+ * them. See {@link DevelopmentMode}.
+ * 
+ * @author tburke
+ */
+final class LeakTracker {
+    /**
+     * Tag to be used when logging.
+     */
+    private static final String LOG_TAG = LeakTracker.class.getSimpleName();
+    /**
+     * How long a resource may stay open before it's reported, in
+     * milliseconds. Generous, so that long imports aren't reported.
+     */
+    static final long GRACE_MILLIS = 15000;
+    /**
+     * The most leaks remembered for reports.
+     */
+    private static final int MAX_LEAKS = 20;
+
+    /**
+     * Resources being watched.
+     */
+    private static final Map<Object, Allocation> OUTSTANDING = new IdentityHashMap<Object, Allocation>();
+    /**
+     * Leaks found so far, oldest first.
+     */
+    private static final List<Allocation> LEAKS = new ArrayList<Allocation>();
+    /**
+     * Number of leaks found, including those no longer remembered.
+     */
+    private static int leakCount = 0;
+    /**
+     * Whether leaks kill the process; set by {@link DevelopmentMode}.
+     */
+    private static volatile boolean fatal = false;
+
+    /**
+     * Utility class; not to be instantiated.
+     */
+    private LeakTracker() {
+    }
+
+    /**
+     * Holder for the timer, so its thread is only started in debug builds.
+     */
+    private static final class Scheduler {
+        /**
+         * Runs the checks.
+         */
+        static final Timer TIMER = new Timer(LOG_TAG, true);
+    }
+
+    /**
+     * A resource being watched, and the check to run once its grace period
+     * is up.
+     */
+    private abstract static class Allocation extends TimerTask {
+        /**
+         * The resource.
+         */
+        private final Object resource;
+        /**
+         * What kind of resource it is, e.g. "Cursor".
+         */
+        private final String kind;
+        /**
+         * Where it was allocated.
+         */
+        private final Throwable site;
+
+        /**
+         * Note a resource's allocation.
+         * 
+         * @param res
+         *            the resource
+         * @param resKind
+         *            what kind of resource it is
+         */
+        Allocation(final Object res, final String resKind) {
+            resource = res;
+            kind = resKind;
+            site = new Throwable(resKind + " allocated on "
+                    + Thread.currentThread().getName());
+        }
+
+        /**
+         * Check whether the resource has been closed.
+         * 
+         * @return true if closed
+         */
+        abstract boolean isReleased();
+
+        @Override
+        public void run() {
+            synchronized (OUTSTANDING) {
+                OUTSTANDING.remove(resource);
+            }
+            if (!isReleased()) {
+                report(this);
+            }
+        }
+    }
+
+    /**
+     * Watch a cursor, in debug builds.
+     * 
+     * @param cursor
+     *            the cursor
+     * @return the same cursor
+     */
+    static Cursor track(final Cursor cursor) {
+        if (BuildConfig.DEBUG) {
+            watch(new Allocation(cursor, "Cursor") {
+                @Override
+                boolean isReleased() {
+                    return cursor.isClosed();
+                }
+            });
+        }
+        return cursor;
+    }
+
+    /**
+     * Watch a connection, in debug builds.
+     * 
+     * @param db
+     *            the connection
+     * @return the same connection
+     */
+    static SQLiteDatabase track(final SQLiteDatabase db) {
+        if (BuildConfig.DEBUG) {
+            watch(new Allocation(db, "SQLiteDatabase") {
+                @Override
+                boolean isReleased() {
+                    return !db.isOpen();
+                }
+            });
+        }
+        return db;
+    }
+
+    /**
+     * Start watching a resource, unless it's already watched (e.g. a cached
+     * connection handed out again).
+     * 
+     * @param allocation
+     *            the resource and its check
+     */
+    private static void watch(final Allocation allocation) {
+        synchronized (OUTSTANDING) {
+            if (OUTSTANDING.containsKey(allocation.resource)) {
+                return;
+            }
+            OUTSTANDING.put(allocation.resource, allocation);
+        }
+        Scheduler.TIMER.schedule(allocation, GRACE_MILLIS);
+    }
+
+    /**
+     * Report a leak.
+     * 
+     * @param leak
+     *            the leaked resource
+     * @throws IllegalStateException
+     *             if leaks are fatal
+     */
+    private static void report(final Allocation leak) {
+        Log.e(LOG_TAG, leak.kind + " still open after " + GRACE_MILLIS
+                + "ms", leak.site);
+        synchronized (LEAKS) {
+            ++leakCount;
+            LEAKS.add(leak);
+            if (LEAKS.size() > MAX_LEAKS) {
+                LEAKS.remove(0);
+            }
+        }
+        if (fatal) {
+            throw new IllegalStateException(leak.kind + " leaked", leak.site);
+        }
+    }
+
+    /**
+     * Make leaks kill the process, or just be logged.
+     * 
+     * @param kill
+     *            true to kill the process on leaks
+     */
+    static void setFatal(final boolean kill) {
+        fatal = kill;
+    }
+
+    /**
+     * Get the number of leaks found.
+     * 
+     * @return the number of resources reported
+     */
+    static int getLeakCount() {
+        synchronized (LEAKS) {
+            return leakCount;
+        }
+    }
+
+    /**
+     * Write a report of the resources open and the leaks found, with where
+     * each leak was allocated.
+     * 
+     * @param prefix
+     *            text to start each line with
+     * @param out
+     *            where to write the report
+     */
+    static void dump(final String prefix, final PrintWriter out) {
+        if (!BuildConfig.DEBUG) {
+            return;
+        }
+        int open;
+        synchronized (OUTSTANDING) {
+            open = OUTSTANDING.size();
+        }
+        synchronized (LEAKS) {
+            out.println(prefix + "Leaks (" + open
+                    + " resources open within their grace period, "
+                    + leakCount + " leaked):");
+            for (Allocation leak : LEAKS) {
+                out.print(prefix + "  ");
+                leak.site.printStackTrace(out);
+            }
+        }
+    }
+}
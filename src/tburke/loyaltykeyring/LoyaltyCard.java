@@ -6,6 +6,7 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.util.Comparator;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -19,6 +20,15 @@ public final class LoyaltyCard implements Serializable {
      * Determines if a de-serialized file is compatible with this class.
      */
     private static final long serialVersionUID = -5095650763727350079L;
+    /**
+     * Orders cards by name, as the database sorts them: by code point.
+     */
+    static final Comparator<LoyaltyCard> NAME_ORDER = new Comparator<LoyaltyCard>() {
+        @Override
+        public int compare(final LoyaltyCard a, final LoyaltyCard b) {
+            return CardMerger.compareIDs(a.getName(), b.getName());
+        }
+    };
     /**
      * The (user-supplied) display name for the card.
      * 
@@ -37,6 +47,13 @@ public final class LoyaltyCard implements Serializable {
      * @serial
      */
     private final String data;
+    /**
+     * The normalized, encoder-ready form of {@link #data}, as computed when
+     * the card was saved; null if the card hasn't been saved.
+     * 
+     * @serial
+     */
+    private final String payload;
 
     /**
      * Create a new, immutable LoyaltyCard.
@@ -50,9 +67,31 @@ public final class LoyaltyCard implements Serializable {
      */
     LoyaltyCard(final String cardName, final String barcodeFormat,
             final String barcodeData) {
+        this(cardName, barcodeFormat, barcodeData, null);
+    }
+
+    /**
+     * Create a new, immutable LoyaltyCard with a precomputed display payload.
+     * 
+     * @param cardName
+     *            the (user-supplied) display name for the card
+     * @param barcodeFormat
+     *            the barcode format used by the card
+     * @param barcodeData
+     *            the data stored in the barcode
+     * @param displayPayload
+     *            the normalized data to hand to the encoder, or null if not
+     *            yet known
+     * 
+     * @see tburke.loyaltykeyring.barcode.BarcodePayloads#normalize(String,
+     *      String)
+     */
+    LoyaltyCard(final String cardName, final String barcodeFormat,
+            final String barcodeData, final String displayPayload) {
         name = cardName;
         format = barcodeFormat;
         data = barcodeData;
+        payload = displayPayload;
     }
 
     /**
@@ -82,6 +121,20 @@ public final class LoyaltyCard implements Serializable {
         return data;
     }
 
+    /**
+     * Getter for the data to display: the payload normalized when the card was
+     * saved (including any check digit or start/stop characters), or the raw
+     * data if the card hasn't been saved.
+     * 
+     * @return the data to hand to the barcode encoder
+     */
+    public String getPayload() {
+        if (payload == null) {
+            return data;
+        }
+        return payload;
+    }
+
     /**
      * Getter for a unique identifier for the card.
      * 
@@ -2,10 +2,21 @@ package tburke.loyaltykeyring;
 
 import android.app.Activity;
 import android.app.AlertDialog;
+import android.app.ProgressDialog;
+import android.content.DialogInterface;
 import android.content.Intent;
+import android.graphics.Point;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.Looper;
+import android.os.MessageQueue;
 import android.support.v4.app.DialogFragment;
 import android.support.v4.app.FragmentActivity;
+import android.text.Editable;
+import android.text.TextUtils;
+import android.text.TextWatcher;
 import android.util.Log;
 import android.view.ContextMenu;
 import android.view.Menu;
@@ -14,13 +25,30 @@ import android.view.View;
 import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
 import android.widget.Button;
+import android.widget.EditText;
 import android.widget.ListAdapter;
 import android.widget.ListView;
 import android.widget.Spinner;
+import android.widget.SpinnerAdapter;
+import android.widget.TextView;
+import android.widget.Toast;
 import com.google.zxing.integration.android.IntentIntegrator;
 import com.google.zxing.integration.android.IntentResult;
 
+import tburke.loyaltykeyring.barcode.BarcodePayloads;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Activity to display and manage {@link LoyaltyCard}s.
@@ -30,7 +58,8 @@ import java.util.List;
 public final class MainActivity extends FragmentActivity implements
         AdapterView.OnItemClickListener, View.OnClickListener,
         CardNameDialogFragment.Listener, PromptDialogFragment.Listener,
-        AdapterView.OnItemSelectedListener {
+        GroupFilterDialogFragment.Listener,
+        AdapterView.OnItemSelectedListener, TextWatcher {
     /**
      * Request code to use when selecting cards for a grouping.
      */
@@ -47,6 +76,73 @@ public final class MainActivity extends FragmentActivity implements
      * Request code to use when renaming a group.
      */
     private static final int RENAME_GROUP_REQUEST_CODE = 0x9237;
+    /**
+     * Request code to use when naming the cards from a batch scan.
+     */
+    private static final int BATCH_NAME_REQUEST_CODE = 0x9238;
+    /**
+     * Request code to use when choosing a keyring export to import.
+     */
+    private static final int IMPORT_REQUEST_CODE = 0x9239;
+    /**
+     * Request code to use when choosing a keyring to merge.
+     */
+    private static final int MERGE_REQUEST_CODE = 0x923A;
+    /**
+     * Request code to use when asking for the sync server.
+     */
+    private static final int SYNC_URL_REQUEST_CODE = 0x923B;
+    /**
+     * Most merge conflicts to list before asking the user to go ahead.
+     */
+    private static final int MAX_CONFLICTS_SHOWN = 10;
+    /**
+     * Name of the file metrics are exported to.
+     */
+    private static final String METRICS_FILE = "LoyaltyKeyring-metrics.txt";
+    /**
+     * Time taken to refresh the list of cards.
+     */
+    private static final Metrics.Timer REFRESH_CARDS = Metrics
+            .timer("ui.refreshCards");
+    /**
+     * Time taken to refresh the list of groups (and so the cards).
+     */
+    private static final Metrics.Timer REFRESH_GROUPS = Metrics
+            .timer("ui.refreshGroups");
+    /**
+     * Time from starting a scan until its result arrives.
+     */
+    private static final Metrics.Timer SCAN = Metrics.timer("scan.roundTrip");
+    /**
+     * Time taken to predict the next cards and draw their barcodes.
+     */
+    private static final Metrics.Timer PREFETCH = Metrics
+            .timer("barcode.prefetch");
+    /**
+     * Cold starts whose snapshot turned out to be out of date.
+     */
+    private static final Metrics.Counter SNAPSHOT_STALE = Metrics
+            .counter("snapshot.stale");
+    /**
+     * Every card's name and groups, for typeahead; shared by every instance,
+     * and kept up to date from the change journal.
+     */
+    private static final CardIndex CARD_INDEX = new CardIndex();
+    /**
+     * Every group's cards as bitmaps, for filters, counts and a card's
+     * groups; shared by every instance, and kept up to date from the change
+     * journal.
+     */
+    private static final GroupIndex GROUP_INDEX = new GroupIndex();
+    /**
+     * Uses of cards not yet written to the store; shared by every instance.
+     */
+    private static final UsageTracker USAGE = new UsageTracker();
+    /**
+     * Preference holding the {@link CardOrder} chosen.
+     */
+    private static final String PREF_CARD_ORDER = "cardOrder";
     /**
      * Provides access to the ZXing barcode scanner/encoder.
      */
@@ -54,7 +150,7 @@ public final class MainActivity extends FragmentActivity implements
     /**
      * Provides access to persistent storage.
      */
-    private DBHelper db;
+    private CardStore db;
     /**
      * The card currently being renamed.
      */
@@ -63,13 +159,74 @@ public final class MainActivity extends FragmentActivity implements
      * The group currently being renamed.
      */
     private String groupToBeRenamed = null;
+    /**
+     * The batch scan in progress, if any.
+     */
+    private BatchScan batchScan = null;
+    /**
+     * When the scan in progress was started; see {@link Metrics#start()}.
+     */
+    private long scanStart = 0;
+    /**
+     * The search in progress, if any.
+     */
+    private SearchTask search = null;
+    /**
+     * The groups the cards shown must, may and mustn't be in, as well as the
+     * selected group; null if there's no such filter.
+     */
+    private GroupFilter groupFilter = null;
+    /**
+     * The order the cards are shown in.
+     */
+    private CardOrder cardOrder = CardOrder.NAME;
+    /**
+     * The update of {@link #CARD_INDEX} in progress, if any.
+     */
+    private IndexTask indexing = null;
+    /**
+     * Whether the cards have changed since {@link #indexing} started.
+     */
+    private boolean indexStale = false;
+    /**
+     * The prefetch waiting for the main thread to go idle, if any.
+     */
+    private MessageQueue.IdleHandler prefetchIdle = null;
+    /**
+     * The prefetch of barcodes in progress, if any.
+     */
+    private PrefetchTask prefetching = null;
+    /**
+     * The snapshot shown by {@link #onCreate(Bundle)}, until {@link #onStart()}
+     * starts reconciling it.
+     */
+    private FirstScreenSnapshot shownSnapshot = null;
+    /**
+     * The reconciliation of the snapshot shown with the store, if it's in
+     * progress.
+     */
+    private ReconcileTask reconcile = null;
 
     @Override
     protected void onCreate(final Bundle savedInstanceState) {
+        StartupTimeline.mark("onCreate");
+        DevelopmentMode.enable();
         super.onCreate(savedInstanceState);
+        Tracing.begin("MainActivity.setContentView");
         setContentView(R.layout.activity_main);
-        db = new DBHelper(this);
+        Tracing.end();
+        StartupTimeline.mark("contentView");
+        Tracing.begin("CardStores.open");
+        db = CardStores.open(this);
+        Tracing.end();
+        StartupTimeline.mark("storeOpen");
         zxing = new IntentIntegrator(this);
+        try {
+            cardOrder = CardOrder.valueOf(getPreferences(MODE_PRIVATE)
+                    .getString(PREF_CARD_ORDER, CardOrder.NAME.name()));
+        } catch (IllegalArgumentException e) {
+            cardOrder = CardOrder.NAME;
+        }
 
         final ListView cardList = (ListView) findViewById(R.id.card_list);
         cardList.setOnItemClickListener(this);
@@ -80,23 +237,434 @@ public final class MainActivity extends FragmentActivity implements
         registerForContextMenu(tagSelect);
 
         ((Button) findViewById(R.id.button_add)).setOnClickListener(this);
+        findViewById(R.id.group_filter).setOnClickListener(this);
+        ((EditText) findViewById(R.id.card_search))
+                .addTextChangedListener(this);
+
+        if (savedInstanceState == null) {
+            showSnapshot();
+        }
     }
 
     /**
-     * Refresh the list of {@link LoyaltyCard}s for the current group.
+     * Show what was shown when the activity was last left, as saved by
+     * {@link #saveSnapshot()}, without touching the database.
+     */
+    private void showSnapshot() {
+        Tracing.begin("FirstScreenSnapshot.read");
+        FirstScreenSnapshot snapshot = FirstScreenSnapshot
+                .read(FirstScreenSnapshot.file(this));
+        Tracing.end();
+        if (snapshot == null || snapshot.getOrder() != cardOrder) {
+            return;
+        }
+        showGroups(snapshot.getGroups(), snapshot.getGroup());
+        showCards(snapshot.getCards());
+        shownSnapshot = snapshot;
+        StartupTimeline.mark("snapshotShown");
+    }
+
+    /**
+     * Save what's shown, so that the next cold start can show it at once.
+     * Nothing is saved while searching or filtering, since a cold start
+     * does neither.
+     */
+    private void saveSnapshot() {
+        String query = ((EditText) findViewById(R.id.card_search)).getText()
+                .toString();
+        if (groupFilter != null || !new SearchQuery(query).isEmpty()
+                || reconcile != null) {
+            return;
+        }
+        ListAdapter cardAdapter = ((ListView) findViewById(R.id.card_list))
+                .getAdapter();
+        SpinnerAdapter groupAdapter = ((Spinner) findViewById(R.id.tag_select))
+                .getAdapter();
+        if (!(cardAdapter instanceof CardTableAdapter)
+                || groupAdapter == null) {
+            return;
+        }
+        CardTable table = ((CardTableAdapter) cardAdapter).getTable();
+        int count = Math.min(table.size(), FirstScreenSnapshot.MAX_CARDS);
+        List<LoyaltyCard> cards = new ArrayList<LoyaltyCard>(count);
+        for (int i = 0; i < count; ++i) {
+            cards.add(table.getCard(i));
+        }
+        // The first item is the label for every card.
+        List<String> groups = new ArrayList<String>();
+        for (int i = 1; i < groupAdapter.getCount(); ++i) {
+            groups.add((String) groupAdapter.getItem(i));
+        }
+        new SnapshotTask().execute(new FirstScreenSnapshot(groups,
+                getSelectedGroup(), cardOrder, cards));
+    }
+
+    /**
+     * Write a snapshot in the background.
+     */
+    private final class SnapshotTask extends
+            AsyncTask<FirstScreenSnapshot, Void, Boolean> {
+        /**
+         * Where to write it.
+         */
+        private final File file = FirstScreenSnapshot.file(MainActivity.this);
+
+        @Override
+        protected Boolean doInBackground(
+                final FirstScreenSnapshot... snapshots) {
+            return snapshots[0].write(file);
+        }
+    }
+
+    /**
+     * A background task with a {@link CardStore} of its own. Every task that
+     * reads or writes cards must use one rather than the activity's
+     * {@link #db}: a {@link DBHelper} closes its connection after each
+     * operation, so one shared between threads can be closed under another
+     * thread's feet.
+     * 
+     * @param <Params>
+     *            the type of the task's parameters
+     * @param <Progress>
+     *            the type of its progress updates
+     * @param <Result>
+     *            the type of its result
+     */
+    private abstract class StoreTask<Params, Progress, Result> extends
+            AsyncTask<Params, Progress, Result> {
+        /**
+         * The task's own store.
+         */
+        protected final CardStore store = CardStores.open(MainActivity.this);
+    }
+
+    /**
+     * Bring the snapshot shown at startup up to date: read the groups and the
+     * selected group's cards in the background, then change only what's
+     * changed, leaving the list where it's been scrolled to.
+     */
+    private final class ReconcileTask extends
+            StoreTask<Void, Void, List<LoyaltyCard>> {
+        /**
+         * The group shown, or null for every card.
+         */
+        private final String group;
+        /**
+         * The order the cards are shown in.
+         */
+        private final CardOrder order = cardOrder;
+        /**
+         * The groups in the store, set by {@link #doInBackground(Void...)}.
+         */
+        private List<String> groups = null;
+        /**
+         * Whether the cards have been refreshed since, so that only the
+         * groups are left to reconcile.
+         */
+        private boolean cardsRefreshed = false;
+
+        /**
+         * Create a task to reconcile a snapshot.
+         * 
+         * @param snapshot
+         *            the snapshot shown
+         */
+        ReconcileTask(final FirstScreenSnapshot snapshot) {
+            group = snapshot.getGroup();
+        }
+
+        /**
+         * Check whether this is reconciling a group's cards.
+         * 
+         * @param selected
+         *            the group, or null for every card
+         * @return true if that's the group shown by the snapshot, and its
+         *         cards haven't been refreshed since
+         */
+        boolean isFor(final String selected) {
+            return !cardsRefreshed
+                    && (group == null ? selected == null : group
+                            .equals(selected));
+        }
+
+        /**
+         * Note that the cards have been refreshed, and so don't need
+         * reconciling.
+         */
+        void cardsRefreshed() {
+            cardsRefreshed = true;
+        }
+
+        @Override
+        protected List<LoyaltyCard> doInBackground(final Void... params) {
+            groups = store.getAllGroups();
+            if (group != null && !groups.contains(group)) {
+                // Deleted since: there are no cards to show.
+                return null;
+            }
+            return store.getCardsByTag(group, order);
+        }
+
+        @Override
+        protected void onPostExecute(final List<LoyaltyCard> cards) {
+            if (reconcile != this) {
+                return;
+            }
+            reconcile = null;
+            boolean stale = !showingGroups(groups);
+            if (stale) {
+                showGroups(groups, cards == null ? null : group);
+            }
+            if (!cardsRefreshed) {
+                if (cards == null) {
+                    stale = true;
+                    refreshCards();
+                } else if (!showingCards(cards)) {
+                    // Only the first cards were saved, so more isn't news.
+                    if (cards.size() <= FirstScreenSnapshot.MAX_CARDS
+                            || !showingCards(cards.subList(0,
+                                    FirstScreenSnapshot.MAX_CARDS))) {
+                        stale = true;
+                    }
+                    updateCards(cards);
+                }
+            }
+            if (stale) {
+                SNAPSHOT_STALE.increment();
+            }
+            updateIndex();
+        }
+    }
+
+    /**
+     * Refresh the list of {@link LoyaltyCard}s for the current group, or the
+     * current search if there is one.
      */
     private void refreshCards() {
-        final ListView cardList = (ListView) findViewById(R.id.card_list);
+        if (reconcile != null) {
+            reconcile.cardsRefreshed();
+        }
+        if (showSearch()) {
+            updateIndex();
+            return;
+        }
+        long start = Metrics.start();
         final Spinner tagList = (Spinner) findViewById(R.id.tag_select);
         String tag = (String) tagList.getSelectedItem();
         Log.i("MainActivity:refreshCards", "Loading cards with tag: " + tag);
         if (getString(R.string.all_cards_label).equals(tag)) {
             tag = null;
         }
-        ArrayAdapter<LoyaltyCard> adapter = new ArrayAdapter<LoyaltyCard>(this,
-                android.R.layout.simple_list_item_1, db.getCardsByTag(tag));
+        List<LoyaltyCard> cards;
+        if (groupFilter == null) {
+            Tracing.begin("db.getCardsByTag");
+            cards = db.getCardsByTag(tag, cardOrder);
+            Tracing.end();
+        } else if (tag != null && groupFilter.excludes(tag)) {
+            // In the selected group, but not in it.
+            cards = new ArrayList<LoyaltyCard>();
+        } else {
+            GroupFilter filter = groupFilter;
+            if (tag != null) {
+                filter = GroupFilter.inGroup(tag, groupFilter);
+            }
+            GroupIndex groups = null;
+            if (cardOrder == CardOrder.NAME) {
+                // The index has no usage, so only knows the name order.
+                groups = groupIndex();
+            }
+            if (groups != null) {
+                cards = groups.getCards(filter);
+            } else {
+                Tracing.begin("db.getCardsByGroups");
+                cards = db.getCardsByGroups(filter, cardOrder);
+                Tracing.end();
+            }
+        }
+        showCards(cards);
+        REFRESH_CARDS.stop(start);
+        // Once this thread is done with the database, in case anything changed.
+        updateIndex();
+    }
+
+    /**
+     * Show the cards matching the current search, if there is one. Names and
+     * groups are looked up in {@link #CARD_INDEX} at once; if it isn't ready,
+     * or finds nothing (e.g. when searching for barcode data), the database
+     * is searched in the background.
+     * 
+     * @return true if there's a search, false if all the group's cards
+     *         should be shown
+     */
+    private boolean showSearch() {
+        if (search != null) {
+            search.cancel(false);
+            search = null;
+        }
+        String query = ((EditText) findViewById(R.id.card_search)).getText()
+                .toString();
+        if (new SearchQuery(query).isEmpty()) {
+            return false;
+        }
+        if (CARD_INDEX.isReady()) {
+            List<LoyaltyCard> cards = CARD_INDEX.typeahead(query,
+                    SearchQuery.TYPEAHEAD_LIMIT);
+            if (!cards.isEmpty()) {
+                showCards(cards);
+                return true;
+            }
+        }
+        search = new SearchTask();
+        search.execute(query);
+        return true;
+    }
+
+    /**
+     * Get {@link #GROUP_INDEX} with the latest changes applied. Once it's been
+     * built only the few changes since the last update are left to read, so
+     * this is cheaper than querying the groups.
+     * 
+     * @return the index, or null if it hasn't been built yet
+     */
+    private GroupIndex groupIndex() {
+        if (!GROUP_INDEX.isReady()) {
+            return null;
+        }
+        Tracing.begin("GroupIndex.catchUp");
+        GROUP_INDEX.catchUp(db);
+        Tracing.end();
+        return GROUP_INDEX;
+    }
+
+    /**
+     * Bring the indexes up to date in the background, or have the update in
+     * progress go round again.
+     */
+    private void updateIndex() {
+        if (indexing != null) {
+            indexStale = true;
+            return;
+        }
+        indexing = new IndexTask();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            // Don't hold up searches queued behind the first, full build.
+            indexing.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        } else {
+            indexing.execute();
+        }
+    }
+
+    /**
+     * Apply the latest changes to {@link #CARD_INDEX}, {@link #GROUP_INDEX}
+     * and the {@link FuzzyIndex}.
+     */
+    private final class IndexTask extends StoreTask<Void, Void, Integer> {
+        @Override
+        protected Integer doInBackground(final Void... params) {
+            int applied = CARD_INDEX.catchUp(store);
+            GROUP_INDEX.catchUp(store);
+            FuzzyIndex.getInstance(MainActivity.this).catchUp(store);
+            return applied;
+        }
+
+        @Override
+        protected void onPostExecute(final Integer applied) {
+            indexing = null;
+            if (indexStale) {
+                indexStale = false;
+                updateIndex();
+            } else if (applied > 0) {
+                showSearch();
+            }
+        }
+    }
+
+    /**
+     * Show a list of cards.
+     * 
+     * @param cards
+     *            the cards, in the order to be shown
+     */
+    private void showCards(final List<LoyaltyCard> cards) {
+        Tracing.begin("MainActivity.setCardAdapter");
+        final ListView cardList = (ListView) findViewById(R.id.card_list);
+        CardTableAdapter adapter = new CardTableAdapter(this,
+                android.R.layout.simple_list_item_1, new CardTable(cards));
         cardList.setAdapter(adapter);
         adapter.notifyDataSetChanged();
+        Tracing.end();
+    }
+
+    /**
+     * Check whether a list of cards is the one shown.
+     * 
+     * @param cards
+     *            the cards, in order
+     * @return true if showing them would look no different
+     */
+    private boolean showingCards(final List<LoyaltyCard> cards) {
+        ListAdapter adapter = ((ListView) findViewById(R.id.card_list))
+                .getAdapter();
+        return adapter instanceof CardTableAdapter
+                && ((CardTableAdapter) adapter).getTable().matches(cards);
+    }
+
+    /**
+     * Show a new list of cards in place of the current one, keeping the card
+     * at the top of the screen where it is if it's still there.
+     * 
+     * @param cards
+     *            the cards, in the order to be shown
+     */
+    private void updateCards(final List<LoyaltyCard> cards) {
+        final ListView cardList = (ListView) findViewById(R.id.card_list);
+        ListAdapter old = cardList.getAdapter();
+        int first = cardList.getFirstVisiblePosition();
+        View top = cardList.getChildAt(0);
+        LoyaltyCard topCard = null;
+        if (old instanceof CardTableAdapter && top != null
+                && first < old.getCount()) {
+            topCard = ((CardTableAdapter) old).getItem(first);
+        }
+        showCards(cards);
+        if (topCard != null) {
+            int position = ((CardTableAdapter) cardList.getAdapter())
+                    .getTable().indexOf(topCard);
+            if (position >= 0) {
+                cardList.setSelectionFromTop(position, top.getTop());
+            }
+        }
+    }
+
+    /**
+     * Search for cards in the background, so that typing isn't held up; if
+     * nothing matches exactly, look for names resembling the search.
+     */
+    private final class SearchTask extends
+            StoreTask<String, Void, List<LoyaltyCard>> {
+        @Override
+        protected List<LoyaltyCard> doInBackground(final String... queries) {
+            if (isCancelled()) {
+                // Superseded by another keystroke before it started.
+                return null;
+            }
+            List<LoyaltyCard> cards = store.searchCards(queries[0],
+                    SearchQuery.TYPEAHEAD_LIMIT);
+            FuzzyIndex fuzzy = FuzzyIndex.getInstance(MainActivity.this);
+            if (cards.isEmpty() && fuzzy.isReady()) {
+                // Nothing starts with what was typed: perhaps it's a typo.
+                cards = fuzzy.search(queries[0], SearchQuery.TYPEAHEAD_LIMIT);
+            }
+            return cards;
+        }
+
+        @Override
+        protected void onPostExecute(final List<LoyaltyCard> cards) {
+            if (search == this) {
+                search = null;
+                showCards(cards);
+            }
+        }
     }
 
     /**
@@ -113,6 +681,8 @@ public final class MainActivity extends FragmentActivity implements
      *            the preferred group to have selected
      */
     private void refreshGroups(final String preferred) {
+        long start = Metrics.start();
+        Tracing.begin("MainActivity.refreshGroups");
         final Spinner groupSelect = (Spinner) findViewById(R.id.tag_select);
         String selected = preferred;
         if (selected == null) {
@@ -121,14 +691,57 @@ public final class MainActivity extends FragmentActivity implements
         if ("All".equals(selected)) {
             selected = null;
         }
-        List<String> tagList = db.getAllGroups();
-        tagList.add(0, getString(R.string.all_cards_label));
+        Tracing.begin("db.getAllGroups");
+        List<String> groups = db.getAllGroups();
+        Tracing.end();
+        showGroups(groups, selected);
+        refreshCards();
+        Tracing.end();
+        REFRESH_GROUPS.stop(start);
+    }
+
+    /**
+     * Show a list of groups to choose from, after the label for every card.
+     * 
+     * @param groups
+     *            the groups
+     * @param selected
+     *            the group to select, or null for every card
+     */
+    private void showGroups(final List<String> groups, final String selected) {
+        Tracing.begin("MainActivity.setGroupAdapter");
+        final Spinner groupSelect = (Spinner) findViewById(R.id.tag_select);
+        List<String> tagList = new ArrayList<String>(groups.size() + 1);
+        tagList.add(getString(R.string.all_cards_label));
+        tagList.addAll(groups);
         ArrayAdapter<String> adapter = new ArrayAdapter<String>(this,
                 android.R.layout.simple_spinner_dropdown_item, tagList);
         groupSelect.setAdapter(adapter);
         adapter.notifyDataSetChanged();
         groupSelect.setSelection(tagList.indexOf(selected));
-        refreshCards();
+        Tracing.end();
+    }
+
+    /**
+     * Check whether a list of groups is the one shown.
+     * 
+     * @param groups
+     *            the groups
+     * @return true if they're the groups shown, in the same order
+     */
+    private boolean showingGroups(final List<String> groups) {
+        SpinnerAdapter adapter = ((Spinner) findViewById(R.id.tag_select))
+                .getAdapter();
+        if (adapter == null || adapter.getCount() != groups.size() + 1) {
+            return false;
+        }
+        // The first item is the label for every card.
+        for (int i = 0; i < groups.size(); ++i) {
+            if (!groups.get(i).equals(adapter.getItem(i + 1))) {
+                return false;
+            }
+        }
+        return true;
     }
 
     /*
@@ -159,10 +772,46 @@ public final class MainActivity extends FragmentActivity implements
                 refreshGroups();
             }
             break;
+        case BATCH_NAME_REQUEST_CODE:
+            if (resultCode == Activity.RESULT_OK) {
+                @SuppressWarnings("unchecked")
+                List<LoyaltyCard> cards = (List<LoyaltyCard>) data
+                        .getSerializableExtra(BatchNameActivity.CARDS);
+                int added = db.addCards(cards, getSelectedGroup());
+                displayMessage(getString(R.string.batch_saved, added,
+                        cards.size()));
+                refreshCards();
+            }
+            break;
+        case IMPORT_REQUEST_CODE:
+            if (resultCode == Activity.RESULT_OK && data.getData() != null) {
+                new ImportTask().execute(data.getData());
+            }
+            break;
+        case MERGE_REQUEST_CODE:
+            if (resultCode == Activity.RESULT_OK && data.getData() != null) {
+                new MergeTask().execute(data.getData());
+            }
+            break;
         default:
             IntentResult res = IntentIntegrator.parseActivityResult(
                     requestCode, resultCode, data);
             if (res != null) {
+                SCAN.stop(scanStart);
+                scanStart = 0;
+            }
+            if (res != null && batchScan != null) {
+                onBatchScanResult(res);
+            } else if (res != null && res.getContents() != null) {
+                try {
+                    BarcodePayloads.normalize(res.getFormatName(),
+                            res.getContents());
+                } catch (IllegalArgumentException e) {
+                    Log.w("MainActivity", "Rejecting scan: " + e.getMessage());
+                    displayMessage(getString(R.string.barcode_invalid,
+                            res.getContents()));
+                    return;
+                }
                 Bundle args = new Bundle();
                 args.putString(CardNameDialogFragment.BARCODE_FORMAT,
                         res.getFormatName());
@@ -183,6 +832,22 @@ public final class MainActivity extends FragmentActivity implements
         return true;
     }
 
+    @Override
+    public boolean onPrepareOptionsMenu(final Menu menu) {
+        menu.findItem(R.id.action_metrics).setVisible(Metrics.isEnabled());
+        switch (cardOrder) {
+        case MOST_USED:
+            menu.findItem(R.id.action_sort_most_used).setChecked(true);
+            break;
+        case RECENTLY_USED:
+            menu.findItem(R.id.action_sort_recently_used).setChecked(true);
+            break;
+        default:
+            menu.findItem(R.id.action_sort_name).setChecked(true);
+        }
+        return super.onPrepareOptionsMenu(menu);
+    }
+
     @Override
     public boolean onOptionsItemSelected(final MenuItem item) {
         switch (item.getItemId()) {
@@ -198,17 +863,210 @@ public final class MainActivity extends FragmentActivity implements
             dialog.setArguments(args);
             dialog.show(getSupportFragmentManager(), "AddTagDialogFragment");
             return true;
+        case R.id.action_filter_groups:
+            chooseGroupFilter();
+            return true;
+        case R.id.action_sort_name:
+            setCardOrder(CardOrder.NAME);
+            return true;
+        case R.id.action_sort_most_used:
+            setCardOrder(CardOrder.MOST_USED);
+            return true;
+        case R.id.action_sort_recently_used:
+            setCardOrder(CardOrder.RECENTLY_USED);
+            return true;
+        case R.id.action_batch_scan:
+            batchScan = new BatchScan(db.getAllCards(),
+                    getString(R.string.batch_card_name));
+            startScan();
+            return true;
+        case R.id.action_import:
+            chooseFile(R.string.action_import, IMPORT_REQUEST_CODE);
+            return true;
+        case R.id.action_merge:
+            chooseFile(R.string.action_merge, MERGE_REQUEST_CODE);
+            return true;
+        case R.id.action_sync:
+            Bundle syncArgs = new Bundle();
+            syncArgs.putInt(PromptDialogFragment.DIALOG_TITLE,
+                    R.string.action_sync);
+            syncArgs.putInt(PromptDialogFragment.DIALOG_PROMPT,
+                    R.string.sync_url_prompt);
+            syncArgs.putString(PromptDialogFragment.DIALOG_DEFAULT, SyncClient
+                    .getPreferences(this).getString(
+                            SyncClient.PREF_SERVER_URL, ""));
+            syncArgs.putInt(PromptDialogFragment.DIALOG_REQUEST_CODE,
+                    SYNC_URL_REQUEST_CODE);
+            DialogFragment syncDialog = new PromptDialogFragment();
+            syncDialog.setArguments(syncArgs);
+            syncDialog.show(getSupportFragmentManager(), "SyncDialogFragment");
+            return true;
+        case R.id.action_export:
+            export(getString(R.string.app_name).replace(" ", "")
+                    + CardExporter.CSV_EXTENSION);
+            return true;
+        case R.id.action_backup:
+            export(CardExporter.BACKUP_FILE);
+            return true;
+        case R.id.action_metrics:
+            File metrics = getExportFile(METRICS_FILE);
+            if (metrics == null) {
+                displayMessage(getString(R.string.export_failed));
+            } else {
+                new MetricsExportTask().execute(metrics);
+            }
+            return true;
+        case R.id.action_restore:
+            File backup = getExportFile(CardExporter.BACKUP_FILE);
+            if (backup == null || !backup.exists()) {
+                displayMessage(getString(R.string.restore_missing));
+            } else {
+                new ImportTask().execute(Uri.fromFile(backup));
+            }
+            return true;
         default:
             return super.onOptionsItemSelected(item);
 
         }
     }
 
+    /**
+     * Change the order the cards are shown in, and remember it.
+     * 
+     * @param order
+     *            the new order
+     */
+    private void setCardOrder(final CardOrder order) {
+        cardOrder = order;
+        getPreferences(MODE_PRIVATE).edit()
+                .putString(PREF_CARD_ORDER, order.name()).commit();
+        refreshCards();
+    }
+
+    /**
+     * Write the uses of cards recorded so far, in the background.
+     */
+    private void flushUsage() {
+        new UsageFlushTask().execute();
+    }
+
+    /**
+     * Write the uses of cards recorded so far to the store, then re-sort the
+     * cards if they're shown by usage.
+     */
+    private final class UsageFlushTask extends StoreTask<Void, Void, Integer> {
+        @Override
+        protected Integer doInBackground(final Void... params) {
+            return USAGE.flush(store);
+        }
+
+        @Override
+        protected void onPostExecute(final Integer flushed) {
+            if (flushed > 0 && cardOrder != CardOrder.NAME) {
+                refreshCards();
+            }
+            if (flushed > 0) {
+                schedulePrefetch();
+            }
+        }
+    }
+
+    /**
+     * Prefetch the likeliest cards' barcodes once the main thread is next
+     * idle, so that drawing the cards isn't held up.
+     */
+    private void schedulePrefetch() {
+        if (prefetchIdle != null) {
+            return;
+        }
+        prefetchIdle = new MessageQueue.IdleHandler() {
+            @Override
+            public boolean queueIdle() {
+                prefetchIdle = null;
+                prefetch();
+                return false;
+            }
+        };
+        Looper.myQueue().addIdleHandler(prefetchIdle);
+    }
+
+    /**
+     * Prefetch the likeliest cards' barcodes in the background, unless that's
+     * already in progress.
+     */
+    private void prefetch() {
+        if (prefetching != null) {
+            return;
+        }
+        prefetching = new PrefetchTask();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            // Don't hold up searches while rendering.
+            prefetching.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        } else {
+            prefetching.execute();
+        }
+    }
+
+    /**
+     * Draw the barcodes of the cards likeliest to be opened next into the
+     * {@link BarcodeCache}, so that opening one shows its barcode at once.
+     * 
+     * @see CardPredictor
+     */
+    private final class PrefetchTask extends StoreTask<Void, Void, Integer> {
+        /**
+         * The cache to draw into.
+         */
+        private final BarcodeCache cache = BarcodeCache
+                .getInstance(MainActivity.this);
+        /**
+         * The size {@link BarcodeActivity} will show the barcodes at.
+         */
+        private final Point size = BarcodeActivity
+                .barcodeSize(getResources());
+
+        @Override
+        protected Integer doInBackground(final Void... params) {
+            long start = Metrics.start();
+            int ready = 0;
+            for (LoyaltyCard card : CardPredictor.predict(store,
+                    System.currentTimeMillis())) {
+                if (!BarcodeRenderer.canRender(card)) {
+                    continue;
+                }
+                try {
+                    // Only drawn if it isn't in the cache already.
+                    cache.get(card, size.x, size.y);
+                    ready++;
+                } catch (IllegalArgumentException e) {
+                    Log.w("MainActivity",
+                            "Couldn't prefetch " + card.getID(), e);
+                }
+            }
+            PREFETCH.stop(start);
+            return ready;
+        }
+
+        @Override
+        protected void onPostExecute(final Integer ready) {
+            prefetching = null;
+        }
+    }
+
     @Override
     public void onItemClick(final AdapterView<?> parent, final View view,
             final int position, final long id) {
         LoyaltyCard card = (LoyaltyCard) parent.getAdapter().getItem(position);
-        zxing.shareText(card.getFormat(), card.getData());
+        if (USAGE.record(card, System.currentTimeMillis())) {
+            flushUsage();
+        }
+        if (BarcodeRenderer.canRender(card)) {
+            Intent intent = new Intent(this, BarcodeActivity.class);
+            intent.putExtra(BarcodeActivity.CARD, card);
+            startActivity(intent);
+        } else {
+            zxing.shareText(card.getFormat(), card.getPayload());
+        }
     }
 
     @Override
@@ -217,6 +1075,8 @@ public final class MainActivity extends FragmentActivity implements
         super.onCreateContextMenu(menu, v, menuInfo);
         if (v.getId() == R.id.card_list) {
             getMenuInflater().inflate(R.menu.context_menu_card, menu);
+            showCardGroups(menu,
+                    (AdapterView.AdapterContextMenuInfo) menuInfo);
         } else if (v.getId() == R.id.tag_select) {
             Spinner groupList = (Spinner) v;
             String group = (String) groupList.getSelectedItem();
@@ -226,6 +1086,32 @@ public final class MainActivity extends FragmentActivity implements
         }
     }
 
+    /**
+     * Show which groups a card is in atop its context menu, if they're known.
+     * 
+     * @param menu
+     *            the card's context menu
+     * @param info
+     *            which card it's for
+     */
+    private void showCardGroups(final ContextMenu menu,
+            final AdapterView.AdapterContextMenuInfo info) {
+        GroupIndex groups = groupIndex();
+        if (groups == null) {
+            menu.removeItem(R.id.context_card_groups);
+            return;
+        }
+        ListAdapter cardAdapter = ((ListView) findViewById(R.id.card_list))
+                .getAdapter();
+        Collection<String> cardGroups = groups
+                .getGroups((LoyaltyCard) cardAdapter.getItem(info.position));
+        if (!cardGroups.isEmpty()) {
+            menu.findItem(R.id.context_card_groups).setTitle(
+                    getString(R.string.card_groups,
+                            TextUtils.join(", ", cardGroups)));
+        }
+    }
+
     @Override
     public boolean onContextItemSelected(final MenuItem item) {
         AdapterView.AdapterContextMenuInfo info = (AdapterView.AdapterContextMenuInfo) item
@@ -262,6 +1148,7 @@ public final class MainActivity extends FragmentActivity implements
                     .getAdapter();
             card = (LoyaltyCard) cardAdapter.getItem(info.position);
             db.deleteCard(card);
+            BarcodeCache.getInstance(this).invalidate(card.getID());
             refreshCards();
             return true;
         case R.id.context_group_edit:
@@ -303,16 +1190,90 @@ public final class MainActivity extends FragmentActivity implements
     public void onClick(final View view) {
         switch (view.getId()) {
         case R.id.button_add:
-            zxing.initiateScan();
+            startScan();
             // db.addCard("Card 1", "UPC_A", "789456123");
             // db.addCard("Card 2", "UPC_A", "123456789");
             break;
+        case R.id.group_filter:
+            chooseGroupFilter();
+            break;
         default:
             Log.wtf(this.getClass().getSimpleName() + ":onClick",
                     "Unknown view clicked.");
         }
     }
 
+    /**
+     * Let the user choose groups to filter by.
+     */
+    private void chooseGroupFilter() {
+        List<String> groups = db.getAllGroups();
+        Bundle args = new Bundle();
+        args.putStringArray(GroupFilterDialogFragment.GROUPS,
+                groups.toArray(new String[groups.size()]));
+        GroupIndex index = groupIndex();
+        if (index != null) {
+            Map<String, Integer> counts = index.getCounts();
+            int[] groupCounts = new int[groups.size()];
+            for (int i = 0; i < groupCounts.length; ++i) {
+                Integer count = counts.get(groups.get(i));
+                groupCounts[i] = count == null ? 0 : count;
+            }
+            args.putIntArray(GroupFilterDialogFragment.COUNTS, groupCounts);
+        }
+        args.putSerializable(GroupFilterDialogFragment.FILTER, groupFilter);
+        DialogFragment dialog = new GroupFilterDialogFragment();
+        dialog.setArguments(args);
+        dialog.show(getSupportFragmentManager(), "GroupFilterDialogFragment");
+    }
+
+    @Override
+    public void onFilter(final GroupFilter filter) {
+        if (filter == null) {
+            return;
+        }
+        if (filter.isEmpty()) {
+            groupFilter = null;
+        } else {
+            groupFilter = filter;
+        }
+        showGroupFilter();
+        refreshCards();
+    }
+
+    /**
+     * Show the groups being filtered by, if any.
+     */
+    private void showGroupFilter() {
+        TextView summary = (TextView) findViewById(R.id.group_filter);
+        if (groupFilter == null) {
+            summary.setVisibility(View.GONE);
+            return;
+        }
+        List<String> parts = new ArrayList<String>();
+        Collection<String> required = groupFilter
+                .getGroups(GroupFilter.Membership.REQUIRED);
+        if (!required.isEmpty()) {
+            parts.add(getString(R.string.filter_summary_required,
+                    TextUtils.join(", ", required)));
+        }
+        Collection<String> either = groupFilter
+                .getGroups(GroupFilter.Membership.EITHER);
+        if (!either.isEmpty()) {
+            parts.add(getString(R.string.filter_summary_either,
+                    TextUtils.join(", ", either)));
+        }
+        Collection<String> excluded = groupFilter
+                .getGroups(GroupFilter.Membership.EXCLUDED);
+        if (!excluded.isEmpty()) {
+            parts.add(getString(R.string.filter_summary_excluded,
+                    TextUtils.join(", ", excluded)));
+        }
+        summary.setText(getString(R.string.filter_summary,
+                TextUtils.join("; ", parts)));
+        summary.setVisibility(View.VISIBLE);
+    }
+
     @Override
     public void onAddCard(final LoyaltyCard newCard) {
         db.addCard(newCard);
@@ -367,12 +1328,413 @@ public final class MainActivity extends FragmentActivity implements
                 refreshGroups(input);
             }
             break;
+        case SYNC_URL_REQUEST_CODE:
+            SyncClient.getPreferences(this).edit()
+                    .putString(SyncClient.PREF_SERVER_URL, input).commit();
+            new SyncTask().execute(input);
+            break;
         default:
             Log.wtf(this.getClass().getSimpleName() + ":onResponse",
                     "Unknown request code received.");
         }
     }
 
+    /**
+     * Handle one scan from a batch: queue it and start the next scan, or, if
+     * the user backed out of the scanner, move on to naming the cards.
+     * 
+     * @param res
+     *            the scan result
+     */
+    private void onBatchScanResult(final IntentResult res) {
+        if (res.getContents() == null) {
+            finishBatchScan();
+            return;
+        }
+        String message;
+        try {
+            BarcodePayloads.normalize(res.getFormatName(), res.getContents());
+            if (batchScan.add(res.getFormatName(), res.getContents())) {
+                message = getString(R.string.batch_scan_queued,
+                        batchScan.size());
+            } else {
+                message = getString(R.string.batch_scan_duplicate);
+            }
+        } catch (IllegalArgumentException e) {
+            Log.w("MainActivity", "Rejecting scan: " + e.getMessage());
+            message = getString(R.string.barcode_invalid, res.getContents());
+        }
+        Toast.makeText(this, message, Toast.LENGTH_SHORT).show();
+        startScan();
+    }
+
+    /**
+     * End the batch scan, moving on to naming the cards queued, if any.
+     */
+    private void finishBatchScan() {
+        if (batchScan.size() > 0) {
+            Intent intent = new Intent(this, BatchNameActivity.class);
+            intent.putExtra(BatchNameActivity.CARDS, batchScan.getCards());
+            startActivityForResult(intent, BATCH_NAME_REQUEST_CODE);
+        }
+        batchScan = null;
+    }
+
+    /**
+     * Imports a keyring export in the background, showing progress.
+     */
+    private final class ImportTask extends
+            StoreTask<Uri, CardImporter.Progress, CardImporter.Progress> {
+        /**
+         * Shows the import's progress.
+         */
+        private ProgressDialog dialog;
+
+        @Override
+        protected void onPreExecute() {
+            dialog = new ProgressDialog(MainActivity.this);
+            dialog.setMessage(getString(R.string.import_running));
+            dialog.setCancelable(false);
+            dialog.show();
+        }
+
+        @Override
+        protected CardImporter.Progress doInBackground(final Uri... uris) {
+            try {
+                return new CardImporter(store).run(openExport(uris[0]),
+                        new CardImporter.Listener() {
+                            @Override
+                            public void onProgress(
+                                    final CardImporter.Progress progress) {
+                                publishProgress(progress);
+                            }
+                        });
+            } catch (IOException e) {
+                Log.w("MainActivity", "Import of " + uris[0] + " failed", e);
+                return null;
+            }
+        }
+
+        @Override
+        protected void onProgressUpdate(
+                final CardImporter.Progress... progress) {
+            dialog.setMessage(getString(R.string.import_progress,
+                    progress[0].getRead(),
+                    (int) progress[0].getRecordsPerSecond()));
+        }
+
+        @Override
+        protected void onPostExecute(final CardImporter.Progress result) {
+            dialog.dismiss();
+            if (result == null) {
+                displayMessage(getString(R.string.import_failed));
+            } else {
+                displayMessage(getString(R.string.import_done,
+                        result.getInserted(), result.getUpdated(),
+                        result.getDuplicates(), result.getRejected()));
+            }
+            refreshGroups();
+        }
+    }
+
+    /**
+     * Works out what merging a keyring would change, in the background, and
+     * asks the user whether to go ahead.
+     */
+    private final class MergeTask extends
+            StoreTask<Uri, Void, CardMerger.Report> {
+        @Override
+        protected CardMerger.Report doInBackground(final Uri... uris) {
+            try {
+                return new CardMerger(store).diff(openExport(uris[0]),
+                        getCacheDir());
+            } catch (IOException e) {
+                Log.w("MainActivity", "Merge of " + uris[0] + " failed", e);
+                return null;
+            }
+        }
+
+        @Override
+        protected void onPostExecute(final CardMerger.Report report) {
+            if (report == null) {
+                displayMessage(getString(R.string.merge_failed));
+                return;
+            } else if (report.isEmpty()) {
+                displayMessage(getString(R.string.merge_nothing));
+                return;
+            }
+            StringBuilder message = new StringBuilder(getString(
+                    R.string.merge_summary, report.getAdded(),
+                    report.getTagged(), report.getSkipped()));
+            List<String> conflicts = report.getConflicts();
+            for (int i = 0; i < conflicts.size() && i < MAX_CONFLICTS_SHOWN; ++i) {
+                message.append('\n').append(conflicts.get(i));
+            }
+            if (conflicts.size() > MAX_CONFLICTS_SHOWN) {
+                message.append('\n').append(
+                        getString(R.string.merge_more_conflicts,
+                                conflicts.size() - MAX_CONFLICTS_SHOWN));
+            }
+            new AlertDialog.Builder(MainActivity.this)
+                    .setTitle(R.string.action_merge)
+                    .setMessage(message)
+                    .setPositiveButton(R.string.merge,
+                            new DialogInterface.OnClickListener() {
+                                @Override
+                                public void onClick(
+                                        final DialogInterface dialog,
+                                        final int which) {
+                                    new MergeApplyTask().execute(report);
+                                }
+                            }).setNegativeButton(android.R.string.cancel, null)
+                    .show();
+        }
+    }
+
+    /**
+     * Makes the changes found by a {@link MergeTask}, in the background.
+     */
+    private final class MergeApplyTask extends
+            StoreTask<CardMerger.Report, Void, CardImporter.Progress> {
+        @Override
+        protected CardImporter.Progress doInBackground(
+                final CardMerger.Report... reports) {
+            return new CardMerger(store).apply(reports[0]);
+        }
+
+        @Override
+        protected void onPostExecute(final CardImporter.Progress result) {
+            displayMessage(getString(R.string.merge_done,
+                    result.getInserted(), result.getRejected()));
+            refreshGroups();
+        }
+    }
+
+    /**
+     * Syncs with the user's other devices in the background.
+     */
+    private final class SyncTask extends
+            StoreTask<String, Void, SyncClient.Stats> {
+        @Override
+        protected SyncClient.Stats doInBackground(final String... urls) {
+            try {
+                return new SyncClient(MainActivity.this, store, urls[0])
+                        .sync();
+            } catch (IOException e) {
+                Log.w("MainActivity", "Sync with " + urls[0] + " failed", e);
+                return null;
+            }
+        }
+
+        @Override
+        protected void onPostExecute(final SyncClient.Stats stats) {
+            if (stats == null) {
+                displayMessage(getString(R.string.sync_failed));
+                return;
+            }
+            Toast.makeText(MainActivity.this,
+                    getString(R.string.sync_done, stats.getChangesSent(),
+                            stats.getChangesReceived()), Toast.LENGTH_SHORT)
+                    .show();
+            refreshGroups();
+        }
+    }
+
+    /**
+     * Writes every card to a file in the background.
+     */
+    private final class ExportTask extends StoreTask<File, Void, Integer> {
+        /**
+         * The file being written.
+         */
+        private File file;
+
+        @Override
+        protected Integer doInBackground(final File... files) {
+            file = files[0];
+            try {
+                return new CardExporter(store).run(CardExporter.create(file));
+            } catch (IOException e) {
+                Log.w("MainActivity", "Export to " + file + " failed", e);
+                file.delete();
+                return null;
+            }
+        }
+
+        @Override
+        protected void onPostExecute(final Integer count) {
+            if (count == null) {
+                displayMessage(getString(R.string.export_failed));
+            } else {
+                displayMessage(getString(R.string.export_done, count,
+                        file.getPath()));
+            }
+        }
+    }
+
+    /**
+     * Writes a metrics report in the background.
+     */
+    private final class MetricsExportTask extends
+            AsyncTask<File, Void, Boolean> {
+        /**
+         * The file being written.
+         */
+        private File file;
+
+        @Override
+        protected Boolean doInBackground(final File... files) {
+            file = files[0];
+            try {
+                Writer out = new OutputStreamWriter(new FileOutputStream(file),
+                        "UTF-8");
+                try {
+                    out.write(Metrics.report());
+                } finally {
+                    out.close();
+                }
+                return true;
+            } catch (IOException e) {
+                Log.w("MainActivity", "Metrics export to " + file + " failed",
+                        e);
+                return false;
+            }
+        }
+
+        @Override
+        protected void onPostExecute(final Boolean written) {
+            if (written) {
+                displayMessage(getString(R.string.metrics_done,
+                        file.getPath()));
+            } else {
+                displayMessage(getString(R.string.export_failed));
+            }
+        }
+    }
+
+    /**
+     * Ask the user to choose a file.
+     * 
+     * @param title
+     *            resource ID of the chooser's title
+     * @param requestCode
+     *            the request code with which the file is returned
+     */
+    private void chooseFile(final int title, final int requestCode) {
+        Intent intent = new Intent(Intent.ACTION_GET_CONTENT);
+        intent.setType("*/*");
+        intent.addCategory(Intent.CATEGORY_OPENABLE);
+        startActivityForResult(
+                Intent.createChooser(intent, getString(title)), requestCode);
+    }
+
+    /**
+     * Open a keyring export or backup. Files are opened directly, so that
+     * backups can be memory-mapped.
+     * 
+     * @param uri
+     *            the export, as chosen by the user
+     * @return a reader for the export
+     * @throws IOException
+     *             if the export can't be read
+     */
+    private CardRecordReader openExport(final Uri uri) throws IOException {
+        if ("file".equals(uri.getScheme())) {
+            return CardImporter.open(new File(uri.getPath()));
+        }
+        InputStream in = getContentResolver().openInputStream(uri);
+        if (in == null) {
+            throw new IOException("Couldn't open " + uri);
+        }
+        return CardImporter.open(in, getCacheDir());
+    }
+
+    /**
+     * Export every card to a file on external storage, in the background.
+     * 
+     * @param name
+     *            the file name, whose extension selects the format
+     * 
+     * @see CardExporter#create(File)
+     */
+    private void export(final String name) {
+        File file = getExportFile(name);
+        if (file == null) {
+            displayMessage(getString(R.string.export_failed));
+            return;
+        }
+        new ExportTask().execute(file);
+    }
+
+    /**
+     * Find where an export or backup is kept.
+     * 
+     * @param name
+     *            the file name
+     * @return the file, or null if external storage isn't available
+     */
+    private File getExportFile(final String name) {
+        File dir = getExternalFilesDir(null);
+        if (dir == null) {
+            return null;
+        }
+        return new File(dir, name);
+    }
+
+    /**
+     * Start a scan, noting when for {@link #SCAN}. If there's no scanner, the
+     * user is offered one instead and no result will come back, so a batch
+     * scan ends here rather than swallowing the next ordinary scan.
+     */
+    private void startScan() {
+        scanStart = Metrics.start();
+        if (zxing.initiateScan() != null && batchScan != null) {
+            finishBatchScan();
+        }
+    }
+
+    /**
+     * Report metrics, recent startup timelines and (in debug builds) leaks,
+     * after whatever the support library reports. Arguments control
+     * recording:
+     * 
+     * <pre>
+     * adb shell dumpsys activity tburke.loyaltykeyring/.MainActivity \
+     *         metrics on|off|reset
+     * </pre>
+     */
+    @Override
+    public void dump(final String prefix, final FileDescriptor fd,
+            final PrintWriter writer, final String[] args) {
+        super.dump(prefix, fd, writer, args);
+        if (args != null && args.length == 2 && "metrics".equals(args[0])) {
+            if ("on".equals(args[1])) {
+                Metrics.setEnabled(true);
+            } else if ("off".equals(args[1])) {
+                Metrics.setEnabled(false);
+            } else if ("reset".equals(args[1])) {
+                Metrics.reset();
+            }
+        }
+        Metrics.dump(prefix, writer);
+        StartupTimeline.dump(this, prefix, writer);
+        LeakTracker.dump(prefix, writer);
+    }
+
+    /**
+     * Get the group currently selected.
+     * 
+     * @return the selected group, or null if all cards are being shown
+     */
+    private String getSelectedGroup() {
+        String group = (String) ((Spinner) findViewById(R.id.tag_select))
+                .getSelectedItem();
+        if (getString(R.string.all_cards_label).equals(group)) {
+            return null;
+        }
+        return group;
+    }
+
     /**
      * Re-do selections for the specified tag.
      * 
@@ -392,6 +1754,13 @@ public final class MainActivity extends FragmentActivity implements
         groupToBeRenamed = inState.getString("groupToBeRenamed");
         cardToBeRenamed = (LoyaltyCard) inState
                 .getSerializable("cardToBeRenamed");
+        batchScan = (BatchScan) inState.getSerializable("batchScan");
+        if (batchScan != null) {
+            // Only the queue is saved: the keyring is read again.
+            batchScan.restore(db.getAllCards());
+        }
+        groupFilter = (GroupFilter) inState.getSerializable("groupFilter");
+        showGroupFilter();
     }
 
     @Override
@@ -400,17 +1769,56 @@ public final class MainActivity extends FragmentActivity implements
 
         outState.putString("groupToBeRenamed", groupToBeRenamed);
         outState.putSerializable("cardToBeRenamed", cardToBeRenamed);
+        outState.putSerializable("batchScan", batchScan);
+        outState.putSerializable("groupFilter", groupFilter);
     }
 
     @Override
     public void onStart() {
         super.onStart();
-        refreshGroups();
+        if (shownSnapshot != null) {
+            // Already on screen: bring it up to date in the background.
+            reconcile = new ReconcileTask(shownSnapshot);
+            shownSnapshot = null;
+            reconcile.execute();
+        } else {
+            refreshGroups();
+        }
+        StartupTimeline.mark("cardsLoaded");
+        schedulePrefetch();
+    }
+
+    @Override
+    public void onStop() {
+        super.onStop();
+        saveSnapshot();
+        // E.g. a card has just been opened: write its use while it's shown.
+        if (USAGE.hasPending()) {
+            flushUsage();
+        }
+        if (prefetchIdle != null) {
+            Looper.myQueue().removeIdleHandler(prefetchIdle);
+            prefetchIdle = null;
+        }
+    }
+
+    @Override
+    public void onWindowFocusChanged(final boolean hasFocus) {
+        super.onWindowFocusChanged(hasFocus);
+        // Focus arrives once the first frame, with its cards, has been drawn.
+        if (hasFocus) {
+            StartupTimeline.mark("firstFrame");
+            StartupTimeline.finish(this);
+        }
     }
 
     @Override
     public void onItemSelected(final AdapterView<?> arg0, final View arg1,
             final int arg2, final long arg3) {
+        if (reconcile != null && reconcile.isFor(getSelectedGroup())) {
+            // The snapshot's selection: its cards are being reconciled.
+            return;
+        }
         refreshCards();
     }
 
@@ -419,6 +1827,25 @@ public final class MainActivity extends FragmentActivity implements
         // No-op
     }
 
+    @Override
+    public void afterTextChanged(final Editable s) {
+        if (!showSearch()) {
+            refreshCards();
+        }
+    }
+
+    @Override
+    public void beforeTextChanged(final CharSequence s, final int start,
+            final int count, final int after) {
+        // No-op
+    }
+
+    @Override
+    public void onTextChanged(final CharSequence s, final int start,
+            final int before, final int count) {
+        // No-op
+    }
+
     /**
      * Display a message box to the user.
      * 
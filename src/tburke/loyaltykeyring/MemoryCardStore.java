@@ -0,0 +1,663 @@
+package tburke.loyaltykeyring;
+
+import tburke.loyaltykeyring.barcode.BarcodePayloads;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * A {@link CardStore} kept entirely in memory, for tests and for comparing
+ * storage strategies with {@link DBHelper}. Nothing is persisted.
+ * <p>
+ * Cards are indexed by ID in a hash table, and by name in a sorted tree;
+ * groups are indexed in a sorted tree of card IDs, and each card's groups in a
+ * hash table of sorted sets. It behaves as {@link DBHelper} does, down to
+ * leaving a deleted card's group memberships behind. All methods are
+ * synchronized.
+ * 
+ * @author tburke
+ */
+final class MemoryCardStore implements CardStore {
+    /**
+     * Orders strings as SQLite's default collation does.
+     */
+    private static final Comparator<String> CODE_POINT_ORDER = new Comparator<String>() {
+        @Override
+        public int compare(final String a, final String b) {
+            return CardMerger.compareIDs(a, b);
+        }
+    };
+    /**
+     * Number of journal entries between compactions, and the number of the
+     * latest entries compaction leaves alone.
+     */
+    private static final long COMPACT_INTERVAL = 1000;
+
+    /**
+     * Every card, by ID.
+     */
+    private final Map<String, LoyaltyCard> cardsByID = new HashMap<String, LoyaltyCard>();
+    /**
+     * Every card, by name.
+     */
+    private final TreeMap<String, LoyaltyCard> cardsByName = new TreeMap<String, LoyaltyCard>(
+            CODE_POINT_ORDER);
+    /**
+     * The IDs of the cards in each group, by group.
+     */
+    private final TreeMap<String, Set<String>> cardIDsByTag = new TreeMap<String, Set<String>>(
+            CODE_POINT_ORDER);
+    /**
+     * The groups each card is in, by card ID.
+     */
+    private final Map<String, TreeSet<String>> tagsByCardID = new HashMap<String, TreeSet<String>>();
+    /**
+     * Each used card's use count and last-used time, by card ID.
+     */
+    private final Map<String, CardUsage> usageByID = new HashMap<String, CardUsage>();
+    /**
+     * The change journal, oldest first.
+     */
+    private final List<Change> journal = new ArrayList<Change>();
+    /**
+     * The latest journal sequence number.
+     */
+    private long sequence = 0;
+    /**
+     * The journal sequence number when the journal was last compacted.
+     */
+    private long compactedAt = 0;
+    /**
+     * Whether changes from another device are being applied, so that their
+     * journal entries are marked remote.
+     */
+    private boolean applying = false;
+    /**
+     * The cards' names, for changes from another device; used holding the
+     * store's lock.
+     */
+    private final PendingRenames.Names names = new PendingRenames.Names() {
+        @Override
+        public String holderOf(final String name) {
+            LoyaltyCard holder = cardsByName.get(name);
+            return holder == null ? null : holder.getID();
+        }
+
+        @Override
+        public boolean setName(final String id, final String name) {
+            LoyaltyCard holder = cardsByName.get(name);
+            if (holder != null) {
+                return holder.getID().equals(id);
+            }
+            LoyaltyCard existing = cardsByID.get(id);
+            if (existing == null) {
+                insertCard(name, LoyaltyCard.getFormatFromID(id),
+                        LoyaltyCard.getDataFromID(id));
+            } else {
+                renameCard(existing, name);
+            }
+            return true;
+        }
+    };
+
+    @Override
+    public boolean addCard(final LoyaltyCard newCard) {
+        if (newCard == null) {
+            return false;
+        }
+        return addCard(newCard.getName(), newCard.getFormat(),
+                newCard.getData());
+    }
+
+    @Override
+    public synchronized boolean addCard(final String name,
+            final String format, final String data) {
+        return insertCard(name, format, data);
+    }
+
+    @Override
+    public synchronized int addCards(final List<LoyaltyCard> cards,
+            final String tag) {
+        int added = 0;
+        for (LoyaltyCard card : cards) {
+            if (!insertCard(card.getName(), card.getFormat(), card.getData())) {
+                continue;
+            }
+            ++added;
+            if (tag != null && !"".equals(tag)) {
+                insertTag(card.getID(), tag);
+            }
+        }
+        return added;
+    }
+
+    @Override
+    public synchronized void upsertCards(final List<CardRecord> records,
+            final CardImporter.Progress progress) {
+        for (CardRecord record : records) {
+            LoyaltyCard card = record.getCard();
+            LoyaltyCard existing = cardsByID.get(card.getID());
+            if (existing == null) {
+                if (!insertCard(card.getName(), card.getFormat(),
+                        card.getData())) {
+                    progress.rejected();
+                    continue;
+                }
+                progress.inserted();
+            } else if (card.getName().length() == 0) {
+                progress.rejected();
+                continue;
+            } else if (!existing.getName().equals(card.getName())) {
+                if (!renameCard(existing, card.getName())) {
+                    progress.rejected();
+                    continue;
+                }
+                progress.updated();
+            } else {
+                progress.duplicate();
+            }
+            for (String group : record.getGroups()) {
+                insertTag(card.getID(), group);
+            }
+        }
+    }
+
+    @Override
+    public synchronized int exportCards(final CardRecordWriter writer)
+            throws IOException {
+        List<String> ids = new ArrayList<String>(cardsByID.keySet());
+        Collections.sort(ids, CODE_POINT_ORDER);
+        for (String id : ids) {
+            LoyaltyCard card = cardsByID.get(id);
+            List<String> groups = new ArrayList<String>();
+            Set<String> tags = tagsByCardID.get(id);
+            if (tags != null) {
+                groups.addAll(tags);
+            }
+            writer.write(new CardRecord(new LoyaltyCard(card.getName(), card
+                    .getFormat(), card.getData()), groups));
+        }
+        return ids.size();
+    }
+
+    @Override
+    public boolean deleteCard(final LoyaltyCard card) {
+        if (card == null) {
+            return false;
+        }
+        return deleteCard(card.getFormat(), card.getData());
+    }
+
+    @Override
+    public synchronized boolean deleteCard(final String format,
+            final String data) {
+        deleteByID(LoyaltyCard.createID(format, data));
+        return true;
+    }
+
+    @Override
+    public boolean addTag(final LoyaltyCard card, final String tag) {
+        return addTag(card.getFormat(), card.getData(), tag);
+    }
+
+    @Override
+    public synchronized boolean addTag(final String format, final String data,
+            final String tag) {
+        return insertTag(LoyaltyCard.createID(format, data), tag);
+    }
+
+    @Override
+    public synchronized boolean removeTag(final String format,
+            final String data, final String tag) {
+        removeTagByID(LoyaltyCard.createID(format, data), tag);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean deleteTag(final String tag) {
+        Set<String> ids = cardIDsByTag.get(tag);
+        if (ids != null) {
+            for (String id : new ArrayList<String>(ids)) {
+                removeTagByID(id, tag);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized LoyaltyCard getCard(final String name) {
+        return cardsByName.get(name);
+    }
+
+    @Override
+    public synchronized List<LoyaltyCard> getAllCards() {
+        return new ArrayList<LoyaltyCard>(cardsByName.values());
+    }
+
+    @Override
+    public synchronized List<LoyaltyCard> getCardsByTag(final String tag) {
+        if (tag == null || "".equals(tag)) {
+            return getAllCards();
+        }
+        List<LoyaltyCard> result = new ArrayList<LoyaltyCard>();
+        Set<String> ids = cardIDsByTag.get(tag);
+        if (ids == null) {
+            return result;
+        }
+        for (String id : ids) {
+            LoyaltyCard card = cardsByID.get(id);
+            if (card != null) {
+                result.add(card);
+            }
+        }
+        Collections.sort(result, LoyaltyCard.NAME_ORDER);
+        return result;
+    }
+
+    @Override
+    public synchronized List<LoyaltyCard> getCardsByGroups(
+            final GroupFilter filter) {
+        List<LoyaltyCard> result = new ArrayList<LoyaltyCard>();
+        Set<String> none = Collections.emptySet();
+        for (LoyaltyCard card : cardsByName.values()) {
+            Set<String> groups = tagsByCardID.get(card.getID());
+            if (filter.matches(groups == null ? none : groups)) {
+                result.add(card);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized List<LoyaltyCard> getCardsByTag(final String tag,
+            final CardOrder order) {
+        return sort(getCardsByTag(tag), order);
+    }
+
+    @Override
+    public synchronized List<LoyaltyCard> getCardsByGroups(
+            final GroupFilter filter, final CardOrder order) {
+        return sort(getCardsByGroups(filter), order);
+    }
+
+    /**
+     * Put a list of cards in order.
+     * 
+     * @param cards
+     *            the cards, by name
+     * @param order
+     *            the order wanted
+     * @return the cards, in that order
+     */
+    private List<LoyaltyCard> sort(final List<LoyaltyCard> cards,
+            final CardOrder order) {
+        if (order == CardOrder.NAME) {
+            return cards;
+        }
+        // A stable sort, so that ties stay in name order.
+        Collections.sort(cards, new Comparator<LoyaltyCard>() {
+            @Override
+            public int compare(final LoyaltyCard a, final LoyaltyCard b) {
+                long keyA = key(usageByID.get(a.getID()), order);
+                long keyB = key(usageByID.get(b.getID()), order);
+                if (keyA == keyB) {
+                    return 0;
+                }
+                return keyA > keyB ? -1 : 1;
+            }
+        });
+        return cards;
+    }
+
+    /**
+     * Get what a card is sorted by, largest first.
+     * 
+     * @param usage
+     *            the card's usage, or null if it's never been used
+     * @param order
+     *            {@link CardOrder#MOST_USED} or
+     *            {@link CardOrder#RECENTLY_USED}
+     * @return its use count or last-used time; 0 if it's never been used
+     */
+    private static long key(final CardUsage usage, final CardOrder order) {
+        if (usage == null) {
+            return 0;
+        }
+        if (order == CardOrder.MOST_USED) {
+            return usage.getCount();
+        }
+        return usage.getLastUsed();
+    }
+
+    @Override
+    public synchronized void recordUsage(final Collection<CardUsage> usages) {
+        for (CardUsage usage : usages) {
+            if (!cardsByID.containsKey(usage.getCardID())) {
+                continue;
+            }
+            CardUsage total = usageByID.get(usage.getCardID());
+            if (total == null) {
+                total = usage;
+            } else {
+                total = new CardUsage(usage.getCardID(), total.getCount()
+                        + usage.getCount(), Math.max(total.getLastUsed(),
+                        usage.getLastUsed()));
+            }
+            usageByID.put(usage.getCardID(), total);
+        }
+    }
+
+    @Override
+    public synchronized Map<LoyaltyCard, CardUsage> getUsage(final int limit) {
+        List<LoyaltyCard> used = new ArrayList<LoyaltyCard>();
+        for (LoyaltyCard card : cardsByName.values()) {
+            if (usageByID.containsKey(card.getID())) {
+                used.add(card);
+            }
+        }
+        Map<LoyaltyCard, CardUsage> result = new LinkedHashMap<LoyaltyCard, CardUsage>();
+        for (LoyaltyCard card : sort(used, CardOrder.MOST_USED)) {
+            if (result.size() == limit) {
+                break;
+            }
+            result.put(card, usageByID.get(card.getID()));
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized List<String> getAllGroups() {
+        return new ArrayList<String>(cardIDsByTag.keySet());
+    }
+
+    @Override
+    public synchronized List<LoyaltyCard> searchCards(final String query,
+            final int limit) {
+        SearchQuery search = new SearchQuery(query);
+        List<LoyaltyCard> result = new ArrayList<LoyaltyCard>();
+        if (search.isEmpty()) {
+            return result;
+        }
+        // Cards are visited in name order, so each rank stays in name order.
+        List<List<LoyaltyCard>> ranks = new ArrayList<List<LoyaltyCard>>();
+        for (int i = 0; i <= SearchQuery.RANK_OTHER; ++i) {
+            ranks.add(new ArrayList<LoyaltyCard>());
+        }
+        for (LoyaltyCard card : cardsByName.values()) {
+            Set<String> tags = tagsByCardID.get(card.getID());
+            if (tags == null) {
+                tags = Collections.emptySet();
+            }
+            String data = card.getPayload();
+            if (data == null) {
+                data = card.getID();
+            }
+            if (search.matches(card.getName(), tags, data)) {
+                ranks.get(search.rank(card.getName())).add(card);
+            }
+        }
+        for (List<LoyaltyCard> rank : ranks) {
+            result.addAll(rank);
+        }
+        if (result.size() > limit) {
+            return new ArrayList<LoyaltyCard>(result.subList(0, limit));
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized long getJournalSequence() {
+        return sequence;
+    }
+
+    @Override
+    public synchronized List<Change> getChangesSince(final long since,
+            final int limit) {
+        // The journal is in sequence order, so binary search for the start.
+        int low = 0;
+        int high = journal.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (journal.get(mid).getSequence() <= since) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return new ArrayList<Change>(journal.subList(low,
+                (int) Math.min(journal.size(), (long) low + limit)));
+    }
+
+    @Override
+    public synchronized long applyChanges(final List<Change> changes,
+            final long seen) {
+        boolean current = sequence == seen;
+        PendingRenames pending = new PendingRenames();
+        applying = true;
+        try {
+            for (Change change : changes) {
+                applyChange(change, pending);
+            }
+            pending.retry(names);
+        } finally {
+            applying = false;
+        }
+        if (current) {
+            return sequence;
+        }
+        return seen;
+    }
+
+    /**
+     * Apply one change from another device.
+     * 
+     * @param change
+     *            the change
+     * @param pending
+     *            collects the changes whose name is taken, to be retried
+     */
+    private void applyChange(final Change change,
+            final PendingRenames pending) {
+        String id = change.getCardID();
+        switch (change.getOp()) {
+        case ADD:
+        case RENAME:
+            if (names.setName(id, change.getName())) {
+                pending.forget(id);
+            } else {
+                pending.defer(change);
+            }
+            break;
+        case DELETE:
+            deleteByID(id);
+            pending.forget(id);
+            break;
+        case TAG:
+            insertTag(id, change.getTag());
+            break;
+        case UNTAG:
+            removeTagByID(id, change.getTag());
+            break;
+        default:
+            throw new IllegalArgumentException("Unknown change " + change);
+        }
+    }
+
+    @Override
+    public synchronized void compactJournal() {
+        Set<String> seen = new HashSet<String>();
+        List<Change> kept = new ArrayList<Change>();
+        for (int i = journal.size() - 1; i >= 0; --i) {
+            Change change = journal.get(i);
+            String key = change.getCardID();
+            if (change.getTag() != null) {
+                key += '\u0000' + change.getTag();
+            }
+            boolean latest = seen.add(key);
+            if (latest || change.getSequence() > sequence - COMPACT_INTERVAL) {
+                kept.add(change);
+            }
+        }
+        Collections.reverse(kept);
+        journal.clear();
+        journal.addAll(kept);
+        compactedAt = sequence;
+    }
+
+    /**
+     * Add a card, if it's valid and neither its ID nor name are taken.
+     * 
+     * @param name
+     *            the card name
+     * @param format
+     *            the barcode format used by the card
+     * @param data
+     *            the data stored in the barcode
+     * @return true if the card was added
+     */
+    private boolean insertCard(final String name, final String format,
+            final String data) {
+        if (name == null || name.length() == 0) {
+            return false;
+        }
+        String payload;
+        try {
+            payload = BarcodePayloads.normalize(format, data);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        String id = LoyaltyCard.createID(format, data);
+        if (cardsByID.containsKey(id) || cardsByName.containsKey(name)) {
+            return false;
+        }
+        LoyaltyCard card = new LoyaltyCard(name, format, data, payload);
+        cardsByID.put(id, card);
+        cardsByName.put(name, card);
+        journal(Change.Op.ADD, id, name, null);
+        return true;
+    }
+
+    /**
+     * Rename a card, if the new name isn't empty or taken.
+     * 
+     * @param card
+     *            the card, as stored
+     * @param name
+     *            the new name
+     * @return true if the card was renamed
+     */
+    private boolean renameCard(final LoyaltyCard card, final String name) {
+        if (name == null || name.length() == 0
+                || cardsByName.containsKey(name)) {
+            return false;
+        }
+        LoyaltyCard renamed = new LoyaltyCard(name, card.getFormat(),
+                card.getData(), card.getPayload());
+        cardsByName.remove(card.getName());
+        cardsByName.put(name, renamed);
+        cardsByID.put(card.getID(), renamed);
+        journal(Change.Op.RENAME, card.getID(), name, null);
+        return true;
+    }
+
+    /**
+     * Delete a card, if present. Its group memberships are left alone.
+     * 
+     * @param id
+     *            the card ID
+     */
+    private void deleteByID(final String id) {
+        LoyaltyCard card = cardsByID.remove(id);
+        if (card != null) {
+            cardsByName.remove(card.getName());
+            usageByID.remove(id);
+            journal(Change.Op.DELETE, id, null, null);
+        }
+    }
+
+    /**
+     * Add a card to a group, if it isn't already.
+     * 
+     * @param id
+     *            the card ID
+     * @param tag
+     *            the group
+     * @return true if the card was added to the group
+     */
+    private boolean insertTag(final String id, final String tag) {
+        if (tag == null) {
+            return false;
+        }
+        TreeSet<String> tags = tagsByCardID.get(id);
+        if (tags == null) {
+            tags = new TreeSet<String>(CODE_POINT_ORDER);
+            tagsByCardID.put(id, tags);
+        }
+        if (!tags.add(tag)) {
+            return false;
+        }
+        Set<String> ids = cardIDsByTag.get(tag);
+        if (ids == null) {
+            ids = new HashSet<String>();
+            cardIDsByTag.put(tag, ids);
+        }
+        ids.add(id);
+        journal(Change.Op.TAG, id, null, tag);
+        return true;
+    }
+
+    /**
+     * Remove a card from a group, if it's in it.
+     * 
+     * @param id
+     *            the card ID
+     * @param tag
+     *            the group
+     */
+    private void removeTagByID(final String id, final String tag) {
+        TreeSet<String> tags = tagsByCardID.get(id);
+        if (tags == null || !tags.remove(tag)) {
+            return;
+        }
+        if (tags.isEmpty()) {
+            tagsByCardID.remove(id);
+        }
+        Set<String> ids = cardIDsByTag.get(tag);
+        ids.remove(id);
+        if (ids.isEmpty()) {
+            cardIDsByTag.remove(tag);
+        }
+        journal(Change.Op.UNTAG, id, null, tag);
+    }
+
+    /**
+     * Record a change in the journal, compacting it if it's time.
+     * 
+     * @param op
+     *            the kind of change
+     * @param id
+     *            the card ID
+     * @param name
+     *            the card's (new) name, or null
+     * @param tag
+     *            the group, or null
+     */
+    private void journal(final Change.Op op, final String id,
+            final String name, final String tag) {
+        journal.add(new Change(++sequence, op, id, name, tag, applying));
+        if (sequence - compactedAt >= COMPACT_INTERVAL) {
+            compactJournal();
+        }
+    }
+}
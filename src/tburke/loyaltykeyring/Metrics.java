@@ -0,0 +1,341 @@
+package tburke.loyaltykeyring;
+
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Registry of lightweight counters and latency histograms for the app's hot
+ * paths. Recording is lock-free, and when metrics are disabled (the default)
+ * costs a single volatile read.
+ * <p>
+ * Metrics are enabled at startup if the tag is loggable at DEBUG:
+ * 
+ * <pre>
+ * adb shell setprop log.tag.Metrics DEBUG
+ * </pre>
+ * 
+ * They can also be switched on and off, and reset, through
+ * <code>dumpsys</code>; see {@link MainActivity}.
+ * 
+ * @author tburke
+ */
+final class Metrics {
+    /**
+     * Tag to be used when logging, and to enable metrics.
+     */
+    private static final String LOG_TAG = Metrics.class.getSimpleName();
+    /**
+     * Nanoseconds per microsecond, the unit of the histogram buckets.
+     */
+    private static final long NANOS_PER_MICRO = 1000;
+    /**
+     * Nanoseconds per millisecond, the unit of reports.
+     */
+    private static final double NANOS_PER_MILLI = 1e6;
+    /**
+     * Percentiles shown in reports.
+     */
+    private static final double[] PERCENTILES = { 0.5, 0.9, 0.99 };
+
+    /**
+     * Whether metrics are being recorded.
+     */
+    private static volatile boolean enabled = Log.isLoggable(LOG_TAG,
+            Log.DEBUG);
+    /**
+     * When the metrics were last reset, in milliseconds since the epoch.
+     */
+    private static volatile long since = System.currentTimeMillis();
+    /**
+     * Every timer, by name.
+     */
+    private static final Map<String, Timer> TIMERS = new TreeMap<String, Timer>();
+    /**
+     * Every counter, by name.
+     */
+    private static final Map<String, Counter> COUNTERS = new TreeMap<String, Counter>();
+
+    /**
+     * Utility class; not to be instantiated.
+     */
+    private Metrics() {
+    }
+
+    /**
+     * A count of events.
+     */
+    static final class Counter {
+        /**
+         * The count.
+         */
+        private final AtomicLong count = new AtomicLong();
+
+        /**
+         * Count an event, if metrics are enabled.
+         */
+        void increment() {
+            if (enabled) {
+                count.incrementAndGet();
+            }
+        }
+
+        /**
+         * Getter for the count.
+         * 
+         * @return the number of events counted
+         */
+        long get() {
+            return count.get();
+        }
+    }
+
+    /**
+     * A latency histogram. Bucket 0 counts durations under a microsecond;
+     * bucket <i>n</i> counts those from 2<sup><i>n</i>-1</sup> up to
+     * 2<sup><i>n</i></sup> microseconds, so percentiles are accurate to
+     * within a factor of two.
+     */
+    static final class Timer {
+        /**
+         * Number of buckets; the last holds anything over half an hour.
+         */
+        private static final int BUCKETS = 32;
+
+        /**
+         * Count of durations in each bucket.
+         */
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        /**
+         * Number of durations recorded.
+         */
+        private final AtomicLong count = new AtomicLong();
+        /**
+         * Sum of the durations recorded, in nanoseconds.
+         */
+        private final AtomicLong total = new AtomicLong();
+        /**
+         * Longest duration recorded, in nanoseconds.
+         */
+        private final AtomicLong max = new AtomicLong();
+
+        /**
+         * Record the time since an operation started.
+         * 
+         * @param start
+         *            the value {@link Metrics#start()} returned when the
+         *            operation started
+         */
+        void stop(final long start) {
+            if (start != 0 && enabled) {
+                record(System.nanoTime() - start);
+            }
+        }
+
+        /**
+         * Record a duration.
+         * 
+         * @param nanos
+         *            the duration, in nanoseconds
+         */
+        void record(final long nanos) {
+            long micros = Math.max(0, nanos / NANOS_PER_MICRO);
+            int bucket = Math.min(BUCKETS - 1,
+                    Long.SIZE - Long.numberOfLeadingZeros(micros));
+            buckets.incrementAndGet(bucket);
+            count.incrementAndGet();
+            total.addAndGet(nanos);
+            long longest = max.get();
+            while (nanos > longest && !max.compareAndSet(longest, nanos)) {
+                longest = max.get();
+            }
+        }
+
+        /**
+         * Estimate a percentile, as the upper bound of the bucket it falls
+         * in (but no more than the longest duration).
+         * 
+         * @param fraction
+         *            the percentile, as a fraction (e.g. 0.99)
+         * @return the estimate, in nanoseconds
+         */
+        long percentile(final double fraction) {
+            long rank = (long) Math.ceil(fraction * count.get());
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; ++i) {
+                seen += buckets.get(i);
+                if (seen >= rank && seen > 0) {
+                    return Math.min(max.get(), (1L << i) * NANOS_PER_MICRO);
+                }
+            }
+            return max.get();
+        }
+
+        /**
+         * Clear the histogram.
+         */
+        void reset() {
+            for (int i = 0; i < BUCKETS; ++i) {
+                buckets.set(i, 0);
+            }
+            count.set(0);
+            total.set(0);
+            max.set(0);
+        }
+    }
+
+    /**
+     * Get (or create) a timer.
+     * 
+     * @param name
+     *            the timer's name, e.g. "db.getAllCards"
+     * @return the timer
+     */
+    static Timer timer(final String name) {
+        synchronized (TIMERS) {
+            Timer result = TIMERS.get(name);
+            if (result == null) {
+                result = new Timer();
+                TIMERS.put(name, result);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Get (or create) a counter.
+     * 
+     * @param name
+     *            the counter's name, e.g. "barcode.cache.hit"
+     * @return the counter
+     */
+    static Counter counter(final String name) {
+        synchronized (COUNTERS) {
+            Counter result = COUNTERS.get(name);
+            if (result == null) {
+                result = new Counter();
+                COUNTERS.put(name, result);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Note the start of an operation, to be passed to
+     * {@link Timer#stop(long)} when it's done.
+     * 
+     * @return the current time, in nanoseconds, or 0 if metrics are disabled
+     */
+    static long start() {
+        if (enabled) {
+            return System.nanoTime();
+        }
+        return 0;
+    }
+
+    /**
+     * Check whether metrics are being recorded.
+     * 
+     * @return true if enabled
+     */
+    static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Start or stop recording metrics.
+     * 
+     * @param enable
+     *            true to record metrics
+     */
+    static void setEnabled(final boolean enable) {
+        enabled = enable;
+    }
+
+    /**
+     * Clear every metric.
+     */
+    static void reset() {
+        synchronized (TIMERS) {
+            for (Timer timer : TIMERS.values()) {
+                timer.reset();
+            }
+        }
+        synchronized (COUNTERS) {
+            for (Counter counter : COUNTERS.values()) {
+                counter.count.set(0);
+            }
+        }
+        since = System.currentTimeMillis();
+    }
+
+    /**
+     * Write a report of every metric recorded so far.
+     * 
+     * @param prefix
+     *            text to start each line with
+     * @param out
+     *            where to write the report
+     */
+    static void dump(final String prefix, final PrintWriter out) {
+        final double millisPerSecond = 1000.0;
+        out.println(String.format(Locale.US,
+                "%sMetrics (%s, over the last %.1fs):", prefix,
+                enabled ? "enabled" : "disabled",
+                (System.currentTimeMillis() - since) / millisPerSecond));
+        out.println(String.format(Locale.US,
+                "%s  %-28s %8s %9s %9s %9s %9s %9s", prefix, "timer (ms)",
+                "count", "mean", "p50", "p90", "p99", "max"));
+        synchronized (TIMERS) {
+            for (Map.Entry<String, Timer> entry : TIMERS.entrySet()) {
+                Timer timer = entry.getValue();
+                long count = timer.count.get();
+                if (count == 0) {
+                    continue;
+                }
+                StringBuilder line = new StringBuilder(String.format(
+                        Locale.US, "%s  %-28s %8d %9.3f", prefix,
+                        entry.getKey(), count, timer.total.get()
+                                / NANOS_PER_MILLI / count));
+                for (double percentile : PERCENTILES) {
+                    line.append(String.format(Locale.US, " %9.3f",
+                            timer.percentile(percentile) / NANOS_PER_MILLI));
+                }
+                line.append(String.format(Locale.US, " %9.3f", timer.max.get()
+                        / NANOS_PER_MILLI));
+                out.println(line);
+            }
+        }
+        out.println(String.format(Locale.US, "%s  %-28s %8s", prefix,
+                "counter", "count"));
+        synchronized (COUNTERS) {
+            for (Map.Entry<String, Counter> entry : COUNTERS.entrySet()) {
+                if (entry.getValue().get() > 0) {
+                    out.println(String.format(Locale.US, "%s  %-28s %8d",
+                            prefix, entry.getKey(), entry.getValue().get()));
+                }
+            }
+        }
+    }
+
+    /**
+     * Get a report of every metric recorded so far.
+     * 
+     * @return the report, as text
+     * 
+     * @see #dump(String, PrintWriter)
+     */
+    static String report() {
+        StringWriter result = new StringWriter();
+        PrintWriter out = new PrintWriter(result);
+        dump("", out);
+        out.flush();
+        return result.toString();
+    }
+}
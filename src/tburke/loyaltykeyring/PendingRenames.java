@@ -0,0 +1,143 @@
+package tburke.loyaltykeyring;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The {@link Change.Op#ADD}s and {@link Change.Op#RENAME}s of a batch of
+ * changes from another device that couldn't be applied in order, because the
+ * name was held by another card. Once the rest of the batch is applied, they
+ * are retried: a later change may have freed the name, or the cards may be
+ * swapping names, which a compacted journal records as nothing but the
+ * final names.
+ * 
+ * @author tburke
+ * 
+ * @see CardStore#applyChanges(List, long)
+ */
+final class PendingRenames {
+    /**
+     * Tag to be used when logging.
+     */
+    private static final String LOG_TAG = PendingRenames.class
+            .getSimpleName();
+    /**
+     * Starts the name a card is given while it's moved aside; never part of
+     * a real name.
+     */
+    private static final char ASIDE = '\u0000';
+
+    /**
+     * The names of a store's cards, as far as renaming goes.
+     */
+    interface Names {
+        /**
+         * Get the card holding a name.
+         * 
+         * @param name
+         *            the name
+         * @return the card's ID, or null if no card has the name
+         */
+        String holderOf(String name);
+
+        /**
+         * Give a card a name, adding it if it doesn't exist.
+         * 
+         * @param id
+         *            the card's ID
+         * @param name
+         *            the name
+         * @return false if another card holds the name; true otherwise
+         *         (including if the card can't be added)
+         */
+        boolean setName(String id, String name);
+    }
+
+    /**
+     * The changes waiting, by card ID; only the latest for each card.
+     */
+    private final Map<String, Change> pending = new LinkedHashMap<String, Change>();
+
+    /**
+     * Put off a change whose name was held by another card.
+     * 
+     * @param change
+     *            the {@link Change.Op#ADD} or {@link Change.Op#RENAME}
+     */
+    void defer(final Change change) {
+        pending.put(change.getCardID(), change);
+    }
+
+    /**
+     * Drop any change waiting for a card that a later change has since named
+     * or deleted.
+     * 
+     * @param id
+     *            the card's ID
+     */
+    void forget(final String id) {
+        pending.remove(id);
+    }
+
+    /**
+     * Retry the changes waiting, now that the rest of the batch is applied.
+     * Those still blocked by a card outside the batch are skipped.
+     * 
+     * @param names
+     *            the store's names
+     */
+    void retry(final Names names) {
+        boolean progress = true;
+        while (progress && !pending.isEmpty()) {
+            progress = false;
+            Iterator<Change> i = pending.values().iterator();
+            while (i.hasNext()) {
+                Change change = i.next();
+                if (names.setName(change.getCardID(), change.getName())) {
+                    i.remove();
+                    progress = true;
+                }
+            }
+        }
+        if (pending.isEmpty()) {
+            return;
+        }
+        // Each card left is blocked by the holder of its name. Where
+        // following the holders comes back round, the cards are swapping
+        // names: move them all aside, then name them.
+        Map<String, String> blockers = new HashMap<String, String>();
+        for (Change change : pending.values()) {
+            blockers.put(change.getCardID(),
+                    names.holderOf(change.getName()));
+        }
+        List<Change> cycle = new ArrayList<Change>();
+        for (Change change : pending.values()) {
+            String id = blockers.get(change.getCardID());
+            int steps = 0;
+            while (id != null && steps++ < blockers.size()) {
+                if (id.equals(change.getCardID())) {
+                    cycle.add(change);
+                    break;
+                }
+                id = blockers.get(id);
+            }
+        }
+        for (Change change : cycle) {
+            names.setName(change.getCardID(), ASIDE + change.getCardID());
+        }
+        for (Change change : cycle) {
+            names.setName(change.getCardID(), change.getName());
+            pending.remove(change.getCardID());
+        }
+        for (Change change : pending.values()) {
+            Log.w(LOG_TAG, "Skipping " + change + ": name taken");
+        }
+        pending.clear();
+    }
+}
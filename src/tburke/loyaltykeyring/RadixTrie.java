@@ -0,0 +1,291 @@
+package tburke.loyaltykeyring;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A compressed prefix tree (radix trie) from string keys to values. Each edge
+ * is labelled with a run of characters, so a lookup costs the length of the
+ * prefix plus the number of results, however many keys there are.
+ * <p>
+ * A key may hold several values, kept in the order of the comparator given.
+ * Values are enumerated in key order, then value order. Not thread-safe.
+ * 
+ * @param <V>
+ *            the type of value
+ * 
+ * @author tburke
+ */
+final class RadixTrie<V> {
+    /**
+     * The root, whose label is empty.
+     */
+    private final Node<V> root = new Node<V>("");
+    /**
+     * Orders the values held by a key.
+     */
+    private final Comparator<? super V> valueOrder;
+    /**
+     * The number of key/value pairs.
+     */
+    private int size = 0;
+
+    /**
+     * A node, reached from its parent by its label.
+     * 
+     * @param <V>
+     *            the type of value
+     */
+    private static final class Node<V> {
+        /**
+         * The characters on the edge from the parent.
+         */
+        private String label;
+        /**
+         * The children, ordered by the first character of their labels, which
+         * are all different.
+         */
+        private final List<Node<V>> children = new ArrayList<Node<V>>(0);
+        /**
+         * The values of the key ending here, in order; null if none.
+         */
+        private List<V> values = null;
+
+        /**
+         * Create a node without values.
+         * 
+         * @param edge
+         *            the label
+         */
+        Node(final String edge) {
+            label = edge;
+        }
+
+        /**
+         * Find the child whose label starts with a character.
+         * 
+         * @param c
+         *            the character
+         * @return the child's index, or (-(insertion point) - 1) if there
+         *         isn't one
+         */
+        int find(final char c) {
+            int low = 0;
+            int high = children.size() - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                char first = children.get(mid).label.charAt(0);
+                if (first < c) {
+                    low = mid + 1;
+                } else if (first > c) {
+                    high = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -(low + 1);
+        }
+    }
+
+    /**
+     * Create an empty trie.
+     * 
+     * @param order
+     *            the order of the values held by each key
+     */
+    RadixTrie(final Comparator<? super V> order) {
+        valueOrder = order;
+    }
+
+    /**
+     * Getter for the size.
+     * 
+     * @return the number of key/value pairs
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Add a value to a key. A key may hold several values, but each at most
+     * once.
+     * 
+     * @param key
+     *            the key
+     * @param value
+     *            the value
+     * @return true if the value was added, false if the key already held it
+     */
+    boolean put(final String key, final V value) {
+        Node<V> node = root;
+        int i = 0;
+        while (i < key.length()) {
+            int index = node.find(key.charAt(i));
+            if (index < 0) {
+                Node<V> leaf = new Node<V>(key.substring(i));
+                node.children.add(-index - 1, leaf);
+                node = leaf;
+                break;
+            }
+            Node<V> child = node.children.get(index);
+            int common = 1;
+            while (common < child.label.length() && i + common < key.length()
+                    && child.label.charAt(common) == key.charAt(i + common)) {
+                ++common;
+            }
+            if (common < child.label.length()) {
+                // Split the edge where the key leaves it.
+                Node<V> split = new Node<V>(child.label.substring(0, common));
+                child.label = child.label.substring(common);
+                split.children.add(child);
+                node.children.set(index, split);
+                child = split;
+            }
+            node = child;
+            i += common;
+        }
+        if (node.values == null) {
+            node.values = new ArrayList<V>(1);
+        }
+        int position = Collections.binarySearch(node.values, value,
+                valueOrder);
+        if (position >= 0 && node.values.get(position).equals(value)) {
+            return false;
+        }
+        node.values.add(position < 0 ? -position - 1 : position, value);
+        ++size;
+        return true;
+    }
+
+    /**
+     * Remove a value from a key, pruning and merging nodes left empty.
+     * 
+     * @param key
+     *            the key
+     * @param value
+     *            the value
+     * @return true if the value was removed, false if the key didn't hold it
+     */
+    boolean remove(final String key, final V value) {
+        Node<V> parent = null;
+        Node<V> node = root;
+        int i = 0;
+        while (i < key.length()) {
+            int index = node.find(key.charAt(i));
+            if (index < 0) {
+                return false;
+            }
+            Node<V> child = node.children.get(index);
+            if (!key.startsWith(child.label, i)) {
+                return false;
+            }
+            parent = node;
+            node = child;
+            i += child.label.length();
+        }
+        if (node.values == null || !node.values.remove(value)) {
+            return false;
+        }
+        --size;
+        if (node.values.isEmpty()) {
+            node.values = null;
+        }
+        if (parent != null && node.values == null) {
+            if (node.children.isEmpty()) {
+                parent.children.remove(parent.find(node.label.charAt(0)));
+                if (parent != root) {
+                    mergeWithChild(parent);
+                }
+            } else {
+                mergeWithChild(node);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Merge a node without values into its only child, if it has only one.
+     * 
+     * @param node
+     *            the node
+     */
+    private void mergeWithChild(final Node<V> node) {
+        if (node.values == null && node.children.size() == 1) {
+            Node<V> child = node.children.remove(0);
+            node.label += child.label;
+            node.values = child.values;
+            node.children.addAll(child.children);
+        }
+    }
+
+    /**
+     * Collect the values of keys starting with a prefix, in key order, until
+     * the collection holds enough. Values the collection already holds (if
+     * it's a set) don't count twice.
+     * 
+     * @param prefix
+     *            the prefix; "" for every key
+     * @param limit
+     *            the size at which to stop collecting
+     * @param out
+     *            where to put the values
+     */
+    void collect(final String prefix, final int limit,
+            final Collection<? super V> out) {
+        Node<V> node = root;
+        int i = 0;
+        while (i < prefix.length()) {
+            int index = node.find(prefix.charAt(i));
+            if (index < 0) {
+                return;
+            }
+            Node<V> child = node.children.get(index);
+            int remaining = prefix.length() - i;
+            if (remaining <= child.label.length()) {
+                // The prefix ends on this edge.
+                if (child.label.startsWith(prefix.substring(i))) {
+                    collectAll(child, limit, out);
+                }
+                return;
+            }
+            if (!prefix.startsWith(child.label, i)) {
+                return;
+            }
+            node = child;
+            i += child.label.length();
+        }
+        collectAll(node, limit, out);
+    }
+
+    /**
+     * Collect the values of a node and its descendants, in key order.
+     * 
+     * @param node
+     *            the node
+     * @param limit
+     *            the size at which to stop collecting
+     * @param out
+     *            where to put the values
+     * @return true if the limit was reached
+     */
+    private boolean collectAll(final Node<V> node, final int limit,
+            final Collection<? super V> out) {
+        if (node.values != null) {
+            for (V value : node.values) {
+                if (out.size() >= limit) {
+                    return true;
+                }
+                out.add(value);
+            }
+        }
+        for (Node<V> child : node.children) {
+            if (out.size() >= limit || collectAll(child, limit, out)) {
+                return true;
+            }
+        }
+        return out.size() >= limit;
+    }
+}
@@ -0,0 +1,253 @@
+package tburke.loyaltykeyring;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A search for cards, as typed by the user. Every word typed must be the
+ * start of a word in the card's name, groups or barcode data; the last word
+ * may be incomplete, and so may the others.
+ * <p>
+ * Words are split and case-folded as SQLite's "simple" full-text tokenizer
+ * does, so that {@link DBHelper}'s index and {@link MemoryCardStore}'s scan
+ * agree: ASCII letters and digits, and any non-ASCII character, make up
+ * words, and only ASCII letters are folded.
+ * <p>
+ * Results are ranked:
+ * <ol>
+ * <li>cards whose name starts with the first word;</li>
+ * <li>cards with every word at the start of a word in their name;</li>
+ * <li>everything else that matches, i.e. by group or barcode data.</li>
+ * </ol>
+ * Within each rank, cards are ordered by name.
+ * 
+ * @author tburke
+ */
+final class SearchQuery {
+    /**
+     * The rank of a card whose name starts with the first word.
+     */
+    static final int RANK_NAME_PREFIX = 0;
+    /**
+     * The rank of a card with every word in its name.
+     */
+    static final int RANK_NAME_WORDS = 1;
+    /**
+     * The rank of any other match.
+     */
+    static final int RANK_OTHER = 2;
+    /**
+     * The most results shown while the user types.
+     */
+    static final int TYPEAHEAD_LIMIT = 50;
+
+    /**
+     * The words searched for, case-folded.
+     */
+    private final List<String> words;
+
+    /**
+     * Parse a search.
+     * 
+     * @param query
+     *            the search, as typed
+     */
+    SearchQuery(final String query) {
+        if (query == null) {
+            words = Collections.emptyList();
+        } else {
+            words = Collections.unmodifiableList(tokenize(query));
+        }
+    }
+
+    /**
+     * Check whether there's anything to search for.
+     * 
+     * @return true if the search has no words
+     */
+    boolean isEmpty() {
+        return words.isEmpty();
+    }
+
+    /**
+     * Getter for the words searched for.
+     * 
+     * @return the words, case-folded
+     */
+    List<String> getWords() {
+        return words;
+    }
+
+    /**
+     * Build the full-text query: every word, as a prefix.
+     * 
+     * @param column
+     *            the column to search, or null for every column
+     * @return the expression for <code>MATCH</code>, e.g. "cof* 12*" or
+     *         "Name:cof* Name:12*"
+     */
+    String toMatchExpression(final String column) {
+        StringBuilder result = new StringBuilder();
+        for (String word : words) {
+            if (result.length() > 0) {
+                result.append(' ');
+            }
+            if (column != null) {
+                result.append(column).append(':');
+            }
+            result.append(word).append('*');
+        }
+        return result.toString();
+    }
+
+    /**
+     * Build a <code>LIKE</code> pattern for names starting with the first
+     * word. Words never contain wildcards, so nothing needs escaping.
+     * 
+     * @return the pattern, e.g. "cof%"
+     */
+    String toNamePrefixPattern() {
+        if (isEmpty()) {
+            return "%";
+        }
+        return words.get(0) + "%";
+    }
+
+    /**
+     * Check whether a card matches.
+     * 
+     * @param name
+     *            the card's name
+     * @param groups
+     *            the card's groups
+     * @param data
+     *            the card's barcode data, in its display form
+     * @return true if every word starts a word in the name, a group or the
+     *         data
+     */
+    boolean matches(final String name, final Iterable<String> groups,
+            final String data) {
+        List<String> cardWords = tokenize(name);
+        for (String group : groups) {
+            cardWords.addAll(tokenize(group));
+        }
+        cardWords.addAll(tokenize(data));
+        return startsWords(cardWords);
+    }
+
+    /**
+     * Rank a matching card.
+     * 
+     * @param name
+     *            the card's name
+     * @return {@link #RANK_NAME_PREFIX}, {@link #RANK_NAME_WORDS} or
+     *         {@link #RANK_OTHER}
+     */
+    int rank(final String name) {
+        if (isEmpty()) {
+            return RANK_OTHER;
+        }
+        if (fold(name).startsWith(words.get(0))) {
+            return RANK_NAME_PREFIX;
+        }
+        if (startsWords(tokenize(name))) {
+            return RANK_NAME_WORDS;
+        }
+        return RANK_OTHER;
+    }
+
+    /**
+     * Check whether every word searched for starts one of a card's words.
+     * 
+     * @param cardWords
+     *            the card's words, case-folded
+     * @return true if so
+     */
+    private boolean startsWords(final List<String> cardWords) {
+        for (String word : words) {
+            boolean found = false;
+            for (String cardWord : cardWords) {
+                if (cardWord.startsWith(word)) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Split text into case-folded words, as the "simple" tokenizer does.
+     * 
+     * @param text
+     *            the text; may be null
+     * @return the words
+     */
+    static List<String> tokenize(final String text) {
+        List<String> result = new ArrayList<String>();
+        if (text == null) {
+            return result;
+        }
+        StringBuilder word = new StringBuilder();
+        for (int i = 0; i < text.length(); ++i) {
+            char c = text.charAt(i);
+            if (isWordChar(c)) {
+                word.append(foldChar(c));
+            } else if (word.length() > 0) {
+                result.add(word.toString());
+                word.setLength(0);
+            }
+        }
+        if (word.length() > 0) {
+            result.add(word.toString());
+        }
+        return result;
+    }
+
+    /**
+     * Check whether a character is part of a word.
+     * 
+     * @param c
+     *            the character
+     * @return true for ASCII letters and digits, and non-ASCII characters
+     */
+    private static boolean isWordChar(final char c) {
+        final char lastAscii = 0x7F;
+        return c > lastAscii || (c >= '0' && c <= '9')
+                || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    /**
+     * Fold the case of an ASCII letter, as the tokenizer (and
+     * <code>LIKE</code>) do.
+     * 
+     * @param c
+     *            the character
+     * @return the character, in lower case if it's an ASCII letter
+     */
+    private static char foldChar(final char c) {
+        if (c >= 'A' && c <= 'Z') {
+            return (char) (c - 'A' + 'a');
+        }
+        return c;
+    }
+
+    /**
+     * Fold the case of the ASCII letters in some text.
+     * 
+     * @param text
+     *            the text
+     * @return the folded text
+     */
+    private static String fold(final String text) {
+        StringBuilder result = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); ++i) {
+            result.append(foldChar(text.charAt(i)));
+        }
+        return result.toString();
+    }
+}
@@ -0,0 +1,192 @@
+package tburke.loyaltykeyring;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Reads the records of another {@link CardRecordReader} in card ID order, as
+ * compared by {@link CardMerger#compareIDs(String, String)}. Records with the
+ * same ID keep their original order.
+ * <p>
+ * The input is read in runs of {@link #RUN_SIZE} records, each sorted in
+ * memory. If there's more than one, every run but the last is spilled to a
+ * temporary file in the uncompressed backup format, and the runs are merged
+ * as they're read. Input that's already in order (such as this app's own
+ * exports) sorts in linear time.
+ * 
+ * @author tburke
+ */
+final class SortedCardReader implements CardRecordReader {
+    /**
+     * Tag to be used when logging.
+     */
+    private static final String LOG_TAG = SortedCardReader.class
+            .getSimpleName();
+    /**
+     * The most records sorted in memory at once.
+     */
+    private static final int RUN_SIZE = 10000;
+    /**
+     * Size of the buffers used for the spilled runs.
+     */
+    private static final int BUFFER_SIZE = 16 * 1024;
+    /**
+     * Orders records by card ID.
+     */
+    private static final Comparator<CardRecord> ID_ORDER = new Comparator<CardRecord>() {
+        @Override
+        public int compare(final CardRecord a, final CardRecord b) {
+            return CardMerger.compareIDs(a.getCard().getID(), b.getCard()
+                    .getID());
+        }
+    };
+
+    /**
+     * The spilled runs, in the order they were read.
+     */
+    private final List<CardRecordReader> spilled = new ArrayList<CardRecordReader>();
+    /**
+     * The directory in which runs are spilled.
+     */
+    private final File tempDir;
+    /**
+     * The last run, which is never spilled.
+     */
+    private final Iterator<CardRecord> last;
+    /**
+     * The next record of each spilled run, then of the last run; null once a
+     * run is finished.
+     */
+    private final CardRecord[] heads;
+
+    /**
+     * Read and sort every record of the input. The input isn't closed.
+     * 
+     * @param input
+     *            the records, in any order
+     * @param dir
+     *            the directory in which runs are spilled: the app's cache
+     *            directory
+     * @throws IOException
+     *             if the input can't be read, or a run can't be spilled
+     */
+    SortedCardReader(final CardRecordReader input, final File dir)
+            throws IOException {
+        tempDir = dir;
+        List<CardRecord> run = new ArrayList<CardRecord>();
+        try {
+            CardRecord record;
+            while ((record = input.read()) != null) {
+                if (run.size() == RUN_SIZE) {
+                    spill(run);
+                    run.clear();
+                }
+                run.add(record);
+            }
+            // A stable sort, so that repeated cards stay in order.
+            Collections.sort(run, ID_ORDER);
+            last = run.iterator();
+            heads = new CardRecord[spilled.size() + 1];
+            for (int i = 0; i < heads.length; ++i) {
+                heads[i] = advance(i);
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Sort a run and write it to a temporary file, which is kept open for
+     * reading and deleted at once.
+     * 
+     * @param run
+     *            the records
+     * @throws IOException
+     *             if the run can't be written or read back
+     */
+    private void spill(final List<CardRecord> run) throws IOException {
+        Collections.sort(run, ID_ORDER);
+        File temp = File.createTempFile("sort", ".tmp", tempDir);
+        try {
+            CardRecordWriter writer = new BinaryCardWriter(
+                    new BufferedOutputStream(new FileOutputStream(temp),
+                            BUFFER_SIZE), false);
+            try {
+                for (CardRecord record : run) {
+                    writer.write(record);
+                }
+            } finally {
+                writer.close();
+            }
+            FileInputStream in = new FileInputStream(temp);
+            try {
+                spilled.add(new BinaryCardReader(new BufferedInputStream(in,
+                        BUFFER_SIZE)));
+            } catch (IOException e) {
+                in.close();
+                throw e;
+            }
+        } finally {
+            // Still readable while it's open.
+            temp.delete();
+        }
+        if (Log.isLoggable(LOG_TAG, Log.DEBUG)) {
+            Log.d(LOG_TAG, "Spilled run " + spilled.size());
+        }
+    }
+
+    /**
+     * Read the next record of a run.
+     * 
+     * @param index
+     *            the run: a spilled run, or the last
+     * @return its next record, or null at its end
+     * @throws IOException
+     *             if a spilled run can't be read
+     */
+    private CardRecord advance(final int index) throws IOException {
+        if (index < spilled.size()) {
+            return spilled.get(index).read();
+        }
+        return last.hasNext() ? last.next() : null;
+    }
+
+    @Override
+    public CardRecord read() throws IOException {
+        int least = -1;
+        for (int i = 0; i < heads.length; ++i) {
+            if (heads[i] == null) {
+                continue;
+            }
+            // Only a strictly lesser ID wins, so ties go to the earlier run.
+            if (least < 0 || ID_ORDER.compare(heads[i], heads[least]) < 0) {
+                least = i;
+            }
+        }
+        if (least < 0) {
+            return null;
+        }
+        CardRecord result = heads[least];
+        heads[least] = advance(least);
+        return result;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (CardRecordReader run : spilled) {
+            run.close();
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package tburke.loyaltykeyring;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Records how long each phase of a cold start takes, from process start to
+ * the first frame with cards in it, and keeps the timelines of the last
+ * {@link #MAX_LAUNCHES} launches.
+ * <p>
+ * Phases are marked with {@link #mark(String)}; {@link #finish(Context)} ends
+ * the timeline and saves it. Only the first timeline in each process is
+ * recorded, so activities being recreated don't count as launches.
+ * 
+ * @author tburke
+ */
+final class StartupTimeline {
+    /**
+     * Tag to be used when logging.
+     */
+    private static final String LOG_TAG = StartupTimeline.class
+            .getSimpleName();
+    /**
+     * The number of launches kept.
+     */
+    static final int MAX_LAUNCHES = 10;
+    /**
+     * Name of the preferences holding past launches.
+     */
+    private static final String PREFS_NAME = "startup";
+    /**
+     * Preference holding past launches, newest first, one per line.
+     */
+    private static final String PREF_LAUNCHES = "launches";
+    /**
+     * Where the kernel reports when this process started.
+     */
+    private static final String PROC_STAT = "/proc/self/stat";
+    /**
+     * Index of the start time among the fields after the process name in
+     * {@link #PROC_STAT}.
+     */
+    private static final int STAT_START_TIME = 19;
+    /**
+     * Kernel clock ticks per second (USER_HZ), which is 100 on every Android
+     * device.
+     */
+    private static final long TICKS_PER_SECOND = 100;
+    /**
+     * Milliseconds per second.
+     */
+    private static final long MILLIS_PER_SECOND = 1000;
+
+    /**
+     * The phases marked so far.
+     */
+    private static final List<String> PHASES = new ArrayList<String>();
+    /**
+     * When each phase ended, in milliseconds since boot.
+     */
+    private static final List<Long> TIMES = new ArrayList<Long>();
+    /**
+     * Whether this process's timeline has been finished.
+     */
+    private static boolean finished = false;
+
+    /**
+     * Utility class; not to be instantiated.
+     */
+    private StartupTimeline() {
+    }
+
+    /**
+     * Mark the end of a phase, unless this process's timeline is finished.
+     * 
+     * @param phase
+     *            the phase, e.g. "onCreate"
+     */
+    static synchronized void mark(final String phase) {
+        if (!finished) {
+            PHASES.add(phase);
+            TIMES.add(SystemClock.elapsedRealtime());
+        }
+    }
+
+    /**
+     * Finish this process's timeline, if it hasn't been finished, and save it
+     * in the background.
+     * 
+     * @param ctx
+     *            any context from this application
+     */
+    static synchronized void finish(final Context ctx) {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        final List<String> phases = new ArrayList<String>(PHASES);
+        final List<Long> times = new ArrayList<Long>(TIMES);
+        final long wallClock = System.currentTimeMillis();
+        final Context appContext = ctx.getApplicationContext();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                save(appContext, format(wallClock, phases, times));
+            }
+        }, LOG_TAG).start();
+    }
+
+    /**
+     * Describe a launch, as offsets from process start.
+     * 
+     * @param wallClock
+     *            when the launch finished, in milliseconds since the epoch
+     * @param phases
+     *            the phases
+     * @param times
+     *            when each phase ended, in milliseconds since boot
+     * @return one line, e.g.
+     *         "1382112000000 process=0 onCreate=212 ... firstFrame=930"
+     */
+    private static String format(final long wallClock,
+            final List<String> phases, final List<Long> times) {
+        long zero = getProcessStart();
+        StringBuilder line = new StringBuilder();
+        line.append(wallClock);
+        if (zero < 0 && !times.isEmpty()) {
+            zero = times.get(0);
+        } else {
+            line.append(" process=0");
+        }
+        for (int i = 0; i < phases.size(); ++i) {
+            line.append(' ').append(phases.get(i)).append('=')
+                    .append(times.get(i) - zero);
+        }
+        return line.toString();
+    }
+
+    /**
+     * Find when this process started.
+     * 
+     * @return the start time, in milliseconds since boot, or -1 if unknown
+     */
+    private static long getProcessStart() {
+        BufferedReader in = null;
+        try {
+            in = new BufferedReader(new FileReader(PROC_STAT));
+            String stat = in.readLine();
+            // The name may contain spaces, but is enclosed in parentheses.
+            String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(
+                    " ");
+            return Long.parseLong(fields[STAT_START_TIME]) * MILLIS_PER_SECOND
+                    / TICKS_PER_SECOND;
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Couldn't read " + PROC_STAT, e);
+        } catch (RuntimeException e) {
+            Log.w(LOG_TAG, "Couldn't parse " + PROC_STAT, e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    Log.w(LOG_TAG, "Couldn't close " + PROC_STAT, e);
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Add a launch to those saved, dropping the oldest if need be.
+     * 
+     * @param ctx
+     *            the application context
+     * @param launch
+     *            the launch, as formatted by
+     *            {@link #format(long, List, List)}
+     */
+    private static void save(final Context ctx, final String launch) {
+        if (Log.isLoggable(LOG_TAG, Log.INFO)) {
+            Log.i(LOG_TAG, "Startup: " + launch);
+        }
+        synchronized (StartupTimeline.class) {
+            List<String> launches = getLaunches(ctx);
+            launches.add(0, launch);
+            StringBuilder value = new StringBuilder();
+            for (int i = 0; i < launches.size() && i < MAX_LAUNCHES; ++i) {
+                if (i > 0) {
+                    value.append('\n');
+                }
+                value.append(launches.get(i));
+            }
+            ctx.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit()
+                    .putString(PREF_LAUNCHES, value.toString()).commit();
+        }
+    }
+
+    /**
+     * Get the launches saved.
+     * 
+     * @param ctx
+     *            any context from this application
+     * @return the launches, newest first, as formatted by
+     *         {@link #format(long, List, List)}
+     */
+    static List<String> getLaunches(final Context ctx) {
+        SharedPreferences prefs = ctx.getSharedPreferences(PREFS_NAME,
+                Context.MODE_PRIVATE);
+        List<String> result = new ArrayList<String>();
+        String value = prefs.getString(PREF_LAUNCHES, "");
+        for (String launch : value.split("\n")) {
+            if (launch.length() > 0) {
+                result.add(launch);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Write the launches saved.
+     * 
+     * @param ctx
+     *            any context from this application
+     * @param prefix
+     *            text to start each line with
+     * @param out
+     *            where to write the launches
+     */
+    static void dump(final Context ctx, final String prefix,
+            final PrintWriter out) {
+        out.println(prefix + "Startup timeline (ms from process start, last "
+                + MAX_LAUNCHES + " launches, newest first):");
+        for (String launch : getLaunches(ctx)) {
+            out.println(prefix + "  " + launch);
+        }
+    }
+}
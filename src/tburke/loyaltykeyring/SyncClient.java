@@ -0,0 +1,419 @@
+package tburke.loyaltykeyring;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Keeps the keyring in sync with a user's other devices, through a sync
+ * server.
+ * <p>
+ * Each round trip sends a batch of local changes from the change journal, and
+ * receives a batch of other devices' changes. Two watermarks, saved between
+ * syncs, record how far each side has got: the local journal sequence number
+ * sent, and the server sequence number applied. Each batch has an ID derived
+ * from the journal range it covers, so a retried batch is recorded only once
+ * by the server, and applying a change twice does no harm; any failed request
+ * can simply be retried. Changes received are journaled as
+ * {@link Change#isRemote() remote}, and never sent back. With nothing to send
+ * or receive, a sync is a single small request. Should be run off the UI
+ * thread.
+ * 
+ * @author tburke
+ * 
+ * @see SyncProtocol
+ */
+final class SyncClient {
+    /**
+     * Tag to be used when logging.
+     */
+    private static final String LOG_TAG = SyncClient.class.getSimpleName();
+    /**
+     * Name of the preferences file holding the sync state.
+     */
+    private static final String PREFS = "sync";
+    /**
+     * Preference holding this device's ID.
+     */
+    private static final String PREF_DEVICE_ID = "deviceID";
+    /**
+     * Preference holding the local journal sequence number sent.
+     */
+    private static final String PREF_LOCAL_WATERMARK = "localWatermark";
+    /**
+     * Preference holding the server sequence number applied.
+     */
+    private static final String PREF_SERVER_WATERMARK = "serverWatermark";
+    /**
+     * Preference holding the server URL.
+     */
+    static final String PREF_SERVER_URL = "serverURL";
+    /**
+     * Number of times a request is attempted before giving up.
+     */
+    private static final int MAX_ATTEMPTS = 4;
+    /**
+     * Delay before the first retry, in milliseconds; doubled for each retry.
+     */
+    private static final long RETRY_DELAY = 1000;
+    /**
+     * Connect and read timeout, in milliseconds.
+     */
+    private static final int TIMEOUT = 15 * 1000;
+    /**
+     * Size of the buffer used when reading responses.
+     */
+    private static final int BUFFER_SIZE = 8 * 1024;
+    /**
+     * Number of milliseconds in a second.
+     */
+    private static final double MILLIS_PER_SECOND = 1000.0;
+    /**
+     * Lowest HTTP status code which isn't worth retrying.
+     */
+    private static final int HTTP_CLIENT_ERROR = 400;
+    /**
+     * Lowest HTTP status code which is worth retrying.
+     */
+    private static final int HTTP_SERVER_ERROR = 500;
+
+    /**
+     * Thrown when the server rejects a request outright, so that it isn't
+     * retried.
+     */
+    private static final class RejectedException extends IOException {
+        /**
+         * Determines if a de-serialized object is compatible with this class.
+         */
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Create a new RejectedException.
+         * 
+         * @param status
+         *            the HTTP status line
+         */
+        RejectedException(final String status) {
+            super("Server rejected sync: " + status);
+        }
+    }
+
+    /**
+     * Counts of what a sync did.
+     */
+    static final class Stats {
+        /**
+         * Number of HTTP requests made, including retries.
+         */
+        private int requests = 0;
+        /**
+         * Number of (compressed) body bytes sent.
+         */
+        private long bytesSent = 0;
+        /**
+         * Number of (compressed) body bytes received.
+         */
+        private long bytesReceived = 0;
+        /**
+         * Number of local changes sent.
+         */
+        private int changesSent = 0;
+        /**
+         * Number of other devices' changes received.
+         */
+        private int changesReceived = 0;
+        /**
+         * Time spent syncing, in milliseconds.
+         */
+        private long elapsed = 0;
+
+        /**
+         * Getter for the number of requests.
+         * 
+         * @return the number of HTTP requests made, including retries
+         */
+        public int getRequests() {
+            return requests;
+        }
+
+        /**
+         * Getter for the bytes sent.
+         * 
+         * @return the number of (compressed) body bytes sent
+         */
+        public long getBytesSent() {
+            return bytesSent;
+        }
+
+        /**
+         * Getter for the bytes received.
+         * 
+         * @return the number of (compressed) body bytes received
+         */
+        public long getBytesReceived() {
+            return bytesReceived;
+        }
+
+        /**
+         * Getter for the changes sent.
+         * 
+         * @return the number of local changes sent
+         */
+        public int getChangesSent() {
+            return changesSent;
+        }
+
+        /**
+         * Getter for the changes received.
+         * 
+         * @return the number of other devices' changes received
+         */
+        public int getChangesReceived() {
+            return changesReceived;
+        }
+
+        /**
+         * Getter for the time spent.
+         * 
+         * @return the time spent syncing, in milliseconds
+         */
+        public long getElapsed() {
+            return elapsed;
+        }
+
+        /**
+         * Getter for the sync's throughput.
+         * 
+         * @return changes sent and received per second
+         */
+        public double getChangesPerSecond() {
+            if (elapsed == 0) {
+                return 0;
+            }
+            return (changesSent + changesReceived) * MILLIS_PER_SECOND
+                    / elapsed;
+        }
+
+        @Override
+        public String toString() {
+            return changesSent + " changes sent, " + changesReceived
+                    + " received in " + requests + " requests; "
+                    + bytesSent + " bytes sent, " + bytesReceived
+                    + " received in " + elapsed + "ms ("
+                    + (int) getChangesPerSecond() + " changes/s)";
+        }
+    }
+
+    /**
+     * The local keyring.
+     */
+    private final CardStore db;
+    /**
+     * Where the sync state is saved.
+     */
+    private final SharedPreferences prefs;
+    /**
+     * Where requests are sent.
+     */
+    private final URL url;
+
+    /**
+     * Create a client.
+     * 
+     * @param ctx
+     *            context used to find the sync state
+     * @param store
+     *            the local keyring
+     * @param server
+     *            the server's base URL; requests go to
+     *            {@link SyncProtocol#PATH} under it
+     * @throws IOException
+     *             if the URL is malformed
+     */
+    SyncClient(final Context ctx, final CardStore store, final String server)
+            throws IOException {
+        db = store;
+        prefs = getPreferences(ctx);
+        String base = server;
+        while (base.endsWith("/")) {
+            base = base.substring(0, base.length() - 1);
+        }
+        url = new URL(base + SyncProtocol.PATH);
+    }
+
+    /**
+     * Get the preferences holding the sync state.
+     * 
+     * @param ctx
+     *            any context from this application
+     * @return the preferences
+     */
+    static SharedPreferences getPreferences(final Context ctx) {
+        return ctx.getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Send local changes and apply other devices' changes until both sides
+     * are up to date.
+     * 
+     * @return what the sync did
+     * @throws IOException
+     *             if the server can't be reached, even after retrying; the
+     *             batches already exchanged are kept
+     */
+    Stats sync() throws IOException {
+        Stats stats = new Stats();
+        long start = System.currentTimeMillis();
+        String deviceID = getDeviceID();
+        long local = prefs.getLong(PREF_LOCAL_WATERMARK, 0);
+        long server = prefs.getLong(PREF_SERVER_WATERMARK, 0);
+        boolean more;
+        do {
+            List<Change> journal = db.getChangesSince(local,
+                    SyncProtocol.BATCH_SIZE);
+            long batchEnd = local;
+            if (!journal.isEmpty()) {
+                batchEnd = journal.get(journal.size() - 1).getSequence();
+            }
+            List<Change> pending = new ArrayList<Change>(journal.size());
+            for (Change change : journal) {
+                if (!change.isRemote()) {
+                    pending.add(change);
+                }
+            }
+            SyncProtocol.Request request = new SyncProtocol.Request(deviceID,
+                    local + "-" + batchEnd, server, pending);
+            SyncProtocol.Response response = post(request, stats);
+            stats.changesSent += pending.size();
+            stats.changesReceived += response.getChanges().size();
+
+            if (response.getChanges().isEmpty()) {
+                local = batchEnd;
+            } else {
+                local = db.applyChanges(response.getChanges(), batchEnd);
+            }
+            server = response.getWatermark();
+            prefs.edit().putLong(PREF_LOCAL_WATERMARK, local)
+                    .putLong(PREF_SERVER_WATERMARK, server).commit();
+            more = response.hasMore()
+                    || journal.size() == SyncProtocol.BATCH_SIZE;
+        } while (more);
+        stats.elapsed = System.currentTimeMillis() - start;
+        if (Log.isLoggable(LOG_TAG, Log.INFO)) {
+            Log.i(LOG_TAG, "Synced: " + stats);
+        }
+        return stats;
+    }
+
+    /**
+     * Get this device's ID, creating it if need be.
+     * 
+     * @return this device's ID
+     */
+    private String getDeviceID() {
+        String deviceID = prefs.getString(PREF_DEVICE_ID, null);
+        if (deviceID == null) {
+            deviceID = UUID.randomUUID().toString();
+            prefs.edit().putString(PREF_DEVICE_ID, deviceID).commit();
+        }
+        return deviceID;
+    }
+
+    /**
+     * Send a request, retrying with exponential backoff if it fails.
+     * 
+     * @param request
+     *            the request
+     * @param stats
+     *            updated with the requests made and bytes exchanged
+     * @return the server's response
+     * @throws IOException
+     *             if every attempt failed
+     */
+    private SyncProtocol.Response post(final SyncProtocol.Request request,
+            final Stats stats) throws IOException {
+        byte[] body = SyncProtocol.encode(request);
+        long delay = RETRY_DELAY;
+        for (int attempt = 1;; ++attempt) {
+            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+            try {
+                ++stats.requests;
+                conn.setDoOutput(true);
+                conn.setRequestMethod("POST");
+                conn.setRequestProperty("Content-Type",
+                        SyncProtocol.CONTENT_TYPE);
+                conn.setFixedLengthStreamingMode(body.length);
+                conn.setConnectTimeout(TIMEOUT);
+                conn.setReadTimeout(TIMEOUT);
+                OutputStream out = conn.getOutputStream();
+                out.write(body);
+                out.close();
+                stats.bytesSent += body.length;
+
+                int status = conn.getResponseCode();
+                if (status >= HTTP_CLIENT_ERROR && status < HTTP_SERVER_ERROR) {
+                    throw new RejectedException(status + " "
+                            + conn.getResponseMessage());
+                } else if (status != HttpURLConnection.HTTP_OK) {
+                    throw new IOException("Server error: " + status + " "
+                            + conn.getResponseMessage());
+                }
+                byte[] response = readAll(conn.getInputStream());
+                stats.bytesReceived += response.length;
+                return SyncProtocol.decodeResponse(new ByteArrayInputStream(
+                        response));
+            } catch (RejectedException e) {
+                // Retrying won't help.
+                throw e;
+            } catch (IOException e) {
+                if (attempt >= MAX_ATTEMPTS) {
+                    throw e;
+                }
+                Log.w(LOG_TAG, "Sync attempt " + attempt + " failed; retrying",
+                        e);
+            } finally {
+                conn.disconnect();
+            }
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted");
+            }
+            delay *= 2;
+        }
+    }
+
+    /**
+     * Read a stream to its end.
+     * 
+     * @param in
+     *            the stream, which is closed
+     * @return everything read
+     * @throws IOException
+     *             if the stream can't be read
+     */
+    private static byte[] readAll(final InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream result = new ByteArrayOutputStream();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                result.write(buffer, 0, n);
+            }
+            return result.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,403 @@
+package tburke.loyaltykeyring;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The wire format shared by {@link SyncClient} and the sync server (a
+ * reference implementation of which, SyncServer, is in the bench module).
+ * <p>
+ * A client POSTs a {@link Request} to {@link #PATH}: a batch of its local
+ * changes, and the server watermark up to which it has already applied the
+ * server's changes. The server records the batch (once, however often it's
+ * retried) and answers with a {@link Response}: the other devices' changes
+ * since that watermark, and the new watermark. Both bodies are deflated
+ * {@link java.io.DataOutput} streams, starting with {@link #VERSION}.
+ * <p>
+ * Changes are sent as their {@link Change.Op} name, the card ID, and optional
+ * name and group; sequence numbers are not sent, since the server assigns its
+ * own.
+ * 
+ * @author tburke
+ */
+final class SyncProtocol {
+    /**
+     * The path to which requests are sent.
+     */
+    static final String PATH = "/sync";
+    /**
+     * The content type of both requests and responses.
+     */
+    static final String CONTENT_TYPE = "application/x-loyaltykeyring-sync";
+    /**
+     * The current version of the format.
+     */
+    static final int VERSION = 1;
+    /**
+     * Most changes sent in either direction in one round trip.
+     */
+    static final int BATCH_SIZE = 500;
+
+    /**
+     * Utility class; not to be instantiated.
+     */
+    private SyncProtocol() {
+    }
+
+    /**
+     * A batch of changes from a client.
+     */
+    static final class Request {
+        /**
+         * Identifies the sending device.
+         */
+        private final String deviceID;
+        /**
+         * Identifies this batch; a retry must reuse it.
+         */
+        private final String batchID;
+        /**
+         * Server sequence number up to which the client is current.
+         */
+        private final long watermark;
+        /**
+         * The client's changes.
+         */
+        private final List<Change> changes;
+
+        /**
+         * Create a new, immutable Request.
+         * 
+         * @param device
+         *            identifies the sending device
+         * @param batch
+         *            identifies this batch; a retry must reuse it
+         * @param since
+         *            server sequence number up to which the client is current
+         * @param batchChanges
+         *            the client's changes, at most {@link #BATCH_SIZE}
+         */
+        Request(final String device, final String batch, final long since,
+                final List<Change> batchChanges) {
+            deviceID = device;
+            batchID = batch;
+            watermark = since;
+            changes = Collections.unmodifiableList(batchChanges);
+        }
+
+        /**
+         * Getter for the device ID.
+         * 
+         * @return identifies the sending device
+         */
+        public String getDeviceID() {
+            return deviceID;
+        }
+
+        /**
+         * Getter for the batch ID.
+         * 
+         * @return identifies this batch
+         */
+        public String getBatchID() {
+            return batchID;
+        }
+
+        /**
+         * Getter for the watermark.
+         * 
+         * @return server sequence number up to which the client is current
+         */
+        public long getWatermark() {
+            return watermark;
+        }
+
+        /**
+         * Getter for the changes.
+         * 
+         * @return the client's changes
+         */
+        public List<Change> getChanges() {
+            return changes;
+        }
+    }
+
+    /**
+     * The server's answer to a {@link Request}.
+     */
+    static final class Response {
+        /**
+         * Server sequence number up to which the client is now current.
+         */
+        private final long watermark;
+        /**
+         * Whether the server has more changes than fit in this response.
+         */
+        private final boolean more;
+        /**
+         * Other devices' changes.
+         */
+        private final List<Change> changes;
+
+        /**
+         * Create a new, immutable Response.
+         * 
+         * @param since
+         *            server sequence number up to which the client is now
+         *            current
+         * @param hasMore
+         *            whether the server has more changes
+         * @param responseChanges
+         *            other devices' changes, at most {@link #BATCH_SIZE}
+         */
+        Response(final long since, final boolean hasMore,
+                final List<Change> responseChanges) {
+            watermark = since;
+            more = hasMore;
+            changes = Collections.unmodifiableList(responseChanges);
+        }
+
+        /**
+         * Getter for the watermark.
+         * 
+         * @return server sequence number up to which the client is now current
+         */
+        public long getWatermark() {
+            return watermark;
+        }
+
+        /**
+         * Getter for whether there are more changes.
+         * 
+         * @return true if the server has more changes than fit in this
+         *         response
+         */
+        public boolean hasMore() {
+            return more;
+        }
+
+        /**
+         * Getter for the changes.
+         * 
+         * @return other devices' changes
+         */
+        public List<Change> getChanges() {
+            return changes;
+        }
+    }
+
+    /**
+     * Encode a request.
+     * 
+     * @param request
+     *            the request
+     * @return the deflated body
+     * @throws IOException
+     *             if the request can't be encoded
+     */
+    static byte[] encode(final Request request) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater();
+        try {
+            DataOutputStream out = new DataOutputStream(
+                    new DeflaterOutputStream(body, deflater));
+            out.writeByte(VERSION);
+            out.writeUTF(request.getDeviceID());
+            out.writeUTF(request.getBatchID());
+            out.writeLong(request.getWatermark());
+            writeChanges(out, request.getChanges());
+            out.close();
+        } finally {
+            deflater.end();
+        }
+        return body.toByteArray();
+    }
+
+    /**
+     * Encode a response.
+     * 
+     * @param response
+     *            the response
+     * @return the deflated body
+     * @throws IOException
+     *             if the response can't be encoded
+     */
+    static byte[] encode(final Response response) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater();
+        try {
+            DataOutputStream out = new DataOutputStream(
+                    new DeflaterOutputStream(body, deflater));
+            out.writeByte(VERSION);
+            out.writeLong(response.getWatermark());
+            out.writeBoolean(response.hasMore());
+            writeChanges(out, response.getChanges());
+            out.close();
+        } finally {
+            deflater.end();
+        }
+        return body.toByteArray();
+    }
+
+    /**
+     * Decode a request.
+     * 
+     * @param body
+     *            the deflated body
+     * @return the request
+     * @throws IOException
+     *             if the body can't be read or is malformed
+     */
+    static Request decodeRequest(final InputStream body) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            DataInputStream in = open(body, inflater);
+            String deviceID = in.readUTF();
+            String batchID = in.readUTF();
+            long watermark = in.readLong();
+            return new Request(deviceID, batchID, watermark, readChanges(in));
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Decode a response.
+     * 
+     * @param body
+     *            the deflated body
+     * @return the response
+     * @throws IOException
+     *             if the body can't be read or is malformed
+     */
+    static Response decodeResponse(final InputStream body) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            DataInputStream in = open(body, inflater);
+            long watermark = in.readLong();
+            boolean more = in.readBoolean();
+            return new Response(watermark, more, readChanges(in));
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Start reading a body, checking its version.
+     * 
+     * @param body
+     *            the deflated body
+     * @param inflater
+     *            the inflater to use
+     * @return a stream over the rest of the body
+     * @throws IOException
+     *             if the body can't be read or is from a newer version
+     */
+    private static DataInputStream open(final InputStream body,
+            final Inflater inflater) throws IOException {
+        DataInputStream in = new DataInputStream(new InflaterInputStream(body,
+                inflater));
+        int version = in.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported sync version " + version);
+        }
+        return in;
+    }
+
+    /**
+     * Write a list of changes.
+     * 
+     * @param out
+     *            where to write them
+     * @param changes
+     *            the changes
+     * @throws IOException
+     *             if the changes can't be written
+     */
+    private static void writeChanges(final DataOutputStream out,
+            final List<Change> changes) throws IOException {
+        out.writeInt(changes.size());
+        for (Change change : changes) {
+            out.writeUTF(change.getOp().name());
+            out.writeUTF(change.getCardID());
+            writeOptional(out, change.getName());
+            writeOptional(out, change.getTag());
+        }
+    }
+
+    /**
+     * Read a list of changes.
+     * 
+     * @param in
+     *            where to read them from
+     * @return the changes, with no sequence numbers
+     * @throws IOException
+     *             if the changes can't be read or are malformed
+     */
+    private static List<Change> readChanges(final DataInputStream in)
+            throws IOException {
+        int count = in.readInt();
+        if (count < 0 || count > BATCH_SIZE) {
+            throw new IOException("Bad change count " + count);
+        }
+        List<Change> result = new ArrayList<Change>(count);
+        for (int i = 0; i < count; ++i) {
+            Change.Op op;
+            try {
+                op = Change.Op.valueOf(in.readUTF());
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Unknown change: " + e.getMessage());
+            }
+            String cardID = in.readUTF();
+            String name = readOptional(in);
+            String tag = readOptional(in);
+            result.add(new Change(0, op, cardID, name, tag));
+        }
+        return result;
+    }
+
+    /**
+     * Write a string which may be null.
+     * 
+     * @param out
+     *            where to write it
+     * @param value
+     *            the string, or null
+     * @throws IOException
+     *             if the string can't be written
+     */
+    private static void writeOptional(final DataOutputStream out,
+            final String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    /**
+     * Read a string which may be null.
+     * 
+     * @param in
+     *            where to read it from
+     * @return the string, or null
+     * @throws IOException
+     *             if the string can't be read
+     */
+    private static String readOptional(final DataInputStream in)
+            throws IOException {
+        if (in.readBoolean()) {
+            return in.readUTF();
+        }
+        return null;
+    }
+}
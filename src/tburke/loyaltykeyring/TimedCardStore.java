@@ -0,0 +1,383 @@
+package tburke.loyaltykeyring;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decorates a {@link CardStore}, timing every operation.
+ * 
+ * @author tburke
+ * 
+ * @see Metrics
+ */
+final class TimedCardStore implements CardStore {
+    /**
+     * Latency of {@link CardStore#addCard}.
+     */
+    private static final Metrics.Timer ADD_CARD = Metrics.timer("db.addCard");
+    /**
+     * Latency of {@link CardStore#addCards}.
+     */
+    private static final Metrics.Timer ADD_CARDS = Metrics.timer("db.addCards");
+    /**
+     * Latency of {@link CardStore#upsertCards}.
+     */
+    private static final Metrics.Timer UPSERT_CARDS = Metrics
+            .timer("db.upsertCards");
+    /**
+     * Latency of {@link CardStore#exportCards}.
+     */
+    private static final Metrics.Timer EXPORT_CARDS = Metrics
+            .timer("db.exportCards");
+    /**
+     * Latency of {@link CardStore#deleteCard}.
+     */
+    private static final Metrics.Timer DELETE_CARD = Metrics
+            .timer("db.deleteCard");
+    /**
+     * Latency of {@link CardStore#addTag}.
+     */
+    private static final Metrics.Timer ADD_TAG = Metrics.timer("db.addTag");
+    /**
+     * Latency of {@link CardStore#removeTag}.
+     */
+    private static final Metrics.Timer REMOVE_TAG = Metrics
+            .timer("db.removeTag");
+    /**
+     * Latency of {@link CardStore#deleteTag}.
+     */
+    private static final Metrics.Timer DELETE_TAG = Metrics
+            .timer("db.deleteTag");
+    /**
+     * Latency of {@link CardStore#getCard}.
+     */
+    private static final Metrics.Timer GET_CARD = Metrics.timer("db.getCard");
+    /**
+     * Latency of {@link CardStore#getAllCards}.
+     */
+    private static final Metrics.Timer GET_ALL_CARDS = Metrics
+            .timer("db.getAllCards");
+    /**
+     * Latency of {@link CardStore#getCardsByTag}.
+     */
+    private static final Metrics.Timer GET_CARDS_BY_TAG = Metrics
+            .timer("db.getCardsByTag");
+    /**
+     * Latency of {@link CardStore#getCardsByGroups}.
+     */
+    private static final Metrics.Timer GET_CARDS_BY_GROUPS = Metrics
+            .timer("db.getCardsByGroups");
+    /**
+     * Latency of {@link CardStore#recordUsage}.
+     */
+    private static final Metrics.Timer RECORD_USAGE = Metrics
+            .timer("db.recordUsage");
+    /**
+     * Latency of {@link CardStore#getUsage}.
+     */
+    private static final Metrics.Timer GET_USAGE = Metrics
+            .timer("db.getUsage");
+    /**
+     * Latency of {@link CardStore#getAllGroups}.
+     */
+    private static final Metrics.Timer GET_ALL_GROUPS = Metrics
+            .timer("db.getAllGroups");
+    /**
+     * Latency of {@link CardStore#searchCards}.
+     */
+    private static final Metrics.Timer SEARCH_CARDS = Metrics
+            .timer("db.searchCards");
+    /**
+     * Latency of {@link CardStore#getJournalSequence}.
+     */
+    private static final Metrics.Timer GET_JOURNAL_SEQUENCE = Metrics
+            .timer("db.getJournalSequence");
+    /**
+     * Latency of {@link CardStore#getChangesSince}.
+     */
+    private static final Metrics.Timer GET_CHANGES_SINCE = Metrics
+            .timer("db.getChangesSince");
+    /**
+     * Latency of {@link CardStore#applyChanges}.
+     */
+    private static final Metrics.Timer APPLY_CHANGES = Metrics
+            .timer("db.applyChanges");
+    /**
+     * Latency of {@link CardStore#compactJournal}.
+     */
+    private static final Metrics.Timer COMPACT_JOURNAL = Metrics
+            .timer("db.compactJournal");
+
+    /**
+     * The store being timed.
+     */
+    private final CardStore store;
+
+    /**
+     * Time a store's operations.
+     * 
+     * @param timed
+     *            the store to time
+     */
+    TimedCardStore(final CardStore timed) {
+        store = timed;
+    }
+
+    @Override
+    public boolean addCard(final LoyaltyCard newCard) {
+        long start = Metrics.start();
+        try {
+            return store.addCard(newCard);
+        } finally {
+            ADD_CARD.stop(start);
+        }
+    }
+
+    @Override
+    public boolean addCard(final String name, final String format,
+            final String data) {
+        long start = Metrics.start();
+        try {
+            return store.addCard(name, format, data);
+        } finally {
+            ADD_CARD.stop(start);
+        }
+    }
+
+    @Override
+    public int addCards(final List<LoyaltyCard> cards, final String tag) {
+        long start = Metrics.start();
+        try {
+            return store.addCards(cards, tag);
+        } finally {
+            ADD_CARDS.stop(start);
+        }
+    }
+
+    @Override
+    public void upsertCards(final List<CardRecord> records,
+            final CardImporter.Progress progress) {
+        long start = Metrics.start();
+        try {
+            store.upsertCards(records, progress);
+        } finally {
+            UPSERT_CARDS.stop(start);
+        }
+    }
+
+    @Override
+    public int exportCards(final CardRecordWriter writer) throws IOException {
+        long start = Metrics.start();
+        try {
+            return store.exportCards(writer);
+        } finally {
+            EXPORT_CARDS.stop(start);
+        }
+    }
+
+    @Override
+    public boolean deleteCard(final LoyaltyCard card) {
+        long start = Metrics.start();
+        try {
+            return store.deleteCard(card);
+        } finally {
+            DELETE_CARD.stop(start);
+        }
+    }
+
+    @Override
+    public boolean deleteCard(final String format, final String data) {
+        long start = Metrics.start();
+        try {
+            return store.deleteCard(format, data);
+        } finally {
+            DELETE_CARD.stop(start);
+        }
+    }
+
+    @Override
+    public boolean addTag(final LoyaltyCard card, final String tag) {
+        long start = Metrics.start();
+        try {
+            return store.addTag(card, tag);
+        } finally {
+            ADD_TAG.stop(start);
+        }
+    }
+
+    @Override
+    public boolean addTag(final String format, final String data,
+            final String tag) {
+        long start = Metrics.start();
+        try {
+            return store.addTag(format, data, tag);
+        } finally {
+            ADD_TAG.stop(start);
+        }
+    }
+
+    @Override
+    public boolean removeTag(final String format, final String data,
+            final String tag) {
+        long start = Metrics.start();
+        try {
+            return store.removeTag(format, data, tag);
+        } finally {
+            REMOVE_TAG.stop(start);
+        }
+    }
+
+    @Override
+    public boolean deleteTag(final String tag) {
+        long start = Metrics.start();
+        try {
+            return store.deleteTag(tag);
+        } finally {
+            DELETE_TAG.stop(start);
+        }
+    }
+
+    @Override
+    public LoyaltyCard getCard(final String name) {
+        long start = Metrics.start();
+        try {
+            return store.getCard(name);
+        } finally {
+            GET_CARD.stop(start);
+        }
+    }
+
+    @Override
+    public List<LoyaltyCard> getAllCards() {
+        long start = Metrics.start();
+        try {
+            return store.getAllCards();
+        } finally {
+            GET_ALL_CARDS.stop(start);
+        }
+    }
+
+    @Override
+    public List<LoyaltyCard> getCardsByTag(final String tag) {
+        long start = Metrics.start();
+        try {
+            return store.getCardsByTag(tag);
+        } finally {
+            GET_CARDS_BY_TAG.stop(start);
+        }
+    }
+
+    @Override
+    public List<LoyaltyCard> getCardsByGroups(final GroupFilter filter) {
+        long start = Metrics.start();
+        try {
+            return store.getCardsByGroups(filter);
+        } finally {
+            GET_CARDS_BY_GROUPS.stop(start);
+        }
+    }
+
+    @Override
+    public List<LoyaltyCard> getCardsByTag(final String tag,
+            final CardOrder order) {
+        long start = Metrics.start();
+        try {
+            return store.getCardsByTag(tag, order);
+        } finally {
+            GET_CARDS_BY_TAG.stop(start);
+        }
+    }
+
+    @Override
+    public List<LoyaltyCard> getCardsByGroups(final GroupFilter filter,
+            final CardOrder order) {
+        long start = Metrics.start();
+        try {
+            return store.getCardsByGroups(filter, order);
+        } finally {
+            GET_CARDS_BY_GROUPS.stop(start);
+        }
+    }
+
+    @Override
+    public void recordUsage(final Collection<CardUsage> usages) {
+        long start = Metrics.start();
+        try {
+            store.recordUsage(usages);
+        } finally {
+            RECORD_USAGE.stop(start);
+        }
+    }
+
+    @Override
+    public Map<LoyaltyCard, CardUsage> getUsage(final int limit) {
+        long start = Metrics.start();
+        try {
+            return store.getUsage(limit);
+        } finally {
+            GET_USAGE.stop(start);
+        }
+    }
+
+    @Override
+    public List<String> getAllGroups() {
+        long start = Metrics.start();
+        try {
+            return store.getAllGroups();
+        } finally {
+            GET_ALL_GROUPS.stop(start);
+        }
+    }
+
+    @Override
+    public List<LoyaltyCard> searchCards(final String query, final int limit) {
+        long start = Metrics.start();
+        try {
+            return store.searchCards(query, limit);
+        } finally {
+            SEARCH_CARDS.stop(start);
+        }
+    }
+
+    @Override
+    public long getJournalSequence() {
+        long start = Metrics.start();
+        try {
+            return store.getJournalSequence();
+        } finally {
+            GET_JOURNAL_SEQUENCE.stop(start);
+        }
+    }
+
+    @Override
+    public List<Change> getChangesSince(final long sequence, final int limit) {
+        long start = Metrics.start();
+        try {
+            return store.getChangesSince(sequence, limit);
+        } finally {
+            GET_CHANGES_SINCE.stop(start);
+        }
+    }
+
+    @Override
+    public long applyChanges(final List<Change> changes, final long seen) {
+        long start = Metrics.start();
+        try {
+            return store.applyChanges(changes, seen);
+        } finally {
+            APPLY_CHANGES.stop(start);
+        }
+    }
+
+    @Override
+    public void compactJournal() {
+        long start = Metrics.start();
+        try {
+            store.compactJournal();
+        } finally {
+            COMPACT_JOURNAL.stop(start);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package tburke.loyaltykeyring;
+
+import android.os.Build;
+import android.util.Log;
+
+import java.lang.reflect.Method;
+
+/**
+ * Named sections for system traces (<code>systrace</code>). The platform's
+ * <code>android.os.Trace</code> only exists from Jelly Bean MR2, so it's
+ * found by reflection; on older platforms sections are ignored.
+ * <p>
+ * Every method is guarded by {@link BuildConfig#DEBUG}, a compile-time
+ * constant, so in release builds their bodies are compiled out (and ProGuard
+ * can remove the calls entirely).
+ * 
+ * @author tburke
+ */
+final class Tracing {
+    /**
+     * Tag to be used when logging.
+     */
+    private static final String LOG_TAG = Tracing.class.getSimpleName();
+    /**
+     * The first platform version with <code>android.os.Trace</code>.
+     */
+    private static final int JELLY_BEAN_MR2 = 18;
+    /**
+     * The longest section name the platform accepts.
+     */
+    private static final int MAX_NAME_LENGTH = 127;
+
+    /**
+     * <code>Trace.beginSection(String)</code>, or null if unavailable.
+     */
+    private static final Method BEGIN_SECTION;
+    /**
+     * <code>Trace.endSection()</code>, or null if unavailable.
+     */
+    private static final Method END_SECTION;
+
+    static {
+        Method begin = null;
+        Method end = null;
+        if (BuildConfig.DEBUG && Build.VERSION.SDK_INT >= JELLY_BEAN_MR2) {
+            try {
+                Class<?> trace = Class.forName("android.os.Trace");
+                begin = trace.getMethod("beginSection", String.class);
+                end = trace.getMethod("endSection");
+            } catch (ClassNotFoundException e) {
+                Log.w(LOG_TAG, "Tracing unavailable", e);
+            } catch (NoSuchMethodException e) {
+                Log.w(LOG_TAG, "Tracing unavailable", e);
+            }
+        }
+        BEGIN_SECTION = begin;
+        END_SECTION = end;
+    }
+
+    /**
+     * Utility class; not to be instantiated.
+     */
+    private Tracing() {
+    }
+
+    /**
+     * Begin a section. Sections nest, and must be ended on the thread that
+     * began them.
+     * 
+     * @param name
+     *            the section's name, e.g. "MainActivity.refreshCards"
+     */
+    static void begin(final String name) {
+        if (BuildConfig.DEBUG && BEGIN_SECTION != null) {
+            String section = name;
+            if (section.length() > MAX_NAME_LENGTH) {
+                section = section.substring(0, MAX_NAME_LENGTH);
+            }
+            invoke(BEGIN_SECTION, section);
+        }
+    }
+
+    /**
+     * End the innermost section begun on this thread.
+     */
+    static void end() {
+        if (BuildConfig.DEBUG && END_SECTION != null) {
+            invoke(END_SECTION);
+        }
+    }
+
+    /**
+     * Call a static method of <code>android.os.Trace</code>.
+     * 
+     * @param method
+     *            the method
+     * @param args
+     *            its arguments
+     */
+    private static void invoke(final Method method, final Object... args) {
+        try {
+            method.invoke(null, args);
+        } catch (Exception e) {
+            // Tracing must never break the app.
+            Log.w(LOG_TAG, "Couldn't call " + method.getName(), e);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package tburke.loyaltykeyring;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Counts uses of cards in memory, so that recording one never waits on the
+ * store; they're written in batches by {@link #flush(CardStore)}, one
+ * transaction and one row update per card however often it was used.
+ * Thread-safe.
+ * 
+ * @author tburke
+ * 
+ * @see CardStore#recordUsage(java.util.Collection)
+ */
+final class UsageTracker {
+    /**
+     * The number of uses held before a flush is due.
+     */
+    private static final int FLUSH_THRESHOLD = 20;
+
+    /**
+     * The uses not yet written, by card ID.
+     */
+    private Map<String, CardUsage> pending = new HashMap<String, CardUsage>();
+    /**
+     * The number of uses not yet written.
+     */
+    private int pendingUses = 0;
+
+    /**
+     * Record a use of a card. Only memory is touched.
+     * 
+     * @param card
+     *            the card used
+     * @param time
+     *            when it was used, in milliseconds since the epoch
+     * @return true if enough uses are held that they should be flushed
+     */
+    synchronized boolean record(final LoyaltyCard card, final long time) {
+        CardUsage usage = pending.get(card.getID());
+        if (usage == null) {
+            usage = new CardUsage(card.getID(), 1, time);
+        } else {
+            usage = usage.plusUse(time);
+        }
+        pending.put(card.getID(), usage);
+        return ++pendingUses >= FLUSH_THRESHOLD;
+    }
+
+    /**
+     * Check whether there are uses to flush.
+     * 
+     * @return true if any uses haven't been written
+     */
+    synchronized boolean hasPending() {
+        return pendingUses > 0;
+    }
+
+    /**
+     * Write the uses held to a store. Uses recorded meanwhile are held for
+     * the next flush. Writes to the store, so shouldn't be called on the main
+     * thread.
+     * 
+     * @param store
+     *            the store to write to
+     * @return the number of cards whose usage was written
+     */
+    int flush(final CardStore store) {
+        Map<String, CardUsage> batch;
+        synchronized (this) {
+            batch = pending;
+            pending = new HashMap<String, CardUsage>();
+            pendingUses = 0;
+        }
+        if (!batch.isEmpty()) {
+            store.recordUsage(batch.values());
+        }
+        return batch.size();
+    }
+}
@@ -0,0 +1,23 @@
+package tburke.loyaltykeyring.barcode;
+
+/**
+ * Turns barcode data into a grid of modules.
+ * 
+ * @author tburke
+ * 
+ * @see BarcodeEncoders#forFormat(String)
+ */
+public interface BarcodeEncoder {
+    /**
+     * Encode the given data.
+     * 
+     * @param contents
+     *            the data stored in the barcode
+     * @return the encoded barcode, including any quiet zone required by the
+     *         symbology
+     * @throws IllegalArgumentException
+     *             if <code>contents</code> cannot be represented in this
+     *             format
+     */
+    BitMatrix encode(String contents);
+}
@@ -0,0 +1,53 @@
+package tburke.loyaltykeyring.barcode;
+
+/**
+ * Look up the in-process {@link BarcodeEncoder} for a barcode format.
+ * 
+ * @author tburke
+ */
+public final class BarcodeEncoders {
+    /**
+     * Utility class; not to be instantiated.
+     */
+    private BarcodeEncoders() {
+    }
+
+    /**
+     * Check whether a format can be encoded without the external Barcode
+     * Scanner application.
+     * 
+     * @param format
+     *            the barcode format, as reported by ZXing (e.g. "UPC_A")
+     * @return true if {@link #forFormat(String)} will return an encoder
+     */
+    public static boolean isSupported(final String format) {
+        return forFormat(format) != null;
+    }
+
+    /**
+     * Get an encoder for the given format.
+     * 
+     * @param format
+     *            the barcode format, as reported by ZXing (e.g. "UPC_A")
+     * @return the encoder, or null if the format is not supported
+     */
+    public static BarcodeEncoder forFormat(final String format) {
+        if (format == null) {
+            return null;
+        } else if ("UPC_A".equals(format) || "UPC_E".equals(format)
+                || "EAN_8".equals(format) || "EAN_13".equals(format)) {
+            return new EanUpcEncoder(format);
+        } else if ("CODE_39".equals(format)) {
+            return new Code39Encoder();
+        } else if ("CODE_128".equals(format)) {
+            return new Code128Encoder();
+        } else if ("CODABAR".equals(format)) {
+            return new CodabarEncoder();
+        } else if ("ITF".equals(format)) {
+            return new ItfEncoder();
+        } else if ("QR_CODE".equals(format)) {
+            return new QrCodeEncoder();
+        }
+        return null;
+    }
+}
@@ -0,0 +1,137 @@
+package tburke.loyaltykeyring.barcode;
+
+import java.util.Locale;
+
+/**
+ * Validate and normalize barcode data once, when a card is saved, into the
+ * exact payload the encoder (or Barcode Scanner) should be given.
+ * <p>
+ * For the EAN/UPC family the payload always ends with the check digit; for
+ * Codabar it always includes start and stop characters. Formats without an
+ * in-process encoder are passed through untouched.
+ * 
+ * @author tburke
+ */
+public final class BarcodePayloads {
+    /**
+     * Utility class; not to be instantiated.
+     */
+    private BarcodePayloads() {
+    }
+
+    /**
+     * Normalize barcode data for display.
+     * 
+     * @param format
+     *            the barcode format, as reported by ZXing (e.g. "UPC_A")
+     * @param data
+     *            the data as scanned or imported
+     * @return the payload to hand to the encoder
+     * @throws IllegalArgumentException
+     *             if the data can't be displayed in that format
+     */
+    public static String normalize(final String format, final String data) {
+        if (format == null || format.length() == 0) {
+            throw new IllegalArgumentException("No barcode format");
+        }
+        if (data == null || data.length() == 0) {
+            throw new IllegalArgumentException("No barcode data");
+        }
+        String payload;
+        if ("UPC_A".equals(format)) {
+            payload = withCheckDigit(data, EanUpcEncoder.UPC_A_LENGTH);
+        } else if ("EAN_13".equals(format)) {
+            payload = withCheckDigit(data, EanUpcEncoder.EAN_13_LENGTH);
+        } else if ("EAN_8".equals(format)) {
+            payload = withCheckDigit(data, EanUpcEncoder.EAN_8_LENGTH);
+        } else if ("UPC_E".equals(format)) {
+            payload = upcEWithCheckDigit(data);
+        } else if ("CODE_39".equals(format)) {
+            payload = code39(data);
+        } else if ("CODABAR".equals(format)) {
+            payload = codabar(data);
+        } else {
+            payload = data;
+        }
+
+        BarcodeEncoder encoder = BarcodeEncoders.forFormat(format);
+        if (encoder != null) {
+            // Anything that would fail at the register should fail now.
+            encoder.encode(payload);
+        }
+        return payload;
+    }
+
+    /**
+     * Append the check digit, if it was left off.
+     * 
+     * @param data
+     *            the digits, with or without check digit
+     * @param length
+     *            the full length, including check digit
+     * @return the digits, including check digit
+     */
+    private static String withCheckDigit(final String data, final int length) {
+        OneDimensionalEncoder.checkNumeric(data);
+        if (data.length() == length - 1) {
+            return data + EanUpcEncoder.checkDigit(data);
+        }
+        return data;
+    }
+
+    /**
+     * Append the check digit to a UPC-E, if it was left off. The check digit
+     * is computed over the equivalent UPC-A.
+     * 
+     * @param data
+     *            the number system and six digits, with or without check
+     *            digit
+     * @return the digits, including check digit
+     */
+    private static String upcEWithCheckDigit(final String data) {
+        OneDimensionalEncoder.checkNumeric(data);
+        if (data.length() == EanUpcEncoder.UPC_E_LENGTH - 1) {
+            return data
+                    + EanUpcEncoder.checkDigit(EanUpcEncoder
+                            .convertUpcEToUpcA(data));
+        }
+        return data;
+    }
+
+    /**
+     * Strip the '*' start/stop characters, if present.
+     * 
+     * @param data
+     *            the Code 39 data
+     * @return the characters between the start and stop characters
+     */
+    private static String code39(final String data) {
+        String result = data;
+        if (result.length() > 2 && result.charAt(0) == '*'
+                && result.charAt(result.length() - 1) == '*') {
+            result = result.substring(1, result.length() - 1);
+        }
+        return result;
+    }
+
+    /**
+     * Add start and stop characters, if missing. Barcode Scanner doesn't
+     * report them, so assume A at the start; use N (an alias for B) at the
+     * end, since some encoders don't accept A-D as stop characters.
+     * 
+     * @param data
+     *            the Codabar data
+     * @return the data, with start and stop characters
+     */
+    private static String codabar(final String data) {
+        String result = data.toUpperCase(Locale.US);
+        if (!CodabarEncoder.isStartEnd(result.charAt(0))) {
+            result = "A" + result;
+        }
+        if (result.length() == 1
+                || !CodabarEncoder.isStartEnd(result.charAt(result.length() - 1))) {
+            result = result + "N";
+        }
+        return result;
+    }
+}
@@ -0,0 +1,140 @@
+package tburke.loyaltykeyring.barcode;
+
+/**
+ * A two-dimensional grid of modules (bars, spaces, or squares), each either
+ * dark or light. Bits are packed into 32-bit words, one row after another.
+ * <p>
+ * One-dimensional barcodes are represented with a height of one; it is up to
+ * the renderer to stretch them vertically.
+ * 
+ * @author tburke
+ */
+public final class BitMatrix {
+    /**
+     * Number of bits stored in each word.
+     */
+    private static final int BITS_PER_WORD = 32;
+    /**
+     * Shift used to find the word holding a given column.
+     */
+    private static final int WORD_SHIFT = 5;
+    /**
+     * Mask used to find the bit within a word for a given column.
+     */
+    private static final int BIT_MASK = 0x1f;
+
+    /**
+     * Number of modules in each row.
+     */
+    private final int width;
+    /**
+     * Number of rows.
+     */
+    private final int height;
+    /**
+     * Number of words used to store each row.
+     */
+    private final int rowSize;
+    /**
+     * The packed module data; set bits are dark.
+     */
+    private final int[] bits;
+
+    /**
+     * Create a new, all-light matrix.
+     * 
+     * @param matrixWidth
+     *            the number of modules in each row
+     * @param matrixHeight
+     *            the number of rows
+     */
+    public BitMatrix(final int matrixWidth, final int matrixHeight) {
+        if (matrixWidth < 1 || matrixHeight < 1) {
+            throw new IllegalArgumentException("Dimensions must be positive: "
+                    + matrixWidth + "x" + matrixHeight);
+        }
+        width = matrixWidth;
+        height = matrixHeight;
+        rowSize = (matrixWidth + BITS_PER_WORD - 1) / BITS_PER_WORD;
+        bits = new int[rowSize * matrixHeight];
+    }
+
+    /**
+     * Getter for the matrix width.
+     * 
+     * @return the number of modules in each row
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Getter for the matrix height.
+     * 
+     * @return the number of rows
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Check whether a module is dark.
+     * 
+     * @param x
+     *            the column
+     * @param y
+     *            the row
+     * @return true if the module is dark; false otherwise
+     */
+    public boolean get(final int x, final int y) {
+        int offset = y * rowSize + (x >>> WORD_SHIFT);
+        return ((bits[offset] >>> (x & BIT_MASK)) & 1) != 0;
+    }
+
+    /**
+     * Mark a module as dark.
+     * 
+     * @param x
+     *            the column
+     * @param y
+     *            the row
+     */
+    public void set(final int x, final int y) {
+        int offset = y * rowSize + (x >>> WORD_SHIFT);
+        bits[offset] |= 1 << (x & BIT_MASK);
+    }
+
+    /**
+     * Mark a module as dark or light.
+     * 
+     * @param x
+     *            the column
+     * @param y
+     *            the row
+     * @param dark
+     *            true to make the module dark; false to make it light
+     */
+    public void set(final int x, final int y, final boolean dark) {
+        int offset = y * rowSize + (x >>> WORD_SHIFT);
+        if (dark) {
+            bits[offset] |= 1 << (x & BIT_MASK);
+        } else {
+            bits[offset] &= ~(1 << (x & BIT_MASK));
+        }
+    }
+
+    /**
+     * Copy one row of the matrix into an array, one entry per module.
+     * 
+     * @param y
+     *            the row to copy
+     * @param row
+     *            the destination; must hold at least {@link #getWidth()}
+     *            entries
+     */
+    public void getRow(final int y, final boolean[] row) {
+        for (int x = 0; x < width; ++x) {
+            row[x] = get(x, y);
+        }
+    }
+}
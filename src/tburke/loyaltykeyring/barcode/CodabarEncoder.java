@@ -0,0 +1,110 @@
+package tburke.loyaltykeyring.barcode;
+
+/**
+ * Encoder for Codabar. The data must include start and stop characters (A, B,
+ * C or D, or their alternates T, N, * and E); see
+ * {@link BarcodePayloads#normalize(String, String)}.
+ * 
+ * @author tburke
+ */
+final class CodabarEncoder extends OneDimensionalEncoder {
+    /**
+     * Characters which may be encoded, in the order used by
+     * {@link #CHARACTER_ENCODINGS}.
+     */
+    private static final String ALPHABET = "0123456789-$:/.+ABCD";
+    /**
+     * Alternate names for the start/stop characters A, B, C and D.
+     */
+    private static final String ALTERNATE_START_END = "TN*E";
+    /**
+     * Each character is four bars and three spaces; a set bit means the
+     * element is wide. The most significant of the seven bits is the first
+     * bar.
+     */
+    private static final int[] CHARACTER_ENCODINGS = { 0x003, 0x006, 0x009,
+            0x060, 0x012, 0x042, 0x021, 0x024, 0x030, 0x048, // 0-9
+            0x00C, 0x018, 0x045, 0x051, 0x054, 0x015, // -$:/.+
+            0x01A, 0x029, 0x00B, 0x00E, // ABCD
+    };
+    /**
+     * Index of the first start/stop character within {@link #ALPHABET}.
+     */
+    private static final int FIRST_START_END = 16;
+    /**
+     * Number of elements in each character.
+     */
+    private static final int ELEMENTS = 7;
+    /**
+     * Width of a wide element, in modules.
+     */
+    private static final int WIDE = 2;
+
+    /**
+     * Find the alphabet index of a character, mapping alternate start/stop
+     * characters to A-D.
+     * 
+     * @param c
+     *            the character
+     * @return the index into {@link #ALPHABET}, or -1 if not found
+     */
+    private static int indexOf(final char c) {
+        int alternate = ALTERNATE_START_END.indexOf(c);
+        if (alternate >= 0) {
+            return FIRST_START_END + alternate;
+        }
+        return ALPHABET.indexOf(c);
+    }
+
+    /**
+     * Check whether a character may be used to start or stop a Codabar.
+     * 
+     * @param c
+     *            the character
+     * @return true if <code>c</code> is A-D or an alternate (T, N, * or E)
+     */
+    static boolean isStartEnd(final char c) {
+        return indexOf(c) >= FIRST_START_END;
+    }
+
+    @Override
+    boolean[] encodeModules(final String contents) {
+        final int minLength = 2;
+        int last = contents.length() - 1;
+        if (contents.length() < minLength || !isStartEnd(contents.charAt(0))
+                || !isStartEnd(contents.charAt(last))) {
+            throw new IllegalArgumentException(
+                    "Codabar must begin and end with A, B, C or D: '"
+                            + contents + "'");
+        }
+        int length = 0;
+        int[][] characters = new int[contents.length()][ELEMENTS];
+        for (int i = 0; i <= last; ++i) {
+            int index = indexOf(contents.charAt(i));
+            if (index < 0 || (index >= FIRST_START_END && i > 0 && i < last)) {
+                throw new IllegalArgumentException("Character '"
+                        + contents.charAt(i) + "' can't be encoded at position "
+                        + i + " of a Codabar");
+            }
+            int encoding = CHARACTER_ENCODINGS[index];
+            for (int j = 0; j < ELEMENTS; ++j) {
+                if ((encoding & (1 << (ELEMENTS - 1 - j))) == 0) {
+                    characters[i][j] = 1;
+                } else {
+                    characters[i][j] = WIDE;
+                }
+                length += characters[i][j];
+            }
+        }
+        boolean[] result = new boolean[length + last];
+        int[] gap = { 1 };
+        int pos = 0;
+        for (int i = 0; i <= last; ++i) {
+            pos += appendPattern(result, pos, characters[i], true);
+            if (i < last) {
+                pos += appendPattern(result, pos, gap, false);
+            }
+        }
+        return result;
+    }
+}
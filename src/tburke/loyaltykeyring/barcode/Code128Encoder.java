@@ -0,0 +1,235 @@
+package tburke.loyaltykeyring.barcode;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Encoder for Code 128. Runs of four or more digits are packed two to a symbol
+ * using code set C; control characters use code set A, and everything else
+ * uses code set B.
+ * 
+ * @author tburke
+ */
+final class Code128Encoder extends OneDimensionalEncoder {
+    /**
+     * Bar and space widths for each symbol value, 0-106. All but the stop
+     * pattern (106) are eleven modules wide.
+     */
+    private static final int[][] CODE_PATTERNS = { { 2, 1, 2, 2, 2, 2 },
+            { 2, 2, 2, 1, 2, 2 }, { 2, 2, 2, 2, 2, 1 }, { 1, 2, 1, 2, 2, 3 },
+            { 1, 2, 1, 3, 2, 2 }, { 1, 3, 1, 2, 2, 2 }, { 1, 2, 2, 2, 1, 3 },
+            { 1, 2, 2, 3, 1, 2 }, { 1, 3, 2, 2, 1, 2 }, { 2, 2, 1, 2, 1, 3 },
+            { 2, 2, 1, 3, 1, 2 }, { 2, 3, 1, 2, 1, 2 }, { 1, 1, 2, 2, 3, 2 },
+            { 1, 2, 2, 1, 3, 2 }, { 1, 2, 2, 2, 3, 1 }, { 1, 1, 3, 2, 2, 2 },
+            { 1, 2, 3, 1, 2, 2 }, { 1, 2, 3, 2, 2, 1 }, { 2, 2, 3, 2, 1, 1 },
+            { 2, 2, 1, 1, 3, 2 }, { 2, 2, 1, 2, 3, 1 }, { 2, 1, 3, 2, 1, 2 },
+            { 2, 2, 3, 1, 1, 2 }, { 3, 1, 2, 1, 3, 1 }, { 3, 1, 1, 2, 2, 2 },
+            { 3, 2, 1, 1, 2, 2 }, { 3, 2, 1, 2, 2, 1 }, { 3, 1, 2, 2, 1, 2 },
+            { 3, 2, 2, 1, 1, 2 }, { 3, 2, 2, 2, 1, 1 }, { 2, 1, 2, 1, 2, 3 },
+            { 2, 1, 2, 3, 2, 1 }, { 2, 3, 2, 1, 2, 1 }, { 1, 1, 1, 3, 2, 3 },
+            { 1, 3, 1, 1, 2, 3 }, { 1, 3, 1, 3, 2, 1 }, { 1, 1, 2, 3, 1, 3 },
+            { 1, 3, 2, 1, 1, 3 }, { 1, 3, 2, 3, 1, 1 }, { 2, 1, 1, 3, 1, 3 },
+            { 2, 3, 1, 1, 1, 3 }, { 2, 3, 1, 3, 1, 1 }, { 1, 1, 2, 1, 3, 3 },
+            { 1, 1, 2, 3, 3, 1 }, { 1, 3, 2, 1, 3, 1 }, { 1, 1, 3, 1, 2, 3 },
+            { 1, 1, 3, 3, 2, 1 }, { 1, 3, 3, 1, 2, 1 }, { 3, 1, 3, 1, 2, 1 },
+            { 2, 1, 1, 3, 3, 1 }, { 2, 3, 1, 1, 3, 1 }, { 2, 1, 3, 1, 1, 3 },
+            { 2, 1, 3, 3, 1, 1 }, { 2, 1, 3, 1, 3, 1 }, { 3, 1, 1, 1, 2, 3 },
+            { 3, 1, 1, 3, 2, 1 }, { 3, 3, 1, 1, 2, 1 }, { 3, 1, 2, 1, 1, 3 },
+            { 3, 1, 2, 3, 1, 1 }, { 3, 3, 2, 1, 1, 1 }, { 3, 1, 4, 1, 1, 1 },
+            { 2, 2, 1, 4, 1, 1 }, { 4, 3, 1, 1, 1, 1 }, { 1, 1, 1, 2, 2, 4 },
+            { 1, 1, 1, 4, 2, 2 }, { 1, 2, 1, 1, 2, 4 }, { 1, 2, 1, 4, 2, 1 },
+            { 1, 4, 1, 1, 2, 2 }, { 1, 4, 1, 2, 2, 1 }, { 1, 1, 2, 2, 1, 4 },
+            { 1, 1, 2, 4, 1, 2 }, { 1, 2, 2, 1, 1, 4 }, { 1, 2, 2, 4, 1, 1 },
+            { 1, 4, 2, 1, 1, 2 }, { 1, 4, 2, 2, 1, 1 }, { 2, 4, 1, 2, 1, 1 },
+            { 2, 2, 1, 1, 1, 4 }, { 4, 1, 3, 1, 1, 1 }, { 2, 4, 1, 1, 1, 2 },
+            { 1, 3, 4, 1, 1, 1 }, { 1, 1, 1, 2, 4, 2 }, { 1, 2, 1, 1, 4, 2 },
+            { 1, 2, 1, 2, 4, 1 }, { 1, 1, 4, 2, 1, 2 }, { 1, 2, 4, 1, 1, 2 },
+            { 1, 2, 4, 2, 1, 1 }, { 4, 1, 1, 2, 1, 2 }, { 4, 2, 1, 1, 1, 2 },
+            { 4, 2, 1, 2, 1, 1 }, { 2, 1, 2, 1, 4, 1 }, { 2, 1, 4, 1, 2, 1 },
+            { 4, 1, 2, 1, 2, 1 }, { 1, 1, 1, 1, 4, 3 }, { 1, 1, 1, 3, 4, 1 },
+            { 1, 3, 1, 1, 4, 1 }, { 1, 1, 4, 1, 1, 3 }, { 1, 1, 4, 3, 1, 1 },
+            { 4, 1, 1, 1, 1, 3 }, { 4, 1, 1, 3, 1, 1 }, { 1, 1, 3, 1, 4, 1 },
+            { 1, 1, 4, 1, 3, 1 }, { 3, 1, 1, 1, 4, 1 }, { 4, 1, 1, 1, 3, 1 },
+            { 2, 1, 1, 4, 1, 2 }, { 2, 1, 1, 2, 1, 4 }, { 2, 1, 1, 2, 3, 2 },
+            { 2, 3, 3, 1, 1, 1, 2 } };
+    /**
+     * Width of each symbol other than the stop pattern, in modules.
+     */
+    private static final int SYMBOL_WIDTH = 11;
+    /**
+     * Width of the stop pattern, in modules.
+     */
+    private static final int STOP_WIDTH = 13;
+
+    /**
+     * Symbol switching to code set C.
+     */
+    private static final int CODE_CODE_C = 99;
+    /**
+     * Symbol switching to code set B.
+     */
+    private static final int CODE_CODE_B = 100;
+    /**
+     * Symbol switching to code set A.
+     */
+    private static final int CODE_CODE_A = 101;
+    /**
+     * Symbol starting in code set A.
+     */
+    private static final int CODE_START_A = 103;
+    /**
+     * Symbol starting in code set B.
+     */
+    private static final int CODE_START_B = 104;
+    /**
+     * Symbol starting in code set C.
+     */
+    private static final int CODE_START_C = 105;
+    /**
+     * The stop pattern.
+     */
+    private static final int CODE_STOP = 106;
+    /**
+     * Modulus for the check symbol.
+     */
+    private static final int CHECK_MODULUS = 103;
+
+    /**
+     * First printable ASCII character; below this, code set A is required.
+     */
+    private static final char FIRST_PRINTABLE = ' ';
+    /**
+     * Last character that can be encoded.
+     */
+    private static final char LAST_ENCODABLE = 127;
+    /**
+     * First character not available in code set A.
+     */
+    private static final char FIRST_LOWER_CASE = '`';
+    /**
+     * Offset from a control character to its code set A value.
+     */
+    private static final int CONTROL_OFFSET = 64;
+    /**
+     * Minimum number of digits worth switching to code set C for.
+     */
+    private static final int MIN_DIGIT_RUN = 4;
+
+    @Override
+    boolean[] encodeModules(final String contents) {
+        List<Integer> values = new ArrayList<Integer>(contents.length() + 2);
+        int codeSet = 0;
+        int pos = 0;
+        while (pos < contents.length()) {
+            int digits = countDigits(contents, pos);
+            boolean allDigits = pos + digits == contents.length();
+            int wanted;
+            if (digits >= 2
+                    && (codeSet == CODE_CODE_C || digits >= MIN_DIGIT_RUN || (allDigits && digits % 2 == 0))) {
+                if (digits % 2 == 1 && codeSet != CODE_CODE_C) {
+                    // Odd run: emit one digit first so the rest pair up.
+                    wanted = chooseTextCodeSet(contents.charAt(pos), codeSet);
+                } else {
+                    wanted = CODE_CODE_C;
+                }
+            } else {
+                wanted = chooseTextCodeSet(contents.charAt(pos), codeSet);
+            }
+            if (wanted != codeSet) {
+                if (codeSet == 0) {
+                    values.add(startCode(wanted));
+                } else {
+                    values.add(wanted);
+                }
+                codeSet = wanted;
+            }
+            if (codeSet == CODE_CODE_C) {
+                values.add(Integer.parseInt(contents.substring(pos, pos + 2)));
+                pos += 2;
+            } else {
+                char c = contents.charAt(pos);
+                if (c < FIRST_PRINTABLE) {
+                    values.add(c + CONTROL_OFFSET);
+                } else {
+                    values.add(c - FIRST_PRINTABLE);
+                }
+                ++pos;
+            }
+        }
+
+        int checksum = values.get(0);
+        for (int i = 1; i < values.size(); ++i) {
+            checksum += i * values.get(i);
+        }
+        values.add(checksum % CHECK_MODULUS);
+        values.add(CODE_STOP);
+
+        boolean[] result = new boolean[(values.size() - 1) * SYMBOL_WIDTH
+                + STOP_WIDTH];
+        int offset = 0;
+        for (int value : values) {
+            offset += appendPattern(result, offset, CODE_PATTERNS[value], true);
+        }
+        return result;
+    }
+
+    /**
+     * Count the digits starting at a given position.
+     * 
+     * @param contents
+     *            the data being encoded
+     * @param start
+     *            the position to start counting
+     * @return the number of consecutive digits
+     */
+    private static int countDigits(final String contents, final int start) {
+        int end = start;
+        while (end < contents.length() && contents.charAt(end) >= '0'
+                && contents.charAt(end) <= '9') {
+            ++end;
+        }
+        return end - start;
+    }
+
+    /**
+     * Pick code set A or B for a single character, preferring to stay in the
+     * current code set.
+     * 
+     * @param c
+     *            the character to be encoded
+     * @param current
+     *            the current code set, or 0 if none has been chosen
+     * @return {@link #CODE_CODE_A} or {@link #CODE_CODE_B}
+     */
+    private static int chooseTextCodeSet(final char c, final int current) {
+        if (c > LAST_ENCODABLE) {
+            throw new IllegalArgumentException("Character '" + c
+                    + "' can't be encoded in Code 128");
+        }
+        if (c < FIRST_PRINTABLE) {
+            return CODE_CODE_A;
+        }
+        if (current == CODE_CODE_A && c < FIRST_LOWER_CASE) {
+            return CODE_CODE_A;
+        }
+        return CODE_CODE_B;
+    }
+
+    /**
+     * Get the start symbol for a code set.
+     * 
+     * @param codeSet
+     *            the code set
+     * @return the corresponding start symbol
+     */
+    private static int startCode(final int codeSet) {
+        switch (codeSet) {
+        case CODE_CODE_A:
+            return CODE_START_A;
+        case CODE_CODE_B:
+            return CODE_START_B;
+        default:
+            return CODE_START_C;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package tburke.loyaltykeyring.barcode;
+
+/**
+ * Encoder for Code 39 (without the full-ASCII extension or a check character).
+ * 
+ * @author tburke
+ */
+final class Code39Encoder extends OneDimensionalEncoder {
+    /**
+     * Characters which may be encoded, in the order used by
+     * {@link #CHARACTER_ENCODINGS}.
+     */
+    static final String ALPHABET = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZ-. $/+%";
+    /**
+     * Each character is five bars and four spaces; a set bit means the
+     * element is wide. The most significant of the nine bits is the first
+     * bar.
+     */
+    private static final int[] CHARACTER_ENCODINGS = { 0x034, 0x121, 0x061,
+            0x160, 0x031, 0x130, 0x070, 0x025, 0x124, 0x064, // 0-9
+            0x109, 0x049, 0x148, 0x019, 0x118, 0x058, 0x00D, 0x10C, 0x04C,
+            0x01C, // A-J
+            0x103, 0x043, 0x142, 0x013, 0x112, 0x052, 0x007, 0x106, 0x046,
+            0x016, // K-T
+            0x181, 0x0C1, 0x1C0, 0x091, 0x190, 0x0D0, 0x085, 0x184, 0x0C4,
+            0x0A8, // U-$
+            0x0A2, 0x08A, 0x02A, // /-%
+    };
+    /**
+     * Encoding of the start/stop character, '*'.
+     */
+    private static final int ASTERISK_ENCODING = 0x094;
+    /**
+     * Number of elements in each character.
+     */
+    private static final int ELEMENTS = 9;
+    /**
+     * Width of a wide element, in modules.
+     */
+    private static final int WIDE = 2;
+    /**
+     * Width of every character, including the space that follows it.
+     */
+    private static final int CHARACTER_WIDTH = 3 * WIDE + 6 + 1;
+
+    @Override
+    boolean[] encodeModules(final String contents) {
+        for (int i = 0; i < contents.length(); ++i) {
+            if (ALPHABET.indexOf(contents.charAt(i)) < 0) {
+                throw new IllegalArgumentException("Character '"
+                        + contents.charAt(i) + "' can't be encoded in Code 39");
+            }
+        }
+        boolean[] result = new boolean[(contents.length() + 2)
+                * CHARACTER_WIDTH - 1];
+        int[] widths = new int[ELEMENTS];
+        int[] gap = { 1 };
+        toWidths(ASTERISK_ENCODING, widths);
+        int pos = appendPattern(result, 0, widths, true);
+        pos += appendPattern(result, pos, gap, false);
+        for (int i = 0; i < contents.length(); ++i) {
+            toWidths(CHARACTER_ENCODINGS[ALPHABET.indexOf(contents.charAt(i))],
+                    widths);
+            pos += appendPattern(result, pos, widths, true);
+            pos += appendPattern(result, pos, gap, false);
+        }
+        toWidths(ASTERISK_ENCODING, widths);
+        appendPattern(result, pos, widths, true);
+        return result;
+    }
+
+    /**
+     * Expand a character encoding into element widths.
+     * 
+     * @param encoding
+     *            the nine-bit character encoding
+     * @param widths
+     *            the destination for the element widths
+     */
+    private static void toWidths(final int encoding, final int[] widths) {
+        for (int i = 0; i < ELEMENTS; ++i) {
+            if ((encoding & (1 << (ELEMENTS - 1 - i))) == 0) {
+                widths[i] = 1;
+            } else {
+                widths[i] = WIDE;
+            }
+        }
+    }
+}
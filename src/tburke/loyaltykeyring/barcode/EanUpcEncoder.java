@@ -0,0 +1,306 @@
+package tburke.loyaltykeyring.barcode;
+
+/**
+ * Encoder for the EAN/UPC family: UPC-A, UPC-E, EAN-8 and EAN-13.
+ * <p>
+ * Contents may be given with or without the trailing check digit; if it is
+ * present, it must be correct.
+ * 
+ * @author tburke
+ */
+final class EanUpcEncoder extends OneDimensionalEncoder {
+    /**
+     * Start and end guard for everything but the end of UPC-E.
+     */
+    private static final int[] START_END_PATTERN = { 1, 1, 1 };
+    /**
+     * Center guard for UPC-A, EAN-8 and EAN-13.
+     */
+    private static final int[] MIDDLE_PATTERN = { 1, 1, 1, 1, 1 };
+    /**
+     * End guard for UPC-E.
+     */
+    private static final int[] UPC_E_END_PATTERN = { 1, 1, 1, 1, 1, 1 };
+    /**
+     * Odd-parity ("L") patterns for digits 0-9, followed by the even-parity
+     * ("G") patterns, which are the L patterns reversed.
+     */
+    private static final int[][] L_AND_G_PATTERNS = new int[20][];
+    static {
+        final int[][] lPatterns = { { 3, 2, 1, 1 }, { 2, 2, 2, 1 },
+                { 2, 1, 2, 2 }, { 1, 4, 1, 1 }, { 1, 1, 3, 2 }, { 1, 2, 3, 1 },
+                { 1, 1, 1, 4 }, { 1, 3, 1, 2 }, { 1, 2, 1, 3 }, { 3, 1, 1, 2 } };
+        for (int i = 0; i < lPatterns.length; ++i) {
+            L_AND_G_PATTERNS[i] = lPatterns[i];
+            int[] reversed = new int[lPatterns[i].length];
+            for (int j = 0; j < reversed.length; ++j) {
+                reversed[j] = lPatterns[i][reversed.length - 1 - j];
+            }
+            L_AND_G_PATTERNS[i + lPatterns.length] = reversed;
+        }
+    }
+    /**
+     * Offset from an L pattern to the equivalent G pattern.
+     */
+    private static final int G_OFFSET = 10;
+    /**
+     * Parity of the six left-hand digits of an EAN-13, indexed by the
+     * (implied) first digit. A set bit means even parity.
+     */
+    private static final int[] FIRST_DIGIT_ENCODINGS = { 0x00, 0x0B, 0x0D,
+            0x0E, 0x13, 0x19, 0x1C, 0x15, 0x16, 0x1A };
+    /**
+     * Parity of the six digits of a UPC-E, indexed by number system and check
+     * digit. A set bit means even parity.
+     */
+    private static final int[][] UPC_E_PARITIES = {
+            { 0x38, 0x34, 0x32, 0x31, 0x2C, 0x26, 0x23, 0x2A, 0x29, 0x25 },
+            { 0x07, 0x0B, 0x0D, 0x0E, 0x13, 0x19, 0x1C, 0x15, 0x16, 0x1A } };
+    /**
+     * Number of modules used by a single digit.
+     */
+    private static final int DIGIT_WIDTH = 7;
+
+    /**
+     * Number of digits (including check digit) in a UPC-A.
+     */
+    static final int UPC_A_LENGTH = 12;
+    /**
+     * Number of digits (including number system and check digit) in a UPC-E.
+     */
+    static final int UPC_E_LENGTH = 8;
+    /**
+     * Number of digits (including check digit) in an EAN-8.
+     */
+    static final int EAN_8_LENGTH = 8;
+    /**
+     * Number of digits (including check digit) in an EAN-13.
+     */
+    static final int EAN_13_LENGTH = 13;
+
+    /**
+     * The format being encoded; one of "UPC_A", "UPC_E", "EAN_8" or "EAN_13".
+     */
+    private final String format;
+
+    /**
+     * Create an encoder for one member of the EAN/UPC family.
+     * 
+     * @param barcodeFormat
+     *            one of "UPC_A", "UPC_E", "EAN_8" or "EAN_13"
+     */
+    EanUpcEncoder(final String barcodeFormat) {
+        if (!"UPC_A".equals(barcodeFormat) && !"UPC_E".equals(barcodeFormat)
+                && !"EAN_8".equals(barcodeFormat)
+                && !"EAN_13".equals(barcodeFormat)) {
+            throw new IllegalArgumentException("Not an EAN/UPC format: "
+                    + barcodeFormat);
+        }
+        format = barcodeFormat;
+    }
+
+    @Override
+    boolean[] encodeModules(final String contents) {
+        checkNumeric(contents);
+        if ("UPC_A".equals(format)) {
+            return encodeEan13("0" + withCheckDigit(contents, UPC_A_LENGTH));
+        } else if ("EAN_13".equals(format)) {
+            return encodeEan13(withCheckDigit(contents, EAN_13_LENGTH));
+        } else if ("EAN_8".equals(format)) {
+            return encodeEan8(withCheckDigit(contents, EAN_8_LENGTH));
+        } else {
+            return encodeUpcE(contents);
+        }
+    }
+
+    /**
+     * Append or verify the check digit.
+     * 
+     * @param contents
+     *            the digits, with or without check digit
+     * @param length
+     *            the expected length, including check digit
+     * @return the digits, including check digit
+     * @throws IllegalArgumentException
+     *             if the length or check digit is wrong
+     */
+    private static String withCheckDigit(final String contents,
+            final int length) {
+        if (contents.length() == length - 1) {
+            return contents + checkDigit(contents);
+        } else if (contents.length() == length) {
+            int expected = checkDigit(contents.substring(0, length - 1));
+            if (contents.charAt(length - 1) - '0' != expected) {
+                throw new IllegalArgumentException("Bad check digit in '"
+                        + contents + "'; expected " + expected);
+            }
+            return contents;
+        }
+        throw new IllegalArgumentException("Expected " + (length - 1)
+                + " or " + length + " digits, got '" + contents + "'");
+    }
+
+    /**
+     * Compute the EAN/UPC check digit: digits are weighted 3, 1, 3, ...
+     * starting from the right, and the check digit brings the total to a
+     * multiple of ten.
+     * 
+     * @param digits
+     *            the digits, not including the check digit
+     * @return the check digit
+     */
+    static int checkDigit(final CharSequence digits) {
+        final int oddWeight = 3;
+        final int base = 10;
+        int sum = 0;
+        boolean odd = true;
+        for (int i = digits.length() - 1; i >= 0; --i) {
+            int digit = digits.charAt(i) - '0';
+            if (odd) {
+                sum += oddWeight * digit;
+            } else {
+                sum += digit;
+            }
+            odd = !odd;
+        }
+        return (base - sum % base) % base;
+    }
+
+    /**
+     * Expand the six significant digits of a UPC-E into the equivalent UPC-A.
+     * 
+     * @param upce
+     *            the number system followed by the six UPC-E digits (the check
+     *            digit, if present, is ignored)
+     * @return the eleven digits of the equivalent UPC-A, without check digit
+     */
+    static String convertUpcEToUpcA(final String upce) {
+        final int numDigits = 6;
+        char[] upceChars = upce.substring(1, 1 + numDigits).toCharArray();
+        StringBuilder result = new StringBuilder(UPC_A_LENGTH);
+        result.append(upce.charAt(0));
+        char lastChar = upceChars[numDigits - 1];
+        switch (lastChar) {
+        case '0':
+        case '1':
+        case '2':
+            result.append(upceChars, 0, 2);
+            result.append(lastChar);
+            result.append("0000");
+            result.append(upceChars, 2, 3);
+            break;
+        case '3':
+            result.append(upceChars, 0, 3);
+            result.append("00000");
+            result.append(upceChars, 3, 2);
+            break;
+        case '4':
+            result.append(upceChars, 0, 4);
+            result.append("00000");
+            result.append(upceChars[4]);
+            break;
+        default:
+            result.append(upceChars, 0, 5);
+            result.append("0000");
+            result.append(lastChar);
+            break;
+        }
+        return result.toString();
+    }
+
+    /**
+     * Encode a complete EAN-13 (or UPC-A, with a leading zero).
+     * 
+     * @param digits
+     *            thirteen digits, including check digit
+     * @return the encoded modules
+     */
+    private static boolean[] encodeEan13(final String digits) {
+        final int half = 6;
+        boolean[] result = new boolean[2 * START_END_PATTERN.length
+                + MIDDLE_PATTERN.length + 2 * half * DIGIT_WIDTH];
+        int parities = FIRST_DIGIT_ENCODINGS[digits.charAt(0) - '0'];
+        int pos = appendPattern(result, 0, START_END_PATTERN, true);
+        for (int i = 1; i <= half; ++i) {
+            int digit = digits.charAt(i) - '0';
+            if (((parities >> (half - i)) & 1) == 1) {
+                digit += G_OFFSET;
+            }
+            pos += appendPattern(result, pos, L_AND_G_PATTERNS[digit], false);
+        }
+        pos += appendPattern(result, pos, MIDDLE_PATTERN, false);
+        for (int i = half + 1; i <= 2 * half; ++i) {
+            int digit = digits.charAt(i) - '0';
+            pos += appendPattern(result, pos, L_AND_G_PATTERNS[digit], true);
+        }
+        appendPattern(result, pos, START_END_PATTERN, true);
+        return result;
+    }
+
+    /**
+     * Encode a complete EAN-8.
+     * 
+     * @param digits
+     *            eight digits, including check digit
+     * @return the encoded modules
+     */
+    private static boolean[] encodeEan8(final String digits) {
+        final int half = 4;
+        boolean[] result = new boolean[2 * START_END_PATTERN.length
+                + MIDDLE_PATTERN.length + 2 * half * DIGIT_WIDTH];
+        int pos = appendPattern(result, 0, START_END_PATTERN, true);
+        for (int i = 0; i < half; ++i) {
+            int digit = digits.charAt(i) - '0';
+            pos += appendPattern(result, pos, L_AND_G_PATTERNS[digit], false);
+        }
+        pos += appendPattern(result, pos, MIDDLE_PATTERN, false);
+        for (int i = half; i < 2 * half; ++i) {
+            int digit = digits.charAt(i) - '0';
+            pos += appendPattern(result, pos, L_AND_G_PATTERNS[digit], true);
+        }
+        appendPattern(result, pos, START_END_PATTERN, true);
+        return result;
+    }
+
+    /**
+     * Encode a UPC-E.
+     * 
+     * @param contents
+     *            seven or eight digits: number system (0 or 1), six data
+     *            digits, and optionally the check digit
+     * @return the encoded modules
+     */
+    private static boolean[] encodeUpcE(final String contents) {
+        final int numDigits = 6;
+        if (contents.length() != UPC_E_LENGTH - 1
+                && contents.length() != UPC_E_LENGTH) {
+            throw new IllegalArgumentException("Expected "
+                    + (UPC_E_LENGTH - 1) + " or " + UPC_E_LENGTH
+                    + " digits, got '" + contents + "'");
+        }
+        int numberSystem = contents.charAt(0) - '0';
+        if (numberSystem != 0 && numberSystem != 1) {
+            throw new IllegalArgumentException("Bad UPC-E number system in '"
+                    + contents + "'");
+        }
+        int check = checkDigit(convertUpcEToUpcA(contents));
+        if (contents.length() == UPC_E_LENGTH
+                && contents.charAt(UPC_E_LENGTH - 1) - '0' != check) {
+            throw new IllegalArgumentException("Bad check digit in '"
+                    + contents + "'; expected " + check);
+        }
+        boolean[] result = new boolean[START_END_PATTERN.length
+                + UPC_E_END_PATTERN.length + numDigits * DIGIT_WIDTH];
+        int parities = UPC_E_PARITIES[numberSystem][check];
+        int pos = appendPattern(result, 0, START_END_PATTERN, true);
+        for (int i = 1; i <= numDigits; ++i) {
+            int digit = contents.charAt(i) - '0';
+            if (((parities >> (numDigits - i)) & 1) == 1) {
+                digit += G_OFFSET;
+            }
+            pos += appendPattern(result, pos, L_AND_G_PATTERNS[digit], false);
+        }
+        appendPattern(result, pos, UPC_E_END_PATTERN, false);
+        return result;
+    }
+}
@@ -0,0 +1,63 @@
+package tburke.loyaltykeyring.barcode;
+
+/**
+ * Encoder for ITF (Interleaved 2 of 5). Digits are encoded in pairs: the bars
+ * carry the first digit of each pair and the spaces carry the second.
+ * 
+ * @author tburke
+ */
+final class ItfEncoder extends OneDimensionalEncoder {
+    /**
+     * Width of a wide element, in modules.
+     */
+    private static final int W = 3;
+    /**
+     * Width of a narrow element, in modules.
+     */
+    private static final int N = 1;
+    /**
+     * Start guard: two narrow bars.
+     */
+    private static final int[] START_PATTERN = { N, N, N, N };
+    /**
+     * End guard: a wide bar, then a narrow space and bar.
+     */
+    private static final int[] END_PATTERN = { W, N, N };
+    /**
+     * Widths of the five elements representing each digit.
+     */
+    private static final int[][] PATTERNS = { { N, N, W, W, N },
+            { W, N, N, N, W }, { N, W, N, N, W }, { W, W, N, N, N },
+            { N, N, W, N, W }, { W, N, W, N, N }, { N, W, W, N, N },
+            { N, N, N, W, W }, { W, N, N, W, N }, { N, W, N, W, N } };
+    /**
+     * Width of a pair of interleaved digits, in modules.
+     */
+    private static final int PAIR_WIDTH = 4 * W + 6 * N;
+
+    @Override
+    boolean[] encodeModules(final String contents) {
+        checkNumeric(contents);
+        if (contents.length() % 2 != 0) {
+            throw new IllegalArgumentException(
+                    "ITF requires an even number of digits: '" + contents
+                            + "'");
+        }
+        final int elements = 5;
+        boolean[] result = new boolean[START_PATTERN.length
+                + contents.length() / 2 * PAIR_WIDTH + W + 2 * N];
+        int pos = appendPattern(result, 0, START_PATTERN, true);
+        int[] pair = new int[2 * elements];
+        for (int i = 0; i < contents.length(); i += 2) {
+            int one = contents.charAt(i) - '0';
+            int two = contents.charAt(i + 1) - '0';
+            for (int j = 0; j < elements; ++j) {
+                pair[2 * j] = PATTERNS[one][j];
+                pair[2 * j + 1] = PATTERNS[two][j];
+            }
+            pos += appendPattern(result, pos, pair, true);
+        }
+        appendPattern(result, pos, END_PATTERN, true);
+        return result;
+    }
+}
@@ -0,0 +1,87 @@
+package tburke.loyaltykeyring.barcode;
+
+/**
+ * Base class for linear barcode encoders. Subclasses describe the symbol as a
+ * sequence of bar and space widths; this class adds the quiet zone and packs
+ * the result into a one-row {@link BitMatrix}.
+ * 
+ * @author tburke
+ */
+abstract class OneDimensionalEncoder implements BarcodeEncoder {
+    /**
+     * Width of the light margin on either side of the symbol, in modules.
+     */
+    static final int QUIET_ZONE = 10;
+
+    @Override
+    public final BitMatrix encode(final String contents) {
+        if (contents == null || contents.length() == 0) {
+            throw new IllegalArgumentException("No contents to encode");
+        }
+        boolean[] code = encodeModules(contents);
+        BitMatrix result = new BitMatrix(code.length + 2 * QUIET_ZONE, 1);
+        for (int i = 0; i < code.length; ++i) {
+            if (code[i]) {
+                result.set(QUIET_ZONE + i, 0);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Encode the given data as a row of modules, without any quiet zone.
+     * 
+     * @param contents
+     *            the (non-empty) data to encode
+     * @return one entry per module; true for bars, false for spaces
+     * @throws IllegalArgumentException
+     *             if <code>contents</code> cannot be represented in this
+     *             format
+     */
+    abstract boolean[] encodeModules(String contents);
+
+    /**
+     * Append a pattern of alternating bars and spaces.
+     * 
+     * @param target
+     *            the modules being built
+     * @param pos
+     *            the position at which to start writing
+     * @param pattern
+     *            the width of each element, in modules
+     * @param startColor
+     *            true if the first element is a bar; false if it is a space
+     * @return the number of modules written
+     */
+    static int appendPattern(final boolean[] target, final int pos,
+            final int[] pattern, final boolean startColor) {
+        boolean color = startColor;
+        int numAdded = 0;
+        for (int len : pattern) {
+            for (int j = 0; j < len; ++j) {
+                target[pos + numAdded] = color;
+                ++numAdded;
+            }
+            color = !color;
+        }
+        return numAdded;
+    }
+
+    /**
+     * Check that every character is a decimal digit.
+     * 
+     * @param contents
+     *            the data to check
+     * @throws IllegalArgumentException
+     *             if a non-digit is found
+     */
+    static void checkNumeric(final String contents) {
+        for (int i = 0; i < contents.length(); ++i) {
+            char c = contents.charAt(i);
+            if (c < '0' || c > '9') {
+                throw new IllegalArgumentException("Non-numeric character '"
+                        + c + "' in '" + contents + "'");
+            }
+        }
+    }
+}
@@ -0,0 +1,954 @@
+package tburke.loyaltykeyring.barcode;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Encoder for QR codes (model 2, versions 1 through 40).
+ * <p>
+ * The whole payload is encoded in a single segment, using numeric or
+ * alphanumeric mode if every character allows it and byte mode otherwise.
+ * Byte mode uses ISO-8859-1 where possible and UTF-8 otherwise. The smallest
+ * version that fits is chosen, and the mask is chosen using the penalty rules
+ * from ISO 18004.
+ * 
+ * @author tburke
+ */
+final class QrCodeEncoder implements BarcodeEncoder {
+    /**
+     * Error correction level L (recovers ~7% of codewords).
+     */
+    static final int LEVEL_L = 0;
+    /**
+     * Error correction level M (recovers ~15% of codewords).
+     */
+    static final int LEVEL_M = 1;
+    /**
+     * Error correction level Q (recovers ~25% of codewords).
+     */
+    static final int LEVEL_Q = 2;
+    /**
+     * Error correction level H (recovers ~30% of codewords).
+     */
+    static final int LEVEL_H = 3;
+    /**
+     * The two-bit indicator for each error correction level, as used in the
+     * format information.
+     */
+    private static final int[] LEVEL_BITS = { 0x01, 0x00, 0x03, 0x02 };
+
+    /**
+     * Error correction codewords per block, indexed by level and version.
+     */
+    private static final int[][] EC_CODEWORDS_PER_BLOCK = {
+            { -1, 7, 10, 15, 20, 26, 18, 20, 24, 30, 18, 20, 24, 26, 30, 22,
+                    24, 28, 30, 28, 28, 28, 28, 30, 30, 26, 28, 30, 30, 30, 30,
+                    30, 30, 30, 30, 30, 30, 30, 30, 30, 30 },
+            { -1, 10, 16, 26, 18, 24, 16, 18, 22, 22, 26, 30, 22, 22, 24, 24,
+                    28, 28, 26, 26, 26, 26, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+                    28, 28, 28, 28, 28, 28, 28, 28, 28, 28 },
+            { -1, 13, 22, 18, 26, 18, 24, 18, 22, 20, 24, 28, 26, 24, 20, 30,
+                    24, 28, 28, 26, 30, 28, 30, 30, 30, 30, 28, 30, 30, 30, 30,
+                    30, 30, 30, 30, 30, 30, 30, 30, 30, 30 },
+            { -1, 17, 28, 22, 16, 22, 28, 26, 26, 24, 28, 24, 28, 22, 24, 24,
+                    30, 28, 28, 26, 28, 30, 24, 30, 30, 30, 30, 30, 30, 30, 30,
+                    30, 30, 30, 30, 30, 30, 30, 30, 30, 30 } };
+    /**
+     * Number of error correction blocks, indexed by level and version.
+     */
+    private static final int[][] NUM_EC_BLOCKS = {
+            { -1, 1, 1, 1, 1, 1, 2, 2, 2, 2, 4, 4, 4, 4, 4, 6, 6, 6, 6, 7, 8,
+                    8, 9, 9, 10, 12, 12, 12, 13, 14, 15, 16, 17, 18, 19, 19,
+                    20, 21, 22, 24, 25 },
+            { -1, 1, 1, 1, 2, 2, 4, 4, 4, 5, 5, 5, 8, 9, 9, 10, 10, 11, 13,
+                    14, 16, 17, 17, 18, 20, 21, 23, 25, 26, 28, 29, 31, 33, 35,
+                    37, 38, 40, 43, 45, 47, 49 },
+            { -1, 1, 1, 2, 2, 4, 4, 6, 6, 8, 8, 8, 10, 12, 16, 12, 17, 16, 18,
+                    21, 20, 23, 23, 25, 27, 29, 34, 34, 35, 38, 40, 43, 45, 48,
+                    51, 53, 56, 59, 62, 65, 68 },
+            { -1, 1, 1, 2, 4, 4, 4, 5, 6, 8, 8, 11, 11, 16, 16, 18, 16, 19,
+                    21, 25, 25, 25, 34, 30, 32, 35, 37, 40, 42, 45, 48, 51, 54,
+                    57, 60, 63, 66, 70, 74, 77, 81 } };
+
+    /**
+     * Smallest QR code version.
+     */
+    private static final int MIN_VERSION = 1;
+    /**
+     * Largest QR code version.
+     */
+    private static final int MAX_VERSION = 40;
+    /**
+     * Smallest version which includes version information.
+     */
+    private static final int MIN_VERSION_WITH_INFO = 7;
+    /**
+     * Light modules required around the symbol.
+     */
+    private static final int QUIET_ZONE = 4;
+
+    /**
+     * Mode indicator for numeric data.
+     */
+    private static final int MODE_NUMERIC = 0x1;
+    /**
+     * Mode indicator for alphanumeric data.
+     */
+    private static final int MODE_ALPHANUMERIC = 0x2;
+    /**
+     * Mode indicator for 8-bit data.
+     */
+    private static final int MODE_BYTE = 0x4;
+    /**
+     * Characters allowed in alphanumeric mode, in order of their values.
+     */
+    private static final String ALPHANUMERIC_CHARS = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZ $%*+-./:";
+
+    /**
+     * Generator polynomial for the BCH code protecting format information.
+     */
+    private static final int FORMAT_INFO_POLY = 0x537;
+    /**
+     * Mask applied to format information.
+     */
+    private static final int FORMAT_INFO_MASK = 0x5412;
+    /**
+     * Generator polynomial for the BCH code protecting version information.
+     */
+    private static final int VERSION_INFO_POLY = 0x1F25;
+    /**
+     * Pad codewords, used alternately to fill the symbol.
+     */
+    private static final int[] PAD_CODEWORDS = { 0xEC, 0x11 };
+
+    /**
+     * Penalty weight for runs of five or more same-colored modules.
+     */
+    private static final int PENALTY_RUN = 3;
+    /**
+     * Penalty weight for 2x2 blocks of the same color.
+     */
+    private static final int PENALTY_BLOCK = 3;
+    /**
+     * Penalty weight for patterns resembling a finder pattern.
+     */
+    private static final int PENALTY_FINDER = 40;
+    /**
+     * Penalty weight for each 5% deviation from half dark modules.
+     */
+    private static final int PENALTY_BALANCE = 10;
+    /**
+     * Number of mask patterns.
+     */
+    private static final int NUM_MASKS = 8;
+
+    /**
+     * The error correction level to use.
+     */
+    private final int level;
+
+    /**
+     * Create an encoder using error correction level L, which gives the
+     * smallest symbols.
+     */
+    QrCodeEncoder() {
+        this(LEVEL_L);
+    }
+
+    /**
+     * Create an encoder using the given error correction level.
+     * 
+     * @param ecLevel
+     *            one of {@link #LEVEL_L}, {@link #LEVEL_M}, {@link #LEVEL_Q}
+     *            or {@link #LEVEL_H}
+     */
+    QrCodeEncoder(final int ecLevel) {
+        if (ecLevel < LEVEL_L || ecLevel > LEVEL_H) {
+            throw new IllegalArgumentException("Bad error correction level: "
+                    + ecLevel);
+        }
+        level = ecLevel;
+    }
+
+    /**
+     * Simple append-only bit buffer.
+     */
+    private static final class BitBuffer {
+        /**
+         * The bits, packed most-significant first.
+         */
+        private byte[] bytes = new byte[16];
+        /**
+         * The number of bits written.
+         */
+        private int size = 0;
+
+        /**
+         * Append the low-order bits of a value, most significant first.
+         * 
+         * @param value
+         *            the value to append
+         * @param numBits
+         *            the number of bits to append
+         */
+        void append(final int value, final int numBits) {
+            for (int i = numBits - 1; i >= 0; --i) {
+                if (size == bytes.length * Byte.SIZE) {
+                    byte[] grown = new byte[bytes.length * 2];
+                    System.arraycopy(bytes, 0, grown, 0, bytes.length);
+                    bytes = grown;
+                }
+                if (((value >>> i) & 1) != 0) {
+                    bytes[size / Byte.SIZE] |= 0x80 >>> (size % Byte.SIZE);
+                }
+                ++size;
+            }
+        }
+
+        /**
+         * Getter for the number of bits written.
+         * 
+         * @return the number of bits written
+         */
+        int size() {
+            return size;
+        }
+
+        /**
+         * Read back a whole byte.
+         * 
+         * @param index
+         *            the byte to read
+         * @return the byte, as an unsigned value
+         */
+        int getByte(final int index) {
+            return bytes[index] & 0xFF;
+        }
+    }
+
+    @Override
+    public BitMatrix encode(final String contents) {
+        if (contents == null || contents.length() == 0) {
+            throw new IllegalArgumentException("No contents to encode");
+        }
+        int mode = chooseMode(contents);
+        byte[] bytes = null;
+        int count = contents.length();
+        if (mode == MODE_BYTE) {
+            bytes = toBytes(contents);
+            count = bytes.length;
+        }
+
+        int version = MIN_VERSION;
+        int dataCodewords = 0;
+        for (; version <= MAX_VERSION; ++version) {
+            dataCodewords = numDataCodewords(version);
+            if (4 + charCountBits(mode, version) + dataBits(mode, count) <= dataCodewords
+                    * Byte.SIZE) {
+                break;
+            }
+        }
+        if (version > MAX_VERSION) {
+            throw new IllegalArgumentException("Too much data for a QR code: "
+                    + count + " characters");
+        }
+
+        BitBuffer buffer = new BitBuffer();
+        buffer.append(mode, 4);
+        buffer.append(count, charCountBits(mode, version));
+        appendData(buffer, mode, contents, bytes);
+        final int terminatorBits = 4;
+        int capacity = dataCodewords * Byte.SIZE;
+        buffer.append(0, Math.min(terminatorBits, capacity - buffer.size()));
+        buffer.append(0, (Byte.SIZE - buffer.size() % Byte.SIZE) % Byte.SIZE);
+        for (int i = 0; buffer.size() < capacity; ++i) {
+            buffer.append(PAD_CODEWORDS[i % 2], Byte.SIZE);
+        }
+        int[] data = new int[dataCodewords];
+        for (int i = 0; i < dataCodewords; ++i) {
+            data[i] = buffer.getByte(i);
+        }
+
+        int[] codewords = addErrorCorrection(data, version);
+        return buildMatrix(codewords, version);
+    }
+
+    /**
+     * Pick the most compact single mode able to represent the data.
+     * 
+     * @param contents
+     *            the data to encode
+     * @return one of {@link #MODE_NUMERIC}, {@link #MODE_ALPHANUMERIC} or
+     *         {@link #MODE_BYTE}
+     */
+    private static int chooseMode(final String contents) {
+        boolean numeric = true;
+        for (int i = 0; i < contents.length(); ++i) {
+            char c = contents.charAt(i);
+            if (c < '0' || c > '9') {
+                numeric = false;
+                if (ALPHANUMERIC_CHARS.indexOf(c) < 0) {
+                    return MODE_BYTE;
+                }
+            }
+        }
+        if (numeric) {
+            return MODE_NUMERIC;
+        }
+        return MODE_ALPHANUMERIC;
+    }
+
+    /**
+     * Convert text for byte mode: ISO-8859-1 (the QR default) if it can
+     * represent every character, or else UTF-8.
+     * 
+     * @param contents
+     *            the data to encode
+     * @return the encoded bytes
+     */
+    private static byte[] toBytes(final String contents) {
+        final char maxLatin1 = 0xFF;
+        String charset = "ISO-8859-1";
+        for (int i = 0; i < contents.length(); ++i) {
+            if (contents.charAt(i) > maxLatin1) {
+                charset = "UTF-8";
+                break;
+            }
+        }
+        try {
+            return contents.getBytes(charset);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(charset + " is not supported", e);
+        }
+    }
+
+    /**
+     * Number of bits used for the character count indicator.
+     * 
+     * @param mode
+     *            the mode indicator
+     * @param version
+     *            the symbol version
+     * @return the width of the character count, in bits
+     */
+    private static int charCountBits(final int mode, final int version) {
+        final int firstMedium = 10;
+        final int firstLarge = 27;
+        int sizeClass;
+        if (version < firstMedium) {
+            sizeClass = 0;
+        } else if (version < firstLarge) {
+            sizeClass = 1;
+        } else {
+            sizeClass = 2;
+        }
+        switch (mode) {
+        case MODE_NUMERIC:
+            return new int[] { 10, 12, 14 }[sizeClass];
+        case MODE_ALPHANUMERIC:
+            return new int[] { 9, 11, 13 }[sizeClass];
+        default:
+            return new int[] { 8, 16, 16 }[sizeClass];
+        }
+    }
+
+    /**
+     * Number of bits needed for the data itself.
+     * 
+     * @param mode
+     *            the mode indicator
+     * @param count
+     *            the number of characters (or bytes, in byte mode)
+     * @return the number of data bits
+     */
+    private static int dataBits(final int mode, final int count) {
+        switch (mode) {
+        case MODE_NUMERIC:
+            return count / 3 * 10 + new int[] { 0, 4, 7 }[count % 3];
+        case MODE_ALPHANUMERIC:
+            return count / 2 * 11 + (count % 2) * 6;
+        default:
+            return count * Byte.SIZE;
+        }
+    }
+
+    /**
+     * Append the encoded data to the buffer.
+     * 
+     * @param buffer
+     *            the buffer being built
+     * @param mode
+     *            the mode indicator
+     * @param contents
+     *            the data to encode
+     * @param bytes
+     *            the data as bytes, in byte mode
+     */
+    private static void appendData(final BitBuffer buffer, final int mode,
+            final String contents, final byte[] bytes) {
+        final int alphanumericBase = 45;
+        switch (mode) {
+        case MODE_NUMERIC:
+            for (int i = 0; i < contents.length(); i += 3) {
+                int end = Math.min(i + 3, contents.length());
+                int group = Integer.parseInt(contents.substring(i, end));
+                buffer.append(group, new int[] { 0, 4, 7, 10 }[end - i]);
+            }
+            break;
+        case MODE_ALPHANUMERIC:
+            for (int i = 0; i < contents.length(); i += 2) {
+                int value = ALPHANUMERIC_CHARS.indexOf(contents.charAt(i));
+                if (i + 1 < contents.length()) {
+                    value = value * alphanumericBase
+                            + ALPHANUMERIC_CHARS.indexOf(contents.charAt(i + 1));
+                    buffer.append(value, 11);
+                } else {
+                    buffer.append(value, 6);
+                }
+            }
+            break;
+        default:
+            for (byte b : bytes) {
+                buffer.append(b & 0xFF, Byte.SIZE);
+            }
+        }
+    }
+
+    /**
+     * Number of modules available for data and error correction.
+     * 
+     * @param version
+     *            the symbol version
+     * @return the number of modules not used by function patterns
+     */
+    private static int numRawDataModules(final int version) {
+        int result = (16 * version + 128) * version + 64;
+        if (version >= 2) {
+            int numAlign = version / 7 + 2;
+            result -= (25 * numAlign - 10) * numAlign - 55;
+            if (version >= MIN_VERSION_WITH_INFO) {
+                result -= 36;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Number of data codewords for a version at this encoder's error
+     * correction level.
+     * 
+     * @param version
+     *            the symbol version
+     * @return the number of data codewords
+     */
+    private int numDataCodewords(final int version) {
+        return numRawDataModules(version) / Byte.SIZE
+                - EC_CODEWORDS_PER_BLOCK[level][version]
+                * NUM_EC_BLOCKS[level][version];
+    }
+
+    /**
+     * Split data into blocks, add error correction, and interleave.
+     * 
+     * @param data
+     *            the data codewords
+     * @param version
+     *            the symbol version
+     * @return the final sequence of codewords
+     */
+    private int[] addErrorCorrection(final int[] data, final int version) {
+        int numBlocks = NUM_EC_BLOCKS[level][version];
+        int ecLength = EC_CODEWORDS_PER_BLOCK[level][version];
+        int totalCodewords = numRawDataModules(version) / Byte.SIZE;
+        int numShortBlocks = numBlocks - totalCodewords % numBlocks;
+        int shortDataLength = totalCodewords / numBlocks - ecLength;
+
+        ReedSolomonEncoder rs = new ReedSolomonEncoder(ecLength);
+        int[][] ecBlocks = new int[numBlocks][];
+        int[] blockStarts = new int[numBlocks];
+        int[] blockLengths = new int[numBlocks];
+        for (int i = 0, offset = 0; i < numBlocks; ++i) {
+            int length = shortDataLength;
+            if (i >= numShortBlocks) {
+                ++length;
+            }
+            blockStarts[i] = offset;
+            blockLengths[i] = length;
+            ecBlocks[i] = rs.encode(data, offset, length);
+            offset += length;
+        }
+
+        int[] result = new int[totalCodewords];
+        int pos = 0;
+        for (int i = 0; i <= shortDataLength; ++i) {
+            for (int j = 0; j < numBlocks; ++j) {
+                if (i < blockLengths[j]) {
+                    result[pos++] = data[blockStarts[j] + i];
+                }
+            }
+        }
+        for (int i = 0; i < ecLength; ++i) {
+            for (int j = 0; j < numBlocks; ++j) {
+                result[pos++] = ecBlocks[j][i];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get the centers of the alignment patterns.
+     * 
+     * @param version
+     *            the symbol version
+     * @return the row/column coordinates of the alignment pattern centers
+     */
+    private static int[] alignmentPatternPositions(final int version) {
+        if (version == 1) {
+            return new int[0];
+        }
+        final int oddVersion = 32;
+        final int oddStep = 26;
+        int numAlign = version / 7 + 2;
+        int step;
+        if (version == oddVersion) {
+            step = oddStep;
+        } else {
+            step = (version * 4 + numAlign * 2 + 1) / (numAlign * 2 - 2) * 2;
+        }
+        int[] result = new int[numAlign];
+        result[0] = 6;
+        for (int i = numAlign - 1, pos = version * 4 + 10; i >= 1; --i, pos -= step) {
+            result[i] = pos;
+        }
+        return result;
+    }
+
+    /**
+     * Lay out the symbol and pick the best mask.
+     * 
+     * @param codewords
+     *            the interleaved data and error correction codewords
+     * @param version
+     *            the symbol version
+     * @return the finished symbol, including quiet zone
+     */
+    private BitMatrix buildMatrix(final int[] codewords, final int version) {
+        int size = version * 4 + 17;
+        // 1 = dark, 0 = light, -1 = not yet assigned.
+        byte[][] base = new byte[size][size];
+        for (byte[] row : base) {
+            java.util.Arrays.fill(row, (byte) -1);
+        }
+        drawFunctionPatterns(base, version);
+
+        byte[][] best = null;
+        int bestPenalty = Integer.MAX_VALUE;
+        for (int mask = 0; mask < NUM_MASKS; ++mask) {
+            byte[][] candidate = new byte[size][];
+            for (int y = 0; y < size; ++y) {
+                candidate[y] = base[y].clone();
+            }
+            drawFormatInfo(candidate, mask);
+            drawCodewords(candidate, codewords, mask);
+            int penalty = penalty(candidate);
+            if (penalty < bestPenalty) {
+                bestPenalty = penalty;
+                best = candidate;
+            }
+        }
+
+        BitMatrix result = new BitMatrix(size + 2 * QUIET_ZONE, size + 2
+                * QUIET_ZONE);
+        for (int y = 0; y < size; ++y) {
+            for (int x = 0; x < size; ++x) {
+                if (best[y][x] == 1) {
+                    result.set(x + QUIET_ZONE, y + QUIET_ZONE);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Draw finder, separator, timing and alignment patterns, the dark module,
+     * and version information; reserve space for format information.
+     * 
+     * @param matrix
+     *            the symbol being built
+     * @param version
+     *            the symbol version
+     */
+    private static void drawFunctionPatterns(final byte[][] matrix,
+            final int version) {
+        int size = matrix.length;
+        for (int i = 0; i < size; ++i) {
+            matrix[6][i] = (byte) ((i + 1) % 2);
+            matrix[i][6] = (byte) ((i + 1) % 2);
+        }
+        drawFinderPattern(matrix, 3, 3);
+        drawFinderPattern(matrix, size - 4, 3);
+        drawFinderPattern(matrix, 3, size - 4);
+
+        int[] align = alignmentPatternPositions(version);
+        for (int i = 0; i < align.length; ++i) {
+            for (int j = 0; j < align.length; ++j) {
+                boolean overlapsFinder = (i == 0 && j == 0)
+                        || (i == 0 && j == align.length - 1)
+                        || (i == align.length - 1 && j == 0);
+                if (!overlapsFinder) {
+                    drawAlignmentPattern(matrix, align[i], align[j]);
+                }
+            }
+        }
+
+        // Reserve format information areas (filled in per mask).
+        for (int i = 0; i <= 8; ++i) {
+            if (matrix[8][i] < 0) {
+                matrix[8][i] = 0;
+            }
+            if (matrix[i][8] < 0) {
+                matrix[i][8] = 0;
+            }
+        }
+        for (int i = 0; i < 8; ++i) {
+            matrix[8][size - 1 - i] = 0;
+            matrix[size - 1 - i][8] = 0;
+        }
+        matrix[size - 8][8] = 1;
+
+        if (version >= MIN_VERSION_WITH_INFO) {
+            final int dataBits = 6;
+            final int eccBits = 12;
+            int info = (version << eccBits)
+                    | bchRemainder(version, VERSION_INFO_POLY, eccBits);
+            for (int i = 0; i < dataBits * 3; ++i) {
+                byte bit = (byte) ((info >>> i) & 1);
+                int a = i / 3;
+                int b = size - 11 + i % 3;
+                matrix[b][a] = bit;
+                matrix[a][b] = bit;
+            }
+        }
+    }
+
+    /**
+     * Draw a finder pattern and its separator.
+     * 
+     * @param matrix
+     *            the symbol being built
+     * @param cx
+     *            the column of the pattern center
+     * @param cy
+     *            the row of the pattern center
+     */
+    private static void drawFinderPattern(final byte[][] matrix, final int cx,
+            final int cy) {
+        final int radius = 4;
+        for (int dy = -radius; dy <= radius; ++dy) {
+            for (int dx = -radius; dx <= radius; ++dx) {
+                int x = cx + dx;
+                int y = cy + dy;
+                if (x < 0 || y < 0 || x >= matrix.length || y >= matrix.length) {
+                    continue;
+                }
+                int dist = Math.max(Math.abs(dx), Math.abs(dy));
+                if (dist == 2 || dist == radius) {
+                    matrix[y][x] = 0;
+                } else {
+                    matrix[y][x] = 1;
+                }
+            }
+        }
+    }
+
+    /**
+     * Draw an alignment pattern.
+     * 
+     * @param matrix
+     *            the symbol being built
+     * @param cx
+     *            the column of the pattern center
+     * @param cy
+     *            the row of the pattern center
+     */
+    private static void drawAlignmentPattern(final byte[][] matrix,
+            final int cx, final int cy) {
+        for (int dy = -2; dy <= 2; ++dy) {
+            for (int dx = -2; dx <= 2; ++dx) {
+                if (Math.max(Math.abs(dx), Math.abs(dy)) == 1) {
+                    matrix[cy + dy][cx + dx] = 0;
+                } else {
+                    matrix[cy + dy][cx + dx] = 1;
+                }
+            }
+        }
+    }
+
+    /**
+     * Compute the BCH error correction bits for a value.
+     * 
+     * @param value
+     *            the value to protect
+     * @param poly
+     *            the generator polynomial
+     * @param eccBits
+     *            the degree of the generator polynomial
+     * @return the error correction bits
+     */
+    private static int bchRemainder(final int value, final int poly,
+            final int eccBits) {
+        int rem = value << eccBits;
+        for (int i = Integer.SIZE - 1; i >= eccBits; --i) {
+            if (((rem >>> i) & 1) != 0) {
+                rem ^= poly << (i - eccBits);
+            }
+        }
+        return rem;
+    }
+
+    /**
+     * Draw both copies of the format information.
+     * 
+     * @param matrix
+     *            the symbol being built
+     * @param mask
+     *            the mask pattern in use
+     */
+    private void drawFormatInfo(final byte[][] matrix, final int mask) {
+        final int eccBits = 10;
+        final int numBits = 15;
+        int data = (LEVEL_BITS[level] << 3) | mask;
+        int info = ((data << eccBits) | bchRemainder(data, FORMAT_INFO_POLY,
+                eccBits)) ^ FORMAT_INFO_MASK;
+        int size = matrix.length;
+        for (int i = 0; i < numBits; ++i) {
+            byte bit = (byte) ((info >>> i) & 1);
+            // First copy, around the top-left finder pattern.
+            if (i < 6) {
+                matrix[i][8] = bit;
+            } else if (i < 8) {
+                matrix[i + 1][8] = bit;
+            } else if (i == 8) {
+                matrix[8][7] = bit;
+            } else {
+                matrix[8][numBits - 1 - i] = bit;
+            }
+            // Second copy, split between the other two finder patterns.
+            if (i < 8) {
+                matrix[8][size - 1 - i] = bit;
+            } else {
+                matrix[size - numBits + i][8] = bit;
+            }
+        }
+    }
+
+    /**
+     * Check whether a mask pattern inverts a module.
+     * 
+     * @param mask
+     *            the mask pattern
+     * @param x
+     *            the column
+     * @param y
+     *            the row
+     * @return true if the module should be inverted
+     */
+    private static boolean maskBit(final int mask, final int x, final int y) {
+        switch (mask) {
+        case 0:
+            return (y + x) % 2 == 0;
+        case 1:
+            return y % 2 == 0;
+        case 2:
+            return x % 3 == 0;
+        case 3:
+            return (y + x) % 3 == 0;
+        case 4:
+            return (y / 2 + x / 3) % 2 == 0;
+        case 5:
+            return (y * x) % 2 + (y * x) % 3 == 0;
+        case 6:
+            return ((y * x) % 2 + (y * x) % 3) % 2 == 0;
+        default:
+            return ((y * x) % 3 + (y + x) % 2) % 2 == 0;
+        }
+    }
+
+    /**
+     * Place codewords in the unassigned modules, in the zig-zag order defined
+     * by the standard, applying a mask as we go.
+     * 
+     * @param matrix
+     *            the symbol being built
+     * @param codewords
+     *            the interleaved codewords
+     * @param mask
+     *            the mask pattern to apply
+     */
+    private static void drawCodewords(final byte[][] matrix,
+            final int[] codewords, final int mask) {
+        int size = matrix.length;
+        int numBits = codewords.length * Byte.SIZE;
+        int bitIndex = 0;
+        boolean upward = true;
+        for (int right = size - 1; right >= 1; right -= 2) {
+            if (right == 6) {
+                right = 5;
+            }
+            for (int vert = 0; vert < size; ++vert) {
+                int y;
+                if (upward) {
+                    y = size - 1 - vert;
+                } else {
+                    y = vert;
+                }
+                for (int j = 0; j < 2; ++j) {
+                    int x = right - j;
+                    if (matrix[y][x] >= 0) {
+                        continue;
+                    }
+                    boolean dark = false;
+                    if (bitIndex < numBits) {
+                        dark = ((codewords[bitIndex / Byte.SIZE] >>> (Byte.SIZE - 1 - bitIndex
+                                % Byte.SIZE)) & 1) != 0;
+                        ++bitIndex;
+                    }
+                    if (maskBit(mask, x, y)) {
+                        dark = !dark;
+                    }
+                    if (dark) {
+                        matrix[y][x] = 1;
+                    } else {
+                        matrix[y][x] = 0;
+                    }
+                }
+            }
+            upward = !upward;
+        }
+    }
+
+    /**
+     * Score a candidate symbol; lower is better.
+     * 
+     * @param matrix
+     *            the complete symbol
+     * @return the total penalty
+     */
+    private static int penalty(final byte[][] matrix) {
+        final int minRun = 5;
+        int size = matrix.length;
+        int result = 0;
+        int dark = 0;
+        for (int a = 0; a < size; ++a) {
+            int rowRun = 0;
+            int colRun = 0;
+            for (int b = 0; b < size; ++b) {
+                if (b > 0 && matrix[a][b] == matrix[a][b - 1]) {
+                    ++rowRun;
+                } else {
+                    if (rowRun >= minRun) {
+                        result += PENALTY_RUN + rowRun - minRun;
+                    }
+                    rowRun = 1;
+                }
+                if (b > 0 && matrix[b][a] == matrix[b - 1][a]) {
+                    ++colRun;
+                } else {
+                    if (colRun >= minRun) {
+                        result += PENALTY_RUN + colRun - minRun;
+                    }
+                    colRun = 1;
+                }
+                if (a > 0 && b > 0 && matrix[a][b] == matrix[a - 1][b]
+                        && matrix[a][b] == matrix[a][b - 1]
+                        && matrix[a][b] == matrix[a - 1][b - 1]) {
+                    result += PENALTY_BLOCK;
+                }
+                if (isFinderLike(matrix, a, b, true)) {
+                    result += PENALTY_FINDER;
+                }
+                if (isFinderLike(matrix, a, b, false)) {
+                    result += PENALTY_FINDER;
+                }
+                dark += matrix[a][b];
+            }
+            if (rowRun >= minRun) {
+                result += PENALTY_RUN + rowRun - minRun;
+            }
+            if (colRun >= minRun) {
+                result += PENALTY_RUN + colRun - minRun;
+            }
+        }
+        int total = size * size;
+        final int percentSteps = 10;
+        result += Math.abs(dark * 2 - total) * percentSteps / total
+                * PENALTY_BALANCE;
+        return result;
+    }
+
+    /**
+     * Dark/light sequence of a finder pattern's center line.
+     */
+    private static final byte[] FINDER_LINE = { 1, 0, 1, 1, 1, 0, 1 };
+
+    /**
+     * Check for a 1:1:3:1:1 dark pattern with four light modules on at least
+     * one side, starting at the given module.
+     * 
+     * @param matrix
+     *            the complete symbol
+     * @param a
+     *            the row (or column, if not <code>horizontal</code>)
+     * @param b
+     *            the starting column (or row)
+     * @param horizontal
+     *            true to scan along a row; false to scan down a column
+     * @return true if a finder-like pattern starts here
+     */
+    private static boolean isFinderLike(final byte[][] matrix, final int a,
+            final int b, final boolean horizontal) {
+        final int quiet = 4;
+        int size = matrix.length;
+        if (b + FINDER_LINE.length > size) {
+            return false;
+        }
+        for (int i = 0; i < FINDER_LINE.length; ++i) {
+            if (at(matrix, a, b + i, horizontal) != FINDER_LINE[i]) {
+                return false;
+            }
+        }
+        boolean lightBefore = true;
+        boolean lightAfter = true;
+        for (int i = 1; i <= quiet; ++i) {
+            int before = b - i;
+            int after = b + FINDER_LINE.length - 1 + i;
+            if (before >= 0 && at(matrix, a, before, horizontal) == 1) {
+                lightBefore = false;
+            }
+            if (after < size && at(matrix, a, after, horizontal) == 1) {
+                lightAfter = false;
+            }
+        }
+        return lightBefore || lightAfter;
+    }
+
+    /**
+     * Read a module along a row or column.
+     * 
+     * @param matrix
+     *            the complete symbol
+     * @param a
+     *            the row (or column, if not <code>horizontal</code>)
+     * @param b
+     *            the column (or row)
+     * @param horizontal
+     *            true if <code>a</code> is the row
+     * @return the module value
+     */
+    private static byte at(final byte[][] matrix, final int a, final int b,
+            final boolean horizontal) {
+        if (horizontal) {
+            return matrix[a][b];
+        }
+        return matrix[b][a];
+    }
+}
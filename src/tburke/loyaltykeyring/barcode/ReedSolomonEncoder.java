@@ -0,0 +1,105 @@
+package tburke.loyaltykeyring.barcode;
+
+/**
+ * Reed-Solomon error correction over GF(256), using the primitive polynomial
+ * x^8 + x^4 + x^3 + x^2 + 1 as required by QR codes.
+ * 
+ * @author tburke
+ */
+final class ReedSolomonEncoder {
+    /**
+     * Number of elements in the field.
+     */
+    private static final int FIELD_SIZE = 256;
+    /**
+     * The primitive polynomial, 0x11D.
+     */
+    private static final int PRIMITIVE = 0x11D;
+    /**
+     * Powers of the generator element, alpha.
+     */
+    private static final int[] EXP_TABLE = new int[FIELD_SIZE];
+    /**
+     * Discrete logarithms, base alpha.
+     */
+    private static final int[] LOG_TABLE = new int[FIELD_SIZE];
+    static {
+        int x = 1;
+        for (int i = 0; i < FIELD_SIZE; ++i) {
+            EXP_TABLE[i] = x;
+            x <<= 1;
+            if (x >= FIELD_SIZE) {
+                x ^= PRIMITIVE;
+            }
+        }
+        for (int i = 0; i < FIELD_SIZE - 1; ++i) {
+            LOG_TABLE[EXP_TABLE[i]] = i;
+        }
+    }
+
+    /**
+     * Coefficients of the generator polynomial, highest degree first
+     * (excluding the leading 1).
+     */
+    private final int[] generator;
+
+    /**
+     * Create an encoder producing a fixed number of error correction
+     * codewords.
+     * 
+     * @param ecCodewords
+     *            the number of error correction codewords per block
+     */
+    ReedSolomonEncoder(final int ecCodewords) {
+        // Multiply out (x - a^0)(x - a^1)...(x - a^(n-1)).
+        int[] poly = new int[ecCodewords + 1];
+        poly[0] = 1;
+        for (int i = 0; i < ecCodewords; ++i) {
+            for (int j = i + 1; j > 0; --j) {
+                poly[j] ^= multiply(poly[j - 1], EXP_TABLE[i]);
+            }
+        }
+        generator = new int[ecCodewords];
+        System.arraycopy(poly, 1, generator, 0, ecCodewords);
+    }
+
+    /**
+     * Multiply two field elements.
+     * 
+     * @param a
+     *            the first element
+     * @param b
+     *            the second element
+     * @return the product
+     */
+    private static int multiply(final int a, final int b) {
+        if (a == 0 || b == 0) {
+            return 0;
+        }
+        return EXP_TABLE[(LOG_TABLE[a] + LOG_TABLE[b]) % (FIELD_SIZE - 1)];
+    }
+
+    /**
+     * Compute error correction codewords for a block of data.
+     * 
+     * @param data
+     *            the data codewords
+     * @param offset
+     *            the first data codeword in the block
+     * @param length
+     *            the number of data codewords in the block
+     * @return the error correction codewords
+     */
+    int[] encode(final int[] data, final int offset, final int length) {
+        int[] remainder = new int[generator.length];
+        for (int i = offset; i < offset + length; ++i) {
+            int factor = data[i] ^ remainder[0];
+            System.arraycopy(remainder, 1, remainder, 0, remainder.length - 1);
+            remainder[remainder.length - 1] = 0;
+            for (int j = 0; j < generator.length; ++j) {
+                remainder[j] ^= multiply(generator[j], factor);
+            }
+        }
+        return remainder;
+    }
+}
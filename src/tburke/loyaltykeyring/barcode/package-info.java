@@ -0,0 +1,11 @@
+/**
+ * In-process barcode encoders, so that a {@link tburke.loyaltykeyring.LoyaltyCard}
+ * can be displayed without a round-trip through the external Barcode Scanner
+ * application.
+ * <p>
+ * Nothing in this package depends on the Android framework; encoders produce a
+ * {@link tburke.loyaltykeyring.barcode.BitMatrix} which is turned into pixels
+ * elsewhere. Format names match those used by ZXing's {@code BarcodeFormat}
+ * (and thus those stored with each card), for example "UPC_A" or "QR_CODE".
+ */
+package tburke.loyaltykeyring.barcode;